@@ -0,0 +1,240 @@
+package com.sample.saml.bench;
+
+import com.sample.saml.servlet.ACSServlet;
+import com.sample.saml.util.SAMLConfig;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ACS Memory Test
+ * 
+ * Per-request memory of {@code /saml/acs} for SAMLResponses of 50 KB to
+ * 2 MB, with the body read through {@code getParameter} (a container
+ * buffering the body and decoding the parameter string) versus streamed
+ * ({@code app.acs.streaming}). Two figures per path:
+ * <ul>
+ *   <li>held: heap the request holds when the toolkit starts parsing, the
+ *       peak of its input copies, taken with a full GC at that point (the
+ *       service's {@code getRequestURL} call right before verification)</li>
+ *   <li>allocated: all bytes the request allocates, an upper bound for its
+ *       peak including the toolkit's decoded string, DOM and signature
+ *       checks, which are the same for both paths</li>
+ * </ul>
+ * Three kinds of response:
+ * <ul>
+ *   <li>{@code valid}: a correctly signed response, through parse, signature
+ *       validation and session</li>
+ *   <li>{@code misaddressed}: the same response with another site's
+ *       Destination, rejected by the pre-check</li>
+ *   <li>{@code oversized}: a valid response above the configured
+ *       {@code saml.precheck.maxResponseBytes}, rejected by the size limit</li>
+ * </ul>
+ * Every request gets a freshly signed response so the replay cache does
+ * not short-cut it; each figure is the median over the iterations.
+ * 
+ * Usage: {@code java -cp target/benchmarks.jar com.sample.saml.bench.AcsMemoryTest
+ * [--sizes=50,200,500,1000,2000] [--iterations=10] [--warmup=5] [--maxKilobytes=4096]}
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class AcsMemoryTest {
+    
+    private static final String CONTEXT_PATH = "/java-saml-sso";
+    private static final int VALUE_LENGTH = 1024;
+    
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    private static final ExecutorService signer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "signer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private AcsMemoryTest() {
+        // Command line tool - no instantiation needed
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int[] sizes = Arrays.stream(options.getOrDefault("sizes", "50,200,500,1000,2000").split(","))
+                .mapToInt(size -> Integer.parseInt(size.trim())).toArray();
+        int iterations = Integer.parseInt(options.getOrDefault("iterations", "10"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        int maxKilobytes = Integer.parseInt(options.getOrDefault("maxKilobytes", "4096"));
+        
+        SAMLFixtures fixtures = new SAMLFixtures();
+        Path config = Files.createTempFile("acs-memory", ".properties");
+        config.toFile().deleteOnExit();
+        // Each run writes the file and reloads it
+        System.setProperty(SAMLConfig.CONFIG_FILE_PROPERTY, config.toString());
+        ACSServlet servlet = new ACSServlet();
+        
+        // Bytes per attribute, to size the responses
+        int small = fixtures.signedResponseXml(10, VALUE_LENGTH).length();
+        int perAttribute = (fixtures.signedResponseXml(20, VALUE_LENGTH).length() - small) / 10;
+        
+        System.out.printf("max response %d KB, %d iterations, KB per request%n", maxKilobytes, iterations);
+        System.out.printf("%n%-14s %8s %8s | %-23s | %-23s%n", "", "", "", "held at verification", "allocated");
+        System.out.printf("%-14s %8s %8s | %11s %11s | %11s %11s%n", "case", "size", "body", "getParameter",
+                "streamed", "getParameter", "streamed");
+        for (int kilobytes : sizes) {
+            int attributes = Math.max(1, 10 + (kilobytes * 1024 - small) / perAttribute);
+            for (String kind : new String[] {"valid", "misaddressed", "oversized"}) {
+                int count = "oversized".equals(kind)
+                        ? Math.max(attributes, 10 + (maxKilobytes * 1024 - small) / perAttribute + 10) : attributes;
+                if ("oversized".equals(kind) && kilobytes != sizes[sizes.length - 1]) {
+                    // One oversized row is enough: its cost does not depend on the nominal size
+                    continue;
+                }
+                long[] sizeAndBody = new long[2];
+                long[] parameter = measure(servlet, fixtures, config, maxKilobytes, false, kind, count,
+                        iterations, warmup, sizeAndBody);
+                long[] streamed = measure(servlet, fixtures, config, maxKilobytes, true, kind, count,
+                        iterations, warmup, sizeAndBody);
+                System.out.printf("%-14s %8d %8d | %11s %11s | %11d %11d%n", kind, sizeAndBody[0] / 1024,
+                        sizeAndBody[1] / 1024, kilobytes(parameter[0]), kilobytes(streamed[0]),
+                        parameter[1] / 1024, streamed[1] / 1024);
+            }
+        }
+    }
+    
+    /**
+     * Median bytes held at verification (-1 if not reached) and allocated by one ACS request
+     */
+    private static long[] measure(ACSServlet servlet, SAMLFixtures fixtures, Path config, int maxKilobytes,
+                                boolean streaming, String kind, int attributes, int iterations, int warmup,
+                                long[] sizeAndBody) throws Exception {
+        writeConfig(fixtures, config, maxKilobytes, streaming);
+        if (!SAMLConfig.reload()) {
+            throw new IllegalStateException("Failed to reload " + config);
+        }
+        long[] held = new long[iterations];
+        long[] allocated = new long[iterations];
+        for (int i = -warmup; i < iterations; i++) {
+            // Signed on another thread: the signing code leaves thread-local garbage that the next
+            // XML work on the same thread releases, which would show up as negative held bytes
+            String xml = signer.submit(() -> fixtures.signedResponseXml(attributes, VALUE_LENGTH)).get();
+            if ("misaddressed".equals(kind)) {
+                xml = xml.replaceFirst("Destination=\"[^\"]*\"", "Destination=\"https://sp.attacker.example/acs\"");
+            }
+            byte[] body = ("SAMLResponse=" + URLEncoder.encode(Base64.getEncoder().encodeToString(
+                    xml.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8)
+                    + "&RelayState=%2Fjava-saml-sso%2Fwelcome.jsp").getBytes(StandardCharsets.US_ASCII);
+            Map<String, Object> sink = new HashMap<>();
+            HttpServletResponse response = MockServlet.response(sink);
+            
+            // Allocation is only measured without the full GCs, which allocate themselves
+            boolean measureHeld = i % 2 != 0;
+            long[] atVerification = {-1};
+            HttpServletRequest request = MockServlet.formPost(fixtures.getAcsUrl(), CONTEXT_PATH, body);
+            if (measureHeld) {
+                request = beforeVerification(request, () -> atVerification[0] = heapAfterGc());
+            }
+            long baseline = measureHeld ? heapAfterGc() : 0;
+            long before = threadBean.getCurrentThreadAllocatedBytes();
+            servlet.service(request, response);
+            long used = threadBean.getCurrentThreadAllocatedBytes() - before;
+            
+            boolean accepted = sink.containsKey("Location") && !sink.containsKey("status");
+            if (accepted != "valid".equals(kind)) {
+                throw new IllegalStateException(kind + " response was " + (accepted ? "accepted" : "rejected")
+                        + (streaming ? " (streamed)" : " (getParameter)") + ": " + sink);
+            }
+            if (i >= 0) {
+                held[i] = measureHeld ? (atVerification[0] < 0 ? -1 : Math.max(0, atVerification[0] - baseline))
+                        : Long.MIN_VALUE;
+                allocated[i] = measureHeld ? Long.MIN_VALUE : used;
+            }
+            sizeAndBody[0] = xml.length();
+            sizeAndBody[1] = body.length;
+        }
+        return new long[] {median(held), median(allocated)};
+    }
+    
+    /**
+     * Runs a hook when the service reads the request URL, right before it hands the response to the toolkit
+     */
+    private static HttpServletRequest beforeVerification(HttpServletRequest request, Runnable hook) {
+        return (HttpServletRequest) Proxy.newProxyInstance(AcsMemoryTest.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class}, (proxy, method, args) -> {
+                    if ("getRequestURL".equals(method.getName())) {
+                        hook.run();
+                    }
+                    try {
+                        return method.invoke(request, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+    
+    private static long heapAfterGc() {
+        // Objects with cleaners or finalizers only go in a later collection; stop once nothing more is freed
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = memoryBean.getHeapMemoryUsage().getUsed();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+    
+    /**
+     * Median of the measured entries; Long.MIN_VALUE marks an iteration that measured the other figure
+     */
+    private static long median(long[] values) {
+        long[] measured = Arrays.stream(values).filter(value -> value != Long.MIN_VALUE).sorted().toArray();
+        return measured.length == 0 ? -1 : measured[measured.length / 2];
+    }
+    
+    private static String kilobytes(long bytes) {
+        return bytes < 0 ? "-" : Long.toString(bytes / 1024);
+    }
+    
+    private static void writeConfig(SAMLFixtures fixtures, Path config, int maxKilobytes, boolean streaming)
+            throws Exception {
+        Properties base = new Properties();
+        try (InputStream input = AcsMemoryTest.class.getClassLoader().getResourceAsStream("saml.properties")) {
+            base.load(input);
+        }
+        base.setProperty("saml.precheck.maxResponseBytes", Integer.toString(maxKilobytes * 1024));
+        base.setProperty("app.acs.streaming", Boolean.toString(streaming));
+        // Every request comes from the same mock client
+        base.setProperty("saml.admission.enabled", "false");
+        new MockIdP(fixtures, 1, 16).writeSpConfig(base, "https://localhost:9443/idp/sso", config);
+    }
+    
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+}
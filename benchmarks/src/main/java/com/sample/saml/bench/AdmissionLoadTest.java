@@ -0,0 +1,249 @@
+package com.sample.saml.bench;
+
+import com.onelogin.saml2.util.Util;
+import com.sample.saml.filter.SAMLSessionFilter;
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.service.AdmissionControl;
+import com.sample.saml.util.SAMLConfig;
+import org.w3c.dom.Document;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Admission Control Load Test
+ * 
+ * Floods the signature-verifying endpoints and measures what happens to
+ * ordinary page traffic, without and with {@link AdmissionControl}. Each
+ * flooding thread posts a login every {@code --pauseMillis}: it asks for
+ * admission as {@code ACSServlet} does and, when admitted, parses the
+ * response and validates its signature. Meanwhile a probe thread requests
+ * {@code welcome.jsp} through {@link SAMLSessionFilter} with a valid session
+ * every {@code --probeMillis}.
+ * 
+ * Two floods are run: all posts from one client address (stopped by the
+ * per-client token bucket), and posts spread over {@code --clients}
+ * addresses (stopped by the concurrency limit and wait queue). Prints
+ * verifications and rejections per second, the latency of admitted logins
+ * and the latency of the welcome page.
+ * 
+ * Usage: {@code java -cp target/benchmarks.jar com.sample.saml.bench.AdmissionLoadTest
+ * [--flooders=64] [--clients=1000] [--pauseMillis=1] [--duration=10] [--attributes=10]
+ * [--clientRate=5] [--clientBurst=20] [--maxConcurrent=0] [--queueCapacity=64] [--maxWaitMillis=1000]}
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class AdmissionLoadTest {
+    
+    private static final String CONTEXT = "/java-saml-sso";
+    
+    private AdmissionLoadTest() {
+        // Command line tool - no instantiation needed
+    }
+    
+    /**
+     * Outcome of one flood
+     */
+    private static final class Round {
+        private final List<Long> loginNanos = Collections.synchronizedList(new ArrayList<>());
+        private final List<Long> probeNanos = new ArrayList<>();
+        private final Map<String, Long> rejected = new LinkedHashMap<>();
+        private long elapsedNanos;
+        
+        synchronized void reject(String reason) {
+            rejected.merge(reason, 1L, Long::sum);
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int flooders = Integer.parseInt(options.getOrDefault("flooders", "64"));
+        int clients = Integer.parseInt(options.getOrDefault("clients", "1000"));
+        long pauseMillis = Long.parseLong(options.getOrDefault("pauseMillis", "1"));
+        long probeMillis = Long.parseLong(options.getOrDefault("probeMillis", "5"));
+        int durationSeconds = Integer.parseInt(options.getOrDefault("duration", "10"));
+        int attributes = Integer.parseInt(options.getOrDefault("attributes", "10"));
+        
+        SAMLConfig.initialize();
+        SAMLFixtures fixtures = new SAMLFixtures();
+        String xml = fixtures.signedResponseXml(attributes, 16);
+        X509Certificate certificate = fixtures.getIdpCertificate();
+        Runnable verification = () -> {
+            Document document = Util.loadXML(xml);
+            if (!Util.validateSign(document, certificate, null, null, Util.ASSERTION_SIGNATURE_XPATH)) {
+                throw new IllegalStateException("Signature did not validate");
+            }
+        };
+        Runnable probe = welcomePage();
+        
+        // Warm up both code paths
+        run(null, verification, probe, flooders, 1, pauseMillis, probeMillis, 3);
+        
+        long single = System.nanoTime();
+        verification.run();
+        System.out.printf("%d CPUs, %d flooding threads posting every %d ms, one verification on an idle machine: %.2f ms%n",
+                Runtime.getRuntime().availableProcessors(), flooders, pauseMillis, millis(System.nanoTime() - single));
+        
+        System.out.printf("%n%-14s %-10s %10s %10s %10s %10s %12s %12s %s%n", "flood", "admission", "verified/s",
+                "login p50", "login p99", "probe p50", "probe p99", "probe max", "rejected/s");
+        for (String flood : new String[] {"one_client", "many_clients"}) {
+            int addresses = "one_client".equals(flood) ? 1 : clients;
+            for (boolean enabled : new boolean[] {false, true}) {
+                AdmissionControl admission = enabled ? new AdmissionControl(true,
+                        Double.parseDouble(options.getOrDefault("clientRate", "5")),
+                        Integer.parseInt(options.getOrDefault("clientBurst", "20")), 100000, null,
+                        Integer.parseInt(options.getOrDefault("maxConcurrent", "0")),
+                        Integer.parseInt(options.getOrDefault("queueCapacity", "64")),
+                        Long.parseLong(options.getOrDefault("maxWaitMillis", "1000"))) : null;
+                Round round = run(admission, verification, probe, flooders, addresses, pauseMillis, probeMillis,
+                        durationSeconds);
+                long[] logins = sorted(round.loginNanos);
+                long[] probes = sorted(round.probeNanos);
+                double seconds = round.elapsedNanos / 1e9;
+                StringBuilder rejected = new StringBuilder();
+                round.rejected.forEach((reason, count) -> rejected.append(rejected.length() > 0 ? ", " : "")
+                        .append(reason).append(' ').append(String.format("%.0f", count / seconds)));
+                System.out.printf("%-14s %-10s %10.1f %10.1f %10.1f %10.2f %12.2f %12.2f %s%n", flood,
+                        enabled ? "on" : "off", logins.length / seconds, millis(percentile(logins, 0.5)),
+                        millis(percentile(logins, 0.99)), millis(percentile(probes, 0.5)),
+                        millis(percentile(probes, 0.99)), millis(probes.length > 0 ? probes[probes.length - 1] : 0),
+                        rejected.length() > 0 ? rejected : "-");
+            }
+        }
+    }
+    
+    private static Round run(AdmissionControl admission, Runnable verification, Runnable probe, int flooders,
+                             int addresses, long pauseMillis, long probeMillis, int seconds) throws InterruptedException {
+        Round round = new Round();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch done = new CountDownLatch(flooders + 1);
+        
+        for (int i = 0; i < flooders; i++) {
+            int first = i;
+            Thread thread = new Thread(() -> {
+                int request = first;
+                while (running.get()) {
+                    String client = "10.0." + (request % addresses / 256) + "." + (request % addresses % 256);
+                    request += flooders;
+                    long start = System.nanoTime();
+                    AdmissionControl.Ticket ticket = admission != null ? admission.admit(client) : null;
+                    if (ticket != null && !ticket.isAdmitted()) {
+                        round.reject(ticket.getRejection());
+                    } else {
+                        try {
+                            verification.run();
+                            round.loginNanos.add(System.nanoTime() - start);
+                        } finally {
+                            if (ticket != null) {
+                                ticket.close();
+                            }
+                        }
+                    }
+                    pause(pauseMillis);
+                }
+                done.countDown();
+            }, "flood-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        Thread prober = new Thread(() -> {
+            while (running.get()) {
+                long start = System.nanoTime();
+                probe.run();
+                round.probeNanos.add(System.nanoTime() - start);
+                pause(probeMillis);
+            }
+            done.countDown();
+        }, "probe");
+        prober.setDaemon(true);
+        
+        long start = System.nanoTime();
+        prober.start();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running.set(false);
+        round.elapsedNanos = System.nanoTime() - start;
+        done.await();
+        return round;
+    }
+    
+    /**
+     * A welcome.jsp request with a valid session: the session filter, then a page of about 4 KB
+     */
+    private static Runnable welcomePage() throws Exception {
+        SAMLSessionFilter filter = new SAMLSessionFilter();
+        filter.init(MockServlet.filterConfig(Collections.emptyMap()));
+        Map<String, List<String>> attributes = new HashMap<>();
+        attributes.put("Role", Arrays.asList("user"));
+        attributes.put("email", Arrays.asList("user@example.com"));
+        HttpSession session = MockServlet.session();
+        session.setAttribute("saml.userInfo", new SAMLUserInfo("user@example.com", attributes, "_session"));
+        HttpServletRequest request = MockServlet.request("GET", "http://localhost:8080" + CONTEXT + "/welcome.jsp",
+                CONTEXT, Collections.emptyMap(), session);
+        FilterChain page = (req, resp) -> {
+            StringBuilder html = new StringBuilder(4096);
+            for (int i = 0; i < 64; i++) {
+                html.append("<tr><td>attribute ").append(i).append("</td><td>user@example.com</td></tr>\n");
+            }
+            resp.getWriter().write(html.toString());
+            resp.getWriter().flush();
+        };
+        return () -> {
+            try {
+                filter.doFilter(request, MockServlet.response(null), page);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+    
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static long[] sorted(List<Long> values) {
+        synchronized (values) {
+            return values.stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+    }
+    
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+    
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+    
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,87 @@
+package com.sample.saml.bench;
+
+import com.sample.saml.service.AssertionReplayCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Assertion Replay Cache Contention Benchmark
+ * 
+ * Measures record (markUsed) and pre-check (isReplay) throughput of the
+ * replay cache as the number of concurrent ACS threads grows. Run
+ * {@link #main(String[])} for the 1-64 thread sweep, or use the usual
+ * {@code -t} option of benchmarks.jar for a single thread count.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AssertionReplayCacheBenchmark {
+    
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+    
+    /**
+     * One cache shared by all benchmark threads, recreated every iteration so it never fills up
+     */
+    @State(Scope.Benchmark)
+    public static class SharedCache {
+        
+        AssertionReplayCache cache;
+        final AtomicLong sequence = new AtomicLong();
+        long notOnOrAfter;
+        
+        @Setup(Level.Iteration)
+        public void setup() {
+            // 60 s slots, 1 h horizon, 3 min skew; all IDs land in one slot to maximise contention
+            cache = new AssertionReplayCache(60, 3600, 180, 1 << 23);
+            notOnOrAfter = System.currentTimeMillis() + 30_000;
+        }
+    }
+    
+    @Benchmark
+    public boolean recordNewAssertion(SharedCache state) {
+        String id = "_" + state.sequence.incrementAndGet();
+        return state.cache.markUsed(id, state.notOnOrAfter, System.currentTimeMillis());
+    }
+    
+    @Benchmark
+    public boolean precheckUnknownAssertion(SharedCache state) {
+        String id = "_u" + state.sequence.incrementAndGet();
+        return state.cache.isReplay(id, state.notOnOrAfter);
+    }
+    
+    /**
+     * Runs the benchmark once per thread count from 1 to 64
+     * 
+     * @param args unused
+     * @throws Exception if JMH fails
+     */
+    public static void main(String[] args) throws Exception {
+        for (int threads : THREAD_COUNTS) {
+            Options options = new OptionsBuilder()
+                    .include(AssertionReplayCacheBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.sample.saml.bench;
+
+import com.onelogin.saml2.settings.Saml2Settings;
+import com.sample.saml.service.SAMLService;
+import com.sample.saml.util.ConfigSnapshot;
+import com.sample.saml.util.SAMLConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration Layer Benchmark
+ * 
+ * Measures property lookups on the current snapshot, the shared service
+ * lookup used by every request, and a full settings build from a snapshot
+ * (the configuration map of {@code getSAMLConfiguration} plus the toolkit's
+ * SettingsBuilder), which is what a reload pays.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigBenchmark {
+    
+    private ConfigSnapshot snapshot;
+    
+    @Setup
+    public void setup() {
+        SAMLConfig.initialize();
+        snapshot = SAMLConfig.getSnapshot();
+        SAMLService.getInstance();
+    }
+    
+    @Benchmark
+    public String getProperty() {
+        return SAMLConfig.getProperty("sp.entityId");
+    }
+    
+    @Benchmark
+    public int getIntProperty() {
+        return SAMLConfig.getIntProperty("app.metadata.cacheMaxAge", 300);
+    }
+    
+    @Benchmark
+    public SAMLService getInstance() {
+        return SAMLService.getInstance();
+    }
+    
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Saml2Settings buildSettings() {
+        return SAMLService.buildSettings(snapshot);
+    }
+}
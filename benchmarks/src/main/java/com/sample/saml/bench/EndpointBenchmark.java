@@ -0,0 +1,123 @@
+package com.sample.saml.bench;
+
+import com.sample.saml.servlet.ACSServlet;
+import com.sample.saml.servlet.MetadataServlet;
+import com.sample.saml.util.SAMLConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SAML Endpoint Benchmark
+ * 
+ * Request handling cost of the servlet endpoints against the JSP pages
+ * they replace, on the paths that do not depend on a valid assertion:
+ * an ACS post without a SAMLResponse and the metadata download.
+ * 
+ * The legacy ACS error page is replayed from {@code legacy/acs-error.html},
+ * the page acs.jsp rendered for this case. A compiled JSP writes its
+ * template text with {@code out.write} through the response writer, which
+ * is what {@link #legacyJspAcsError} does; Jasper compilation on first hit
+ * is not included. Run {@link #main} for the bytes written per response.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndpointBenchmark {
+    
+    private static final String BASE = "https://localhost:8899/java-saml-sso";
+    private static final String CONTEXT_PATH = "/java-saml-sso";
+    
+    private ACSServlet acsServlet;
+    private MetadataServlet metadataServlet;
+    private String legacyErrorPage;
+    private HttpServletRequest acsRequest;
+    private HttpServletRequest metadataRequest;
+    
+    @Setup
+    public void setup() throws IOException {
+        SAMLConfig.initialize();
+        acsServlet = new ACSServlet();
+        metadataServlet = new MetadataServlet();
+        try (InputStream input = EndpointBenchmark.class.getClassLoader().getResourceAsStream("legacy/acs-error.html")) {
+            legacyErrorPage = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        acsRequest = MockServlet.request("POST", BASE + "/saml/acs", CONTEXT_PATH, Collections.emptyMap(), null);
+        metadataRequest = MockServlet.request("GET", BASE + "/saml/metadata", CONTEXT_PATH, Collections.emptyMap(), null);
+    }
+    
+    @Benchmark
+    public HttpServletResponse servletAcsError() throws ServletException, IOException {
+        HttpServletResponse response = MockServlet.response(null);
+        acsServlet.service(acsRequest, response);
+        return response;
+    }
+    
+    @Benchmark
+    public HttpServletResponse legacyJspAcsError() throws IOException {
+        HttpServletResponse response = MockServlet.response(null);
+        acsRequest.setAttribute("error", "No SAML response received");
+        response.setContentType("text/html; charset=UTF-8");
+        PrintWriter out = response.getWriter();
+        out.write(legacyErrorPage);
+        out.flush();
+        return response;
+    }
+    
+    @Benchmark
+    public HttpServletResponse servletMetadata() throws ServletException, IOException {
+        HttpServletResponse response = MockServlet.response(null);
+        metadataServlet.service(metadataRequest, response);
+        return response;
+    }
+    
+    /**
+     * Prints the response body size of each path
+     * 
+     * @param args ignored
+     * @throws Exception if a request fails
+     */
+    public static void main(String[] args) throws Exception {
+        EndpointBenchmark benchmark = new EndpointBenchmark();
+        benchmark.setup();
+        
+        Map<String, Object> servlet = new HashMap<>();
+        benchmark.acsServlet.service(benchmark.acsRequest, MockServlet.response(servlet));
+        System.out.printf("ACS error, servlet:    status %s, %s bytes%n", servlet.get("status"), servlet.get("bytes"));
+        
+        Map<String, Object> legacy = new HashMap<>();
+        PrintWriter out = MockServlet.response(legacy).getWriter();
+        out.write(benchmark.legacyErrorPage);
+        out.flush();
+        System.out.printf("ACS error, legacy JSP: status 200, %s bytes%n", legacy.get("bytes"));
+        
+        Map<String, Object> metadata = new HashMap<>();
+        benchmark.metadataServlet.service(benchmark.metadataRequest, MockServlet.response(metadata));
+        System.out.printf("Metadata, servlet:     %s bytes%n", metadata.get("bytes"));
+    }
+}
@@ -0,0 +1,217 @@
+package com.sample.saml.bench;
+
+import com.onelogin.saml2.util.Util;
+import com.sample.saml.service.VerificationPool;
+import org.w3c.dom.Document;
+
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request Execution Mode Load Test
+ * 
+ * Compares the classic 200-thread platform worker pool with virtual-thread
+ * request execution at 1k-10k concurrent logins. Each simulated ACS request
+ * blocks on I/O (session lookup before, session persistence and log flush
+ * after) around the CPU-bound part: parsing the SAMLResponse and validating
+ * its XML signature with the toolkit, routed through {@link VerificationPool}
+ * exactly as {@code SAMLService.processResponse} does.
+ * 
+ * All logins of a round arrive at once, as at a login peak. The test reports
+ * throughput (logins divided by the time to drain the burst) and latency
+ * percentiles measured from arrival. While the burst drains, a probe submits
+ * an I/O-only request every few milliseconds and reports how long it waited
+ * beyond its own I/O time, which shows whether CPU-bound logins starve
+ * requests that only need to wait.
+ * 
+ * Modes:
+ * <ul>
+ *   <li>{@code platform}: fixed pool of {@code --platformThreads} workers
+ *       (Tomcat maxThreads) with a queue for the rest; verification inline.</li>
+ *   <li>{@code virtual}: one virtual thread per request; verification on the
+ *       bounded verification pool.</li>
+ *   <li>{@code virtual-inline}: one virtual thread per request; verification
+ *       on the virtual thread itself.</li>
+ * </ul>
+ * 
+ * Usage: {@code java -cp target/benchmarks.jar com.sample.saml.bench.ExecutionModeLoadTest
+ * [--concurrency=1000,5000,10000] [--modes=platform,virtual,virtual-inline]
+ * [--platformThreads=200] [--ioMillis=20] [--verifyPoolSize=0] [--attributes=10]
+ * [--probeMillis=5] [--warmup=500]}
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class ExecutionModeLoadTest {
+    
+    private ExecutionModeLoadTest() {
+        // Command line tool - no instantiation needed
+    }
+    
+    /**
+     * Result of one round
+     */
+    private static final class Round {
+        private final long[] latencies;
+        private final long[] probeDelays;
+        private final long makespanNanos;
+        private final long failures;
+        
+        Round(long[] latencies, long[] probeDelays, long makespanNanos, long failures) {
+            this.latencies = latencies;
+            this.probeDelays = probeDelays;
+            this.makespanNanos = makespanNanos;
+            this.failures = failures;
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int[] concurrencies = Arrays.stream(options.getOrDefault("concurrency", "1000,5000,10000").split(","))
+                .mapToInt(value -> Integer.parseInt(value.trim())).toArray();
+        String[] modes = options.getOrDefault("modes", "platform,virtual,virtual-inline").split(",");
+        int platformThreads = Integer.parseInt(options.getOrDefault("platformThreads", "200"));
+        long ioMillis = Long.parseLong(options.getOrDefault("ioMillis", "20"));
+        int verifyPoolSize = Integer.parseInt(options.getOrDefault("verifyPoolSize", "0"));
+        int attributes = Integer.parseInt(options.getOrDefault("attributes", "10"));
+        long probeMillis = Long.parseLong(options.getOrDefault("probeMillis", "5"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "500"));
+        
+        SAMLFixtures fixtures = new SAMLFixtures();
+        String xml = fixtures.signedResponseXml(attributes, 16);
+        X509Certificate certificate = fixtures.getIdpCertificate();
+        Runnable verification = () -> {
+            Document document = Util.loadXML(xml);
+            if (!Util.validateSign(document, certificate, null, null, Util.ASSERTION_SIGNATURE_XPATH)) {
+                throw new IllegalStateException("Signature did not validate");
+            }
+        };
+        
+        System.out.printf("%d CPUs, %d ms blocking I/O per login, %d attributes, platform pool %d, verification pool %d%n",
+                Runtime.getRuntime().availableProcessors(), ioMillis, attributes, platformThreads,
+                verifyPoolSize > 0 ? verifyPoolSize : Runtime.getRuntime().availableProcessors());
+        long single = System.nanoTime();
+        verification.run();
+        System.out.printf("One verification on an idle machine: %.2f ms%n", millis(System.nanoTime() - single));
+        for (String mode : modes) {
+            runRound(mode.trim(), warmup, platformThreads, ioMillis, verifyPoolSize, probeMillis, verification);
+        }
+        
+        System.out.printf("%n%-15s %7s %10s %9s %9s %9s %9s %12s%n", "mode", "logins", "logins/s",
+                "p50 ms", "p99 ms", "p99.9 ms", "max ms", "probe p99 ms");
+        for (int concurrency : concurrencies) {
+            for (String mode : modes) {
+                Round round = runRound(mode.trim(), concurrency, platformThreads, ioMillis, verifyPoolSize,
+                        probeMillis, verification);
+                long[] latencies = round.latencies;
+                System.out.printf("%-15s %7d %10.1f %9.1f %9.1f %9.1f %9.1f %12.1f%s%n", mode.trim(), concurrency,
+                        latencies.length / (round.makespanNanos / 1e9),
+                        millis(percentile(latencies, 0.50)), millis(percentile(latencies, 0.99)),
+                        millis(percentile(latencies, 0.999)), millis(latencies[latencies.length - 1]),
+                        millis(percentile(round.probeDelays, 0.99)),
+                        round.failures > 0 ? "  (" + round.failures + " failed)" : "");
+            }
+        }
+    }
+    
+    private static Round runRound(String mode, int concurrency, int platformThreads, long ioMillis,
+            int verifyPoolSize, long probeMillis, Runnable verification) throws InterruptedException {
+        ExecutorService requests;
+        VerificationPool pool;
+        switch (mode) {
+            case "platform":
+                requests = Executors.newFixedThreadPool(platformThreads);
+                pool = new VerificationPool(verifyPoolSize, concurrency, false);
+                break;
+            case "virtual":
+                requests = Executors.newVirtualThreadPerTaskExecutor();
+                pool = new VerificationPool(verifyPoolSize, concurrency, true);
+                break;
+            case "virtual-inline":
+                requests = Executors.newVirtualThreadPerTaskExecutor();
+                pool = new VerificationPool(verifyPoolSize, concurrency, false);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        
+        long[] latencies = new long[concurrency];
+        AtomicLong failures = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(concurrency);
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            int index = i;
+            requests.execute(() -> {
+                try {
+                    Thread.sleep(ioMillis / 2);
+                    pool.call(() -> {
+                        verification.run();
+                        return null;
+                    });
+                    Thread.sleep(ioMillis - ioMillis / 2);
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+                latencies[index] = System.nanoTime() - start;
+                done.countDown();
+            });
+        }
+        
+        // I/O-only requests served by the same executor while the burst drains
+        long[] probes = new long[1024];
+        int probeCount = 0;
+        while (done.getCount() > 0 && probeCount < probes.length) {
+            CountDownLatch probe = new CountDownLatch(1);
+            long submitted = System.nanoTime();
+            requests.execute(() -> {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                probe.countDown();
+            });
+            probe.await();
+            probes[probeCount++] = Math.max(0, System.nanoTime() - submitted - TimeUnit.MILLISECONDS.toNanos(1));
+            done.await(probeMillis, TimeUnit.MILLISECONDS);
+        }
+        done.await();
+        long makespan = System.nanoTime() - start;
+        
+        requests.shutdown();
+        requests.awaitTermination(1, TimeUnit.MINUTES);
+        pool.shutdown();
+        
+        Arrays.sort(latencies);
+        long[] probeDelays = Arrays.copyOf(probes, Math.max(1, probeCount));
+        Arrays.sort(probeDelays);
+        return new Round(latencies, probeDelays, makespan, failures.get());
+    }
+    
+    private static long percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+    
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+    
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,60 @@
+package com.sample.saml.bench;
+
+import com.sample.saml.service.SAMLService;
+import com.sample.saml.util.SAMLConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SP-Initiated Login Benchmark
+ * 
+ * Runs {@link SAMLService#login}: AuthnRequest generation, deflate and
+ * base64 encoding, redirect-binding signature with the SP key, and the
+ * redirect itself, against a mock request and response.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoginBenchmark {
+    
+    private SAMLService service;
+    private String loginUrl;
+    private Map<String, Object> sink;
+    private HttpServletResponse response;
+    
+    @Setup
+    public void setup() {
+        SAMLConfig.initialize();
+        service = new SAMLService(new SAMLFixtures().settings());
+        loginUrl = SAMLConfig.getProperty("sp.entityId").replaceFirst("/[^/]*/?$", "") + "/login.jsp";
+        sink = new HashMap<>();
+        response = MockServlet.response(sink);
+    }
+    
+    @Benchmark
+    public Object login() throws IOException {
+        service.login(MockServlet.request("GET", loginUrl, "", Collections.emptyMap(), null), response, "/welcome.jsp");
+        return sink.get("Location");
+    }
+}
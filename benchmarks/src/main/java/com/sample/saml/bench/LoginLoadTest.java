@@ -0,0 +1,350 @@
+package com.sample.saml.bench;
+
+import com.sample.saml.filter.SAMLSessionFilter;
+import com.sample.saml.metrics.SAMLMetrics;
+import com.sample.saml.service.AssertionReplayCache;
+import com.sample.saml.service.SAMLService;
+import com.sample.saml.util.SAMLConfig;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.InputStream;
+import java.net.CookieManager;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * End-to-End Login Load Test
+ * 
+ * Drives N concurrent virtual users through the full SP-initiated flow
+ * (login, IdP, ACS, protected page) against {@link MockIdP} and reports
+ * latency percentiles and logins per second. Runs offline on one machine.
+ * 
+ * Two modes:
+ * <ul>
+ *   <li>{@code inprocess} (default): calls {@code SAMLService.login},
+ *       {@code processResponse} and {@code SAMLSessionFilter} directly with
+ *       mock servlet objects; measures the SP code without a container.</li>
+ *   <li>{@code http}: serves the mock IdP on loopback and drives a deployed
+ *       SP over HTTP (login.jsp, IdP, /saml/acs, welcome.jsp) with one cookie
+ *       jar per user. It writes an SP configuration file trusting the mock
+ *       IdP; start the SP with {@code -Dsaml.config.file=<that file>}.</li>
+ * </ul>
+ * 
+ * Usage: {@code java -cp target/benchmarks.jar com.sample.saml.bench.LoginLoadTest
+ * [--mode=inprocess|http] [--users=16] [--duration=30] [--warmup=5]
+ * [--attributes=10] [--valueLength=16] [--sp=http://localhost:8080/java-saml-sso]
+ * [--idpPort=9090] [--spConfig=target/sp-mock-idp.properties] [--reloadWait=3]}
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class LoginLoadTest {
+    
+    private static final Pattern FORM_ACTION = Pattern.compile("<form[^>]*action=\"([^\"]+)\"");
+    private static final Pattern HIDDEN_INPUT = Pattern.compile("<input type=\"hidden\" name=\"([^\"]+)\" value=\"([^\"]*)\"");
+    
+    private LoginLoadTest() {
+        // Command line tool - no instantiation needed
+    }
+    
+    /**
+     * One complete login of a virtual user
+     */
+    private interface Flow {
+        void login() throws Exception;
+    }
+    
+    /**
+     * Latencies recorded by one virtual user, in nanoseconds
+     */
+    private static final class Recorder {
+        private long[] samples = new long[4096];
+        private int count;
+        
+        void record(long nanos) {
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = nanos;
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String mode = options.getOrDefault("mode", "inprocess");
+        int users = Integer.parseInt(options.getOrDefault("users", "16"));
+        int durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        int warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        int attributes = Integer.parseInt(options.getOrDefault("attributes", "10"));
+        int valueLength = Integer.parseInt(options.getOrDefault("valueLength", "16"));
+        
+        SAMLConfig.initialize();
+        SAMLFixtures fixtures = new SAMLFixtures();
+        MockIdP idp = new MockIdP(fixtures, attributes, valueLength);
+        
+        HttpServer idpServer = null;
+        Flow[] flows = new Flow[users];
+        if ("http".equals(mode)) {
+            String sp = options.getOrDefault("sp", "http://localhost:8080/java-saml-sso");
+            int idpPort = Integer.parseInt(options.getOrDefault("idpPort", "9090"));
+            Path spConfig = Paths.get(options.getOrDefault("spConfig", "target/sp-mock-idp.properties")).toAbsolutePath();
+            
+            idpServer = idp.serve(new InetSocketAddress(InetAddress.getLoopbackAddress(), idpPort));
+            String ssoUrl = "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                    + idpServer.getAddress().getPort() + MockIdP.SSO_PATH;
+            Properties base = loadBaseConfig();
+            // Every virtual user posts from this one address; read when the SP starts
+            base.setProperty("saml.admission.clientRatePerSecond", "0");
+            idp.writeSpConfig(base, ssoUrl, spConfig);
+            System.out.println("Mock IdP listening on " + ssoUrl);
+            System.out.println("SP configuration written to " + spConfig
+                    + " (run the SP with -Dsaml.config.file=" + spConfig + ")");
+            Thread.sleep(TimeUnit.SECONDS.toMillis(Integer.parseInt(options.getOrDefault("reloadWait", "3"))));
+            
+            for (int i = 0; i < users; i++) {
+                flows[i] = httpFlow(sp);
+            }
+        } else {
+            SAMLService service = new SAMLService(fixtures.settings(), new AssertionReplayCache(60, 3600, 180, 1 << 18));
+            SAMLSessionFilter filter = new SAMLSessionFilter();
+            filter.init(MockServlet.filterConfig(Collections.emptyMap()));
+            for (int i = 0; i < users; i++) {
+                flows[i] = inProcessFlow(service, filter, idp, fixtures.getAcsUrl());
+            }
+        }
+        
+        try {
+            run(mode, flows, warmupSeconds, durationSeconds, attributes);
+        } finally {
+            if (idpServer != null) {
+                idpServer.stop(0);
+                ((ExecutorService) idpServer.getExecutor()).shutdownNow();
+            }
+        }
+    }
+    
+    private static void run(String mode, Flow[] flows, int warmupSeconds, int durationSeconds, int attributes)
+            throws InterruptedException {
+        int users = flows.length;
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        
+        Recorder[] recorders = new Recorder[users];
+        AtomicLong failures = new AtomicLong();
+        AtomicReference<Exception> firstFailure = new AtomicReference<>();
+        ExecutorService executor = Executors.newFixedThreadPool(users);
+        for (int i = 0; i < users; i++) {
+            Recorder recorder = recorders[i] = new Recorder();
+            Flow flow = flows[i];
+            executor.execute(() -> {
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    try {
+                        flow.login();
+                        long finished = System.nanoTime();
+                        if (now >= measureFrom) {
+                            recorder.record(finished - now);
+                        }
+                    } catch (Exception e) {
+                        if (now >= measureFrom) {
+                            failures.incrementAndGet();
+                        }
+                        firstFailure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(warmupSeconds + durationSeconds + 60L, TimeUnit.SECONDS);
+        
+        int total = 0;
+        for (Recorder recorder : recorders) {
+            total += recorder.count;
+        }
+        long[] latencies = new long[total];
+        int offset = 0;
+        for (Recorder recorder : recorders) {
+            System.arraycopy(recorder.samples, 0, latencies, offset, recorder.count);
+            offset += recorder.count;
+        }
+        Arrays.sort(latencies);
+        
+        System.out.printf("Mode %s, %d users, %d attributes, %d s measured after %d s warmup%n",
+                mode, users, attributes, durationSeconds, warmupSeconds);
+        System.out.printf("Logins: %d ok, %d failed%n", total, failures.get());
+        System.out.printf("Throughput: %.1f logins/s%n", total / (double) durationSeconds);
+        if (total > 0) {
+            long sum = 0;
+            for (long latency : latencies) {
+                sum += latency;
+            }
+            System.out.printf("Latency ms: p50 %.2f  p99 %.2f  p99.9 %.2f  max %.2f  mean %.2f%n",
+                    millis(percentile(latencies, 0.50)), millis(percentile(latencies, 0.99)),
+                    millis(percentile(latencies, 0.999)), millis(latencies[total - 1]), millis(sum / total));
+        }
+        if (firstFailure.get() != null) {
+            System.out.println("First failure: " + firstFailure.get());
+        }
+        if ("inprocess".equals(mode)) {
+            System.out.println();
+            System.out.println("Per-phase metrics (including warmup), as served on /metrics:");
+            StringBuilder metrics = new StringBuilder();
+            try {
+                SAMLMetrics.writePrometheus(metrics);
+            } catch (java.io.IOException e) {
+                throw new IllegalStateException(e);
+            }
+            for (String line : metrics.toString().split("\n")) {
+                if (line.startsWith("saml_phase_duration_quantile_seconds") || line.startsWith("saml_operations_total")) {
+                    System.out.println(line);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Full flow through the SP classes with mock servlet objects
+     */
+    private static Flow inProcessFlow(SAMLService service, SAMLSessionFilter filter, MockIdP idp, String acsUrl) {
+        String base = acsUrl.substring(0, acsUrl.lastIndexOf('/'));
+        String contextPath = URI.create(base).getRawPath();
+        FilterChain chain = (request, response) -> { };
+        return () -> {
+            HttpSession session = MockServlet.session();
+            Map<String, Object> redirect = new HashMap<>();
+            service.login(MockServlet.request("GET", base + "/login.jsp", contextPath, Collections.emptyMap(), session),
+                    MockServlet.response(redirect), null);
+            
+            MockIdP.Answer answer = idp.respond((String) redirect.get("Location"));
+            Map<String, String> form = new HashMap<>();
+            form.put("SAMLResponse", answer.getSamlResponse());
+            if (answer.getRelayState() != null) {
+                form.put("RelayState", answer.getRelayState());
+            }
+            HttpServletRequest acsRequest = MockServlet.request("POST", answer.getAcsUrl(), contextPath, form, session);
+            service.establishSession(acsRequest, service.processResponse(acsRequest));
+            
+            Map<String, Object> result = new HashMap<>();
+            filter.doFilter(MockServlet.request("GET", base + "/welcome.jsp", contextPath, Collections.emptyMap(), session),
+                    MockServlet.response(result), chain);
+            if (result.containsKey("Location") || result.containsKey("status")) {
+                throw new IllegalStateException("Protected page rejected the new session: " + result);
+            }
+        };
+    }
+    
+    /**
+     * Full flow over HTTP with a cookie jar of its own
+     */
+    private static Flow httpFlow(String sp) {
+        return () -> {
+            HttpClient client = HttpClient.newBuilder()
+                    .cookieHandler(new CookieManager())
+                    .followRedirects(HttpClient.Redirect.NEVER)
+                    .connectTimeout(java.time.Duration.ofSeconds(5))
+                    .build();
+            
+            URI login = URI.create(sp + "/login.jsp");
+            HttpResponse<String> toIdp = client.send(HttpRequest.newBuilder(login).GET().build(),
+                    HttpResponse.BodyHandlers.ofString());
+            URI idpUrl = login.resolve(location(toIdp, "login.jsp"));
+            
+            HttpResponse<String> formPage = client.send(HttpRequest.newBuilder(idpUrl).GET().build(),
+                    HttpResponse.BodyHandlers.ofString());
+            Matcher action = FORM_ACTION.matcher(formPage.body());
+            if (formPage.statusCode() != 200 || !action.find()) {
+                throw new IllegalStateException("IdP answered " + formPage.statusCode());
+            }
+            StringBuilder body = new StringBuilder();
+            Matcher input = HIDDEN_INPUT.matcher(formPage.body());
+            while (input.find()) {
+                if (body.length() > 0) {
+                    body.append('&');
+                }
+                body.append(input.group(1)).append('=')
+                        .append(URLEncoder.encode(unescape(input.group(2)), "UTF-8"));
+            }
+            
+            URI acs = URI.create(unescape(action.group(1)));
+            HttpResponse<String> afterAcs = client.send(HttpRequest.newBuilder(acs)
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString(body.toString())).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            URI welcome = acs.resolve(location(afterAcs, "saml/acs"));
+            
+            HttpResponse<InputStream> page = client.send(HttpRequest.newBuilder(welcome).GET().build(),
+                    HttpResponse.BodyHandlers.ofInputStream());
+            try (InputStream stream = page.body()) {
+                stream.transferTo(java.io.OutputStream.nullOutputStream());
+            }
+            if (page.statusCode() != 200) {
+                throw new IllegalStateException(welcome + " answered " + page.statusCode());
+            }
+        };
+    }
+    
+    private static String location(HttpResponse<?> response, String step) {
+        String location = response.headers().firstValue("Location").orElse(null);
+        if (response.statusCode() / 100 != 3 || location == null) {
+            throw new IllegalStateException(step + " answered " + response.statusCode() + " instead of a redirect");
+        }
+        return location;
+    }
+    
+    private static String unescape(String value) {
+        return value.replace("&quot;", "\"").replace("&lt;", "<").replace("&amp;", "&");
+    }
+    
+    private static Properties loadBaseConfig() throws Exception {
+        Properties properties = new Properties();
+        try (InputStream input = LoginLoadTest.class.getClassLoader().getResourceAsStream("saml.properties")) {
+            properties.load(input);
+        }
+        return properties;
+    }
+    
+    private static long percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+    
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+    
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,330 @@
+package com.sample.saml.bench;
+
+import com.onelogin.saml2.settings.Saml2Settings;
+import com.onelogin.saml2.util.Util;
+import com.sample.saml.metrics.SAMLMetrics;
+import com.sample.saml.service.SAMLService;
+import com.sample.saml.util.IdPMetadataProvider;
+import com.sample.saml.util.SAMLConfig;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * IdP Metadata Rollover Test
+ * 
+ * Walks {@code SAMLService} through an IdP signing key rollover with its
+ * keys coming from signed metadata served over HTTPS by a stand-in IdP, and times
+ * {@code processResponse} in each phase:
+ * <ol>
+ *   <li>{@code steady}: metadata lists key A, responses are signed with A</li>
+ *   <li>{@code announced}: metadata lists A and B, responses still signed with A</li>
+ *   <li>{@code switched}: the IdP signs with B; the first response falls back
+ *       to B, which then moves to the front</li>
+ *   <li>{@code retired}: metadata lists only B</li>
+ *   <li>{@code slow_refresh}: requests run while a refresh waits
+ *       {@code --slowMillis} for the metadata server to answer</li>
+ *   <li>{@code broken_refresh}: the server returns metadata that does not
+ *       parse; the refresh fails and the keys stay in use</li>
+ *   <li>{@code unsigned_refresh}: the server returns metadata listing only
+ *       key A without a signature; it is refused and the keys stay in use</li>
+ * </ol>
+ * For comparison, {@code fixed_order} validates the B-signed responses with
+ * the toolkit's own multi-certificate list [A, B] in metadata order, which
+ * checks A first on every response.
+ * 
+ * Every response is signed before the clock starts and carries a new
+ * assertion ID. Prints latency percentiles, key fallbacks and the outcome
+ * of each refresh.
+ * 
+ * Usage: {@code java -cp target/benchmarks.jar com.sample.saml.bench.MetadataRolloverTest
+ * [--responses=500] [--warmup=1000] [--attributes=10] [--slowMillis=2000]}
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class MetadataRolloverTest {
+    
+    private static final String CONTEXT = "/java-saml-sso";
+    
+    private static final LongAdder KEY_FALLBACK = SAMLMetrics.counter("acs", "key_fallback", "none");
+    
+    // What the stand-in IdP serves; changed between phases
+    private static volatile byte[] metadata = new byte[0];
+    private static volatile long delayMillis;
+    
+    // Signs the metadata with its IdP key and serves it with its SP key as the TLS certificate
+    private static SAMLFixtures publisher;
+    
+    private MetadataRolloverTest() {
+        // Command line tool - no instantiation needed
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int responses = Integer.parseInt(options.getOrDefault("responses", "500"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "1000"));
+        int attributes = Integer.parseInt(options.getOrDefault("attributes", "10"));
+        long slowMillis = Long.parseLong(options.getOrDefault("slowMillis", "2000"));
+        
+        SAMLConfig.initialize();
+        SAMLFixtures keyA = new SAMLFixtures();
+        SAMLFixtures keyB = new SAMLFixtures();
+        publisher = new SAMLFixtures();
+        HttpsServer server = serveMetadata();
+        String location = "https://127.0.0.1:" + server.getAddress().getPort() + "/metadata";
+        metadata = metadataXml(keyA.getIdpEntityId(), keyA.getIdpCertificate());
+        
+        // The provider is created with the service from this configuration
+        Path config = Files.createTempFile("metadata-rollover", ".properties");
+        config.toFile().deleteOnExit();
+        writeConfig(keyA, location, config);
+        System.setProperty(SAMLConfig.CONFIG_FILE_PROPERTY, config.toString());
+        if (!SAMLConfig.reload()) {
+            throw new IllegalStateException("Failed to reload " + config);
+        }
+        IdPMetadataProvider provider = SAMLService.getMetadataProvider();
+        System.out.printf("metadata from %s: %s%n", location, provider.current());
+        
+        // Warm up with the key in use, so the first phase is not paying for the JIT
+        run(SAMLService.getInstance(), keyA, warmup, attributes);
+        
+        System.out.printf("%n%-16s %-7s %-7s %10s %10s %10s %10s %10s %s%n", "phase", "keys", "signer",
+                "first ms", "p50 ms", "p99 ms", "max ms", "fallbacks", "refresh");
+        report("steady", "A", "A", run(SAMLService.getInstance(), keyA, responses, attributes), "-");
+        
+        metadata = metadataXml(keyA.getIdpEntityId(), keyA.getIdpCertificate(), keyB.getIdpCertificate());
+        String announced = refresh(provider);
+        report("announced", "A,B", "A", run(SAMLService.getInstance(), keyA, responses, attributes), announced);
+        report("switched", "A,B", "B", run(SAMLService.getInstance(), keyB, responses, attributes), "-");
+        
+        metadata = metadataXml(keyA.getIdpEntityId(), keyB.getIdpCertificate());
+        String retired = refresh(provider);
+        report("retired", "B", "B", run(SAMLService.getInstance(), keyB, responses, attributes), retired);
+        
+        // Requests keep running while a refresh waits for a slow metadata server
+        metadata = metadataXml(keyA.getIdpEntityId(), keyB.getIdpCertificate(), keyA.getIdpCertificate());
+        delayMillis = slowMillis;
+        List<String> signed = sign(keyB, responses, attributes);
+        long refreshStart = System.nanoTime();
+        CompletableFuture<String> slow = CompletableFuture.supplyAsync(() -> refresh(provider));
+        Phase during = run(SAMLService.getInstance(), keyB.getAcsUrl(), signed, slow);
+        report("slow_refresh", "B,A", "B", during, String.format("%s after %.0f ms, %d requests meanwhile",
+                slow.get(), millis(System.nanoTime() - refreshStart), during.nanos.length));
+        delayMillis = 0;
+        
+        metadata = "<md:EntityDescriptor".getBytes(StandardCharsets.UTF_8);
+        String broken = refresh(provider);
+        report("broken_refresh", "B,A", "B", run(SAMLService.getInstance(), keyB, responses, attributes), broken);
+        
+        metadata = unsignedXml(keyA.getIdpEntityId(), keyA.getIdpCertificate());
+        String unsigned = refresh(provider);
+        report("unsigned_refresh", "B,A", "B", run(SAMLService.getInstance(), keyB, responses, attributes), unsigned);
+        
+        // The toolkit's own list, [A, B] in metadata order: key A is tried first on every response
+        metadata = metadataXml(keyA.getIdpEntityId(), keyA.getIdpCertificate(), keyB.getIdpCertificate());
+        Saml2Settings fixedOrder = SAMLService.buildSettings(SAMLConfig.getSnapshot());
+        fixedOrder.setIdpx509certMulti(Arrays.asList(keyA.getIdpCertificate(), keyB.getIdpCertificate()));
+        SAMLService toolkitList = new SAMLService(fixedOrder);
+        run(toolkitList, keyB, warmup, attributes);
+        report("fixed_order", "A,B", "B", run(toolkitList, keyB, responses, attributes), "-");
+        
+        provider.close();
+        server.stop(0);
+    }
+    
+    /**
+     * Latencies of one phase
+     */
+    private static final class Phase {
+        private final long[] nanos;
+        private final long fallbacks;
+        
+        Phase(long[] nanos, long fallbacks) {
+            this.nanos = nanos;
+            this.fallbacks = fallbacks;
+        }
+    }
+    
+    private static Phase run(SAMLService service, SAMLFixtures signer, int count, int attributes) {
+        return run(service, signer.getAcsUrl(), sign(signer, count, attributes), null);
+    }
+    
+    private static List<String> sign(SAMLFixtures signer, int count, int attributes) {
+        List<String> signed = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            signed.add(signer.signedResponse(attributes, 16));
+        }
+        return signed;
+    }
+    
+    /**
+     * Processes signed responses, stopping early once {@code until} completes
+     */
+    private static Phase run(SAMLService service, String acsUrl, List<String> signed, CompletableFuture<?> until) {
+        long fallbacks = KEY_FALLBACK.sum();
+        long[] nanos = new long[signed.size()];
+        int done = 0;
+        for (int i = 0; i < signed.size() && (until == null || !until.isDone()); i++, done++) {
+            Map<String, String> parameters = Collections.singletonMap("SAMLResponse", signed.get(i));
+            long start = System.nanoTime();
+            service.processResponse(MockServlet.request("POST", acsUrl, CONTEXT, parameters, null));
+            nanos[i] = System.nanoTime() - start;
+        }
+        return new Phase(Arrays.copyOf(nanos, done), KEY_FALLBACK.sum() - fallbacks);
+    }
+    
+    private static void report(String phase, String keys, String signer, Phase result, String refresh) {
+        long[] sorted = result.nanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-16s %-7s %-7s %10.2f %10.2f %10.2f %10.2f %10d %s%n", phase, keys, signer,
+                millis(result.nanos[0]), millis(percentile(sorted, 0.5)), millis(percentile(sorted, 0.99)),
+                millis(sorted[sorted.length - 1]), result.fallbacks, refresh);
+    }
+    
+    private static String refresh(IdPMetadataProvider provider) {
+        long before = provider.current().getVersion();
+        boolean published = provider.refresh();
+        return published ? "published version " + provider.current().getVersion()
+                : "kept version " + before;
+    }
+    
+    /**
+     * Serves the current metadata over TLS with an ETag, answering 304 when it matches.
+     * The provider's connections trust the publisher's self-signed certificate for 127.0.0.1.
+     */
+    private static HttpsServer serveMetadata() throws Exception {
+        char[] password = "benchmark".toCharArray();
+        KeyStore keys = KeyStore.getInstance("PKCS12");
+        keys.load(null, null);
+        keys.setKeyEntry("tls", publisher.getSpPrivateKey(), password,
+                new Certificate[] {publisher.getSpCertificate()});
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keys, password);
+        KeyStore trusted = KeyStore.getInstance("PKCS12");
+        trusted.load(null, null);
+        trusted.setCertificateEntry("tls", publisher.getSpCertificate());
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trusted);
+        SSLContext tls = SSLContext.getInstance("TLS");
+        tls.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        HttpsURLConnection.setDefaultSSLSocketFactory(tls.getSocketFactory());
+        HttpsURLConnection.setDefaultHostnameVerifier((host, session) -> "127.0.0.1".equals(host));
+        
+        HttpsServer server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(tls));
+        server.createContext("/metadata", exchange -> {
+            try (InputStream ignored = exchange.getRequestBody(); OutputStream out = exchange.getResponseBody()) {
+                if (delayMillis > 0) {
+                    TimeUnit.MILLISECONDS.sleep(delayMillis);
+                }
+                byte[] body = metadata;
+                String etag = "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"";
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/samlmetadata+xml");
+                exchange.sendResponseHeaders(200, body.length);
+                out.write(body);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        server.start();
+        return server;
+    }
+    
+    /**
+     * Metadata listing the given keys, signed by the publisher
+     */
+    private static byte[] metadataXml(String entityId, X509Certificate... certificates) throws Exception {
+        String signed = Util.addSign(Util.loadXML(new String(unsignedXml(entityId, certificates),
+                StandardCharsets.UTF_8)), publisher.getIdpPrivateKey(), publisher.getIdpCertificate(), null);
+        return signed.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static byte[] unsignedXml(String entityId, X509Certificate... certificates) throws Exception {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" ID=\"_metadata\" entityID=\"")
+                .append(entityId).append("\">\n");
+        xml.append("  <md:IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n");
+        for (X509Certificate certificate : certificates) {
+            xml.append("    <md:KeyDescriptor use=\"signing\"><ds:KeyInfo xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\">")
+                    .append("<ds:X509Data><ds:X509Certificate>")
+                    .append(Base64.getEncoder().encodeToString(certificate.getEncoded()))
+                    .append("</ds:X509Certificate></ds:X509Data></ds:KeyInfo></md:KeyDescriptor>\n");
+        }
+        xml.append("  </md:IDPSSODescriptor>\n</md:EntityDescriptor>\n");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static void writeConfig(SAMLFixtures fixtures, String location, Path config) throws Exception {
+        Properties base = new Properties();
+        try (InputStream input = MetadataRolloverTest.class.getClassLoader().getResourceAsStream("saml.properties")) {
+            base.load(input);
+        }
+        base.setProperty("saml.admission.enabled", "false");
+        base.setProperty("idp.metadata.location", location);
+        // Refreshed by the test, between phases
+        base.setProperty("idp.metadata.refreshSeconds", "3600");
+        new MockIdP(fixtures, 1, 16).writeSpConfig(base, "https://localhost:9443/idp/sso", config);
+        
+        // Keys come from the metadata only
+        Properties written = new Properties();
+        try (InputStream input = Files.newInputStream(config)) {
+            written.load(input);
+        }
+        written.setProperty("idp.x509cert", "");
+        written.setProperty("idp.metadata.signingCert",
+                Base64.getEncoder().encodeToString(publisher.getIdpCertificate().getEncoded()));
+        try (OutputStream output = Files.newOutputStream(config)) {
+            written.store(output, "SP configuration with IdP keys from " + location);
+        }
+    }
+    
+    private static long percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+    
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+    
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+}
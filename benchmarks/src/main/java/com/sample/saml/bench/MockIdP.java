@@ -0,0 +1,280 @@
+package com.sample.saml.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.CertificateEncodingException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Mock Identity Provider
+ * 
+ * A stand-in IdP for load tests. It accepts the HTTP-Redirect AuthnRequest
+ * produced by {@code SAMLService.login}, authenticates every user without a
+ * prompt, and answers with a SAMLResponse whose assertion is signed with the
+ * generated key of {@link SAMLFixtures}, addressed to the ACS URL and SP
+ * named in the request and carrying its ID in InResponseTo.
+ * 
+ * It can be used in-process through {@link #respond(String)} or served on
+ * loopback with {@link #serve(InetSocketAddress)}, where the SSO endpoint
+ * returns the usual auto-submitting HTTP-POST form. The redirect signature
+ * of the AuthnRequest is not verified, so the IdP side stays cheap and the
+ * measured latency is dominated by the SP.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class MockIdP {
+    
+    /**
+     * Path of the single sign-on endpoint when served over HTTP
+     */
+    public static final String SSO_PATH = "/sso";
+    
+    private static final XMLInputFactory xmlInputFactory = createInputFactory();
+    
+    private final SAMLFixtures fixtures;
+    private final int attributeCount;
+    private final int valueLength;
+    
+    /**
+     * Creates a mock IdP signing with the fixtures' IdP key
+     * 
+     * @param fixtures key material and response templates
+     * @param attributeCount attributes per assertion
+     * @param valueLength length of each attribute value
+     */
+    public MockIdP(SAMLFixtures fixtures, int attributeCount, int valueLength) {
+        this.fixtures = fixtures;
+        this.attributeCount = attributeCount;
+        this.valueLength = valueLength;
+    }
+    
+    /**
+     * Answer to one AuthnRequest: what the browser would POST to the SP
+     */
+    public static final class Answer {
+        private final String acsUrl;
+        private final String samlResponse;
+        private final String relayState;
+        
+        private Answer(String acsUrl, String samlResponse, String relayState) {
+            this.acsUrl = acsUrl;
+            this.samlResponse = samlResponse;
+            this.relayState = relayState;
+        }
+        
+        public String getAcsUrl() {
+            return acsUrl;
+        }
+        
+        public String getSamlResponse() {
+            return samlResponse;
+        }
+        
+        public String getRelayState() {
+            return relayState;
+        }
+    }
+    
+    /**
+     * Handles the redirect an SP sent the browser to
+     * 
+     * @param redirectUrl the full IdP URL including SAMLRequest and RelayState
+     * @return the response to post back to the SP
+     */
+    public Answer respond(String redirectUrl) {
+        Map<String, String> query = parseQuery(URI.create(redirectUrl).getRawQuery());
+        String encodedRequest = query.get("SAMLRequest");
+        if (encodedRequest == null) {
+            throw new IllegalArgumentException("No SAMLRequest in " + redirectUrl);
+        }
+        
+        String[] request = parseAuthnRequest(inflate(Base64.getMimeDecoder().decode(encodedRequest)));
+        String requestId = request[0];
+        String acsUrl = request[1];
+        String spEntityId = request[2];
+        
+        String response = fixtures.signedResponseXml(acsUrl, spEntityId, requestId, attributeCount, valueLength);
+        return new Answer(acsUrl, Base64.getEncoder().encodeToString(response.getBytes(StandardCharsets.UTF_8)),
+                query.get("RelayState"));
+    }
+    
+    /**
+     * Serves the SSO endpoint over HTTP
+     * 
+     * @param address address to bind, normally loopback
+     * @return the started server
+     * @throws IOException if the address cannot be bound
+     */
+    public HttpServer serve(InetSocketAddress address) throws IOException {
+        HttpServer server = HttpServer.create(address, 1024);
+        server.createContext(SSO_PATH, this::handle);
+        server.setExecutor(Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors())));
+        server.start();
+        return server;
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body;
+        int status;
+        try {
+            Answer answer = respond(exchange.getRequestURI().toString());
+            body = autoPostForm(answer).getBytes(StandardCharsets.UTF_8);
+            status = 200;
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+        } catch (RuntimeException e) {
+            body = ("Bad AuthnRequest: " + e.getMessage()).getBytes(StandardCharsets.UTF_8);
+            status = 400;
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+    
+    private static String autoPostForm(Answer answer) {
+        StringBuilder html = new StringBuilder(answer.getSamlResponse().length() + 512);
+        html.append("<!DOCTYPE html><html><body onload=\"document.forms[0].submit()\">")
+                .append("<form method=\"post\" action=\"").append(escape(answer.getAcsUrl())).append("\">")
+                .append("<input type=\"hidden\" name=\"SAMLResponse\" value=\"").append(answer.getSamlResponse()).append("\"/>");
+        if (answer.getRelayState() != null) {
+            html.append("<input type=\"hidden\" name=\"RelayState\" value=\"").append(escape(answer.getRelayState())).append("\"/>");
+        }
+        return html.append("</form></body></html>").toString();
+    }
+    
+    /**
+     * Writes an SP configuration file that trusts this IdP: the base
+     * properties with the IdP SSO URL and certificate replaced, and the
+     * generated SP key pair so signed AuthnRequests work
+     * 
+     * @param base the SP configuration to start from
+     * @param ssoUrl the URL the IdP is served on
+     * @param target the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeSpConfig(Properties base, String ssoUrl, Path target) throws IOException {
+        Properties properties = new Properties();
+        properties.putAll(base);
+        try {
+            properties.setProperty("idp.singleSignOnService.url", ssoUrl);
+            properties.setProperty("idp.x509cert", Base64.getEncoder().encodeToString(fixtures.getIdpCertificate().getEncoded()));
+            properties.setProperty("sp.x509cert", Base64.getEncoder().encodeToString(fixtures.getSpCertificate().getEncoded()));
+            properties.setProperty("sp.privateKey", Base64.getEncoder().encodeToString(fixtures.getSpPrivateKey().getEncoded()));
+        } catch (CertificateEncodingException e) {
+            throw new IOException("Cannot encode generated certificate", e);
+        }
+        try (Writer writer = Files.newBufferedWriter(target, StandardCharsets.ISO_8859_1)) {
+            properties.store(writer, "SP configuration trusting the mock IdP at " + ssoUrl);
+        }
+    }
+    
+    /**
+     * Extracts ID, AssertionConsumerServiceURL and Issuer from an AuthnRequest
+     */
+    private static String[] parseAuthnRequest(String xml) {
+        String[] result = new String[3];
+        try {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(new StringReader(xml));
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    if ("AuthnRequest".equals(reader.getLocalName())) {
+                        result[0] = reader.getAttributeValue(null, "ID");
+                        result[1] = reader.getAttributeValue(null, "AssertionConsumerServiceURL");
+                    } else if ("Issuer".equals(reader.getLocalName())) {
+                        result[2] = reader.getElementText().trim();
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Malformed AuthnRequest", e);
+        }
+        if (result[0] == null || result[1] == null || result[2] == null) {
+            throw new IllegalArgumentException("AuthnRequest lacks ID, AssertionConsumerServiceURL or Issuer");
+        }
+        return result;
+    }
+    
+    private static String inflate(byte[] deflated) {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(deflated);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(deflated.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                output.write(buffer, 0, count);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("SAMLRequest is not deflated", e);
+        } finally {
+            inflater.end();
+        }
+    }
+    
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                parameters.put(decode(pair.substring(0, equals)), decode(pair.substring(equals + 1)));
+            }
+        }
+        return parameters;
+    }
+    
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;");
+    }
+    
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
@@ -0,0 +1,337 @@
+package com.sample.saml.bench;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.ByteArrayInputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal Servlet API Stand-ins
+ * 
+ * Dynamic-proxy implementations of the request, response, session and
+ * filter config interfaces, covering exactly what the application and the
+ * OneLogin toolkit call. Unknown methods return null, false or zero.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class MockServlet {
+    
+    private MockServlet() {
+        // Utility class - no instantiation needed
+    }
+    
+    /**
+     * Creates a request for an absolute URL
+     * 
+     * @param method HTTP method
+     * @param url absolute request URL without query string
+     * @param contextPath the context path, e.g. "/java-saml-sso"
+     * @param parameters request parameters
+     * @param session the existing session, or null
+     * @return the request
+     */
+    public static HttpServletRequest request(String method, String url, String contextPath,
+                                             Map<String, String> parameters, HttpSession session) {
+        return request(method, url, contextPath, new HashMap<>(parameters), session, null);
+    }
+    
+    /**
+     * Creates a POST request with an application/x-www-form-urlencoded body.
+     * The body can be read as a stream; the first parameter lookup reads
+     * whatever is left of it and decodes the fields the way a container
+     * does: the whole body into one buffer, percent-decoded in place, then
+     * one string per value.
+     * 
+     * @param url absolute request URL without query string
+     * @param contextPath the context path, e.g. "/java-saml-sso"
+     * @param body the encoded form body
+     * @return the request
+     */
+    public static HttpServletRequest formPost(String url, String contextPath, byte[] body) {
+        return request("POST", url, contextPath, new HashMap<>(), null, new FormBody(body));
+    }
+    
+    private static HttpServletRequest request(String method, String url, String contextPath,
+                                              Map<String, String> parameters, HttpSession session, FormBody body) {
+        URI uri = URI.create(url);
+        int port = uri.getPort() != -1 ? uri.getPort() : ("https".equals(uri.getScheme()) ? 443 : 80);
+        Map<String, Object> attributes = new HashMap<>();
+        HttpSession[] current = {session};
+        
+        return proxy(HttpServletRequest.class, (name, args) -> {
+            if (body != null && !body.parsed && (name.equals("getParameter") || name.equals("getParameterMap"))) {
+                body.parseInto(parameters);
+            }
+            switch (name) {
+                case "getMethod": return method;
+                case "getRequestURL": return new StringBuffer(url);
+                case "getRequestURI": return uri.getRawPath();
+                case "getContextPath": return contextPath;
+                case "getServletPath": return uri.getPath().substring(contextPath.length());
+                case "getScheme": return uri.getScheme();
+                case "getServerName": return uri.getHost();
+                case "getServerPort": return port;
+                case "isSecure": return "https".equals(uri.getScheme());
+                case "getParameter": return parameters.get((String) args[0]);
+                case "getParameterMap":
+                    Map<String, String[]> parameterMap = new HashMap<>();
+                    parameters.forEach((key, value) -> parameterMap.put(key, new String[] {value}));
+                    return parameterMap;
+                case "getContentType": return body != null ? "application/x-www-form-urlencoded" : null;
+                case "getContentLength": return body != null ? body.length : -1;
+                case "getContentLengthLong": return body != null ? (long) body.length : -1L;
+                case "getInputStream": return body;
+                case "getAttribute": return attributes.get((String) args[0]);
+                case "setAttribute": attributes.put((String) args[0], args[1]); return null;
+                case "getSession":
+                    if (current[0] == null && (args == null || (Boolean) args[0])) {
+                        current[0] = session();
+                    }
+                    return current[0];
+                default: return null;
+            }
+        });
+    }
+    
+    /**
+     * Request body that a container parses into parameters on first lookup
+     */
+    private static final class FormBody extends ServletInputStream {
+        private final ByteArrayInputStream in;
+        private final int length;
+        private boolean parsed;
+        
+        FormBody(byte[] body) {
+            this.in = new ByteArrayInputStream(body);
+            this.length = body.length;
+        }
+        
+        void parseInto(Map<String, String> parameters) {
+            parsed = true;
+            byte[] buffer = in.readAllBytes();
+            int start = 0;
+            while (start < buffer.length) {
+                int end = start;
+                while (end < buffer.length && buffer[end] != '&') {
+                    end++;
+                }
+                int equals = start;
+                while (equals < end && buffer[equals] != '=') {
+                    equals++;
+                }
+                String name = decode(buffer, start, equals);
+                String value = equals < end ? decode(buffer, equals + 1, end) : "";
+                parameters.putIfAbsent(name, value);
+                start = end + 1;
+            }
+        }
+        
+        private static String decode(byte[] buffer, int start, int end) {
+            int target = start;
+            for (int i = start; i < end; i++) {
+                byte b = buffer[i];
+                if (b == '+') {
+                    b = ' ';
+                } else if (b == '%' && i + 2 < end) {
+                    b = (byte) (Character.digit(buffer[i + 1], 16) << 4 | Character.digit(buffer[i + 2], 16));
+                    i += 2;
+                }
+                buffer[target++] = b;
+            }
+            return new String(buffer, start, target - start, StandardCharsets.UTF_8);
+        }
+        
+        @Override
+        public int read() {
+            return in.read();
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return in.read(b, off, len);
+        }
+        
+        @Override
+        public boolean isFinished() {
+            return in.available() == 0;
+        }
+        
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+        
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    /**
+     * Creates a response that records redirects, status codes and headers
+     * 
+     * @param sink receives "Location", "status", header and "bytes" (body size) entries; may be null
+     * @return the response
+     */
+    public static HttpServletResponse response(Map<String, Object> sink) {
+        CountingOutputStream body = new CountingOutputStream(sink);
+        PrintWriter[] writer = {null};
+        return proxy(HttpServletResponse.class, (name, args) -> {
+            switch (name) {
+                case "getOutputStream": return body;
+                case "getWriter":
+                    if (writer[0] == null) {
+                        writer[0] = new PrintWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+                    }
+                    return writer[0];
+                case "flushBuffer":
+                    if (writer[0] != null) {
+                        writer[0].flush();
+                    }
+                    return null;
+                default: break;
+            }
+            if (sink != null) {
+                switch (name) {
+                    case "sendRedirect": sink.put("Location", args[0]); break;
+                    case "sendError":
+                    case "setStatus": sink.put("status", args[0]); break;
+                    case "setHeader": sink.put((String) args[0], args[1]); break;
+                    default: break;
+                }
+            }
+            return null;
+        });
+    }
+    
+    /**
+     * Response body that only counts bytes, recorded as "bytes" in the sink
+     */
+    private static final class CountingOutputStream extends ServletOutputStream {
+        private final Map<String, Object> sink;
+        private long count;
+        
+        CountingOutputStream(Map<String, Object> sink) {
+            this.sink = sink;
+        }
+        
+        @Override
+        public void write(int b) {
+            count(1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count(len);
+        }
+        
+        private void count(int bytes) {
+            count += bytes;
+            if (sink != null) {
+                sink.put("bytes", count);
+            }
+        }
+        
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+        
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    /**
+     * Creates an empty session
+     * 
+     * @return the session
+     */
+    public static HttpSession session() {
+        return session("bench-session");
+    }
+    
+    /**
+     * Creates an empty session with the given ID and a 30 minute timeout
+     * 
+     * @param id the session ID
+     * @return the session
+     */
+    public static HttpSession session(String id) {
+        Map<String, Object> attributes = new HashMap<>();
+        return proxy(HttpSession.class, (name, args) -> {
+            switch (name) {
+                case "getId": return id;
+                case "getMaxInactiveInterval": return 1800;
+                case "getAttribute": return attributes.get((String) args[0]);
+                case "setAttribute": attributes.put((String) args[0], args[1]); return null;
+                case "removeAttribute": attributes.remove((String) args[0]); return null;
+                default: return null;
+            }
+        });
+    }
+    
+    /**
+     * Creates a filter config with the given init parameters
+     * 
+     * @param initParameters the init parameters
+     * @return the filter config
+     */
+    public static FilterConfig filterConfig(Map<String, String> initParameters) {
+        return proxy(FilterConfig.class, (name, args) -> {
+            switch (name) {
+                case "getFilterName": return "bench";
+                case "getInitParameter": return initParameters.get((String) args[0]);
+                case "getInitParameterNames": return Collections.enumeration(initParameters.keySet());
+                default: return null;
+            }
+        });
+    }
+    
+    private interface Handler {
+        Object invoke(String method, Object[] args) throws Exception;
+    }
+    
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        Object instance = Proxy.newProxyInstance(MockServlet.class.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "hashCode": return System.identityHashCode(proxy);
+                        case "equals": return proxy == args[0];
+                        case "toString": return type.getSimpleName() + "@mock";
+                        default: break;
+                    }
+                    Object result = handler.invoke(method.getName(), args);
+                    if (result == null && method.getReturnType().isPrimitive()) {
+                        Class<?> returnType = method.getReturnType();
+                        if (returnType == boolean.class) {
+                            return false;
+                        }
+                        if (returnType == void.class) {
+                            return null;
+                        }
+                        if (returnType == long.class) {
+                            return 0L;
+                        }
+                        return 0;
+                    }
+                    return result;
+                });
+        return type.cast(instance);
+    }
+}
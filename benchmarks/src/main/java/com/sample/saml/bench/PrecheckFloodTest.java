@@ -0,0 +1,232 @@
+package com.sample.saml.bench;
+
+import com.onelogin.saml2.authn.SamlResponse;
+import com.onelogin.saml2.settings.Saml2Settings;
+import com.onelogin.saml2.util.SchemaFactory;
+import com.sample.saml.service.AssertionReplayCache;
+import com.sample.saml.service.SAMLService;
+import com.sample.saml.util.SAMLConfig;
+import com.sample.saml.util.XmlParserPool;
+import org.w3c.dom.Document;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pre-check Flood Test
+ * 
+ * Floods the ACS path with bad SAMLResponses and compares the cost of
+ * rejecting them in {@code SAMLResponseInspector} with what the same
+ * responses cost when they reach the toolkit: DOM parse, cached schema
+ * validation and {@code isValid}, as {@code SAMLService} does after the
+ * pre-check. Each kind of response is built from a correctly signed one:
+ * <ul>
+ *   <li>{@code wrong_destination}: Destination is another site's ACS URL</li>
+ *   <li>{@code stale}: response IssueInstant an hour in the past</li>
+ *   <li>{@code foreign_issuer}: response Issuer is not the IdP</li>
+ *   <li>{@code oversized}: a valid response of about 1.5 MB</li>
+ *   <li>{@code too_deep}: 100 nested elements in samlp:Extensions</li>
+ * </ul>
+ * Only the foreign Issuer is caught by the toolkit; the other responses
+ * pass it and would go on to attribute extraction and a session.
+ * 
+ * Reports rejected requests per second, CPU time per request (summed over
+ * the flooding threads) and the CPU saved by the pre-check.
+ * 
+ * Usage: {@code java -cp target/benchmarks.jar com.sample.saml.bench.PrecheckFloodTest
+ * [--threads=4] [--duration=10] [--warmup=3] [--attributes=10] [--kinds=all]}
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class PrecheckFloodTest {
+    
+    private static final String[] KINDS = {"wrong_destination", "stale", "foreign_issuer", "oversized", "too_deep"};
+    
+    private PrecheckFloodTest() {
+        // Command line tool - no instantiation needed
+    }
+    
+    /**
+     * Processes one flooded response; returns normally whether it was rejected or not
+     */
+    private interface Target {
+        void process() throws Exception;
+    }
+    
+    /**
+     * Outcome of flooding one target
+     */
+    private static final class Result {
+        private final long requests;
+        private final long rejected;
+        private final long cpuNanos;
+        private final long elapsedNanos;
+        
+        Result(long requests, long rejected, long cpuNanos, long elapsedNanos) {
+            this.requests = requests;
+            this.rejected = rejected;
+            this.cpuNanos = cpuNanos;
+            this.elapsedNanos = elapsedNanos;
+        }
+        
+        double perSecond() {
+            return requests / (elapsedNanos / 1e9);
+        }
+        
+        double cpuMicrosPerRequest() {
+            return cpuNanos / 1000.0 / Math.max(1, requests);
+        }
+    }
+    
+    /**
+     * Exposes the document the toolkit validates
+     */
+    private static final class ToolkitResponse extends SamlResponse {
+        
+        ToolkitResponse(Saml2Settings settings, String currentUrl, String samlResponse) throws Exception {
+            super(settings, currentUrl, samlResponse);
+        }
+        
+        Document getDocument() {
+            return getSAMLResponseDocument();
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int threads = Integer.parseInt(options.getOrDefault("threads", "4"));
+        int durationSeconds = Integer.parseInt(options.getOrDefault("duration", "10"));
+        int warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "3"));
+        int attributes = Integer.parseInt(options.getOrDefault("attributes", "10"));
+        String kinds = options.getOrDefault("kinds", "all");
+        
+        SAMLConfig.initialize();
+        SAMLFixtures fixtures = new SAMLFixtures();
+        Saml2Settings settings = fixtures.settings();
+        SAMLService service = new SAMLService(settings, new AssertionReplayCache(60, 3600, 180, 1 << 16));
+        String acsUrl = fixtures.getAcsUrl();
+        
+        System.out.printf("%d CPUs, %d flooding threads, %d s per run, %d attributes%n",
+                Runtime.getRuntime().availableProcessors(), threads, durationSeconds, attributes);
+        System.out.printf("%n%-18s %9s %12s %12s %12s %12s %10s%n", "kind", "size", "pre-check/s", "cpu us/req",
+                "toolkit/s", "cpu us/req", "cpu saved");
+        for (String kind : KINDS) {
+            if (!"all".equals(kinds) && !kinds.contains(kind)) {
+                continue;
+            }
+            String xml = floodResponse(kind, fixtures, attributes);
+            String encoded = Base64.getEncoder().encodeToString(xml.getBytes(StandardCharsets.UTF_8));
+            HttpServletRequest request = MockServlet.request("POST", acsUrl, "",
+                    Collections.singletonMap("SAMLResponse", encoded), null);
+            
+            Target precheck = () -> service.processResponse(request);
+            Target toolkit = () -> {
+                ToolkitResponse response = new ToolkitResponse(settings, acsUrl, encoded);
+                if (XmlParserPool.validate(response.getDocument(), SchemaFactory.SAML_SCHEMA_PROTOCOL_2_0)) {
+                    response.isValid();
+                }
+            };
+            
+            flood(precheck, threads, warmupSeconds);
+            Result rejected = flood(precheck, threads, durationSeconds);
+            flood(toolkit, threads, warmupSeconds);
+            Result verified = flood(toolkit, threads, durationSeconds);
+            
+            System.out.printf("%-18s %8dK %12.0f %12.1f %12.0f %12.1f %9.1f%%%s%n", kind, xml.length() / 1024,
+                    rejected.perSecond(), rejected.cpuMicrosPerRequest(),
+                    verified.perSecond(), verified.cpuMicrosPerRequest(),
+                    100.0 * (1 - rejected.cpuMicrosPerRequest() / verified.cpuMicrosPerRequest()),
+                    rejected.rejected == rejected.requests ? "" : "  (" + (rejected.requests - rejected.rejected)
+                            + " not rejected by the pre-check)");
+        }
+    }
+    
+    private static String floodResponse(String kind, SAMLFixtures fixtures, int attributes) {
+        switch (kind) {
+            case "wrong_destination":
+                return fixtures.signedResponseXml(attributes, 16).replaceFirst(
+                        "Destination=\"[^\"]*\"", "Destination=\"https://sp.attacker.example/acs\"");
+            case "stale":
+                return fixtures.signedResponseXml(attributes, 16).replaceFirst("IssueInstant=\"[^\"]*\"",
+                        "IssueInstant=\"" + Instant.now().minusSeconds(3600) + "\"");
+            case "foreign_issuer":
+                return fixtures.signedResponseXml(attributes, 16).replaceFirst("<saml:Issuer>[^<]*</saml:Issuer>",
+                        "<saml:Issuer>https://idp.attacker.example</saml:Issuer>");
+            case "oversized":
+                return fixtures.signedResponseXml(1300, 1024);
+            case "too_deep":
+                StringBuilder nested = new StringBuilder("<samlp:Extensions>");
+                for (int i = 0; i < 100; i++) {
+                    nested.append("<f:e xmlns:f=\"urn:flood\">");
+                }
+                for (int i = 0; i < 100; i++) {
+                    nested.append("</f:e>");
+                }
+                nested.append("</samlp:Extensions>");
+                String xml = fixtures.signedResponseXml(attributes, 16);
+                int afterIssuer = xml.indexOf("</saml:Issuer>") + "</saml:Issuer>".length();
+                return xml.substring(0, afterIssuer) + nested + xml.substring(afterIssuer);
+            default:
+                throw new IllegalArgumentException("Unknown kind " + kind);
+        }
+    }
+    
+    private static Result flood(Target target, int threads, int seconds) throws InterruptedException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong requests = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        AtomicLong cpuNanos = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(threads);
+        
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(() -> {
+                long cpuStart = threadBean.getCurrentThreadCpuTime();
+                long count = 0;
+                long failures = 0;
+                while (running.get()) {
+                    try {
+                        target.process();
+                    } catch (Exception e) {
+                        failures++;
+                    }
+                    count++;
+                }
+                cpuNanos.addAndGet(threadBean.getCurrentThreadCpuTime() - cpuStart);
+                requests.addAndGet(count);
+                rejected.addAndGet(failures);
+                done.countDown();
+            }, "flood-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running.set(false);
+        done.await();
+        return new Result(requests.get(), rejected.get(), cpuNanos.get(), System.nanoTime() - start);
+    }
+    
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,79 @@
+package com.sample.saml.bench;
+
+import com.onelogin.saml2.settings.Saml2Settings;
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.service.AssertionReplayCache;
+import com.sample.saml.service.SAMLService;
+import com.sample.saml.util.SAMLConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ACS Response Processing Benchmark
+ * 
+ * Runs {@link SAMLService#processResponse} end to end (pre-check scan, DOM
+ * parsing, schema and signature validation, replay recording and user info
+ * construction) on a signed response with a growing number of attributes.
+ * 
+ * The same signed response is replayed on every invocation, so each
+ * invocation gets a service with an empty replay cache of its own; creating
+ * it is part of setup and not measured.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessResponseBenchmark {
+    
+    @Param({"10", "100", "1000"})
+    public int attributeCount;
+    
+    @Param({"16", "256"})
+    public int valueLength;
+    
+    private Saml2Settings settings;
+    private String acsUrl;
+    private String encodedResponse;
+    
+    private SAMLService service;
+    private HttpServletRequest request;
+    
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        SAMLConfig.initialize();
+        SAMLFixtures fixtures = new SAMLFixtures();
+        settings = fixtures.settings();
+        acsUrl = fixtures.getAcsUrl();
+        encodedResponse = fixtures.signedResponse(attributeCount, valueLength);
+    }
+    
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        service = new SAMLService(settings, new AssertionReplayCache(60, 3600, 180, 16));
+        request = MockServlet.request("POST", acsUrl, "", Collections.singletonMap("SAMLResponse", encodedResponse), null);
+    }
+    
+    @Benchmark
+    public SAMLUserInfo processResponse() {
+        return service.processResponse(request);
+    }
+}
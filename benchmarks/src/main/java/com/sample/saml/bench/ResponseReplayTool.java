@@ -0,0 +1,492 @@
+package com.sample.saml.bench;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import com.onelogin.saml2.settings.Saml2Settings;
+import com.onelogin.saml2.util.Util;
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.service.AssertionReplayCache;
+import com.sample.saml.service.SAMLService;
+import com.sample.saml.util.ConfigSnapshot;
+import com.sample.saml.util.SAMLConfig;
+import org.joda.time.DateTimeUtils;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Response Replay Tool
+ * 
+ * Re-validates a corpus of captured SAMLResponses against the current
+ * {@link SAMLService}, for checking that a toolkit upgrade or a change of
+ * {@code saml.security.*} settings keeps the verdicts, and for a throughput
+ * figure on real responses. The corpus is either a directory with one
+ * response per file (in file name order, named by file) or a file with one
+ * response per line, optionally preceded by an ID and a tab (named by line
+ * number otherwise). A response is the base64 SAMLResponse value or its XML.
+ * 
+ * The corpus is streamed through a fork-join pool, once per thread count,
+ * with a bounded number of responses in flight and verdicts written in
+ * corpus order. Every pass uses a fresh service and replay cache, so only
+ * repeated assertions within the corpus are reported as replays. Its slots
+ * cover {@code --replayDays} of simulated time, so responses days apart can
+ * be in flight together, and a repeated response waits for its earlier
+ * copy, so the verdicts do not depend on the thread count. Time checks run against a simulated clock, fixed per
+ * response: by default the response's own IssueInstant, so a corpus
+ * captured over months validates as it did when it arrived, or one instant
+ * for the whole corpus ({@code --clock=2024-05-01T10:00:00Z}).
+ * 
+ * The first pass writes a tab-separated verdict file (ID, accepted or
+ * rejected, NameID or the reason). Every pass prints throughput, latency
+ * percentiles and whether its verdicts match the first pass; an unreported
+ * pass over the first {@code --warmup} responses comes before them. With
+ * {@code --generate=N} a synthetic corpus signed by the benchmark IdP
+ * (including tampered, misaddressed and repeated responses) and an SP
+ * configuration trusting it are written first.
+ * 
+ * Usage: {@code java -cp target/benchmarks.jar com.sample.saml.bench.ResponseReplayTool
+ * --input=corpus [--config=sp.properties] [--threads=1,2,4,8] [--clock=issue]
+ * [--verdicts=target/replay-verdicts.tsv] [--replayDays=400] [--replaySlotCapacity=4096] [--warmup=500] [--generate=0]}
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class ResponseReplayTool {
+    
+    // Responses in flight per pool thread; bounds memory however large the corpus
+    private static final int WINDOW_PER_THREAD = 64;
+    private static final int ISSUE_INSTANT_SCAN_BYTES = 4096;
+    
+    // The toolkit's clock, per worker thread: set to the simulated time before each response
+    private static final ThreadLocal<long[]> simulatedNow = ThreadLocal.withInitial(() -> new long[1]);
+    
+    private ResponseReplayTool() {
+        // Command line tool - no instantiation needed
+    }
+    
+    /**
+     * One response of the corpus
+     */
+    private static final class Entry {
+        private final String id;
+        private final String samlResponse;
+        
+        Entry(String id, String samlResponse) {
+            this.id = id;
+            this.samlResponse = samlResponse;
+        }
+    }
+    
+    /**
+     * Outcome of one response
+     */
+    private static final class Verdict {
+        private final String id;
+        private final String samlResponse;
+        private final boolean accepted;
+        private final String detail;
+        private final long nanos;
+        
+        Verdict(Entry entry, boolean accepted, String detail, long nanos) {
+            this.id = entry.id;
+            this.samlResponse = entry.samlResponse;
+            this.accepted = accepted;
+            this.detail = detail;
+            this.nanos = nanos;
+        }
+        
+        String line() {
+            return id + '\t' + (accepted ? "accepted" : "rejected") + '\t' + detail;
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        Path input = Paths.get(options.getOrDefault("input", "target/replay-corpus.txt"));
+        String config = options.get("config");
+        int[] threadCounts = Arrays.stream(options.getOrDefault("threads", "1,2,4,8").split(","))
+                .mapToInt(count -> Integer.parseInt(count.trim())).toArray();
+        String clock = options.getOrDefault("clock", "issue");
+        Long fixedNow = "issue".equals(clock) ? null : Instant.parse(clock).toEpochMilli();
+        Path verdictFile = Paths.get(options.getOrDefault("verdicts", "target/replay-verdicts.tsv"));
+        int generate = Integer.parseInt(options.getOrDefault("generate", "0"));
+        int replayDays = Integer.parseInt(options.getOrDefault("replayDays", "400"));
+        int replaySlotCapacity = Integer.parseInt(options.getOrDefault("replaySlotCapacity", "4096"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "500"));
+        
+        if (generate > 0) {
+            if (config == null) {
+                config = input.toAbsolutePath() + ".sp.properties";
+            }
+            generateCorpus(generate, input, Paths.get(config));
+            System.out.println("Wrote " + generate + " responses to " + input + " and an SP configuration to " + config);
+        }
+        if (config != null) {
+            System.setProperty(SAMLConfig.CONFIG_FILE_PROPERTY, Paths.get(config).toAbsolutePath().toString());
+        }
+        if (!SAMLConfig.reload()) {
+            throw new IllegalStateException("Failed to load the SP configuration");
+        }
+        // Every rejection is in the verdict file; the service, toolkit and signature library would log each
+        for (ch.qos.logback.classic.Logger logger : ((LoggerContext) LoggerFactory.getILoggerFactory()).getLoggerList()) {
+            if (logger.getLevel() != null) {
+                logger.setLevel(Level.OFF);
+            }
+        }
+        DateTimeUtils.setCurrentMillisProvider(() -> simulatedNow.get()[0]);
+        
+        ConfigSnapshot snapshot = SAMLConfig.getSnapshot();
+        Saml2Settings settings = SAMLService.buildSettings(snapshot);
+        System.out.printf("%s, clock %s, %d CPUs%n", input, fixedNow == null ? "at each IssueInstant" : clock,
+                Runtime.getRuntime().availableProcessors());
+        System.out.printf("%n%8s %10s %9s %9s %12s %9s %9s %9s %9s %9s%n", "threads", "responses", "accepted",
+                "rejected", "responses/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "verdicts");
+        
+        Replay replay = new Replay(snapshot, settings, input, fixedNow, replayDays, replaySlotCapacity);
+        if (warmup > 0) {
+            replay.run(threadCounts[0], warmup, null);
+        }
+        long firstDigest = 0;
+        for (int pass = 0; pass < threadCounts.length; pass++) {
+            int threads = threadCounts[pass];
+            Pass result;
+            try (BufferedWriter verdicts = pass == 0 ? Files.newBufferedWriter(verdictFile, StandardCharsets.UTF_8) : null) {
+                result = replay.run(threads, Integer.MAX_VALUE, verdicts);
+            }
+            if (pass == 0) {
+                firstDigest = result.digest;
+            }
+            long[] sorted = result.latencies;
+            int count = sorted.length;
+            System.out.printf("%8d %10d %9d %9d %12.1f %9.2f %9.2f %9.2f %9.2f %9s%n", threads, count, result.accepted,
+                    count - result.accepted, count / (result.elapsedNanos / 1e9), millis(percentile(sorted, 0.5)),
+                    millis(percentile(sorted, 0.9)), millis(percentile(sorted, 0.99)),
+                    millis(count > 0 ? sorted[count - 1] : 0),
+                    pass == 0 ? "written" : result.digest == firstDigest ? "same" : "DIFFER");
+            if (result.overflows > 0) {
+                System.out.printf("%8s %d responses rejected because an hour held more than %d assertions"
+                        + " (raise --replaySlotCapacity)%n", "", result.overflows, replaySlotCapacity);
+            }
+        }
+        System.out.println();
+        System.out.println("Verdicts written to " + verdictFile);
+    }
+    
+    /**
+     * Outcome of one pass over the corpus
+     */
+    private static final class Pass {
+        private long[] latencies;
+        private int accepted;
+        private long digest = 17;
+        private long elapsedNanos;
+        private long overflows;
+    }
+    
+    /**
+     * Passes over the corpus, each with a fresh service and replay cache
+     */
+    private static final class Replay {
+        private final ConfigSnapshot snapshot;
+        private final Saml2Settings settings;
+        private final String acsUrl;
+        private final Path input;
+        private final Long fixedNow;
+        private final int replayDays;
+        private final int replaySlotCapacity;
+        
+        Replay(ConfigSnapshot snapshot, Saml2Settings settings, Path input, Long fixedNow, int replayDays,
+               int replaySlotCapacity) {
+            this.snapshot = snapshot;
+            this.settings = settings;
+            this.acsUrl = settings.getSpAssertionConsumerServiceUrl().toString();
+            this.input = input;
+            this.fixedNow = fixedNow;
+            this.replayDays = replayDays;
+            this.replaySlotCapacity = replaySlotCapacity;
+        }
+        
+        /**
+         * Verifies up to {@code limit} responses on a pool of {@code threads}
+         * 
+         * @param verdicts where to write the verdicts, or null
+         */
+        Pass run(int threads, int limit, BufferedWriter verdicts) throws IOException {
+            // The configured lifetime limit, but hour-wide slots kept for the whole simulated timeline:
+            // responses in flight together are days apart in a corpus captured over months
+            AssertionReplayCache replayCache = new AssertionReplayCache(3600,
+                    snapshot.getIntProperty("saml.replayCache.horizonSeconds", 3600),
+                    snapshot.getIntProperty("saml.replayCache.clockSkewSeconds", 180),
+                    replaySlotCapacity, TimeUnit.DAYS.toSeconds(replayDays));
+            SAMLService service = new SAMLService(settings, replayCache);
+            
+            Pass pass = new Pass();
+            long[] latencies = new long[1024];
+            int count = 0;
+            int submitted = 0;
+            ArrayDeque<ForkJoinTask<Verdict>> window = new ArrayDeque<>();
+            Map<String, ForkJoinTask<Verdict>> inFlight = new HashMap<>();
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            long start = System.nanoTime();
+            try (Corpus corpus = Corpus.open(input)) {
+                while (true) {
+                    Entry entry = submitted < limit && corpus.hasNext() ? corpus.next() : null;
+                    if (entry != null) {
+                        // A repeated response waits for its earlier copy, so the earlier one is always accepted
+                        ForkJoinTask<Verdict> earlier = inFlight.get(entry.samlResponse);
+                        ForkJoinTask<Verdict> task = pool.submit(() -> {
+                            if (earlier != null) {
+                                earlier.join();
+                            }
+                            return verify(service, entry);
+                        });
+                        window.add(task);
+                        inFlight.put(entry.samlResponse, task);
+                        submitted++;
+                    }
+                    if (window.isEmpty()) {
+                        break;
+                    }
+                    if (entry != null && window.size() < threads * WINDOW_PER_THREAD) {
+                        continue;
+                    }
+                    // Oldest first, so verdicts come out in corpus order
+                    ForkJoinTask<Verdict> oldest = window.poll();
+                    Verdict verdict = oldest.join();
+                    inFlight.remove(verdict.samlResponse, oldest);
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = verdict.nanos;
+                    pass.accepted += verdict.accepted ? 1 : 0;
+                    String line = verdict.line();
+                    pass.digest = pass.digest * 31 + line.hashCode();
+                    if (verdicts != null) {
+                        verdicts.write(line);
+                        verdicts.newLine();
+                    }
+                }
+            } finally {
+                pool.shutdown();
+            }
+            pass.elapsedNanos = System.nanoTime() - start;
+            pass.latencies = Arrays.copyOf(latencies, count);
+            Arrays.sort(pass.latencies);
+            pass.overflows = replayCache.getOverflowCount();
+            return pass;
+        }
+        
+        /**
+         * Verifies one response with the clock set to its simulated time
+         */
+        private Verdict verify(SAMLService service, Entry entry) {
+            simulatedNow.get()[0] = fixedNow != null ? fixedNow : issueInstant(entry.samlResponse);
+            HttpServletRequest request = MockServlet.request("POST", acsUrl, "",
+                    Collections.singletonMap("SAMLResponse", entry.samlResponse), null);
+            long start = System.nanoTime();
+            try {
+                SAMLUserInfo userInfo = service.processResponse(request);
+                return new Verdict(entry, true, userInfo.getNameId(), System.nanoTime() - start);
+            } catch (RuntimeException e) {
+                long nanos = System.nanoTime() - start;
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                String message = cause.getMessage() != null ? cause.getMessage().replaceAll("\\s+", " ") : "";
+                return new Verdict(entry, false, cause.getClass().getSimpleName() + ": " + message, nanos);
+            }
+        }
+    }
+    
+    /**
+     * Gets the IssueInstant of the response element, or the real time if there is none
+     */
+    private static long issueInstant(String samlResponse) {
+        try {
+            byte[] head;
+            try {
+                head = Base64.getMimeDecoder().decode(samlResponse.substring(0,
+                        Math.min(samlResponse.length(), ISSUE_INSTANT_SCAN_BYTES / 3 * 4)));
+            } catch (IllegalArgumentException e) {
+                // Line breaks left a partial group at the cut
+                head = Base64.getMimeDecoder().decode(samlResponse);
+            }
+            String xml = new String(head, StandardCharsets.UTF_8);
+            int attribute = xml.indexOf("IssueInstant=\"");
+            if (attribute >= 0) {
+                int value = attribute + "IssueInstant=\"".length();
+                return Util.parseDateTime(xml.substring(value, xml.indexOf('"', value))).getMillis();
+            }
+        } catch (RuntimeException e) {
+            // Not base64 or not a timestamp: the service rejects it at whatever time
+        }
+        return System.currentTimeMillis();
+    }
+    
+    /**
+     * A streamed corpus: a directory of files or a file of lines
+     */
+    private abstract static class Corpus implements Iterator<Entry>, Closeable {
+        
+        static Corpus open(Path input) throws IOException {
+            if (Files.isDirectory(input)) {
+                List<Path> files;
+                try (Stream<Path> listing = Files.list(input)) {
+                    files = listing.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+                }
+                Iterator<Path> next = files.iterator();
+                return new Corpus() {
+                    @Override
+                    public boolean hasNext() {
+                        return next.hasNext();
+                    }
+                    
+                    @Override
+                    public Entry next() {
+                        Path file = next.next();
+                        try {
+                            return new Entry(file.getFileName().toString(), encoded(new String(
+                                    Files.readAllBytes(file), StandardCharsets.UTF_8)));
+                        } catch (IOException e) {
+                            throw new IllegalStateException("Cannot read " + file, e);
+                        }
+                    }
+                    
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+            
+            BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+            return new Corpus() {
+                private int lineNumber;
+                private String line = read();
+                
+                private String read() {
+                    try {
+                        String read;
+                        do {
+                            read = reader.readLine();
+                            lineNumber++;
+                        } while (read != null && read.trim().isEmpty());
+                        return read;
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Cannot read " + input, e);
+                    }
+                }
+                
+                @Override
+                public boolean hasNext() {
+                    return line != null;
+                }
+                
+                @Override
+                public Entry next() {
+                    int tab = line.indexOf('\t');
+                    Entry entry = tab >= 0 ? new Entry(line.substring(0, tab), encoded(line.substring(tab + 1)))
+                            : new Entry(Integer.toString(lineNumber), encoded(line));
+                    line = read();
+                    return entry;
+                }
+                
+                @Override
+                public void close() throws IOException {
+                    reader.close();
+                }
+            };
+        }
+        
+        private static String encoded(String response) {
+            String trimmed = response.trim();
+            return trimmed.startsWith("<")
+                    ? Base64.getEncoder().encodeToString(trimmed.getBytes(StandardCharsets.UTF_8)) : trimmed;
+        }
+    }
+    
+    /**
+     * Writes responses issued over the last 30 days, one per line, and an SP configuration
+     * trusting their IdP. Every 10th has a tampered attribute value, every 25th another
+     * site's Destination and every 50th repeats the response before it.
+     */
+    private static void generateCorpus(int count, Path corpus, Path config) throws IOException {
+        SAMLFixtures fixtures = new SAMLFixtures();
+        String audience = fixtures.settings().getSpEntityId();
+        Instant latest = Instant.now().minus(Duration.ofHours(1));
+        Duration spacing = Duration.ofDays(30).dividedBy(Math.max(1, count));
+        String previous = null;
+        try (BufferedWriter writer = Files.newBufferedWriter(corpus, StandardCharsets.UTF_8)) {
+            for (int i = 1; i <= count; i++) {
+                String response;
+                if (i % 50 == 0 && previous != null) {
+                    response = previous;
+                } else {
+                    String xml = fixtures.signedResponseXml(fixtures.getAcsUrl(), audience, null,
+                            latest.minus(spacing.multipliedBy(count - i)), 10, 16);
+                    if (i % 10 == 0) {
+                        xml = xml.replaceFirst("(<saml:AttributeValue[^>]*>)[a-z]", "$1X");
+                    } else if (i % 25 == 0) {
+                        xml = xml.replaceFirst("Destination=\"[^\"]*\"", "Destination=\"https://sp.attacker.example/acs\"");
+                    }
+                    response = Base64.getEncoder().encodeToString(xml.getBytes(StandardCharsets.UTF_8));
+                }
+                writer.write("response-" + i + '\t' + response);
+                writer.newLine();
+                previous = response;
+            }
+        }
+        
+        Properties base = new Properties();
+        try (InputStream stream = ResponseReplayTool.class.getClassLoader().getResourceAsStream("saml.properties")) {
+            base.load(stream);
+        }
+        new MockIdP(fixtures, 10, 16).writeSpConfig(base, "https://localhost:9443/idp/sso", config);
+    }
+    
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+    
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+    
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,260 @@
+package com.sample.saml.bench;
+
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.service.RoleMapping;
+import com.sample.saml.service.RoleSet;
+import com.sample.saml.util.SAMLConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Role Mapping Test
+ * 
+ * {@link RoleMapping} with {@code --roles} rules, each granting its role to
+ * members of one group ({@code memberOf=cn=group-<n>,...}) or of a
+ * department prefix ({@code department^=dept-<n>-}), for users in
+ * {@code --groups} groups. Reports:
+ * <ul>
+ *   <li>compile: time to compile the rules of a snapshot</li>
+ *   <li>evaluate: ns to evaluate a user at login, and heap per {@link RoleSet}</li>
+ *   <li>check: ns per role check on a request, as a bit test against the
+ *       set in the session and as the attribute walk a JSP scriptlet does
+ *       to answer the same question from the rules</li>
+ *   <li>reload: a rule change applies to an existing set on its next check</li>
+ *   <li>restore: a set survives serialization by role name</li>
+ * </ul>
+ * 
+ * Usage: {@code java -cp target/benchmarks.jar com.sample.saml.bench.RoleMappingTest
+ * [--roles=200] [--groups=50] [--users=1000] [--checks=5000000]}
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class RoleMappingTest {
+    
+    private static final String GROUP_ATTRIBUTE = "memberOf";
+    private static final String DEPARTMENT_ATTRIBUTE = "department";
+    
+    private static final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    
+    private RoleMappingTest() {
+        // Command line tool - no instantiation needed
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int roles = Integer.parseInt(options.getOrDefault("roles", "200"));
+        int groups = Integer.parseInt(options.getOrDefault("groups", "50"));
+        int userCount = Integer.parseInt(options.getOrDefault("users", "1000"));
+        long checks = Long.parseLong(options.getOrDefault("checks", "5000000"));
+        
+        Path config = Files.createTempFile("role-mapping", ".properties");
+        config.toFile().deleteOnExit();
+        System.setProperty(SAMLConfig.CONFIG_FILE_PROPERTY, config.toString());
+        writeConfig(config, roles, -1);
+        reload(config);
+        
+        long start = System.nanoTime();
+        RoleMapping mapping = RoleMapping.getInstance();
+        System.out.printf("compile: %d rules in %.2f ms%n", mapping.getRuleCount(), (System.nanoTime() - start) / 1e6);
+        
+        Random random = new Random(1);
+        SAMLUserInfo[] users = new SAMLUserInfo[userCount];
+        for (int i = 0; i < userCount; i++) {
+            users[i] = user(random, roles, groups);
+        }
+        
+        // Evaluate: once per login
+        RoleSet[] sets = new RoleSet[userCount];
+        long granted = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < userCount; i++) {
+                sets[i] = mapping.evaluate(users[i]);
+            }
+        }
+        int rounds = 200;
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < userCount; i++) {
+                sets[i] = mapping.evaluate(users[i]);
+            }
+        }
+        long evaluateNanos = System.nanoTime() - start;
+        for (RoleSet set : sets) {
+            granted += set.getRoles().size();
+        }
+        long before = usedHeap();
+        RoleSet[] held = new RoleSet[100_000];
+        for (int i = 0; i < held.length; i++) {
+            held[i] = mapping.evaluate(users[i % userCount]);
+        }
+        long perSet = (usedHeap() - before) / held.length;
+        System.out.printf("evaluate: %.0f ns per login for %d %s values and %d %s value, %.1f roles granted, "
+                + "%d bytes per set%n", (double) evaluateNanos / rounds / userCount, groups, GROUP_ATTRIBUTE, 1,
+                DEPARTMENT_ATTRIBUTE, (double) granted / userCount, perSet);
+        held = null;
+        
+        // Check: every request to a role route
+        String[] routeRoles = new String[16];
+        long[][] masks = new long[routeRoles.length][];
+        for (int i = 0; i < routeRoles.length; i++) {
+            routeRoles[i] = "role-" + random.nextInt(roles);
+            masks[i] = RoleMapping.mask(routeRoles[i]);
+        }
+        long allowed = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            start = System.nanoTime();
+            for (long i = 0; i < checks; i++) {
+                int user = (int) (i % userCount);
+                if (mapping.isCurrent(sets[user]) && sets[user].hasAny(masks[(int) (i & 15)])) {
+                    allowed++;
+                }
+            }
+        }
+        long bitNanos = System.nanoTime() - start;
+        long walked = 0;
+        long walkChecks = checks / 20;
+        for (int pass = 0; pass < 2; pass++) {
+            start = System.nanoTime();
+            for (long i = 0; i < walkChecks; i++) {
+                if (walk(users[(int) (i % userCount)], routeRoles[(int) (i & 15)])) {
+                    walked++;
+                }
+            }
+        }
+        long walkNanos = System.nanoTime() - start;
+        System.out.printf("check: bit test %.1f ns, attribute walk %.0f ns (%d and %d allowed)%n",
+                (double) bitNanos / checks, (double) walkNanos / walkChecks, allowed / 2, walked / 2);
+        
+        // Reload: role-0 is granted to every user from now on
+        int lacking = 0;
+        while (sets[lacking].has("role-0")) {
+            lacking++;
+        }
+        RoleSet before0 = sets[lacking];
+        writeConfig(config, roles, 0);
+        reload(config);
+        RoleMapping reloaded = RoleMapping.getInstance();
+        RoleSet after0 = reloaded.isCurrent(before0) ? before0 : reloaded.evaluate(users[lacking]);
+        System.out.printf("reload: set current after reload %s; role-0 granted before %s, after %s%n",
+                reloaded.isCurrent(before0), before0.has("role-0"), after0.has("role-0"));
+        
+        // Restore: the set goes through session serialization by role name
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(after0);
+        }
+        RoleSet restored;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            restored = (RoleSet) in.readObject();
+        }
+        System.out.printf("restore: %d bytes serialized, same roles %s, current %s%n", bytes.size(),
+                restored.getRoles().equals(after0.getRoles()), reloaded.isCurrent(restored));
+    }
+    
+    /**
+     * What a page does without the mapping: reads the role's rule and walks the user's attributes
+     */
+    private static boolean walk(SAMLUserInfo user, String role) {
+        String rule = SAMLConfig.getProperty(RoleMapping.RULE_PREFIX + role);
+        if (rule == null) {
+            return false;
+        }
+        for (String condition : rule.split("\\|")) {
+            condition = condition.trim();
+            int equals = condition.indexOf('=');
+            boolean prefix = condition.charAt(equals - 1) == '^';
+            String attribute = condition.substring(0, prefix ? equals - 1 : equals);
+            String value = condition.substring(equals + 1);
+            Map<String, List<String>> attributes = user.getAttributes();
+            for (Map.Entry<String, List<String>> entry : attributes.entrySet()) {
+                if (entry.getKey().equals(attribute)) {
+                    for (String candidate : entry.getValue()) {
+                        if (prefix ? candidate.startsWith(value) : candidate.equals(value)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+    
+    private static SAMLUserInfo user(Random random, int roles, int groups) {
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        List<String> memberOf = new ArrayList<>();
+        for (int i = 0; i < groups; i++) {
+            // Group numbers span four times the rules: most groups grant nothing
+            memberOf.add(group(random.nextInt(roles * 4)));
+        }
+        attributes.put(GROUP_ATTRIBUTE, memberOf);
+        attributes.put(DEPARTMENT_ATTRIBUTE, Arrays.asList("dept-" + random.nextInt(roles * 4) + "-emea"));
+        attributes.put("Role", Arrays.asList("user"));
+        attributes.put("email", Arrays.asList("user" + random.nextInt() + "@example.com"));
+        return new SAMLUserInfo("user" + random.nextInt() + "@example.com", attributes, "_session");
+    }
+    
+    private static String group(int number) {
+        return "cn=group-" + number + ",ou=groups,dc=example,dc=com";
+    }
+    
+    /**
+     * Rules role-n: memberOf=group-n | department^=dept-n-; role {@code changed} also takes Role=user
+     */
+    private static void writeConfig(Path config, int roles, int changed) throws Exception {
+        Properties properties = new Properties();
+        try (InputStream input = RoleMappingTest.class.getClassLoader().getResourceAsStream("saml.properties")) {
+            properties.load(input);
+        }
+        for (int i = 0; i < roles; i++) {
+            String rule = GROUP_ATTRIBUTE + "=" + group(i) + " | " + DEPARTMENT_ATTRIBUTE + "^=dept-" + i + "-";
+            if (i == changed) {
+                rule += " | Role=user";
+            }
+            properties.setProperty(RoleMapping.RULE_PREFIX + "role-" + i, rule);
+        }
+        try (OutputStream output = Files.newOutputStream(config)) {
+            properties.store(output, "RoleMappingTest");
+        }
+    }
+    
+    private static void reload(Path config) {
+        if (!SAMLConfig.reload()) {
+            throw new IllegalStateException("Failed to reload " + config);
+        }
+    }
+    
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memoryBean.getHeapMemoryUsage().getUsed();
+    }
+    
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+}
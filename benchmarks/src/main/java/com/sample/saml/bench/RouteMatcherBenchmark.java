@@ -0,0 +1,96 @@
+package com.sample.saml.bench;
+
+import com.sample.saml.filter.RouteMatcher;
+import com.sample.saml.filter.RoutePolicy;
+import com.sample.saml.filter.RouteRule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Route Matcher Benchmark
+ * 
+ * Compares the previous filter check (substring of the URI, then a linear
+ * equals/startsWith scan) with the compiled trie, for realistic rule counts.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteMatcherBenchmark {
+    
+    private static final String CONTEXT = "/java-saml-sso";
+    
+    @Param({"20", "200"})
+    public int ruleCount;
+    
+    /**
+     * first: matches the first rule; last: matches the last rule; miss: no rule matches
+     */
+    @Param({"first", "last", "miss"})
+    public String target;
+    
+    private String[] legacyPatterns;
+    private RouteMatcher matcher;
+    private String uri;
+    
+    @Setup
+    public void setup() {
+        List<RouteRule> rules = new ArrayList<>();
+        legacyPatterns = new String[ruleCount];
+        for (int i = 0; i < ruleCount; i++) {
+            String pattern = i % 2 == 0 ? "/app/module" + i + "/page.jsp" : "/static/bundle" + i + "/*";
+            rules.add(new RouteRule(pattern, RoutePolicy.PUBLIC));
+            legacyPatterns[i] = pattern.endsWith("*") ? pattern.substring(0, pattern.length() - 1) : pattern;
+        }
+        matcher = RouteMatcher.compile(rules, new RouteRule("/*", RoutePolicy.AUTHENTICATED));
+        
+        switch (target) {
+            case "first":
+                uri = CONTEXT + "/app/module0/page.jsp";
+                break;
+            case "last":
+                uri = CONTEXT + "/static/bundle" + (ruleCount - 1) + "/css/site.css";
+                break;
+            default:
+                uri = CONTEXT + "/welcome.jsp";
+                break;
+        }
+    }
+    
+    /**
+     * Previous SAMLSessionFilter logic
+     */
+    @Benchmark
+    public boolean legacyLinearScan() {
+        String relativePath = uri.substring(CONTEXT.length());
+        for (String publicUrl : legacyPatterns) {
+            if (relativePath.equals(publicUrl) || relativePath.startsWith(publicUrl)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    @Benchmark
+    public boolean compiledTrie() {
+        return matcher.match(uri, CONTEXT.length()).getPolicy() == RoutePolicy.PUBLIC;
+    }
+}
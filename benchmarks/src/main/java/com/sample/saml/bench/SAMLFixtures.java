@@ -0,0 +1,308 @@
+package com.sample.saml.bench;
+
+import com.onelogin.saml2.settings.Saml2Settings;
+import com.onelogin.saml2.settings.SettingsBuilder;
+import com.onelogin.saml2.util.Constants;
+import com.onelogin.saml2.util.Util;
+import com.sample.saml.util.ConfigSnapshot;
+import com.sample.saml.util.SAMLConfig;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Synthetic SAML Fixtures
+ * 
+ * Generates everything a benchmark needs to drive the real SAML code paths
+ * without an IdP: RSA key pairs with self-signed certificates for the IdP
+ * and the SP, toolkit settings that trust the generated IdP certificate,
+ * and SAMLResponse documents with a signed assertion carrying any number
+ * of attributes. Entity IDs and URLs are taken from saml.properties so the
+ * responses pass the toolkit's strict destination, audience and issuer checks.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class SAMLFixtures {
+    
+    private static final AtomicLong ids = new AtomicLong();
+    
+    private final String spEntityId;
+    private final String acsUrl;
+    private final String sloUrl;
+    private final String idpEntityId;
+    private final String idpSsoUrl;
+    private final String idpSloUrl;
+    
+    private final KeyPair idpKeys;
+    private final X509Certificate idpCertificate;
+    private final KeyPair spKeys;
+    private final X509Certificate spCertificate;
+    
+    /**
+     * Generates fresh key material and reads endpoints from the current configuration
+     */
+    public SAMLFixtures() {
+        ConfigSnapshot config = SAMLConfig.getSnapshot();
+        spEntityId = config.getProperty("sp.entityId");
+        acsUrl = config.getProperty("sp.assertionConsumerService.url");
+        sloUrl = config.getProperty("sp.singleLogoutService.url");
+        idpEntityId = config.getProperty("idp.entityId");
+        idpSsoUrl = config.getProperty("idp.singleSignOnService.url");
+        idpSloUrl = config.getProperty("idp.singleLogoutService.url");
+        
+        idpKeys = generateKeyPair();
+        idpCertificate = selfSign(idpKeys, "CN=Benchmark IdP");
+        spKeys = generateKeyPair();
+        spCertificate = selfSign(spKeys, "CN=Benchmark SP");
+    }
+    
+    /**
+     * Builds toolkit settings that trust the generated IdP certificate and
+     * sign AuthnRequests with the generated SP key, like a production setup.
+     * Schema validation is left to {@code SAMLService}; turn the toolkit's
+     * back on with {@code setWantXMLValidation(true)} to measure it.
+     * 
+     * @return strict SAML settings
+     */
+    public Saml2Settings settings() {
+        Map<String, Object> values = new HashMap<>();
+        values.put(SettingsBuilder.STRICT_PROPERTY_KEY, true);
+        values.put(SettingsBuilder.SP_ENTITYID_PROPERTY_KEY, spEntityId);
+        values.put(SettingsBuilder.SP_ASSERTION_CONSUMER_SERVICE_URL_PROPERTY_KEY, acsUrl);
+        values.put(SettingsBuilder.SP_SINGLE_LOGOUT_SERVICE_URL_PROPERTY_KEY, sloUrl);
+        values.put(SettingsBuilder.SP_X509CERT_PROPERTY_KEY, spCertificate);
+        values.put(SettingsBuilder.SP_PRIVATEKEY_PROPERTY_KEY, spKeys.getPrivate());
+        values.put(SettingsBuilder.IDP_ENTITYID_PROPERTY_KEY, idpEntityId);
+        values.put(SettingsBuilder.IDP_SINGLE_SIGN_ON_SERVICE_URL_PROPERTY_KEY, idpSsoUrl);
+        values.put(SettingsBuilder.IDP_SINGLE_LOGOUT_SERVICE_URL_PROPERTY_KEY, idpSloUrl);
+        values.put(SettingsBuilder.IDP_X509CERT_PROPERTY_KEY, idpCertificate);
+        values.put(SettingsBuilder.SECURITY_WANT_ASSERTIONS_SIGNED, true);
+        values.put(SettingsBuilder.SECURITY_AUTHREQUEST_SIGNED, true);
+        values.put(SettingsBuilder.SECURITY_SIGNATURE_ALGORITHM, Constants.RSA_SHA256);
+        values.put(SettingsBuilder.SECURITY_DIGEST_ALGORITHM, Constants.SHA256);
+        // As in SAMLService.buildSettings: the service validates against the cached schema
+        values.put(SettingsBuilder.SECURITY_WANT_XML_VALIDATION, false);
+        return new SettingsBuilder().fromValues(values).build();
+    }
+    
+    /**
+     * Creates a base64-encoded SAMLResponse with a signed assertion.
+     * Each call yields a new assertion ID.
+     * 
+     * @param attributeCount number of attributes in the assertion (one of them is "Role")
+     * @param valueLength length of each attribute value
+     * @return the value of the SAMLResponse POST parameter
+     */
+    public String signedResponse(int attributeCount, int valueLength) {
+        return Base64.getEncoder().encodeToString(signedResponseXml(attributeCount, valueLength)
+                .getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Creates a SAMLResponse document with a signed assertion
+     * 
+     * @param attributeCount number of attributes in the assertion (one of them is "Role")
+     * @param valueLength length of each attribute value
+     * @return the response XML
+     */
+    public String signedResponseXml(int attributeCount, int valueLength) {
+        return signedResponseXml(acsUrl, spEntityId, null, attributeCount, valueLength);
+    }
+    
+    /**
+     * Creates a SAMLResponse document with a signed assertion in answer to
+     * a specific AuthnRequest, as an IdP would
+     * 
+     * @param destination the ACS URL the response is posted to
+     * @param audience the SP entity ID
+     * @param inResponseTo the AuthnRequest ID, or null for an unsolicited response
+     * @param attributeCount number of attributes in the assertion (one of them is "Role")
+     * @param valueLength length of each attribute value
+     * @return the response XML
+     */
+    public String signedResponseXml(String destination, String audience, String inResponseTo,
+                                    int attributeCount, int valueLength) {
+        return signedResponseXml(destination, audience, inResponseTo, Instant.now(), attributeCount, valueLength);
+    }
+    
+    /**
+     * Creates a SAMLResponse document with a signed assertion issued at a given time,
+     * valid from a minute before until 30 minutes after it
+     * 
+     * @param destination the ACS URL the response is posted to
+     * @param audience the SP entity ID
+     * @param inResponseTo the AuthnRequest ID, or null for an unsolicited response
+     * @param now the IssueInstant
+     * @param attributeCount number of attributes in the assertion (one of them is "Role")
+     * @param valueLength length of each attribute value
+     * @return the response XML
+     */
+    public String signedResponseXml(String destination, String audience, String inResponseTo, Instant now,
+                                    int attributeCount, int valueLength) {
+        String inResponseToAttribute = inResponseTo != null ? " InResponseTo=\"" + inResponseTo + "\"" : "";
+        String issueInstant = now.toString();
+        String notBefore = now.minus(Duration.ofMinutes(1)).toString();
+        String notOnOrAfter = now.plus(Duration.ofMinutes(30)).toString();
+        long id = ids.incrementAndGet();
+        
+        StringBuilder assertion = new StringBuilder(256 + attributeCount * (160 + valueLength));
+        assertion.append("<saml:Assertion xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\"")
+                .append(" xmlns:xs=\"http://www.w3.org/2001/XMLSchema\"")
+                .append(" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"")
+                .append(" ID=\"_bench-assertion-").append(id).append("-").append(System.nanoTime()).append("\"")
+                .append(" Version=\"2.0\" IssueInstant=\"").append(issueInstant).append("\">")
+                .append("<saml:Issuer>").append(idpEntityId).append("</saml:Issuer>")
+                .append("<saml:Subject>")
+                .append("<saml:NameID Format=\"urn:oasis:names:tc:SAML:1.1:nameid-format:emailAddress\">user")
+                .append(id).append("@example.com</saml:NameID>")
+                .append("<saml:SubjectConfirmation Method=\"urn:oasis:names:tc:SAML:2.0:cm:bearer\">")
+                .append("<saml:SubjectConfirmationData NotOnOrAfter=\"").append(notOnOrAfter)
+                .append("\" Recipient=\"").append(destination).append("\"")
+                .append(inResponseToAttribute).append("/>")
+                .append("</saml:SubjectConfirmation>")
+                .append("</saml:Subject>")
+                .append("<saml:Conditions NotBefore=\"").append(notBefore)
+                .append("\" NotOnOrAfter=\"").append(notOnOrAfter).append("\">")
+                .append("<saml:AudienceRestriction><saml:Audience>").append(audience)
+                .append("</saml:Audience></saml:AudienceRestriction>")
+                .append("</saml:Conditions>")
+                .append("<saml:AuthnStatement AuthnInstant=\"").append(issueInstant)
+                .append("\" SessionIndex=\"_bench-session-").append(id).append("\">")
+                .append("<saml:AuthnContext><saml:AuthnContextClassRef>")
+                .append("urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport")
+                .append("</saml:AuthnContextClassRef></saml:AuthnContext>")
+                .append("</saml:AuthnStatement>")
+                .append("<saml:AttributeStatement>");
+        for (int i = 0; i < attributeCount; i++) {
+            String name = i == 0 ? "Role" : "attribute" + i;
+            String value = i == 0 ? "user" : value(i, valueLength);
+            assertion.append("<saml:Attribute Name=\"").append(name)
+                    .append("\" NameFormat=\"urn:oasis:names:tc:SAML:2.0:attrname-format:basic\">")
+                    .append("<saml:AttributeValue xsi:type=\"xs:string\">").append(value)
+                    .append("</saml:AttributeValue></saml:Attribute>");
+        }
+        assertion.append("</saml:AttributeStatement></saml:Assertion>");
+        
+        String signedAssertion;
+        try {
+            signedAssertion = Util.addSign(Util.loadXML(assertion.toString()), idpKeys.getPrivate(),
+                    idpCertificate, Constants.RSA_SHA256, Constants.SHA256);
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to sign benchmark assertion", e);
+        }
+        if (signedAssertion.startsWith("<?xml")) {
+            signedAssertion = signedAssertion.substring(signedAssertion.indexOf("?>") + 2);
+        }
+        
+        return "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+                + " xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\""
+                + " ID=\"_bench-response-" + id + "\" Version=\"2.0\" IssueInstant=\"" + issueInstant + "\""
+                + " Destination=\"" + destination + "\"" + inResponseToAttribute + ">"
+                + "<saml:Issuer>" + idpEntityId + "</saml:Issuer>"
+                + "<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/></samlp:Status>"
+                + signedAssertion
+                + "</samlp:Response>";
+    }
+    
+    private static String value(int index, int length) {
+        StringBuilder value = new StringBuilder(length);
+        while (value.length() < length) {
+            value.append((char) ('a' + (index + value.length()) % 26));
+        }
+        return value.toString();
+    }
+    
+    /**
+     * Gets the ACS URL responses are addressed to
+     * 
+     * @return the ACS URL
+     */
+    public String getAcsUrl() {
+        return acsUrl;
+    }
+    
+    /**
+     * Gets the generated IdP signing certificate
+     * 
+     * @return the IdP certificate
+     */
+    public X509Certificate getIdpCertificate() {
+        return idpCertificate;
+    }
+    
+    /**
+     * Gets the IdP entity ID used as the issuer of every response
+     * 
+     * @return the IdP entity ID
+     */
+    public String getIdpEntityId() {
+        return idpEntityId;
+    }
+    
+    /**
+     * Gets the generated SP certificate
+     * 
+     * @return the SP certificate
+     */
+    public X509Certificate getSpCertificate() {
+        return spCertificate;
+    }
+    
+    /**
+     * Gets the generated SP signing key
+     * 
+     * @return the SP private key
+     */
+    public PrivateKey getSpPrivateKey() {
+        return spKeys.getPrivate();
+    }
+    
+    /**
+     * Gets the generated IdP signing key
+     * 
+     * @return the IdP private key
+     */
+    public PrivateKey getIdpPrivateKey() {
+        return idpKeys.getPrivate();
+    }
+    
+    private static KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            return generator.generateKeyPair();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to generate RSA key pair", e);
+        }
+    }
+    
+    private static X509Certificate selfSign(KeyPair keys, String subject) {
+        try {
+            X500Name name = new X500Name(subject);
+            Instant now = Instant.now();
+            JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name,
+                    BigInteger.valueOf(now.toEpochMilli()), Date.from(now.minus(Duration.ofDays(1))),
+                    Date.from(now.plus(Duration.ofDays(365))), name, keys.getPublic());
+            return new JcaX509CertificateConverter().getCertificate(
+                    builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keys.getPrivate())));
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to create self-signed certificate", e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.sample.saml.bench;
+
+import com.onelogin.saml2.Auth;
+import com.sample.saml.service.SAMLService;
+import com.sample.saml.util.SAMLConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SAML Service Construction Benchmark
+ * 
+ * Compares the old per-request pattern (every JSP building its own
+ * SAMLService, i.e. configuration map, settings and certificate decoding)
+ * with the shared service that only creates a request-scoped Auth.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SAMLServiceBenchmark {
+    
+    private SAMLService sharedService;
+    
+    @Setup
+    public void setup() {
+        SAMLConfig.initialize();
+        sharedService = new SAMLService();
+    }
+    
+    /**
+     * Old behaviour: a new service (and settings) per request
+     */
+    @Benchmark
+    public Auth perRequestService() throws Exception {
+        return new SAMLService().createAuth(null, null);
+    }
+    
+    /**
+     * New behaviour: shared immutable settings, request-scoped Auth
+     */
+    @Benchmark
+    public Auth sharedService() throws Exception {
+        return sharedService.createAuth(null, null);
+    }
+}
@@ -0,0 +1,171 @@
+package com.sample.saml.bench;
+
+import com.sample.saml.model.SAMLUserInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SAML User Info Benchmark
+ * 
+ * Compares the compact SAMLUserInfo with the previous representation, a
+ * HashMap of freshly allocated attribute names to value lists per session.
+ * The JMH methods measure attribute lookups; {@link #main(String[])} reports
+ * retained heap bytes and serialized bytes per session.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SAMLUserInfoBenchmark {
+    
+    // Typical Keycloak attribute set
+    private static final String[][] ATTRIBUTES = {
+        {"urn:oid:0.9.2342.19200300.100.1.3", "jane.doe@example.com"},
+        {"urn:oid:2.5.4.42", "Jane"},
+        {"urn:oid:2.5.4.4", "Doe"},
+        {"urn:oid:2.16.840.1.113730.3.1.241", "Jane Doe"},
+        {"http://schemas.xmlsoap.org/ws/2005/05/identity/claims/emailaddress", "jane.doe@example.com"},
+        {"http://schemas.xmlsoap.org/ws/2005/05/identity/claims/givenname", "Jane"},
+        {"http://schemas.xmlsoap.org/ws/2005/05/identity/claims/surname", "Doe"},
+        {"http://schemas.microsoft.com/ws/2008/06/identity/claims/role", "user", "offline_access", "uma_authorization", "manage-account"},
+        {"http://schemas.xmlsoap.org/claims/Group", "/engineering", "/engineering/platform"},
+        {"Role", "default-roles-dev"}
+    };
+    
+    private static final String LOOKUP = "http://schemas.xmlsoap.org/ws/2005/05/identity/claims/givenname";
+    
+    private Map<String, List<String>> legacy;
+    private SAMLUserInfo compact;
+    
+    @Setup
+    public void setup() {
+        legacy = toolkitAttributes(0);
+        compact = new SAMLUserInfo("jane.doe@example.com", toolkitAttributes(0), "_session-0");
+    }
+    
+    /**
+     * Previous getAttributeValue: containsKey followed by get
+     */
+    @Benchmark
+    public String legacyGetAttributeValue() {
+        if (legacy.containsKey(LOOKUP)) {
+            List<String> values = legacy.get(LOOKUP);
+            if (values != null && !values.isEmpty()) {
+                return values.get(0);
+            }
+        }
+        return null;
+    }
+    
+    @Benchmark
+    public String compactGetAttributeValue() {
+        return compact.getAttributeValue(LOOKUP);
+    }
+    
+    /**
+     * Builds attributes the way the toolkit returns them: new name strings for every assertion
+     */
+    static Map<String, List<String>> toolkitAttributes(int user) {
+        Map<String, List<String>> attributes = new HashMap<>();
+        for (String[] attribute : ATTRIBUTES) {
+            List<String> values = new ArrayList<>();
+            for (int i = 1; i < attribute.length; i++) {
+                values.add(new String(attribute[i].replace("jane.doe", "user" + user)));
+            }
+            attributes.put(new String(attribute[0]), values);
+        }
+        return attributes;
+    }
+    
+    /**
+     * Reports retained heap and serialized size per session for both representations
+     * 
+     * @param args optional session count (default 100000)
+     * @throws IOException if serialization fails
+     */
+    public static void main(String[] args) throws IOException {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        
+        long before = usedHeap();
+        Object[] legacySessions = new Object[sessions];
+        for (int i = 0; i < sessions; i++) {
+            legacySessions[i] = new LegacyUserInfo("user" + i + "@example.com", toolkitAttributes(i), "_session-" + i);
+        }
+        long legacyBytes = usedHeap() - before;
+        long legacyWire = serializedSize(legacySessions[0]);
+        Arrays.fill(legacySessions, null);
+        
+        before = usedHeap();
+        Object[] compactSessions = new Object[sessions];
+        for (int i = 0; i < sessions; i++) {
+            compactSessions[i] = new SAMLUserInfo("user" + i + "@example.com", toolkitAttributes(i), "_session-" + i);
+        }
+        long compactBytes = usedHeap() - before;
+        long compactWire = serializedSize(compactSessions[0]);
+        
+        System.out.printf("sessions=%d%n", sessions);
+        System.out.printf("legacy  heap bytes/session=%d serialized bytes=%d%n", legacyBytes / sessions, legacyWire);
+        System.out.printf("compact heap bytes/session=%d serialized bytes=%d%n", compactBytes / sessions, compactWire);
+        // Keep the compact sessions reachable until after the measurement
+        System.out.println(compactSessions[sessions - 1]);
+    }
+    
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    private static long serializedSize(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.size();
+    }
+    
+    /**
+     * Shape of the previous SAMLUserInfo, made serializable for the size comparison
+     */
+    static final class LegacyUserInfo implements Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        final String nameId;
+        final Map<String, List<String>> attributes;
+        final String sessionIndex;
+        String notOnOrAfter;
+        String notBefore;
+        
+        LegacyUserInfo(String nameId, Map<String, List<String>> attributes, String sessionIndex) {
+            this.nameId = nameId;
+            this.attributes = attributes;
+            this.sessionIndex = sessionIndex;
+        }
+    }
+}
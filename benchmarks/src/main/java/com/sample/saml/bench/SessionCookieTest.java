@@ -0,0 +1,277 @@
+package com.sample.saml.bench;
+
+import com.sample.saml.filter.SAMLSessionFilter;
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.service.RoleMapping;
+import com.sample.saml.service.RoleSet;
+import com.sample.saml.service.SessionTokens;
+import com.sample.saml.util.SAMLConfig;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Session Cookie Test
+ * 
+ * {@link SessionTokens} cookie mode against container sessions, for
+ * {@code --users} logged-in users with {@code --attributes} attributes each
+ * (three of them carried in the token). Reports:
+ * <ul>
+ *   <li>memory: heap per logged-in user with container sessions - a session
+ *       object holding what {@code establishSession} stores, in a session
+ *       map keyed by ID - and the size of the cookie a stateless user sends
+ *       with every request instead</li>
+ *   <li>request: ns per protected request through
+ *       {@link SAMLSessionFilter}, finding the session by its ID, and
+ *       validating the cookie signed only and encrypted</li>
+ *   <li>decode: ns to validate a token alone, and to issue one</li>
+ *   <li>rotation: a token issued with the old key is accepted and reissued
+ *       with the new one, and rejected once the old key is removed</li>
+ * </ul>
+ * 
+ * Usage: {@code java -Xmx2g -cp target/benchmarks.jar com.sample.saml.bench.SessionCookieTest
+ * [--users=100000] [--attributes=10] [--requests=1000000]}
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class SessionCookieTest {
+    
+    private static final String CONTEXT = "/java-saml-sso";
+    private static final String URL = "https://sp.example.com" + CONTEXT + "/welcome.jsp";
+    private static final String CARRIED = "email,displayName,department";
+    private static final FilterChain CHAIN = (request, response) -> { };
+    
+    private static final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    
+    private SessionCookieTest() {
+        // Command line tool - no instantiation needed
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int userCount = Integer.parseInt(options.getOrDefault("users", "100000"));
+        int attributeCount = Integer.parseInt(options.getOrDefault("attributes", "10"));
+        int requests = Integer.parseInt(options.getOrDefault("requests", "1000000"));
+        
+        Random random = new Random(1);
+        String oldKey = "1:" + secret(random);
+        String newKey = "2:" + secret(random);
+        Path config = Files.createTempFile("session-cookie", ".properties");
+        config.toFile().deleteOnExit();
+        System.setProperty(SAMLConfig.CONFIG_FILE_PROPERTY, config.toString());
+        reload(config, false, false, oldKey);
+        
+        SAMLSessionFilter filter = new SAMLSessionFilter();
+        filter.init(MockServlet.filterConfig(Collections.emptyMap()));
+        HttpServletResponse response = MockServlet.response(null);
+        
+        // Container sessions: what establishSession stores, for every user
+        long before = usedHeap();
+        Map<String, HttpSession> sessions = new ConcurrentHashMap<>();
+        String[] ids = new String[userCount];
+        for (int i = 0; i < userCount; i++) {
+            SAMLUserInfo userInfo = user(random, i, attributeCount);
+            HttpSession session = MockServlet.session();
+            session.setAttribute("saml.idpEntityId", "https://idp.example.com/metadata");
+            session.setAttribute("saml.userInfo", userInfo);
+            session.setAttribute("saml.sessionIndex", userInfo.getSessionIndex());
+            session.setAttribute("saml.roles", RoleMapping.getInstance().evaluate(userInfo));
+            ids[i] = Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+            sessions.put(ids[i], session);
+        }
+        long sessionHeap = (usedHeap() - before) / userCount;
+        
+        SAMLUserInfo sample = user(random, 0, attributeCount);
+        RoleSet roles = RoleMapping.getInstance().evaluate(sample);
+        String signed = SessionTokens.getInstance().issue(sample, roles);
+        reload(config, true, true, oldKey);
+        String sealed = SessionTokens.getInstance().issue(sample, roles);
+        System.out.printf("memory: container session %d bytes of heap per user (%d users, %d attributes); "
+                + "cookie 0 bytes of heap, %d characters signed, %d encrypted, sent with every request%n",
+                sessionHeap, userCount, attributeCount, signed.length(), sealed.length());
+        
+        System.out.printf("%n%-22s %10s %10s %10s%n", "request", "p50 ns", "p99 ns", "mean ns");
+        HttpServletRequest[] sessionRequests = new HttpServletRequest[1024];
+        for (int i = 0; i < sessionRequests.length; i++) {
+            sessionRequests[i] = withSessionId(sessions, ids[random.nextInt(userCount)]);
+        }
+        reload(config, false, false, oldKey);
+        measure("container session", filter, sessionRequests, response, requests);
+        
+        reload(config, true, false, oldKey);
+        measure("cookie, signed", filter, cookieRequests(sample, 1024), response, requests);
+        reload(config, true, true, oldKey);
+        measure("cookie, encrypted", filter, cookieRequests(sample, 1024), response, requests);
+        sessions = null;
+        
+        SessionTokens tokens = SessionTokens.getInstance();
+        int rounds = requests / 4;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            if (tokens.decode(sealed) == null) {
+                throw new IllegalStateException("Token rejected");
+            }
+        }
+        long decodeNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds / 10; i++) {
+            tokens.issue(sample, roles);
+        }
+        long issueNanos = System.nanoTime() - start;
+        System.out.printf("%ndecode: %.0f ns to validate an encrypted token, %.0f ns to issue one%n",
+                (double) decodeNanos / rounds, (double) issueNanos / (rounds / 10));
+        
+        // Rotation: the new key goes first, the old one stays accepted, then goes
+        reload(config, true, true, newKey + "," + oldKey);
+        SessionTokens rotated = SessionTokens.getInstance();
+        SessionTokens.Token old = rotated.decode(sealed);
+        String reissued = old != null && rotated.isRefreshDue(old) ? rotated.refresh(old) : null;
+        reload(config, true, true, newKey);
+        SessionTokens retired = SessionTokens.getInstance();
+        System.out.printf("rotation: old-key token accepted %s and reissued %s; after the old key is removed, "
+                + "old token accepted %s, reissued token accepted %s%n", old != null, reissued != null,
+                retired.decode(sealed) != null, reissued != null && retired.decode(reissued) != null);
+        byte[] forged = Base64.getUrlDecoder().decode(reissued);
+        forged[forged.length / 2] ^= 1;
+        System.out.printf("tamper: token with one bit flipped accepted %s%n",
+                retired.decode(Base64.getUrlEncoder().withoutPadding().encodeToString(forged)) != null);
+        filter.destroy();
+    }
+    
+    private static void measure(String label, SAMLSessionFilter filter, HttpServletRequest[] requests,
+                                HttpServletResponse response, int count) throws Exception {
+        for (int i = 0; i < count / 4; i++) {
+            filter.doFilter(requests[i & (requests.length - 1)], response, CHAIN);
+        }
+        long[] nanos = new long[count];
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            HttpServletRequest request = requests[i & (requests.length - 1)];
+            long start = System.nanoTime();
+            filter.doFilter(request, response, CHAIN);
+            nanos[i] = System.nanoTime() - start;
+            total += nanos[i];
+        }
+        Arrays.sort(nanos);
+        System.out.printf("%-22s %10d %10d %10.0f%n", label, nanos[count / 2], nanos[(int) (count * 0.99)],
+                (double) total / count);
+    }
+    
+    /**
+     * A request whose container looks its session up by the ID from the session cookie
+     */
+    private static HttpServletRequest withSessionId(Map<String, HttpSession> sessions, String id) {
+        HttpServletRequest request = MockServlet.request("GET", URL, CONTEXT, Collections.emptyMap(), null);
+        return new HttpServletRequestWrapper(request) {
+            @Override
+            public HttpSession getSession(boolean create) {
+                return sessions.get(id);
+            }
+            
+            @Override
+            public Cookie[] getCookies() {
+                return new Cookie[] {new Cookie("JSESSIONID", id)};
+            }
+        };
+    }
+    
+    /**
+     * Requests with fresh tokens of the current mode, one user in each
+     */
+    private static HttpServletRequest[] cookieRequests(SAMLUserInfo userInfo, int count) {
+        SessionTokens tokens = SessionTokens.getInstance();
+        RoleSet roles = RoleMapping.getInstance().evaluate(userInfo);
+        HttpServletRequest[] requests = new HttpServletRequest[count];
+        for (int i = 0; i < count; i++) {
+            String token = tokens.issue(userInfo, roles);
+            HttpServletRequest request = MockServlet.request("GET", URL, CONTEXT, Collections.emptyMap(), null);
+            requests[i] = new HttpServletRequestWrapper(request) {
+                @Override
+                public Cookie[] getCookies() {
+                    return new Cookie[] {new Cookie("SAMLSESSION", token)};
+                }
+            };
+        }
+        return requests;
+    }
+    
+    private static SAMLUserInfo user(Random random, int number, int attributeCount) {
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        attributes.put("email", Collections.singletonList("user" + number + "@example.com"));
+        attributes.put("displayName", Collections.singletonList("User " + number));
+        attributes.put("department", Collections.singletonList("dept-" + random.nextInt(100)));
+        attributes.put("Role", Collections.singletonList("user"));
+        for (int i = attributes.size(); i < attributeCount; i++) {
+            List<String> values = new ArrayList<>();
+            for (int j = 0; j < 3; j++) {
+                values.add("value-" + i + "-" + j + "-" + Long.toHexString(random.nextLong()));
+            }
+            attributes.put("urn:oid:1.3.6.1.4.1.5923.1.1.1." + i, values);
+        }
+        return new SAMLUserInfo("user" + number + "@example.com", attributes,
+                "_" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()));
+    }
+    
+    private static String secret(Random random) {
+        byte[] secret = new byte[32];
+        random.nextBytes(secret);
+        return Base64.getEncoder().encodeToString(secret);
+    }
+    
+    private static void reload(Path config, boolean cookies, boolean encrypt, String keys) throws Exception {
+        Properties properties = new Properties();
+        try (InputStream input = SessionCookieTest.class.getClassLoader().getResourceAsStream("saml.properties")) {
+            properties.load(input);
+        }
+        properties.setProperty("app.session.cookie.enabled", Boolean.toString(cookies));
+        properties.setProperty("app.session.cookie.encrypt", Boolean.toString(encrypt));
+        properties.setProperty("app.session.cookie.keys", keys);
+        properties.setProperty("app.session.cookie.attributes", CARRIED);
+        properties.setProperty(RoleMapping.RULE_PREFIX + "staff", "department^=dept-1");
+        try (OutputStream output = Files.newOutputStream(config)) {
+            properties.store(output, "SessionCookieTest");
+        }
+        if (!SAMLConfig.reload()) {
+            throw new IllegalStateException("Failed to reload " + config);
+        }
+    }
+    
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memoryBean.getHeapMemoryUsage().getUsed();
+    }
+    
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+}
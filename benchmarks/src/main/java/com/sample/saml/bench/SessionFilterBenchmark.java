@@ -0,0 +1,87 @@
+package com.sample.saml.bench;
+
+import com.sample.saml.filter.SAMLSessionFilter;
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.util.SAMLConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session Filter Benchmark
+ * 
+ * Runs {@link SAMLSessionFilter#doFilter} for the three outcomes a request
+ * can have: a public page, a protected page with a valid SAML session, and
+ * a protected page without a session (redirect to login).
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionFilterBenchmark {
+    
+    private static final String CONTEXT = "/java-saml-sso";
+    
+    @Param({"public", "authenticated", "anonymous"})
+    public String scenario;
+    
+    private SAMLSessionFilter filter;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private FilterChain chain;
+    
+    @Setup
+    public void setup(Blackhole blackhole) throws ServletException {
+        SAMLConfig.initialize();
+        filter = new SAMLSessionFilter();
+        filter.init(MockServlet.filterConfig(Collections.emptyMap()));
+        
+        HttpSession session = null;
+        String page = "/welcome.jsp";
+        if ("public".equals(scenario)) {
+            page = "/index.jsp";
+        } else if ("authenticated".equals(scenario)) {
+            Map<String, List<String>> attributes = new HashMap<>();
+            attributes.put("Role", Arrays.asList("user"));
+            attributes.put("email", Arrays.asList("user@example.com"));
+            session = MockServlet.session();
+            session.setAttribute("saml.userInfo", new SAMLUserInfo("user@example.com", attributes, "_session"));
+        }
+        request = MockServlet.request("GET", "http://localhost:8080" + CONTEXT + page, CONTEXT,
+                Collections.emptyMap(), session);
+        response = MockServlet.response(null);
+        chain = (req, resp) -> blackhole.consume(req);
+    }
+    
+    @Benchmark
+    public void doFilter() throws IOException, ServletException {
+        filter.doFilter(request, response, chain);
+    }
+}
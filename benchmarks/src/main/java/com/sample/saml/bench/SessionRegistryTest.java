@@ -0,0 +1,455 @@
+package com.sample.saml.bench;
+
+import com.onelogin.saml2.util.Util;
+import com.sample.saml.listener.SAMLSessionListener;
+import com.sample.saml.metrics.SAMLMetrics;
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.service.SAMLService;
+import com.sample.saml.service.SessionRegistry;
+import com.sample.saml.util.SAMLConfig;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionContext;
+import javax.servlet.http.HttpSessionEvent;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Session Registry Test
+ * 
+ * {@link SessionRegistry} with {@code --sessions} live sessions (1M by
+ * default) for {@code --sessions * 4/5} users, so one user in five has two
+ * sessions. Sessions are a minimal {@link HttpSession} that notifies
+ * {@link SAMLSessionListener} as a container does, so every figure includes
+ * the listener. Reports:
+ * <ul>
+ *   <li>index: time and heap per session to index them all</li>
+ *   <li>by index / by NameID: ns to end the sessions of a LogoutRequest with
+ *       one SessionIndex, and with only a NameID</li>
+ *   <li>scan: what finding one SessionIndex costs without the index, by
+ *       looking at the attribute of every session</li>
+ *   <li>end to end: {@code SAMLService.processLogoutRequest} for a
+ *       redirect-binding LogoutRequest, validation and LogoutResponse
+ *       included</li>
+ *   <li>churn: {@code --threads} threads logging in and out for
+ *       {@code --duration} seconds</li>
+ *   <li>dropped: sessions the container lets go without destroying them
+ *       are purged from the index after a GC</li>
+ * </ul>
+ * 
+ * Usage: {@code java -Xmx2g -cp target/benchmarks.jar com.sample.saml.bench.SessionRegistryTest
+ * [--sessions=1000000] [--logouts=200000] [--requests=500] [--threads=4] [--duration=5]}
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class SessionRegistryTest {
+    
+    private static final String CONTEXT = "/java-saml-sso";
+    private static final String USER_INFO = "saml.userInfo";
+    private static final String IDP_ENTITY_ID = "saml.idpEntityId";
+    
+    private static final SAMLSessionListener listener = new SAMLSessionListener();
+    private static final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    
+    private SessionRegistryTest() {
+        // Command line tool - no instantiation needed
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int count = Integer.parseInt(options.getOrDefault("sessions", "1000000"));
+        int logouts = Integer.parseInt(options.getOrDefault("logouts", "200000"));
+        int requests = Integer.parseInt(options.getOrDefault("requests", "500"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "4"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "5"));
+        
+        SAMLFixtures fixtures = new SAMLFixtures();
+        Path config = Files.createTempFile("session-registry", ".properties");
+        config.toFile().deleteOnExit();
+        writeConfig(fixtures, config);
+        System.setProperty(SAMLConfig.CONFIG_FILE_PROPERTY, config.toString());
+        if (!SAMLConfig.reload()) {
+            throw new IllegalStateException("Failed to reload " + config);
+        }
+        SAMLService service = SAMLService.getInstance();
+        String idp = service.getSettings().getIdpEntityId();
+        SessionRegistry registry = SAMLService.getSessionRegistry();
+        int users = Math.max(1, count * 4 / 5);
+        
+        // Sessions with their users, not yet indexed
+        AtomicReferenceArray<BenchSession> sessions = new AtomicReferenceArray<>(count);
+        for (int i = 0; i < count; i++) {
+            sessions.set(i, new BenchSession(userInfo(i % users)));
+        }
+        long before = usedHeap();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            sessions.get(i).login(idp);
+        }
+        long indexNanos = System.nanoTime() - start;
+        long held = usedHeap() - before;
+        System.out.printf("index: %d sessions of %d users in %.0f ms (%.0f ns each), %d MB held, %d bytes per session%n",
+                registry.size(), users, indexNanos / 1e6, (double) indexNanos / count, held / (1024 * 1024),
+                held / count);
+        
+        System.out.printf("%n%-12s %10s %10s %10s %10s%n", "logout", "requests", "sessions", "ns/op", "re-login ns");
+        logouts(registry, sessions, idp, users, logouts, false);
+        logouts(registry, sessions, idp, users, logouts, true);
+        
+        // Without the index: every session's attribute is read until the SessionIndex matches
+        Random random = new Random(3);
+        int scans = 20;
+        long scanNanos = 0;
+        for (int i = 0; i < scans; i++) {
+            String target = sessions.get(random.nextInt(count)).user.getSessionIndex();
+            long scanStart = System.nanoTime();
+            for (int j = 0; j < count; j++) {
+                SAMLUserInfo user = (SAMLUserInfo) sessions.get(j).getAttribute(USER_INFO);
+                if (user != null && target.equals(user.getSessionIndex())) {
+                    break;
+                }
+            }
+            scanNanos += System.nanoTime() - scanStart;
+        }
+        System.out.printf("%-12s %10d %10s %10.0f%n", "scan", scans, "-", (double) scanNanos / scans);
+        
+        endToEnd(service, sessions, idp, fixtures, requests);
+        churn(registry, sessions, idp, users, threads, duration);
+        dropped(registry, sessions, idp, count / 10);
+        System.out.printf("%nindexed at the end: %d%n", registry.size());
+    }
+    
+    /**
+     * Ends one random user's sessions per LogoutRequest, by SessionIndex or by NameID, and logs them back in
+     */
+    private static void logouts(SessionRegistry registry, AtomicReferenceArray<BenchSession> sessions, String idp,
+                                int users, int logouts, boolean byNameId) {
+        Random random = new Random(byNameId ? 2 : 1);
+        int count = sessions.length();
+        long logoutNanos = 0;
+        long loginNanos = 0;
+        long ended = 0;
+        for (int i = 0; i < logouts; i++) {
+            int slot = random.nextInt(count);
+            BenchSession session = sessions.get(slot);
+            List<String> indexes = byNameId ? Collections.emptyList()
+                    : Collections.singletonList(session.user.getSessionIndex());
+            long start = System.nanoTime();
+            int invalidated = registry.invalidate(idp, session.user.getNameId(), indexes);
+            logoutNanos += System.nanoTime() - start;
+            if (invalidated < 1) {
+                throw new IllegalStateException("Session of " + session.user.getNameId() + " not found");
+            }
+            ended += invalidated;
+            // The same users log in again, each ended session replaced by a new one
+            start = System.nanoTime();
+            for (int other = byNameId ? slot % users : slot; other < count; other += byNameId ? users : count) {
+                if (sessions.get(other).isInvalid()) {
+                    BenchSession fresh = new BenchSession(userInfo(other % users));
+                    fresh.login(idp);
+                    sessions.set(other, fresh);
+                }
+            }
+            loginNanos += System.nanoTime() - start;
+        }
+        System.out.printf("%-12s %10d %10d %10.0f %10.0f%n", byNameId ? "by NameID" : "by index", logouts, ended,
+                (double) logoutNanos / logouts, (double) loginNanos / ended);
+    }
+    
+    /**
+     * LogoutRequests through the service: parse, schema, toolkit validation, index, LogoutResponse
+     */
+    private static void endToEnd(SAMLService service, AtomicReferenceArray<BenchSession> sessions, String idp,
+                                 SAMLFixtures fixtures, int requests) throws Exception {
+        String slsUrl = service.getSettings().getSpSingleLogoutServiceUrl().toString();
+        Random random = new Random(4);
+        long[] nanos = new long[requests];
+        for (int i = -requests / 5; i < requests; i++) {
+            int slot = random.nextInt(sessions.length());
+            BenchSession session = sessions.get(slot);
+            String xml = "<samlp:LogoutRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+                    + " xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"_bench-logout-" + System.nanoTime()
+                    + "\" Version=\"2.0\" IssueInstant=\"" + Instant.now() + "\" Destination=\"" + slsUrl + "\">"
+                    + "<saml:Issuer>" + idp + "</saml:Issuer>"
+                    + "<saml:NameID Format=\"urn:oasis:names:tc:SAML:1.1:nameid-format:emailAddress\">"
+                    + session.user.getNameId() + "</saml:NameID>"
+                    + "<samlp:SessionIndex>" + session.user.getSessionIndex() + "</samlp:SessionIndex>"
+                    + "</samlp:LogoutRequest>";
+            Map<String, String> parameters = new HashMap<>();
+            parameters.put("SAMLRequest", Util.deflatedBase64encoded(xml));
+            HttpServletRequest request = MockServlet.request("GET", slsUrl, CONTEXT, parameters, null);
+            long start = System.nanoTime();
+            service.processLogoutRequest(request);
+            long elapsed = System.nanoTime() - start;
+            if (!session.isInvalid()) {
+                throw new IllegalStateException("LogoutRequest did not end the session of " + session.user.getNameId());
+            }
+            BenchSession fresh = new BenchSession(session.user);
+            fresh.login(idp);
+            sessions.set(slot, fresh);
+            if (i >= 0) {
+                nanos[i] = elapsed;
+            }
+        }
+        Arrays.sort(nanos);
+        System.out.printf("%nend to end: %d LogoutRequests, p50 %.3f ms, p99 %.3f ms%n", requests,
+                nanos[requests / 2] / 1e6, nanos[Math.min(requests - 1, (int) Math.ceil(requests * 0.99) - 1)] / 1e6);
+    }
+    
+    /**
+     * Threads replacing random sessions with new logins, half of them through a LogoutRequest by index
+     */
+    private static void churn(SessionRegistry registry, AtomicReferenceArray<BenchSession> sessions, String idp,
+                              int users, int threads, int duration) throws Exception {
+        LongAdder operations = new LongAdder();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < end) {
+                    int slot = random.nextInt(sessions.length());
+                    BenchSession session = sessions.get(slot);
+                    BenchSession fresh = new BenchSession(userInfo(slot % users));
+                    fresh.login(idp);
+                    if (!sessions.compareAndSet(slot, session, fresh)) {
+                        fresh.invalidate();
+                        continue;
+                    }
+                    if (random.nextBoolean()) {
+                        registry.invalidate(idp, session.user.getNameId(),
+                                Collections.singletonList(session.user.getSessionIndex()));
+                    } else {
+                        session.invalidateQuietly();
+                    }
+                    operations.add(2);
+                }
+            }, "churn-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        System.out.printf("churn: %d threads, %.0f login+logout operations/s, %d indexed for %d sessions%n", threads,
+                operations.sum() / (double) duration, registry.size(), sessions.length());
+    }
+    
+    /**
+     * Sessions dropped without a destroy event are purged once collected
+     */
+    private static void dropped(SessionRegistry registry, AtomicReferenceArray<BenchSession> sessions, String idp,
+                                int dropped) {
+        long indexed = registry.size();
+        Number purged = SAMLMetrics.snapshot().get("sessions.purged");
+        for (int i = 0; i < dropped; i++) {
+            // The old session object becomes unreachable without any listener call
+            sessions.set(i, new BenchSession(sessions.get(i).user));
+        }
+        usedHeap();
+        for (int i = 0; i < dropped; i++) {
+            sessions.get(i).login(idp);
+        }
+        System.out.printf("dropped: %d sessions let go without a destroy event; indexed %d before, %d after re-login, "
+                + "%d purged%n", dropped, indexed, registry.size(),
+                SAMLMetrics.snapshot().get("sessions.purged").longValue() - purged.longValue());
+    }
+    
+    private static SAMLUserInfo userInfo(int user) {
+        Map<String, List<String>> attributes = new HashMap<>();
+        String sessionIndex = "_" + Long.toHexString(ThreadLocalRandom.current().nextLong())
+                + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        return new SAMLUserInfo("user" + user + "@example.com", attributes, sessionIndex);
+    }
+    
+    private static void writeConfig(SAMLFixtures fixtures, Path config) throws Exception {
+        Properties base = new Properties();
+        try (InputStream input = SessionRegistryTest.class.getClassLoader().getResourceAsStream("saml.properties")) {
+            base.load(input);
+        }
+        base.setProperty("saml.admission.enabled", "false");
+        new MockIdP(fixtures, 1, 16).writeSpConfig(base, "https://localhost:9443/idp/sso", config);
+    }
+    
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memoryBean.getHeapMemoryUsage().getUsed();
+    }
+    
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+    
+    /**
+     * A session that holds the two SAML attributes and notifies the listener like a container
+     */
+    @SuppressWarnings("deprecation")
+    private static final class BenchSession implements HttpSession {
+        
+        private final SAMLUserInfo user;
+        private volatile Object idpEntityId;
+        private volatile Object userInfo;
+        private volatile boolean invalid;
+        
+        BenchSession(SAMLUserInfo user) {
+            this.user = user;
+        }
+        
+        void login(String idp) {
+            setAttribute(IDP_ENTITY_ID, idp);
+            setAttribute(USER_INFO, user);
+        }
+        
+        boolean isInvalid() {
+            return invalid;
+        }
+        
+        /**
+         * Destroys the session, ignoring a concurrent invalidation
+         */
+        void invalidateQuietly() {
+            try {
+                invalidate();
+            } catch (IllegalStateException e) {
+                // Already invalidated
+            }
+        }
+        
+        @Override
+        public synchronized void invalidate() {
+            if (invalid) {
+                throw new IllegalStateException("Session already invalidated");
+            }
+            listener.sessionDestroyed(new HttpSessionEvent(this));
+            invalid = true;
+            Object removed = userInfo;
+            userInfo = null;
+            idpEntityId = null;
+            if (removed != null) {
+                listener.attributeRemoved(new HttpSessionBindingEvent(this, USER_INFO, removed));
+            }
+        }
+        
+        @Override
+        public Object getAttribute(String name) {
+            return USER_INFO.equals(name) ? userInfo : IDP_ENTITY_ID.equals(name) ? idpEntityId : null;
+        }
+        
+        @Override
+        public void setAttribute(String name, Object value) {
+            if (USER_INFO.equals(name)) {
+                Object old = userInfo;
+                userInfo = value;
+                if (old == null) {
+                    listener.attributeAdded(new HttpSessionBindingEvent(this, name, value));
+                } else {
+                    listener.attributeReplaced(new HttpSessionBindingEvent(this, name, old));
+                }
+            } else if (IDP_ENTITY_ID.equals(name)) {
+                idpEntityId = value;
+            }
+        }
+        
+        @Override
+        public void removeAttribute(String name) {
+            if (USER_INFO.equals(name) && userInfo != null) {
+                Object old = userInfo;
+                userInfo = null;
+                listener.attributeRemoved(new HttpSessionBindingEvent(this, name, old));
+            }
+        }
+        
+        @Override
+        public long getCreationTime() {
+            return 0;
+        }
+        
+        @Override
+        public String getId() {
+            return Integer.toHexString(System.identityHashCode(this));
+        }
+        
+        @Override
+        public long getLastAccessedTime() {
+            return 0;
+        }
+        
+        @Override
+        public ServletContext getServletContext() {
+            return null;
+        }
+        
+        @Override
+        public void setMaxInactiveInterval(int interval) {
+        }
+        
+        @Override
+        public int getMaxInactiveInterval() {
+            return 1800;
+        }
+        
+        @Override
+        public HttpSessionContext getSessionContext() {
+            return null;
+        }
+        
+        @Override
+        public Object getValue(String name) {
+            return getAttribute(name);
+        }
+        
+        @Override
+        public Enumeration<String> getAttributeNames() {
+            return Collections.enumeration(Arrays.asList(IDP_ENTITY_ID, USER_INFO));
+        }
+        
+        @Override
+        public String[] getValueNames() {
+            return new String[] {IDP_ENTITY_ID, USER_INFO};
+        }
+        
+        @Override
+        public void putValue(String name, Object value) {
+            setAttribute(name, value);
+        }
+        
+        @Override
+        public void removeValue(String name) {
+            removeAttribute(name);
+        }
+        
+        @Override
+        public boolean isNew() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.sample.saml.bench;
+
+import com.sample.saml.metrics.LatencyHistogram;
+import com.sample.saml.metrics.SAMLMetrics;
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.service.LoopbackTransport;
+import com.sample.saml.service.ReplicationTransport;
+import com.sample.saml.service.SessionRegistry;
+import com.sample.saml.service.SessionReplicator;
+import com.sample.saml.service.SessionStore;
+
+import javax.servlet.http.HttpSession;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Session Replication Test
+ * 
+ * {@code --nodes} {@link SessionReplicator}s (3 by default) in one JVM,
+ * joined by a {@link LoopbackTransport}, with a writer thread per node
+ * acting as its request threads. Reports:
+ * <ul>
+ *   <li>logins: {@code --sessions} logins, each setting the user and then
+ *       the RelayState, spread over the nodes as fast as the writers go;
+ *       changes queued per second, deltas and batches sent, bytes of a
+ *       login delta next to the same session serialized whole, and the
+ *       time until every node holds every other node's sessions</li>
+ *   <li>steady load: {@code --rate} session changes per second for a few
+ *       seconds, RelayStates and expiries; replication lag p50/p99/max,
+ *       from the first change of a batch until a peer has applied it</li>
+ *   <li>failover: one node stops and its sessions are restored by the
+ *       others; ns per restore, that every session comes back once, and
+ *       that the surviving nodes drop the old IDs</li>
+ *   <li>logout: a LogoutRequest received by one node refuses the user's
+ *       sessions on the others</li>
+ * </ul>
+ * 
+ * Usage: {@code java -Xmx2g -cp target/benchmarks.jar com.sample.saml.bench.SessionReplicationTest
+ * [--nodes=3] [--sessions=100000] [--attributes=10] [--rate=50000]}
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class SessionReplicationTest {
+    
+    private static final String IDP = "https://idp.example.com/metadata";
+    
+    private static final LongAdder DELTAS = SAMLMetrics.counter("replication", "deltas", "none");
+    private static final LongAdder BATCHES = SAMLMetrics.counter("replication", "sent", "none");
+    private static final LongAdder BYTES = SAMLMetrics.counter("replication", "bytes", "none");
+    private static final LongAdder COALESCED = SAMLMetrics.counter("replication", "coalesced", "none");
+    private static final LongAdder GAPS = SAMLMetrics.counter("replication", "gap", "none");
+    
+    // Lag of the phase running, recorded by every node's transport
+    private static volatile LatencyHistogram lag = new LatencyHistogram();
+    
+    private SessionReplicationTest() {
+        // Command line tool - no instantiation needed
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int nodeCount = Integer.parseInt(options.getOrDefault("nodes", "3"));
+        int count = Integer.parseInt(options.getOrDefault("sessions", "100000"));
+        int attributeCount = Integer.parseInt(options.getOrDefault("attributes", "10"));
+        int rate = Integer.parseInt(options.getOrDefault("rate", "50000"));
+        
+        Set<LoopbackTransport> group = LoopbackTransport.newGroup();
+        byte[] secret = new byte[32];
+        new Random(7).nextBytes(secret);
+        String clusterKeys = "1:" + Base64.getEncoder().encodeToString(secret);
+        SessionReplicator[] nodes = new SessionReplicator[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i] = new SessionReplicator("node-" + i, new TimedTransport(new LoopbackTransport(group)),
+                    new SessionRegistry(), new SessionStore(null, 60, 1800, null), 20, 65536, 1800, clusterKeys);
+            nodes[i].start();
+        }
+        
+        // Logins: session i lives on node i % nodeCount
+        HttpSession[] sessions = new HttpSession[count];
+        long deltas = DELTAS.sum();
+        long batches = BATCHES.sum();
+        long bytes = BYTES.sum();
+        long start = System.nanoTime();
+        Thread[] writers = new Thread[nodeCount];
+        for (int n = 0; n < nodeCount; n++) {
+            int node = n;
+            writers[n] = new Thread(() -> {
+                Random random = new Random(node);
+                for (int i = node; i < count; i += nodeCount) {
+                    HttpSession session = login(random, i, attributeCount);
+                    nodes[node].save(session);
+                    session.setAttribute("saml.relayState", "/java-saml-sso/page-" + i + ".jsp");
+                    nodes[node].saveRelayState(session);
+                    sessions[i] = session;
+                }
+            });
+            writers[n].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        long writeNanos = System.nanoTime() - start;
+        int expected = count - count / nodeCount;
+        awaitReplicas(nodes, node -> count - (count + nodeCount - 1 - node) / nodeCount);
+        long convergeNanos = System.nanoTime() - start;
+        long sentDeltas = DELTAS.sum() - deltas;
+        long sentBytes = BYTES.sum() - bytes;
+        System.out.printf("logins: %d sessions on %d nodes, %.0f changes/s queued, %.0f deltas/s replicated, "
+                + "%d deltas in %d batches, %d changes coalesced%n", count, nodeCount, 2 * count / (writeNanos / 1e9),
+                sentDeltas / (convergeNanos / 1e9), sentDeltas, BATCHES.sum() - batches, COALESCED.sum());
+        System.out.printf("  %d bytes per login delta, %d bytes serialized whole; all replicated in %.0f ms, "
+                + "%.0f ms after the last write; lag p50 %.1f ms, p99 %.1f ms, max %.1f ms (%d per node)%n",
+                sentBytes / sentDeltas, serializedSize(sessions[0]), convergeNanos / 1e6,
+                (convergeNanos - writeNanos) / 1e6, lag.getMillisAtQuantile(0.5), lag.getMillisAtQuantile(0.99),
+                lag.getMillisAtQuantile(1.0), expected);
+        
+        // Steady load: RelayStates and expiries at a fixed rate across the nodes
+        lag = new LatencyHistogram();
+        deltas = DELTAS.sum();
+        bytes = BYTES.sum();
+        long changes = 0;
+        Random random = new Random(3);
+        start = System.nanoTime();
+        long duration = TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() - start < duration) {
+            long due = (System.nanoTime() - start) * rate / 1_000_000_000L;
+            for (; changes < due; changes++) {
+                int i = random.nextInt(count);
+                HttpSession session = sessions[i];
+                if ((changes & 1) == 0) {
+                    session.setAttribute("saml.relayState", "/java-saml-sso/next-" + changes + ".jsp");
+                    nodes[i % nodeCount].saveRelayState(session);
+                } else {
+                    // Due for a later expiry
+                    session.setAttribute(SessionReplicator.REPLICATED_UNTIL, System.currentTimeMillis());
+                    nodes[i % nodeCount].touch(session);
+                }
+            }
+            Thread.sleep(1);
+        }
+        Thread.sleep(200);
+        System.out.printf("steady load: %d changes/s, %d deltas at %d bytes each; lag p50 %.1f ms, p99 %.1f ms, "
+                + "max %.1f ms; %d batch gaps%n", rate, DELTAS.sum() - deltas,
+                (BYTES.sum() - bytes) / Math.max(1, DELTAS.sum() - deltas), lag.getMillisAtQuantile(0.5),
+                lag.getMillisAtQuantile(0.99), lag.getMillisAtQuantile(1.0), GAPS.sum());
+        
+        // Failover: node 0 stops, and its users come to the others with their old session IDs
+        nodes[0].close();
+        List<Integer> orphans = new ArrayList<>();
+        for (int i = 0; i < count; i += nodeCount) {
+            orphans.add(i);
+        }
+        Collections.shuffle(orphans, random);
+        long[] nanos = new long[orphans.size()];
+        int[] restoredOn = new int[nodeCount];
+        int restored = 0;
+        Map<String, HttpSession> byOldId = new HashMap<>();
+        for (int i : orphans) {
+            SessionReplicator node = nodes[1 + restored % (nodeCount - 1)];
+            restoredOn[1 + restored % (nodeCount - 1)]++;
+            String oldId = sessions[i].getId();
+            long before = System.nanoTime();
+            HttpSession session = node.restore(oldId, record -> establish(node, record));
+            nanos[restored++] = System.nanoTime() - before;
+            if (session == null || !((SAMLUserInfo) session.getAttribute("saml.userInfo")).getNameId()
+                    .equals("user" + i + "@example.com")) {
+                throw new IllegalStateException("Session " + oldId + " not restored");
+            }
+            byOldId.put(oldId, session);
+        }
+        Arrays.sort(nanos);
+        int first = orphans.get(0);
+        SessionReplicator firstNode = nodes[1];
+        boolean same = firstNode.restore(sessions[first].getId(), record -> establish(firstNode, record))
+                == byOldId.get(sessions[first].getId());
+        // Each survivor now holds the other survivors' sessions, restored ones included, and no old IDs
+        awaitReplicas(Arrays.copyOfRange(nodes, 1, nodeCount), node -> count - orphans.size()
+                - (count + nodeCount - 2 - node) / nodeCount + orphans.size() - restoredOn[node + 1]);
+        System.out.printf("failover: %d sessions restored, p50 %d ns, p99 %d ns; parallel request gets the same "
+                + "session %s; old IDs dropped by the other nodes %s%n", restored, nanos[nanos.length / 2],
+                nanos[(int) (nanos.length * 0.99)], same, nodeCount < 3
+                        || nodes[2].restore(sessions[orphans.get(0)].getId(), record -> {
+                            throw new IllegalStateException("Old ID restored");
+                        }) == null);
+        
+        // Logout: the IdP's LogoutRequest reaches node 1 for a user of node 2
+        int user = 2;
+        SAMLUserInfo userInfo = (SAMLUserInfo) sessions[user].getAttribute("saml.userInfo");
+        nodes[1].end(IDP, userInfo.getNameId(), Collections.emptyList());
+        nodes[1].flush();
+        Thread.sleep(100);
+        SessionReplicator lastNode = nodes[nodeCount - 1];
+        boolean refused = nodeCount < 3 || lastNode.restore(sessions[user].getId(),
+                record -> establish(lastNode, record)) == null;
+        System.out.printf("logout: user ended on node 1 refused on node %d %s%n", nodeCount - 1, refused);
+        for (int i = 1; i < nodeCount; i++) {
+            nodes[i].close();
+        }
+    }
+    
+    /**
+     * What establishSession leaves in a session, with a fresh session ID
+     */
+    private static HttpSession login(Random random, int number, int attributeCount) {
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        attributes.put("email", Collections.singletonList("user" + number + "@example.com"));
+        attributes.put("displayName", Collections.singletonList("User " + number));
+        attributes.put("Role", Collections.singletonList("user"));
+        for (int i = attributes.size(); i < attributeCount; i++) {
+            List<String> values = new ArrayList<>();
+            for (int j = 0; j < 3; j++) {
+                values.add("value-" + i + "-" + j + "-" + Long.toHexString(random.nextLong()));
+            }
+            attributes.put("urn:oid:1.3.6.1.4.1.5923.1.1.1." + i, values);
+        }
+        SAMLUserInfo userInfo = new SAMLUserInfo("user" + number + "@example.com", attributes,
+                "_" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()));
+        HttpSession session = MockServlet.session(String.format("%016X%016X", random.nextLong(), random.nextLong()));
+        session.setAttribute("saml.idpEntityId", IDP);
+        session.setAttribute("saml.userInfo", userInfo);
+        session.setAttribute("saml.sessionIndex", userInfo.getSessionIndex());
+        return session;
+    }
+    
+    /**
+     * What SAMLService.restoreSession does, with the save SAMLSessionListener makes on the user
+     */
+    private static HttpSession establish(SessionReplicator node, SessionStore.Record record) {
+        Random random = new Random();
+        HttpSession session = MockServlet.session(String.format("%016X%016X", random.nextLong(), random.nextLong()));
+        session.setAttribute("saml.idpEntityId", record.getIdpEntityId());
+        if (record.getRelayState() != null) {
+            session.setAttribute("saml.relayState", record.getRelayState());
+        }
+        session.setAttribute("saml.userInfo", record.getUserInfo());
+        node.save(session);
+        session.setAttribute("saml.sessionIndex", record.getUserInfo().getSessionIndex());
+        return session;
+    }
+    
+    /**
+     * The session's attributes serialized as a container replicating whole sessions would
+     */
+    private static int serializedSize(HttpSession session) throws IOException {
+        Map<String, Object> attributes = new HashMap<>();
+        for (String name : new String[] {"saml.idpEntityId", "saml.userInfo", "saml.sessionIndex",
+                "saml.relayState"}) {
+            attributes.put(name, session.getAttribute(name));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(attributes);
+        }
+        return bytes.size();
+    }
+    
+    private static void awaitReplicas(SessionReplicator[] nodes, java.util.function.IntUnaryOperator expected)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        for (int i = 0; i < nodes.length; i++) {
+            while (nodes[i].size() != expected.applyAsInt(i)) {
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException("Node " + i + " holds " + nodes[i].size() + " replicas, expected "
+                            + expected.applyAsInt(i));
+                }
+                Thread.sleep(1);
+            }
+        }
+    }
+    
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+    
+    /**
+     * A transport around another that records, after each batch is applied,
+     * the time since the first change in it was queued
+     */
+    private static final class TimedTransport implements ReplicationTransport {
+        
+        private final ReplicationTransport transport;
+        
+        private TimedTransport(ReplicationTransport transport) {
+            this.transport = transport;
+        }
+        
+        @Override
+        public void start(String nodeId, Consumer<byte[]> receiver) throws IOException {
+            transport.start(nodeId, batch -> {
+                receiver.accept(batch);
+                try {
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+                    // Version and key ID
+                    in.readShort();
+                    // Origin node ID
+                    in.skipBytes(in.readInt());
+                    in.readLong();
+                    long firstQueuedMicros = in.readLong();
+                    Instant now = Instant.now();
+                    long nowMicros = now.getEpochSecond() * 1_000_000 + now.getNano() / 1_000;
+                    lag.record(TimeUnit.MICROSECONDS.toNanos(nowMicros - firstQueuedMicros));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        
+        @Override
+        public void publish(byte[] batch) throws IOException {
+            transport.publish(batch);
+        }
+        
+        @Override
+        public void close() {
+            transport.close();
+        }
+    }
+}
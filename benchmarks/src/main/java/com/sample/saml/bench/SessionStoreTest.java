@@ -0,0 +1,266 @@
+package com.sample.saml.bench;
+
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.service.SessionStore;
+
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Session Store Test
+ * 
+ * {@link SessionStore} with {@code --sessions} stored sessions (500k by
+ * default) of users with {@code --attributes} attributes, of which one in
+ * five was saved again, one in ten removed at logout and one in a hundred
+ * ended by a LogoutRequest before a restart. Stores are closed and opened
+ * again on the same file, as a restarted node does. Reports:
+ * <ul>
+ *   <li>save: ns per session stored, and file bytes per session</li>
+ *   <li>startup: time to construct the store, which is all startup does,
+ *       and to open it on first access, with 500k sessions in the file</li>
+ *   <li>restore: ns to restore a session by its old ID, the new session's
+ *       own record included; and that removed, ended and unknown IDs are
+ *       not restored, and a second request with the same old ID gets the
+ *       same session</li>
+ *   <li>compact: time to compact the file, its size before and after, and
+ *       the slowest save by a thread saving throughout</li>
+ *   <li>recovery: a record torn by a crash is dropped, the rest kept</li>
+ * </ul>
+ * 
+ * Usage: {@code java -Xmx2g -cp target/benchmarks.jar com.sample.saml.bench.SessionStoreTest
+ * [--sessions=500000] [--attributes=10] [--restores=100000]}
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class SessionStoreTest {
+    
+    private static final String IDP = "https://idp.example.com/metadata";
+    private static final int LIFETIME_SECONDS = 1800;
+    private static final String ID_KEY = Base64.getEncoder().encodeToString(new byte[32]);
+    
+    private SessionStoreTest() {
+        // Command line tool - no instantiation needed
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int count = Integer.parseInt(options.getOrDefault("sessions", "500000"));
+        int attributeCount = Integer.parseInt(options.getOrDefault("attributes", "10"));
+        int restores = Integer.parseInt(options.getOrDefault("restores", "100000"));
+        
+        Path directory = Files.createTempDirectory("session-store");
+        Path file = directory.resolve("sessions.log");
+        Random random = new Random(1);
+        
+        // Before the restart: every login saved, then some saved again, logged out or ended by the IdP
+        SessionStore store = new SessionStore(file, 3600, LIFETIME_SECONDS, ID_KEY);
+        // Only the IDs outlive the sessions, as only cookies outlive a restart
+        String[] ids = new String[count];
+        boolean[] gone = new boolean[count];
+        long saveNanos = 0;
+        for (int i = 0; i < count; i++) {
+            HttpSession session = login(random, i, attributeCount);
+            ids[i] = session.getId();
+            long before = System.nanoTime();
+            store.save(session);
+            saveNanos += System.nanoTime() - before;
+            int roll = random.nextInt(100);
+            if (roll < 20) {
+                session.setAttribute("saml.relayState", "/java-saml-sso/page-" + i + ".jsp");
+                store.save(session);
+            } else if (roll < 30) {
+                store.remove(session);
+                gone[i] = true;
+            } else if (roll < 31) {
+                SAMLUserInfo user = (SAMLUserInfo) session.getAttribute("saml.userInfo");
+                store.end(IDP, user.getNameId(), Collections.singletonList(user.getSessionIndex()));
+                gone[i] = true;
+            }
+        }
+        long used = store.getUsedBytes();
+        store.close();
+        System.out.printf("save: %.0f ns per session, %d bytes of file per session (%d sessions, %d attributes)%n",
+                (double) saveNanos / count, used / count, count, attributeCount);
+        
+        // The restart: construction is all that happens at startup, the scan waits for the first request
+        long start = System.nanoTime();
+        store = new SessionStore(file, 3600, LIFETIME_SECONDS, ID_KEY);
+        long constructNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        int stored = store.size();
+        long openNanos = System.nanoTime() - start;
+        System.out.printf("startup: %.3f ms to construct, %.0f ms to open on first access: %d sessions in %d MB%n",
+                constructNanos / 1e6, openNanos / 1e6, stored, used >> 20);
+        
+        // Restore: a browser back with its old session ID
+        SessionStore restoring = store;
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        shuffle(order, random);
+        long[] nanos = new long[Math.min(restores, count)];
+        int restored = 0;
+        int refused = 0;
+        int sampled = 0;
+        for (int i = 0; i < nanos.length; i++) {
+            String id = ids[order[i]];
+            long before = System.nanoTime();
+            HttpSession session = restoring.restore(id, record -> establish(restoring, record));
+            long elapsed = System.nanoTime() - before;
+            if (session == null) {
+                refused++;
+                if (!gone[order[i]]) {
+                    throw new IllegalStateException("Session " + id + " not restored");
+                }
+                continue;
+            }
+            if (gone[order[i]] || !((SAMLUserInfo) session.getAttribute("saml.userInfo")).getNameId()
+                    .equals("user" + order[i] + "@example.com")) {
+                throw new IllegalStateException("Session " + id + " restored wrongly");
+            }
+            nanos[sampled++] = elapsed;
+            restored++;
+        }
+        Arrays.sort(nanos, 0, sampled);
+        HttpSession again = gone[order[0]] ? null : store.restore(ids[order[0]], record -> establish(restoring, record));
+        System.out.printf("restore: p50 %d ns, p99 %d ns; %d restored, %d removed or ended ones refused, "
+                + "unknown ID refused %s, parallel request gets the same session %s%n", nanos[sampled / 2],
+                nanos[(int) (sampled * 0.99)], restored, refused,
+                store.restore("unknown", record -> establish(restoring, record)) == null,
+                gone[order[0]] || again != null);
+        
+        // Compact: the restores removed their old records and added new ones
+        long beforeCompact = store.getUsedBytes();
+        AtomicBoolean compacting = new AtomicBoolean(true);
+        long[] slowest = {0};
+        long[] saves = {0};
+        Thread saver = new Thread(() -> {
+            Random saverRandom = new Random(2);
+            int i = 0;
+            while (compacting.get()) {
+                HttpSession session = login(saverRandom, count + i++, attributeCount);
+                long before = System.nanoTime();
+                restoring.save(session);
+                slowest[0] = Math.max(slowest[0], System.nanoTime() - before);
+                saves[0]++;
+            }
+        });
+        saver.start();
+        Thread.sleep(200);
+        start = System.nanoTime();
+        store.compact();
+        long compactNanos = System.nanoTime() - start;
+        compacting.set(false);
+        saver.join();
+        System.out.printf("compact: %.0f ms, %d MB to %d MB, %d sessions; slowest of %d concurrent saves %.2f ms%n",
+                compactNanos / 1e6, beforeCompact >> 20, store.getUsedBytes() >> 20, store.size(), saves[0],
+                slowest[0] / 1e6);
+        int compactedSize = store.size();
+        store.close();
+        
+        // Recovery: the last record of the file is torn, as by a crash while it was written
+        store = new SessionStore(file, 3600, LIFETIME_SECONDS, ID_KEY);
+        HttpSession torn = login(random, -1, attributeCount);
+        store.save(torn);
+        long end = store.getUsedBytes();
+        store.close();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0x7f}), end - 1);
+        }
+        store = new SessionStore(file, 3600, LIFETIME_SECONDS, ID_KEY);
+        SessionStore recovered = store;
+        System.out.printf("recovery: %d of %d sessions after a torn last record, torn one restored %s%n",
+                store.size(), compactedSize + 1, store.restore(torn.getId(), record -> establish(recovered, record))
+                        != null);
+        store.close();
+        deleteAll(directory);
+    }
+    
+    /**
+     * What establishSession leaves in a session, with a fresh session ID
+     */
+    private static HttpSession login(Random random, int number, int attributeCount) {
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        attributes.put("email", Collections.singletonList("user" + number + "@example.com"));
+        attributes.put("displayName", Collections.singletonList("User " + number));
+        attributes.put("Role", Collections.singletonList("user"));
+        for (int i = attributes.size(); i < attributeCount; i++) {
+            List<String> values = new ArrayList<>();
+            for (int j = 0; j < 3; j++) {
+                values.add("value-" + i + "-" + j + "-" + Long.toHexString(random.nextLong()));
+            }
+            attributes.put("urn:oid:1.3.6.1.4.1.5923.1.1.1." + i, values);
+        }
+        SAMLUserInfo userInfo = new SAMLUserInfo("user" + number + "@example.com", attributes,
+                "_" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()));
+        HttpSession session = MockServlet.session(sessionId(random));
+        session.setAttribute("saml.idpEntityId", IDP);
+        session.setAttribute("saml.userInfo", userInfo);
+        session.setAttribute("saml.sessionIndex", userInfo.getSessionIndex());
+        return session;
+    }
+    
+    /**
+     * What SAMLService.restoreSession does, with the save SAMLSessionListener makes on the user
+     */
+    private static HttpSession establish(SessionStore store, SessionStore.Record record) {
+        HttpSession session = MockServlet.session(sessionId(new Random()));
+        session.setAttribute("saml.idpEntityId", record.getIdpEntityId());
+        if (record.getRelayState() != null) {
+            session.setAttribute("saml.relayState", record.getRelayState());
+        }
+        session.setAttribute("saml.userInfo", record.getUserInfo());
+        store.save(session);
+        session.setAttribute("saml.sessionIndex", record.getUserInfo().getSessionIndex());
+        return session;
+    }
+    
+    private static String sessionId(Random random) {
+        return String.format("%016X%016X", random.nextLong(), random.nextLong());
+    }
+    
+    private static void shuffle(int[] values, Random random) {
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = values[i];
+            values[i] = values[j];
+            values[j] = swap;
+        }
+    }
+    
+    private static void deleteAll(Path directory) throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+    }
+    
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,384 @@
+package com.sample.saml.bench;
+
+import com.sample.saml.metrics.SAMLMetrics;
+import com.sample.saml.service.SAMLService;
+import com.sample.saml.service.TenantRegistry;
+import com.sample.saml.util.ConfigSnapshot;
+import com.sample.saml.util.SAMLConfig;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tenant Registry Test
+ * 
+ * {@link TenantRegistry} with up to 10k tenants, each with its own IdP
+ * entity ID, host, path and signing certificate, loaded from a tenants
+ * file as in production. Reports:
+ * <ul>
+ *   <li>definitions: heap held by the registry with nothing built, per tenant</li>
+ *   <li>resolution: ns per {@code resolve} by host, by path, by
+ *       {@code ?tenant=} and for a request that matches no tenant, at 100,
+ *       1000 and all tenants</li>
+ *   <li>cold build: latency of the first {@code getService} for a tenant</li>
+ *   <li>stampede: {@code --threads} requests for one cold tenant at once;
+ *       the number of builds they caused and how long they waited</li>
+ *   <li>churn: {@code --requests} services requested uniformly over all
+ *       tenants and from a hot set, with at most {@code --maxCached} built:
+ *       hit ratio, evictions and the heap held by the built services,
+ *       against the projection for keeping every tenant built</li>
+ * </ul>
+ * First, one tenant trusting the fixture IdP verifies a response posted to
+ * its own ACS URL, to show the derived SP URLs line up.
+ * 
+ * Usage: {@code java -cp target/benchmarks.jar com.sample.saml.bench.TenantRegistryTest
+ * [--tenants=10000] [--maxCached=1000] [--lookups=2000000] [--builds=200] [--threads=32] [--requests=5000]}
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class TenantRegistryTest {
+    
+    private static final String CONTEXT = "/java-saml-sso";
+    private static final String BASE_URL = "https://sp.example.com" + CONTEXT;
+    
+    private static final LongAdder BUILT = SAMLMetrics.counter("tenant", "built", "none");
+    private static final LongAdder EVICTED = SAMLMetrics.counter("tenant", "evicted", "none");
+    
+    private static final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    
+    private TenantRegistryTest() {
+        // Command line tool - no instantiation needed
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int tenants = Integer.parseInt(options.getOrDefault("tenants", "10000"));
+        int maxCached = Integer.parseInt(options.getOrDefault("maxCached", "1000"));
+        int lookups = Integer.parseInt(options.getOrDefault("lookups", "2000000"));
+        int builds = Integer.parseInt(options.getOrDefault("builds", "200"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "32"));
+        int requests = Integer.parseInt(options.getOrDefault("requests", "5000"));
+        
+        SAMLConfig.initialize();
+        SAMLFixtures fixtures = new SAMLFixtures();
+        Path config = Files.createTempFile("tenants-shared", ".properties");
+        config.toFile().deleteOnExit();
+        writeConfig(fixtures, config);
+        System.setProperty(SAMLConfig.CONFIG_FILE_PROPERTY, config.toString());
+        if (!SAMLConfig.reload()) {
+            throw new IllegalStateException("Failed to reload " + config);
+        }
+        ConfigSnapshot shared = SAMLConfig.getSnapshot();
+        
+        long start = System.nanoTime();
+        Map<Integer, Path> files = writeTenants(fixtures, tenants, 100, 1000);
+        System.out.printf("%d tenants generated in %.0f ms, tenants file %d KB%n", tenants,
+                millis(System.nanoTime() - start), Files.size(files.get(tenants)) / 1024);
+        
+        verifyTenantResponse(fixtures, registry(shared, files.get(tenants), maxCached));
+        
+        // Definitions only; the empty registry takes over the tenant gauges, which keep the last one reachable
+        registry(shared, store(new Properties()), maxCached);
+        long before = usedHeap();
+        start = System.nanoTime();
+        TenantRegistry registry = registry(shared, files.get(tenants), maxCached);
+        long loadNanos = System.nanoTime() - start;
+        long definitions = usedHeap() - before;
+        System.out.printf("%ndefinitions: loaded in %.0f ms, %d KB held, %d bytes per tenant%n",
+                millis(loadNanos), definitions / 1024, definitions / tenants);
+        
+        System.out.printf("%n%-10s %10s %10s %10s %10s%n", "tenants", "host ns", "path ns", "query ns", "none ns");
+        for (int size : files.keySet()) {
+            TenantRegistry sized = size == tenants ? registry : registry(shared, files.get(size), maxCached);
+            System.out.printf("%-10d %10.1f %10.1f %10.1f %10.1f%n", size,
+                    resolveNanos(sized, size, "host", lookups), resolveNanos(sized, size, "path", lookups),
+                    resolveNanos(sized, size, "query", lookups), resolveNanos(sized, size, "none", lookups));
+        }
+        
+        // Cold builds, after a few on a throwaway registry for the JIT
+        TenantRegistry warm = registry(shared, files.get(tenants), maxCached);
+        for (int i = 0; i < 20; i++) {
+            warm.getService(warm.getTenant("t" + (tenants - 1 - i)));
+        }
+        long[] buildNanos = new long[Math.min(builds, tenants)];
+        for (int i = 0; i < buildNanos.length; i++) {
+            TenantRegistry.Tenant tenant = registry.getTenant("t" + i);
+            long buildStart = System.nanoTime();
+            registry.getService(tenant);
+            buildNanos[i] = System.nanoTime() - buildStart;
+        }
+        Arrays.sort(buildNanos);
+        System.out.printf("%ncold build: %d tenants, p50 %.2f ms, p99 %.2f ms, max %.2f ms%n", buildNanos.length,
+                millis(percentile(buildNanos, 0.50)), millis(percentile(buildNanos, 0.99)),
+                millis(buildNanos[buildNanos.length - 1]));
+        
+        stampede(registry, registry.getTenant("t" + (tenants / 2)), threads);
+        
+        System.out.printf("%n%-10s %10s %10s %10s %10s %10s %10s%n", "traffic", "requests", "hit %", "builds",
+                "evicted", "cached", "heap KB");
+        long withoutRegistry = usedHeap();
+        TenantRegistry bounded = registry(shared, files.get(tenants), maxCached);
+        long definitionsOnly = usedHeap() - withoutRegistry;
+        long held = churn("uniform", bounded, tenants, tenants, requests, withoutRegistry + definitionsOnly);
+        int cached = bounded.getCachedCount();
+        churn("hot " + maxCached / 2, bounded, tenants, maxCached / 2, requests, withoutRegistry + definitionsOnly);
+        long perService = held / Math.max(1, cached);
+        System.out.printf("%nbuilt services: %d bytes each; %d cached hold %d MB, all %d tenants built would hold %d MB%n",
+                perService, cached, held / (1024 * 1024), tenants, perService * tenants / (1024 * 1024));
+    }
+    
+    /**
+     * Posts a response from the fixture IdP to tenant t0's own ACS URL
+     */
+    private static void verifyTenantResponse(SAMLFixtures fixtures, TenantRegistry registry) {
+        SAMLService service = registry.getService(registry.getTenant("t0"));
+        String acsUrl = service.getSettings().getSpAssertionConsumerServiceUrl().toString();
+        String xml = fixtures.signedResponseXml(acsUrl, service.getSettings().getSpEntityId(), null, 10, 16);
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("SAMLResponse", Base64.getEncoder().encodeToString(xml.getBytes(StandardCharsets.UTF_8)));
+        HttpServletRequest request = MockServlet.request("POST", acsUrl, CONTEXT, parameters, null);
+        TenantRegistry.Tenant resolved = registry.resolve(request);
+        service.processResponse(request);
+        System.out.printf("tenant %s: request resolved by host, response verified at %s%n",
+                resolved != null ? resolved.getId() : "none", acsUrl);
+    }
+    
+    private static double resolveNanos(TenantRegistry registry, int tenants, String by, int lookups) {
+        Random random = new Random(42);
+        HttpServletRequest[] requests = new HttpServletRequest[1024];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = tenantRequest(random.nextInt(tenants), by);
+        }
+        double nanos = 0;
+        // The first round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            int found = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                if (registry.resolve(requests[i & (requests.length - 1)]) != null) {
+                    found++;
+                }
+            }
+            nanos = (double) (System.nanoTime() - start) / lookups;
+            if (found != ("none".equals(by) ? 0 : lookups)) {
+                throw new IllegalStateException("Resolved " + found + " of " + lookups + " by " + by);
+            }
+        }
+        return nanos;
+    }
+    
+    /**
+     * A request to the ACS endpoint for tenant {@code t<index>}, addressed by host, path or query
+     */
+    private static HttpServletRequest tenantRequest(int index, String by) {
+        HttpServletRequest base = MockServlet.request("POST", BASE_URL + "/saml/acs", CONTEXT,
+                Collections.emptyMap(), null);
+        String host = "host".equals(by) ? "t" + index + ".tenants.example" : "sp.example.com";
+        String pathInfo = "path".equals(by) ? "/p" + index : null;
+        String query = "query".equals(by) ? "binding=post&tenant=t" + index : null;
+        return new HttpServletRequestWrapper(base) {
+            @Override
+            public String getServerName() {
+                return host;
+            }
+            
+            @Override
+            public String getPathInfo() {
+                return pathInfo;
+            }
+            
+            @Override
+            public String getQueryString() {
+                return query;
+            }
+        };
+    }
+    
+    private static void stampede(TenantRegistry registry, TenantRegistry.Tenant tenant, int threads)
+            throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        long builtBefore = BUILT.sum();
+        Future<?>[] waiters = new Future<?>[threads];
+        long[] waited = new long[threads];
+        for (int i = 0; i < threads; i++) {
+            int thread = i;
+            waiters[i] = pool.submit(() -> {
+                ready.countDown();
+                go.await();
+                long start = System.nanoTime();
+                SAMLService service = registry.getService(tenant);
+                waited[thread] = System.nanoTime() - start;
+                return service;
+            });
+        }
+        ready.await();
+        go.countDown();
+        Object first = waiters[0].get();
+        int same = 0;
+        for (Future<?> waiter : waiters) {
+            same += waiter.get() == first ? 1 : 0;
+        }
+        pool.shutdown();
+        Arrays.sort(waited);
+        System.out.printf("stampede: %d threads on cold tenant %s, %d build(s), %d got the same service, "
+                + "waited p50 %.2f ms, max %.2f ms%n", threads, tenant.getId(), BUILT.sum() - builtBefore, same,
+                millis(percentile(waited, 0.50)), millis(waited[threads - 1]));
+    }
+    
+    /**
+     * Requests services for random tenants among the first {@code range}; returns the heap the built ones hold
+     */
+    private static long churn(String traffic, TenantRegistry registry, int tenants, int range, int requests,
+                              long baseline) {
+        Random random = new Random(7);
+        long builtBefore = BUILT.sum();
+        long evictedBefore = EVICTED.sum();
+        for (int i = 0; i < requests; i++) {
+            registry.getService(registry.getTenant("t" + random.nextInt(Math.min(range, tenants))));
+        }
+        long built = BUILT.sum() - builtBefore;
+        long held = usedHeap() - baseline;
+        System.out.printf("%-10s %10d %10.1f %10d %10d %10d %10d%n", traffic, requests,
+                100.0 * (requests - built) / requests, built, EVICTED.sum() - evictedBefore,
+                registry.getCachedCount(), held / 1024);
+        return held;
+    }
+    
+    private static TenantRegistry registry(ConfigSnapshot shared, Path tenantsFile, int maxCached) {
+        Map<String, String> overrides = new HashMap<>();
+        overrides.put("saml.tenants.file", tenantsFile.toString());
+        overrides.put("saml.tenants.maxCached", Integer.toString(maxCached));
+        return new TenantRegistry(shared.withOverrides("tenant test", overrides));
+    }
+    
+    /**
+     * Writes tenants files with the first n of the tenants, for n in sizes and the total.
+     * Tenant t0 trusts the fixture IdP; the others each get their own certificate, over a
+     * few RSA keys and signed by an EC issuer, so that generating 10k stays quick.
+     */
+    private static Map<Integer, Path> writeTenants(SAMLFixtures fixtures, int tenants, int... sizes) throws Exception {
+        KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+        rsa.initialize(2048);
+        KeyPair[] subjectKeys = new KeyPair[4];
+        for (int i = 0; i < subjectKeys.length; i++) {
+            subjectKeys[i] = rsa.generateKeyPair();
+        }
+        KeyPairGenerator ec = KeyPairGenerator.getInstance("EC");
+        ec.initialize(256);
+        ContentSigner issuerSigner = new JcaContentSignerBuilder("SHA256withECDSA").build(ec.generateKeyPair().getPrivate());
+        X500Name issuer = new X500Name("CN=Tenant IdP CA");
+        Instant now = Instant.now();
+        
+        Properties all = new Properties();
+        Map<Integer, Path> files = new LinkedHashMap<>();
+        for (int i = 0; i < tenants; i++) {
+            String id = "t" + i;
+            String certificate;
+            String entityId;
+            if (i == 0) {
+                certificate = Base64.getEncoder().encodeToString(fixtures.getIdpCertificate().getEncoded());
+                entityId = fixtures.getIdpEntityId();
+            } else {
+                certificate = Base64.getEncoder().encodeToString(new JcaX509v3CertificateBuilder(issuer,
+                        BigInteger.valueOf(i), Date.from(now.minus(Duration.ofDays(1))),
+                        Date.from(now.plus(Duration.ofDays(365))), new X500Name("CN=IdP " + id),
+                        subjectKeys[i % subjectKeys.length].getPublic()).build(issuerSigner).getEncoded());
+                entityId = "https://idp.tenant" + i + ".example/saml/metadata";
+            }
+            all.setProperty(id + ".host", id + ".tenants.example");
+            all.setProperty(id + ".path", "p" + i);
+            all.setProperty(id + ".idp.entityId", entityId);
+            all.setProperty(id + ".idp.singleSignOnService.url", "https://idp.tenant" + i + ".example/saml/sso");
+            all.setProperty(id + ".idp.singleLogoutService.url", "https://idp.tenant" + i + ".example/saml/slo");
+            all.setProperty(id + ".idp.x509cert", certificate);
+            for (int size : sizes) {
+                if (size == i + 1 && size < tenants) {
+                    files.put(size, store(all));
+                }
+            }
+        }
+        files.put(tenants, store(all));
+        return files;
+    }
+    
+    private static Path store(Properties tenants) throws Exception {
+        Path file = Files.createTempFile("tenants-" + tenants.size() / 6, ".properties");
+        file.toFile().deleteOnExit();
+        try (OutputStream output = Files.newOutputStream(file)) {
+            tenants.store(output, null);
+        }
+        return file;
+    }
+    
+    private static void writeConfig(SAMLFixtures fixtures, Path config) throws Exception {
+        Properties base = new Properties();
+        try (InputStream input = TenantRegistryTest.class.getClassLoader().getResourceAsStream("saml.properties")) {
+            base.load(input);
+        }
+        base.setProperty("saml.admission.enabled", "false");
+        base.setProperty("sp.entityId", BASE_URL + "/saml/metadata");
+        base.setProperty("sp.assertionConsumerService.url", BASE_URL + "/saml/acs");
+        base.setProperty("sp.singleLogoutService.url", BASE_URL + "/saml/sls");
+        new MockIdP(fixtures, 1, 16).writeSpConfig(base, "https://localhost:9443/idp/sso", config);
+    }
+    
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memoryBean.getHeapMemoryUsage().getUsed();
+    }
+    
+    private static long percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+    
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+    
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,73 @@
+package com.sample.saml.bench;
+
+import com.onelogin.saml2.util.SchemaFactory;
+import com.onelogin.saml2.util.Util;
+import com.sample.saml.util.XmlParserPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * XML Parsing and Schema Validation Benchmark
+ * 
+ * The toolkit's per-call DOM parse ({@code Util.loadXML}, a new
+ * DocumentBuilderFactory each time) and schema validation
+ * ({@code Util.validateXML}, which compiles the SAML protocol schema each
+ * time) against {@link XmlParserPool}, on signed responses with 10, 100
+ * and 1000 attributes. Run with {@code -prof gc} for bytes allocated per
+ * operation; {@link ProcessResponseBenchmark} shows the end-to-end effect.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XmlParsingBenchmark {
+    
+    @Param({"10", "100", "1000"})
+    public int attributeCount;
+    
+    private String xml;
+    private Document document;
+    
+    @Setup
+    public void setup() throws Exception {
+        xml = new SAMLFixtures().signedResponseXml(attributeCount, 16);
+        document = XmlParserPool.parse(xml);
+    }
+    
+    @Benchmark
+    public Document toolkitParse() throws Exception {
+        return Util.loadXML(xml);
+    }
+    
+    @Benchmark
+    public Document pooledParse() throws Exception {
+        return XmlParserPool.parse(xml);
+    }
+    
+    @Benchmark
+    public boolean toolkitSchemaValidation() {
+        return Util.validateXML(document, SchemaFactory.SAML_SCHEMA_PROTOCOL_2_0);
+    }
+    
+    @Benchmark
+    public boolean pooledSchemaValidation() {
+        return XmlParserPool.validate(document, SchemaFactory.SAML_SCHEMA_PROTOCOL_2_0);
+    }
+}
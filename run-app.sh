@@ -91,7 +91,7 @@ if curl -s http://localhost:8080/java-saml-sso/ > /dev/null 2>&1; then
     echo "  Home Page:     http://localhost:8080/java-saml-sso/"
     echo "  Diagnostic:    http://localhost:8080/java-saml-sso/diagnostic.jsp"
     echo "  Login:         http://localhost:8080/java-saml-sso/login.jsp"
-    echo "  Metadata:      http://localhost:8080/java-saml-sso/metadata.jsp"
+    echo "  Metadata:      http://localhost:8080/java-saml-sso/saml/metadata"
     echo ""
     echo "📋 Next Steps:"
     echo "  1. Visit the diagnostic page to check SAML configuration"
@@ -0,0 +1,114 @@
+package com.sample.saml.filter;
+
+import com.sample.saml.util.ConfigSnapshot;
+import com.sample.saml.util.RequestTrace;
+import com.sample.saml.util.SAMLConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Request Trace Filter
+ * 
+ * Turns on full debug logging for individual requests while the rest of
+ * the application logs at its production level. A request is traced when
+ * it carries the configured trace header with the configured secret token,
+ * or when it is picked by random sampling (one in N requests). Traced
+ * requests get an {@code X-SAML-Trace-Id} response header whose value is
+ * also attached to every log line of that request.
+ * 
+ * Configuration (saml.properties):
+ * <ul>
+ *   <li>{@code app.log.traceHeader} - request header name (default X-SAML-Trace)</li>
+ *   <li>{@code app.log.traceToken} - secret header value; empty disables header tracing</li>
+ *   <li>{@code app.log.traceSampleEvery} - trace one in N requests; 0 disables sampling</li>
+ * </ul>
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public class RequestTraceFilter implements Filter {
+    
+    private static final Logger logger = LoggerFactory.getLogger(RequestTraceFilter.class);
+    
+    /**
+     * Response header carrying the trace id of a traced request
+     */
+    public static final String TRACE_ID_HEADER = "X-SAML-Trace-Id";
+    
+    private String headerName;
+    private byte[] token;
+    private int sampleEvery;
+    
+    /**
+     * Initializes the filter from configuration
+     * 
+     * @param filterConfig the filter configuration
+     */
+    @Override
+    public void init(FilterConfig filterConfig) {
+        ConfigSnapshot config = SAMLConfig.getSnapshot();
+        headerName = config.getProperty("app.log.traceHeader", "X-SAML-Trace");
+        String configuredToken = config.getProperty("app.log.traceToken", "");
+        token = configuredToken.isEmpty() ? null : configuredToken.getBytes(StandardCharsets.UTF_8);
+        sampleEvery = Math.max(0, config.getIntProperty("app.log.traceSampleEvery", 0));
+        logger.info("Request tracing: header {}, sampling {}",
+                token != null ? headerName : "disabled",
+                sampleEvery > 0 ? "1/" + sampleEvery : "disabled");
+    }
+    
+    /**
+     * Traces the request if it asks for it or is sampled
+     * 
+     * @param request the servlet request
+     * @param response the servlet response
+     * @param chain the filter chain
+     * @throws IOException if an I/O error occurs
+     * @throws ServletException if a servlet error occurs
+     */
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        
+        if (!shouldTrace((HttpServletRequest) request)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        
+        String traceId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        ((HttpServletResponse) response).setHeader(TRACE_ID_HEADER, traceId);
+        RequestTrace.begin(traceId);
+        try {
+            HttpServletRequest httpRequest = (HttpServletRequest) request;
+            logger.debug("Tracing {} {}", httpRequest.getMethod(), httpRequest.getRequestURI());
+            chain.doFilter(request, response);
+        } finally {
+            RequestTrace.end();
+        }
+    }
+    
+    private boolean shouldTrace(HttpServletRequest request) {
+        if (token != null) {
+            String value = request.getHeader(headerName);
+            if (value != null && MessageDigest.isEqual(token, value.getBytes(StandardCharsets.UTF_8))) {
+                return true;
+            }
+        }
+        return sampleEvery > 0 && ThreadLocalRandom.current().nextInt(sampleEvery) == 0;
+    }
+    
+    /**
+     * Destroys the filter
+     */
+    @Override
+    public void destroy() {
+        // Nothing to release
+    }
+}
@@ -0,0 +1,208 @@
+package com.sample.saml.filter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Route Matcher
+ * 
+ * Prefix trie compiled once from {@link RouteRule}s. Matching walks the
+ * path character by character, so the hot path neither allocates nor
+ * scans the rule list: cost depends only on the path length. Exact rules
+ * win over prefix rules, and the longest matching prefix wins among prefix
+ * rules. Paths are matched as given: callers pass the decoded, normalized
+ * path the container dispatches (servlet path plus path info), never the
+ * raw request URI, where "/css/..;/welcome.jsp" or "/css/%2e%2e/welcome.jsp"
+ * would look like a static asset.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class RouteMatcher {
+    
+    private final Node root;
+    private final RouteRule defaultRule;
+    private final int ruleCount;
+    
+    private RouteMatcher(Node root, RouteRule defaultRule, int ruleCount) {
+        this.root = root;
+        this.defaultRule = defaultRule;
+        this.ruleCount = ruleCount;
+    }
+    
+    /**
+     * Compiles rules into a matcher
+     * 
+     * @param rules the route rules; later duplicates of a pattern replace earlier ones
+     * @param defaultRule rule applied when nothing matches
+     * @return the compiled matcher
+     */
+    public static RouteMatcher compile(List<RouteRule> rules, RouteRule defaultRule) {
+        Builder root = new Builder();
+        for (RouteRule rule : rules) {
+            Builder node = root;
+            String path = rule.getPath();
+            for (int i = 0; i < path.length(); i++) {
+                node = node.children.computeIfAbsent(path.charAt(i), c -> new Builder());
+            }
+            if (rule.isPrefix()) {
+                node.prefixRule = rule;
+            } else {
+                node.exactRule = rule;
+            }
+        }
+        return new RouteMatcher(root.freeze(), defaultRule, rules.size());
+    }
+    
+    /**
+     * Reads rules from a stream of {@code <pattern> <policy> [roles]} lines;
+     * blank lines and lines starting with '#' are ignored
+     * 
+     * @param input the rule source
+     * @return the parsed rules
+     * @throws IOException if reading fails
+     */
+    public static List<RouteRule> readRules(InputStream input) throws IOException {
+        List<RouteRule> rules = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+                if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                    rules.add(RouteRule.parse(trimmed));
+                }
+            }
+        }
+        return rules;
+    }
+    
+    /**
+     * Finds the rule for a path
+     * 
+     * @param path the path relative to the context
+     * @return the matching rule, or the default rule
+     */
+    public RouteRule match(String path) {
+        return match(path, 0);
+    }
+    
+    /**
+     * Finds the rule for the part of a path that follows an offset
+     * 
+     * @param path the decoded, normalized path
+     * @param offset number of leading characters to skip, such as a context path
+     * @return the matching rule, or the default rule
+     */
+    public RouteRule match(String path, int offset) {
+        Node node = root;
+        RouteRule best = defaultRule;
+        int length = path.length();
+        for (int i = offset; ; i++) {
+            if (node.prefixRule != null) {
+                best = node.prefixRule;
+            }
+            if (i == length) {
+                return node.exactRule != null ? node.exactRule : best;
+            }
+            node = node.child(path.charAt(i));
+            if (node == null) {
+                return best;
+            }
+        }
+    }
+    
+    /**
+     * Gets the number of compiled rules
+     * 
+     * @return the rule count
+     */
+    public int getRuleCount() {
+        return ruleCount;
+    }
+    
+    /**
+     * Immutable trie node. Children are found through a direct table indexed by
+     * character when the keys span a small range, otherwise by binary search.
+     */
+    private static final class Node {
+        
+        private static final int MAX_DIRECT_RANGE = 128;
+        
+        private final char[] keys;
+        private final Node[] children;
+        private final char base;
+        private final Node[] direct;
+        private final RouteRule exactRule;
+        private final RouteRule prefixRule;
+        
+        private Node(char[] keys, Node[] children, RouteRule exactRule, RouteRule prefixRule) {
+            this.keys = keys;
+            this.children = children;
+            this.exactRule = exactRule;
+            this.prefixRule = prefixRule;
+            
+            int range = keys.length == 0 ? 0 : keys[keys.length - 1] - keys[0] + 1;
+            if (keys.length > 2 && range <= MAX_DIRECT_RANGE) {
+                this.base = keys[0];
+                this.direct = new Node[range];
+                for (int i = 0; i < keys.length; i++) {
+                    direct[keys[i] - base] = children[i];
+                }
+            } else {
+                this.base = 0;
+                this.direct = null;
+            }
+        }
+        
+        private Node child(char c) {
+            if (direct != null) {
+                int index = c - base;
+                return index >= 0 && index < direct.length ? direct[index] : null;
+            }
+            char[] k = keys;
+            int low = 0;
+            int high = k.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char key = k[mid];
+                if (key < c) {
+                    low = mid + 1;
+                } else if (key > c) {
+                    high = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * Mutable node used while compiling
+     */
+    private static final class Builder {
+        
+        private final Map<Character, Builder> children = new TreeMap<>();
+        private RouteRule exactRule;
+        private RouteRule prefixRule;
+        
+        private Node freeze() {
+            char[] keys = new char[children.size()];
+            Node[] frozen = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, Builder> entry : children.entrySet()) {
+                keys[i] = entry.getKey();
+                frozen[i] = entry.getValue().freeze();
+                i++;
+            }
+            return new Node(keys, frozen, exactRule, prefixRule);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.sample.saml.filter;
+
+/**
+ * Route Policy
+ * 
+ * Access policy applied by {@link SAMLSessionFilter} to a matched route.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public enum RoutePolicy {
+    
+    /** No session work at all; the request passes straight through */
+    PUBLIC,
+    
+    /** Requires a SAML session */
+    AUTHENTICATED,
+    
+    /** Requires a SAML session whose user holds one of the rule's roles */
+    ROLE
+}
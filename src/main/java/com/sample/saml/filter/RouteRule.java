@@ -0,0 +1,131 @@
+package com.sample.saml.filter;
+
+import com.sample.saml.service.RoleMapping;
+import com.sample.saml.service.RoleSet;
+
+import java.util.Arrays;
+
+/**
+ * Route Rule
+ * 
+ * One compiled line of the route configuration: a path pattern, the policy
+ * it maps to and, for {@link RoutePolicy#ROLE}, the accepted roles, kept
+ * as a mask over {@link RoleMapping} role numbers. Patterns ending in {@code /*} or {@code *} match by prefix, all others
+ * match exactly.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class RouteRule {
+    
+    private final String pattern;
+    private final String path;
+    private final boolean prefix;
+    private final RoutePolicy policy;
+    private final String[] roles;
+    private final long[] roleMask;
+    
+    /**
+     * Constructor
+     * 
+     * @param pattern the path pattern, relative to the context path
+     * @param policy the access policy
+     * @param roles accepted roles, only used by {@link RoutePolicy#ROLE}
+     */
+    public RouteRule(String pattern, RoutePolicy policy, String... roles) {
+        if (pattern == null || !pattern.startsWith("/")) {
+            throw new IllegalArgumentException("Route pattern must start with '/': " + pattern);
+        }
+        if (policy == RoutePolicy.ROLE && (roles == null || roles.length == 0)) {
+            throw new IllegalArgumentException("Role route needs at least one role: " + pattern);
+        }
+        this.pattern = pattern;
+        this.prefix = pattern.endsWith("*");
+        this.path = prefix ? pattern.substring(0, pattern.length() - 1) : pattern;
+        this.policy = policy;
+        this.roles = roles == null ? new String[0] : roles.clone();
+        this.roleMask = RoleMapping.mask(this.roles);
+    }
+    
+    /**
+     * Parses one configuration line: {@code <pattern> <policy> [role,role...]}
+     * 
+     * @param line the configuration line
+     * @return the parsed rule
+     * @throws IllegalArgumentException if the line is malformed
+     */
+    public static RouteRule parse(String line) {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length < 2 || parts.length > 3) {
+            throw new IllegalArgumentException("Invalid route rule: " + line);
+        }
+        RoutePolicy policy;
+        try {
+            policy = RoutePolicy.valueOf(parts[1].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown route policy in rule: " + line, e);
+        }
+        String[] roles = parts.length == 3 ? parts[2].split(",") : new String[0];
+        return new RouteRule(parts[0], policy, roles);
+    }
+    
+    /**
+     * Gets the configured pattern
+     * 
+     * @return the pattern
+     */
+    public String getPattern() {
+        return pattern;
+    }
+    
+    /**
+     * Gets the literal path part of the pattern (without a trailing '*')
+     * 
+     * @return the path
+     */
+    public String getPath() {
+        return path;
+    }
+    
+    /**
+     * Checks whether this is a prefix rule
+     * 
+     * @return true for prefix rules, false for exact rules
+     */
+    public boolean isPrefix() {
+        return prefix;
+    }
+    
+    /**
+     * Gets the access policy
+     * 
+     * @return the policy
+     */
+    public RoutePolicy getPolicy() {
+        return policy;
+    }
+    
+    /**
+     * Gets the accepted roles
+     * 
+     * @return a copy of the role names
+     */
+    public String[] getRoles() {
+        return roles.clone();
+    }
+    
+    /**
+     * Checks whether any of the accepted roles is granted
+     * 
+     * @param granted the user's roles
+     * @return true if at least one role matches
+     */
+    boolean acceptsAnyOf(RoleSet granted) {
+        return granted.hasAny(roleMask);
+    }
+    
+    @Override
+    public String toString() {
+        return pattern + " " + policy + (roles.length > 0 ? " " + Arrays.toString(roles) : "");
+    }
+}
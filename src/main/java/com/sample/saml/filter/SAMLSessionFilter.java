@@ -1,6 +1,12 @@
 package com.sample.saml.filter;
 
+import com.sample.saml.metrics.LatencyHistogram;
+import com.sample.saml.metrics.SAMLMetrics;
 import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.service.RoleMapping;
+import com.sample.saml.service.RoleSet;
+import com.sample.saml.service.SAMLService;
+import com.sample.saml.service.SessionTokens;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,6 +15,10 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * SAML Session Filter
@@ -16,6 +26,17 @@ import java.io.IOException;
  * This filter manages SAML authentication sessions and provides
  * session validation for protected resources. It checks for valid
  * SAML sessions and redirects unauthenticated users to the login page.
+ * Each request is classified by a {@link RouteMatcher} compiled once at
+ * startup from the rules in {@code saml-routes.conf}. Role routes test the
+ * {@link RoleSet} granted at login, kept in the session as
+ * {@code saml.roles}; it is evaluated again only when the role rules were
+ * reloaded since, or the session was restored without it. In stateless
+ * cookie mode a valid {@link SessionTokens} cookie is checked first, with
+ * no session lookup at all, and reissued when it is due. A request with a
+ * session ID the container does not know, as after a restart or a
+ * failover, gets its session back from the
+ * {@link com.sample.saml.service.SessionStore} or the replicas of the
+ * {@link com.sample.saml.service.SessionReplicator} instead of a new login.
  * 
  * @author SAML SSO Sample App
  * @version 1.0.0
@@ -24,29 +45,75 @@ public class SAMLSessionFilter implements Filter {
     
     private static final Logger logger = LoggerFactory.getLogger(SAMLSessionFilter.class);
     
-    // URLs that don't require authentication
+    /**
+     * Init parameter naming the classpath resource with route rules
+     */
+    public static final String ROUTES_PARAM = "routes";
+    
+    private static final String DEFAULT_ROUTES = "saml-routes.conf";
+    
+    // URLs that don't require authentication, used when no route file is found
     private static final String[] PUBLIC_URLS = {
         "/index.jsp",
         "/login.jsp",
         "/acs.jsp",
         "/metadata.jsp",
         "/sls.jsp",
+        "/saml/acs",
+        "/saml/sls",
+        "/saml/metadata",
+        "/saml/acs/*",
+        "/saml/sls/*",
+        "/saml/metadata/*",
         "/error.jsp",
         "/diagnostic.jsp",
-        "/css/",
-        "/js/",
-        "/images/",
+        "/metrics",
+        "/css/*",
+        "/js/*",
+        "/images/*",
         "/favicon.ico"
     };
     
+    // Public routes are only counted; timing them would cost as much as the route check itself
+    private static final LongAdder PUBLIC_COUNT = SAMLMetrics.counter("filter", "public", "none");
+    private static final LongAdder ALLOWED_COUNT = SAMLMetrics.counter("filter", "allowed", "none");
+    private static final LongAdder FORBIDDEN_COUNT = SAMLMetrics.counter("filter", "forbidden", "none");
+    private static final LongAdder REDIRECT_COUNT = SAMLMetrics.counter("filter", "redirect", "none");
+    private static final LatencyHistogram CHECK_TIME = SAMLMetrics.histogram("filter", "session_check");
+    
+    private static final RouteRule AUTHENTICATED_BY_DEFAULT = new RouteRule("/*", RoutePolicy.AUTHENTICATED);
+    
+    private RouteMatcher routes;
+    
     /**
-     * Initializes the filter
+     * Initializes the filter and compiles the route rules
      * 
      * @param filterConfig the filter configuration
+     * @throws ServletException if the route rules cannot be loaded
      */
     @Override
-    public void init(FilterConfig filterConfig) {
-        logger.info("SAML Session Filter initialized");
+    public void init(FilterConfig filterConfig) throws ServletException {
+        String resource = filterConfig.getInitParameter(ROUTES_PARAM);
+        if (resource == null || resource.trim().isEmpty()) {
+            resource = DEFAULT_ROUTES;
+        }
+        
+        List<RouteRule> rules = new ArrayList<>();
+        try (InputStream input = SAMLSessionFilter.class.getClassLoader().getResourceAsStream(resource.trim())) {
+            if (input != null) {
+                rules.addAll(RouteMatcher.readRules(input));
+            } else {
+                logger.warn("Route rules {} not found, using built-in public URLs", resource);
+                for (String publicUrl : PUBLIC_URLS) {
+                    rules.add(new RouteRule(publicUrl, RoutePolicy.PUBLIC));
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            throw new ServletException("Failed to load route rules from " + resource, e);
+        }
+        
+        routes = RouteMatcher.compile(rules, AUTHENTICATED_BY_DEFAULT);
+        logger.info("SAML Session Filter initialized with {} route rules", routes.getRuleCount());
     }
     
     /**
@@ -65,57 +132,111 @@ public class SAMLSessionFilter implements Filter {
         HttpServletRequest httpRequest = (HttpServletRequest) request;
         HttpServletResponse httpResponse = (HttpServletResponse) response;
         
-        String requestURI = httpRequest.getRequestURI();
+        // The path the container dispatches: decoded and normalized, unlike the raw request URI
+        String pathInfo = httpRequest.getPathInfo();
+        String path = pathInfo == null ? httpRequest.getServletPath() : httpRequest.getServletPath() + pathInfo;
         String contextPath = httpRequest.getContextPath();
-        String relativePath = requestURI.substring(contextPath.length());
+        RouteRule route = routes.match(path);
         
-        logger.debug("Processing request: {}", relativePath);
+        // Public and static routes skip all session work
+        if (route.getPolicy() == RoutePolicy.PUBLIC) {
+            PUBLIC_COUNT.increment();
+            chain.doFilter(request, response);
+            return;
+        }
+        
+        logger.debug("Processing protected request: {}", path);
+        long start = System.nanoTime();
         
-        // Check if this is a public URL that doesn't require authentication
-        if (isPublicUrl(relativePath)) {
-            logger.debug("Public URL accessed: {}", relativePath);
+        SessionTokens tokens = SessionTokens.getInstance();
+        SessionTokens.Token token = tokens.isEnabled() ? tokens.read(httpRequest) : null;
+        if (token != null) {
+            SAMLUserInfo userInfo = token.getUserInfo();
+            if (route.getPolicy() == RoutePolicy.ROLE && !route.acceptsAnyOf(token.getRoles())) {
+                logger.info("Access denied to {} for user {}", path, userInfo.getNameId());
+                CHECK_TIME.recordSince(start);
+                FORBIDDEN_COUNT.increment();
+                httpResponse.sendError(HttpServletResponse.SC_FORBIDDEN);
+                return;
+            }
+            if (tokens.isRefreshDue(token)) {
+                String refreshed = tokens.refresh(token);
+                if (refreshed != null) {
+                    tokens.write(httpRequest, httpResponse, refreshed);
+                }
+            }
+            request.setAttribute("samlUser", userInfo);
+            request.setAttribute("samlRoles", token.getRoles());
+            CHECK_TIME.recordSince(start);
+            ALLOWED_COUNT.increment();
             chain.doFilter(request, response);
             return;
         }
         
         // Check for valid SAML session
         HttpSession session = httpRequest.getSession(false);
-        if (session != null) {
-            SAMLUserInfo userInfo = (SAMLUserInfo) session.getAttribute("saml.userInfo");
-            if (userInfo != null) {
-                logger.debug("Valid SAML session found for user: {}", userInfo.getNameId());
-                
-                // Add user info to request attributes for JSP access
-                request.setAttribute("samlUser", userInfo);
-                
-                chain.doFilter(request, response);
+        SAMLUserInfo userInfo = session != null ? (SAMLUserInfo) session.getAttribute("saml.userInfo") : null;
+        if (userInfo != null) {
+            SAMLService.getSessionStore().touch(session);
+            SAMLService.getSessionReplicator().touch(session);
+        } else if (httpRequest.getRequestedSessionId() != null) {
+            // A session from before a restart or from another node, if stored or replicated
+            HttpSession restored = SAMLService.restoreSession(httpRequest);
+            if (restored != null) {
+                session = restored;
+                userInfo = (SAMLUserInfo) restored.getAttribute("saml.userInfo");
+                logger.info("Restored stored session for user: {}", userInfo.getNameId());
+            }
+        }
+        if (userInfo != null) {
+            logger.debug("Valid SAML session found for user: {}", userInfo.getNameId());
+            
+            if (route.getPolicy() == RoutePolicy.ROLE && !route.acceptsAnyOf(grantedRoles(session, userInfo))) {
+                logger.info("Access denied to {} for user {}", path, userInfo.getNameId());
+                CHECK_TIME.recordSince(start);
+                FORBIDDEN_COUNT.increment();
+                httpResponse.sendError(HttpServletResponse.SC_FORBIDDEN);
                 return;
-            } else {
-                logger.debug("Session exists but no SAML user info found");
             }
+            
+            // Add user info to request attributes for JSP access
+            request.setAttribute("samlUser", userInfo);
+            CHECK_TIME.recordSince(start);
+            ALLOWED_COUNT.increment();
+            
+            chain.doFilter(request, response);
+            return;
+        } else if (session != null) {
+            logger.debug("Session exists but no SAML user info found");
         } else {
             logger.debug("No session found");
         }
         
         // No valid session, redirect to login
-        logger.info("Unauthenticated access attempt to: {}", relativePath);
+        logger.info("Unauthenticated access attempt to: {}", path);
+        CHECK_TIME.recordSince(start);
+        REDIRECT_COUNT.increment();
         String loginUrl = contextPath + "/login.jsp";
         httpResponse.sendRedirect(loginUrl);
     }
     
     /**
-     * Checks if the given URL is a public URL that doesn't require authentication
+     * Gets the roles granted to the session's user by the current role rules
      * 
-     * @param url the URL to check
-     * @return true if the URL is public, false otherwise
+     * @param session the session
+     * @param userInfo the authenticated user
+     * @return the granted roles
      */
-    private boolean isPublicUrl(String url) {
-        for (String publicUrl : PUBLIC_URLS) {
-            if (url.equals(publicUrl) || url.startsWith(publicUrl)) {
-                return true;
-            }
+    private static RoleSet grantedRoles(HttpSession session, SAMLUserInfo userInfo) {
+        RoleMapping mapping = RoleMapping.getInstance();
+        Object stored = session.getAttribute("saml.roles");
+        if (stored instanceof RoleSet && mapping.isCurrent((RoleSet) stored)) {
+            return (RoleSet) stored;
         }
-        return false;
+        // Rules reloaded since login, or a restored session: evaluate once more and keep the result
+        RoleSet roles = mapping.evaluate(userInfo);
+        session.setAttribute("saml.roles", roles);
+        return roles;
     }
     
     /**
@@ -125,4 +246,4 @@ public class SAMLSessionFilter implements Filter {
     public void destroy() {
         logger.info("SAML Session Filter destroyed");
     }
-} 
\ No newline at end of file
+}
\ No newline at end of file
@@ -1,18 +1,28 @@
 package com.sample.saml.listener;
 
+import com.sample.saml.metrics.SAMLMetrics;
+import com.sample.saml.service.RoleMapping;
+import com.sample.saml.service.SAMLService;
+import com.sample.saml.service.SessionTokens;
+import com.sample.saml.service.TenantRegistry;
+import com.sample.saml.util.ConfigSnapshot;
+import com.sample.saml.util.IdPKeyMaterialCache;
 import com.sample.saml.util.SAMLConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
+import java.util.function.Consumer;
 
 /**
  * SAML Context Listener
  * 
  * This listener initializes the SAML configuration when the web application
  * starts up. It ensures that all SAML settings are loaded and validated
- * before the application begins serving requests.
+ * before the application begins serving requests, builds the shared
+ * {@link SAMLService} used by every request, and starts watching the
+ * configuration file for hot reload.
  * 
  * @author SAML SSO Sample App
  * @version 1.0.0
@@ -21,6 +31,8 @@ public class SAMLContextListener implements ServletContextListener {
     
     private static final Logger logger = LoggerFactory.getLogger(SAMLContextListener.class);
     
+    private Consumer<ConfigSnapshot> reloadListener;
+    
     /**
      * Called when the web application is being initialized
      * Initializes SAML configuration and validates settings
@@ -38,8 +50,34 @@ public class SAMLContextListener implements ServletContextListener {
             // Store SAML configuration in servlet context for access by other components
             sce.getServletContext().setAttribute("saml.config.initialized", true);
             
-            logger.info("SAML SSO Sample Application initialized successfully");
+            // Build the shared SAML service once; requests only create a cheap Auth over it
+            SAMLService.getInstance();
+            TenantRegistry.getInstance();
+            RoleMapping.getInstance();
+            SessionTokens.getInstance();
+            
+            // Build the service for a reloaded snapshot before it is published, so the
+            // first request after a reload never pays for settings or fails on a bad config
+            reloadListener = snapshot -> {
+                logger.info("SAML configuration version {} loaded, rebuilding shared SAML service", snapshot.getVersion());
+                IdPKeyMaterialCache.invalidate();
+                snapshot.getDerived(SAMLService.class, SAMLService::new);
+                snapshot.getDerived(TenantRegistry.class, TenantRegistry::new);
+                snapshot.getDerived(RoleMapping.class, RoleMapping::new);
+                snapshot.getDerived(SessionTokens.class, SessionTokens::new);
+            };
+            SAMLConfig.addReloadListener(reloadListener);
+            
+            if (SAMLConfig.getBooleanProperty("app.config.watch", true)) {
+                SAMLConfig.startWatching();
+            }
+            
+            if (SAMLConfig.getBooleanProperty("app.metrics.enabled", true)) {
+                SAMLMetrics.registerMBean();
+            }
             
+            logger.info("SAML SSO Sample Application initialized successfully");
+        
         } catch (Exception e) {
             logger.error("Failed to initialize SAML SSO Sample Application", e);
             throw new RuntimeException("Application initialization failed", e);
@@ -57,11 +95,22 @@ public class SAMLContextListener implements ServletContextListener {
         logger.info("Shutting down SAML SSO Sample Application");
         
         try {
+            SAMLConfig.stopWatching();
+            SAMLMetrics.unregisterMBean();
+            SAMLService.getVerificationPool().shutdown();
+            SAMLService.getMetadataProvider().close();
+            SAMLService.getSessionReplicator().close();
+            SAMLService.getSessionStore().close();
+            if (reloadListener != null) {
+                SAMLConfig.removeReloadListener(reloadListener);
+                reloadListener = null;
+            }
+            
             // Remove SAML configuration from servlet context
             sce.getServletContext().removeAttribute("saml.config.initialized");
             
             logger.info("SAML SSO Sample Application shutdown completed");
-            
+        
         } catch (Exception e) {
             logger.error("Error during application shutdown", e);
         }
@@ -0,0 +1,118 @@
+package com.sample.saml.listener;
+
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.service.SAMLService;
+import com.sample.saml.service.SessionRegistry;
+import com.sample.saml.service.SessionReplicator;
+import com.sample.saml.service.SessionStore;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionAttributeListener;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+
+/**
+ * SAML Session Listener
+ * 
+ * Keeps the {@link SessionRegistry} current: a session is indexed when
+ * {@code saml.userInfo} is set on it, re-indexed when it is replaced, and
+ * removed when it is removed or the session is destroyed, whether by
+ * logout, by a LogoutRequest from the IdP or by timeout. The IdP is read
+ * from {@code saml.idpEntityId}, which {@link SAMLService#establishSession}
+ * sets first.
+ * 
+ * It also writes a session to the {@link SessionStore} whenever its user or
+ * RelayState is set, and queues the change for the {@link SessionReplicator}.
+ * Destroyed sessions are left in the store and on the other nodes: only
+ * logout removes them, as containers destroy every session on shutdown.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public class SAMLSessionListener implements HttpSessionListener, HttpSessionAttributeListener {
+    
+    private static final String USER_INFO = "saml.userInfo";
+    private static final String IDP_ENTITY_ID = "saml.idpEntityId";
+    private static final String RELAY_STATE = "saml.relayState";
+    
+    /**
+     * Indexes a session that got its user, and stores and replicates it
+     * 
+     * @param event the binding event
+     */
+    @Override
+    public void attributeAdded(HttpSessionBindingEvent event) {
+        if (USER_INFO.equals(event.getName())) {
+            register(event.getSession(), event.getValue());
+        }
+        saved(event);
+    }
+    
+    /**
+     * Re-indexes a session whose user changed, and stores and replicates it again
+     * 
+     * @param event the binding event, with the old value
+     */
+    @Override
+    public void attributeReplaced(HttpSessionBindingEvent event) {
+        if (USER_INFO.equals(event.getName())) {
+            HttpSession session = event.getSession();
+            unregister(session, event.getValue());
+            register(session, session.getAttribute(USER_INFO));
+        }
+        saved(event);
+    }
+    
+    /**
+     * Removes a session that lost its user from the index
+     * 
+     * @param event the binding event, with the removed value
+     */
+    @Override
+    public void attributeRemoved(HttpSessionBindingEvent event) {
+        if (USER_INFO.equals(event.getName())) {
+            unregister(event.getSession(), event.getValue());
+        }
+    }
+    
+    /**
+     * Removes a destroyed session from the index
+     * 
+     * @param event the session event
+     */
+    @Override
+    public void sessionDestroyed(HttpSessionEvent event) {
+        HttpSession session = event.getSession();
+        try {
+            unregister(session, session.getAttribute(USER_INFO));
+        } catch (IllegalStateException e) {
+            // Attributes already gone; attributeRemoved has seen the user
+        }
+    }
+    
+    private static void saved(HttpSessionBindingEvent event) {
+        if (USER_INFO.equals(event.getName())) {
+            SAMLService.getSessionStore().save(event.getSession());
+            SAMLService.getSessionReplicator().save(event.getSession());
+        } else if (RELAY_STATE.equals(event.getName())) {
+            SAMLService.getSessionStore().save(event.getSession());
+            SAMLService.getSessionReplicator().saveRelayState(event.getSession());
+        }
+    }
+    
+    private static void register(HttpSession session, Object value) {
+        if (value instanceof SAMLUserInfo) {
+            SAMLUserInfo userInfo = (SAMLUserInfo) value;
+            SAMLService.getSessionRegistry().register(session, (String) session.getAttribute(IDP_ENTITY_ID),
+                    userInfo.getNameId(), userInfo.getSessionIndex());
+        }
+    }
+    
+    private static void unregister(HttpSession session, Object value) {
+        if (value instanceof SAMLUserInfo) {
+            SAMLUserInfo userInfo = (SAMLUserInfo) value;
+            SAMLService.getSessionRegistry().unregister(session, userInfo.getNameId(), userInfo.getSessionIndex());
+        }
+    }
+}
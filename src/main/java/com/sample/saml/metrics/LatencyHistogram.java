@@ -0,0 +1,159 @@
+package com.sample.saml.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-Free Latency Histogram
+ * 
+ * Records durations in nanoseconds into log-linear buckets, in the style
+ * of HdrHistogram: every power of two is split into 16 linear sub-buckets,
+ * so any recorded value is known to within 6.25% while the whole range from
+ * 1 ns to about 18 minutes fits in a few hundred counters. Recording is one
+ * atomic increment of a bucket plus two {@link LongAdder} updates, with no
+ * locks and no allocation.
+ * 
+ * Reads (percentiles, bucket counts) scan the counters without stopping
+ * writers, so a read taken during recording may be off by the few values
+ * recorded while it ran.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class LatencyHistogram {
+    
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    
+    /**
+     * Number of buckets; values above the top bucket are clamped into it
+     */
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    
+    /**
+     * Records one duration
+     * 
+     * @param nanos the duration in nanoseconds; negative values count as zero
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+    }
+    
+    /**
+     * Records the time elapsed since a {@link System#nanoTime()} reading
+     * 
+     * @param startNanos the start reading
+     * @return the current {@link System#nanoTime()} reading, to chain phases
+     */
+    public long recordSince(long startNanos) {
+        long now = System.nanoTime();
+        record(now - startNanos);
+        return now;
+    }
+    
+    /**
+     * Gets the number of recorded values
+     * 
+     * @return the count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+    
+    /**
+     * Gets the sum of recorded values
+     * 
+     * @return the sum in nanoseconds
+     */
+    public long getSumNanos() {
+        return sum.sum();
+    }
+    
+    /**
+     * Counts recorded values that are at most the given bound.
+     * Buckets straddling the bound are counted when their lower edge is
+     * within it, so the result is exact to the bucket resolution.
+     * 
+     * @param nanos the bound in nanoseconds
+     * @return the number of values at or below the bound
+     */
+    public long countAtOrBelow(long nanos) {
+        int last = bucketIndex(Math.max(0, nanos));
+        long total = 0;
+        for (int i = 0; i <= last; i++) {
+            total += buckets.get(i);
+        }
+        return total;
+    }
+    
+    /**
+     * Estimates a percentile
+     * 
+     * @param quantile the quantile between 0 and 1, e.g. 0.99
+     * @return the upper edge of the bucket holding the percentile, in nanoseconds, or 0 if empty
+     */
+    public long getValueAtQuantile(double quantile) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return bucketUpperBound(i);
+            }
+        }
+        return bucketUpperBound(BUCKET_COUNT - 1);
+    }
+    
+    /**
+     * Estimates a percentile in milliseconds
+     * 
+     * @param quantile the quantile between 0 and 1
+     * @return the percentile in milliseconds
+     */
+    public double getMillisAtQuantile(double quantile) {
+        return getValueAtQuantile(quantile) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+    
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+    
+    static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+    
+    static long bucketUpperBound(int index) {
+        return index + 1 < BUCKET_COUNT ? bucketLowerBound(index + 1) - 1 : Long.MAX_VALUE;
+    }
+}
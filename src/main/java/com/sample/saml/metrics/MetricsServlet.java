@@ -0,0 +1,64 @@
+package com.sample.saml.metrics;
+
+import com.sample.saml.util.ConfigSnapshot;
+import com.sample.saml.util.SAMLConfig;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+
+/**
+ * Metrics Scrape Endpoint
+ * 
+ * Serves {@link SAMLMetrics} in the Prometheus text format. Disabled with
+ * {@code app.metrics.enabled=false}; only answers loopback clients unless
+ * {@code app.metrics.allowRemote=true}.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public class MetricsServlet extends HttpServlet {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    
+    /**
+     * Writes the current metrics
+     * 
+     * @param request the HTTP request
+     * @param response the HTTP response
+     * @throws IOException if writing fails
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ConfigSnapshot config = SAMLConfig.getSnapshot();
+        if (!config.getBooleanProperty("app.metrics.enabled", true)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (!config.getBooleanProperty("app.metrics.allowRemote", false) && !isLoopback(request.getRemoteAddr())) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        
+        response.setContentType(CONTENT_TYPE);
+        response.setHeader("Cache-Control", "no-store");
+        StringBuilder body = new StringBuilder(16384);
+        SAMLMetrics.writePrometheus(body);
+        PrintWriter writer = response.getWriter();
+        writer.append(body);
+        writer.flush();
+    }
+    
+    private static boolean isLoopback(String address) {
+        try {
+            return address != null && InetAddress.getByName(address).isLoopbackAddress();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
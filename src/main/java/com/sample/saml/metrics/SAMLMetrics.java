@@ -0,0 +1,242 @@
+package com.sample.saml.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * SAML Metrics Registry
+ * 
+ * Holds the per-phase latency histograms and outcome counters recorded by
+ * the SAML service and the session filter, plus gauges that read current
+ * state such as queue depths, and renders them in the
+ * Prometheus text exposition format and through JMX.
+ * 
+ * Instruments are created on first lookup and live for the lifetime of
+ * the class loader. Call sites look them up once into static fields, so
+ * the hot path never touches the registry maps.
+ * 
+ * Metric families:
+ * <ul>
+ *   <li>{@code saml_phase_duration_seconds} - histogram per operation and phase</li>
+ *   <li>{@code saml_phase_duration_quantile_seconds} - p50/p99/p999 per operation and phase</li>
+ *   <li>{@code saml_operations_total} - counter per operation, outcome and error type</li>
+ *   <li>{@code saml_current} - gauge per component and name</li>
+ * </ul>
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class SAMLMetrics {
+    
+    private static final Logger logger = LoggerFactory.getLogger(SAMLMetrics.class);
+    
+    /**
+     * JMX name the metrics are registered under
+     */
+    public static final String OBJECT_NAME = "com.sample.saml:type=SAMLMetrics";
+    
+    // Bucket bounds (seconds) exported to Prometheus, derived from the finer internal buckets
+    private static final double[] EXPORTED_BOUNDS = {
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    
+    private static final double[] EXPORTED_QUANTILES = {0.5, 0.99, 0.999};
+    
+    private static final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private SAMLMetrics() {
+        // Utility class - no instantiation needed
+    }
+    
+    /**
+     * Gets the latency histogram of one phase of an operation
+     * 
+     * @param operation the operation, e.g. "acs"
+     * @param phase the phase, e.g. "validate", or "total"
+     * @return the histogram
+     */
+    public static LatencyHistogram histogram(String operation, String phase) {
+        return histograms.computeIfAbsent(key(operation, phase), k -> new LatencyHistogram());
+    }
+    
+    /**
+     * Gets the counter of one outcome of an operation
+     * 
+     * @param operation the operation, e.g. "acs"
+     * @param outcome the outcome, e.g. "success" or "failure"
+     * @param error the error type, or "none"
+     * @return the counter
+     */
+    public static LongAdder counter(String operation, String outcome, String error) {
+        return counters.computeIfAbsent(key(operation, outcome, error), k -> new LongAdder());
+    }
+    
+    /**
+     * Registers a gauge, read each time the metrics are rendered. A later
+     * registration under the same name replaces the earlier one.
+     * 
+     * @param component the component, e.g. "admission"
+     * @param name the value, e.g. "queue_depth"
+     * @param value reads the current value; must be cheap and thread-safe
+     */
+    public static void gauge(String component, String name, LongSupplier value) {
+        gauges.put(key(component, name), value);
+    }
+    
+    /**
+     * Counts a failed operation. Error types must come from a small fixed
+     * set (error codes, exception classes), never from request data.
+     * 
+     * @param operation the operation
+     * @param error the error type
+     */
+    public static void failure(String operation, String error) {
+        counter(operation, "failure", error).increment();
+    }
+    
+    /**
+     * Writes all metrics in the Prometheus text exposition format (version 0.0.4)
+     * 
+     * @param out where to write
+     * @throws IOException if writing fails
+     */
+    public static void writePrometheus(Appendable out) throws IOException {
+        Map<String, LatencyHistogram> sortedHistograms = new TreeMap<>(histograms);
+        
+        out.append("# HELP saml_phase_duration_seconds Time spent in each phase of a SAML operation\n");
+        out.append("# TYPE saml_phase_duration_seconds histogram\n");
+        for (Map.Entry<String, LatencyHistogram> entry : sortedHistograms.entrySet()) {
+            String labels = labels(entry.getKey(), "operation", "phase");
+            LatencyHistogram histogram = entry.getValue();
+            long count = histogram.getCount();
+            for (double bound : EXPORTED_BOUNDS) {
+                long cumulative = Math.min(count, histogram.countAtOrBelow((long) (bound * 1e9)));
+                out.append("saml_phase_duration_seconds_bucket{").append(labels)
+                        .append(",le=\"").append(Double.toString(bound)).append("\"} ")
+                        .append(Long.toString(cumulative)).append('\n');
+            }
+            out.append("saml_phase_duration_seconds_bucket{").append(labels).append(",le=\"+Inf\"} ")
+                    .append(Long.toString(count)).append('\n');
+            out.append("saml_phase_duration_seconds_sum{").append(labels).append("} ")
+                    .append(Double.toString(histogram.getSumNanos() / 1e9)).append('\n');
+            out.append("saml_phase_duration_seconds_count{").append(labels).append("} ")
+                    .append(Long.toString(count)).append('\n');
+        }
+        
+        out.append("# HELP saml_phase_duration_quantile_seconds Latency percentiles of each phase since startup\n");
+        out.append("# TYPE saml_phase_duration_quantile_seconds gauge\n");
+        for (Map.Entry<String, LatencyHistogram> entry : sortedHistograms.entrySet()) {
+            String labels = labels(entry.getKey(), "operation", "phase");
+            for (double quantile : EXPORTED_QUANTILES) {
+                out.append("saml_phase_duration_quantile_seconds{").append(labels)
+                        .append(",quantile=\"").append(Double.toString(quantile)).append("\"} ")
+                        .append(Double.toString(entry.getValue().getValueAtQuantile(quantile) / 1e9)).append('\n');
+            }
+        }
+        
+        out.append("# HELP saml_operations_total SAML operations by outcome and error type\n");
+        out.append("# TYPE saml_operations_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            out.append("saml_operations_total{").append(labels(entry.getKey(), "operation", "outcome", "error"))
+                    .append("} ").append(Long.toString(entry.getValue().sum())).append('\n');
+        }
+        
+        out.append("# HELP saml_current Current state of SAML components, such as queue depths\n");
+        out.append("# TYPE saml_current gauge\n");
+        for (Map.Entry<String, LongSupplier> entry : new TreeMap<>(gauges).entrySet()) {
+            out.append("saml_current{").append(labels(entry.getKey(), "component", "name"))
+                    .append("} ").append(Long.toString(entry.getValue().getAsLong())).append('\n');
+        }
+    }
+    
+    /**
+     * Flattens all metrics into name/value pairs, as exposed through JMX.
+     * Percentiles are in milliseconds.
+     * 
+     * @return metric values by attribute name
+     */
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> values = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            String name = entry.getKey().replace('|', '.');
+            LatencyHistogram histogram = entry.getValue();
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".p50Millis", histogram.getMillisAtQuantile(0.5));
+            values.put(name + ".p99Millis", histogram.getMillisAtQuantile(0.99));
+            values.put(name + ".p999Millis", histogram.getMillisAtQuantile(0.999));
+            values.put(name + ".totalMillis", histogram.getSumNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            values.put(entry.getKey().replace('|', '.') + ".count", entry.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            values.put(entry.getKey().replace('|', '.'), entry.getValue().getAsLong());
+        }
+        return values;
+    }
+    
+    /**
+     * Registers the metrics MBean with the platform MBean server
+     */
+    public static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new SAMLMetricsMBean(), new ObjectName(OBJECT_NAME));
+            logger.info("SAML metrics registered in JMX as {}", OBJECT_NAME);
+        } catch (InstanceAlreadyExistsException e) {
+            logger.debug("SAML metrics MBean already registered");
+        } catch (JMException e) {
+            logger.warn("Failed to register SAML metrics MBean", e);
+        }
+    }
+    
+    /**
+     * Removes the metrics MBean from the platform MBean server
+     */
+    public static void unregisterMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.warn("Failed to unregister SAML metrics MBean", e);
+        }
+    }
+    
+    private static String key(String... parts) {
+        return String.join("|", parts);
+    }
+    
+    private static String labels(String key, String... names) {
+        String[] values = key.split("\\|", -1);
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; i < names.length && i < values.length; i++) {
+            if (i > 0) {
+                labels.append(',');
+            }
+            labels.append(names[i]).append("=\"").append(values[i].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return labels.toString();
+    }
+}
@@ -0,0 +1,75 @@
+package com.sample.saml.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+import java.util.Map;
+
+/**
+ * SAML Metrics MBean
+ * 
+ * Exposes every histogram, counter and gauge of {@link SAMLMetrics} as a
+ * read-only JMX attribute, e.g. {@code acs.validate.p99Millis},
+ * {@code acs.failure.replay.count} or {@code admission.queue_depth}. The
+ * attribute set grows as new phases and outcomes are first recorded.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+class SAMLMetricsMBean implements DynamicMBean {
+    
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = SAMLMetrics.snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+    
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> snapshot = SAMLMetrics.snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = snapshot.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+    
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("SAML metrics are read-only: " + attribute.getName());
+    }
+    
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+    
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+    
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Number> snapshot = SAMLMetrics.snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+        int i = 0;
+        for (Map.Entry<String, Number> entry : snapshot.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                    entry.getKey(), true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "SAML latency histograms, outcome counters and gauges",
+                attributes, null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,59 @@
+package com.sample.saml.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Attribute Name Dictionary
+ * 
+ * Canonicalises SAML attribute names so that every session shares one
+ * String instance per name (e.g. Keycloak's long attribute URIs) instead of
+ * keeping its own copy. The dictionary is bounded; once full, unknown names
+ * are simply used as given.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class AttributeNames {
+    
+    private static final int MAX_NAMES = 4096;
+    
+    private static final ConcurrentMap<String, String> names = new ConcurrentHashMap<>();
+    
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private AttributeNames() {
+        // Utility class - no instantiation needed
+    }
+    
+    /**
+     * Returns the shared instance of an attribute name
+     * 
+     * @param name the attribute name
+     * @return the canonical instance, or the name itself if the dictionary is full
+     */
+    public static String canonical(String name) {
+        if (name == null) {
+            return null;
+        }
+        String existing = names.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        if (names.size() >= MAX_NAMES) {
+            return name;
+        }
+        existing = names.putIfAbsent(name, name);
+        return existing != null ? existing : name;
+    }
+    
+    /**
+     * Gets the number of distinct names held
+     * 
+     * @return the dictionary size
+     */
+    public static int size() {
+        return names.size();
+    }
+}
@@ -1,7 +1,23 @@
 package com.sample.saml.model;
 
+import com.sample.saml.util.WireFormat;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * SAML User Information Model
@@ -10,71 +26,131 @@ import java.util.Map;
  * after successful authentication. It includes the NameID, attributes,
  * and session information.
  * 
+ * Instances are immutable and compact: attribute names are sorted and
+ * shared through {@link AttributeNames}, and all values live in a single
+ * flat array addressed by offsets. Sessions are serialized through a small
+ * {@link Externalizable} proxy.
+ * 
  * @author SAML SSO Sample App
  * @version 1.0.0
  */
-public class SAMLUserInfo {
+public final class SAMLUserInfo implements Serializable {
     
-    private String nameId;
-    private Map<String, List<String>> attributes;
-    private String sessionIndex;
-    private String notOnOrAfter;
-    private String notBefore;
+    private static final long serialVersionUID = 2L;
     
-    /**
-     * Default constructor
-     */
-    public SAMLUserInfo() {
-        // Default constructor
-    }
+    private static final String[] NO_STRINGS = new String[0];
+    private static final int[] NO_VALUES = {0};
+    
+    private final String nameId;
+    private final String sessionIndex;
+    private final String notOnOrAfter;
+    private final String notBefore;
+    
+    // Sorted, canonical attribute names
+    private final String[] names;
+    // Values of names[i] are values[offsets[i]] .. values[offsets[i + 1] - 1]
+    private final int[] offsets;
+    private final String[] values;
     
     /**
      * Constructor with basic user information
      * 
      * @param nameId the SAML NameID
-     * @param attributes user attributes from SAML assertion
+     * @param attributes user attributes from SAML assertion, copied
      * @param sessionIndex the session index
      */
     public SAMLUserInfo(String nameId, Map<String, List<String>> attributes, String sessionIndex) {
-        this.nameId = nameId;
-        this.attributes = attributes;
-        this.sessionIndex = sessionIndex;
+        this(nameId, attributes, sessionIndex, null, null);
     }
     
     /**
-     * Gets the SAML NameID (user identifier)
+     * Constructor with full user information
      * 
-     * @return the NameID
+     * @param nameId the SAML NameID
+     * @param attributes user attributes from SAML assertion, copied
+     * @param sessionIndex the session index
+     * @param notBefore the assertion validity start time
+     * @param notOnOrAfter the assertion validity end time
      */
-    public String getNameId() {
-        return nameId;
+    public SAMLUserInfo(String nameId, Map<String, List<String>> attributes, String sessionIndex,
+                        String notBefore, String notOnOrAfter) {
+        this.nameId = nameId;
+        this.sessionIndex = sessionIndex;
+        this.notBefore = notBefore;
+        this.notOnOrAfter = notOnOrAfter;
+        
+        if (attributes == null || attributes.isEmpty()) {
+            this.names = NO_STRINGS;
+            this.offsets = NO_VALUES;
+            this.values = NO_STRINGS;
+            return;
+        }
+        
+        String[] sortedNames = new String[attributes.size()];
+        int count = 0;
+        int valueCount = 0;
+        for (Map.Entry<String, List<String>> entry : attributes.entrySet()) {
+            if (entry.getKey() == null) {
+                continue;
+            }
+            sortedNames[count++] = entry.getKey();
+            if (entry.getValue() != null) {
+                valueCount += entry.getValue().size();
+            }
+        }
+        sortedNames = Arrays.copyOf(sortedNames, count);
+        Arrays.sort(sortedNames);
+        
+        int[] valueOffsets = new int[count + 1];
+        String[] flatValues = new String[valueCount];
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            List<String> attributeValues = attributes.get(sortedNames[i]);
+            valueOffsets[i] = position;
+            if (attributeValues != null) {
+                for (String value : attributeValues) {
+                    flatValues[position++] = value;
+                }
+            }
+            sortedNames[i] = AttributeNames.canonical(sortedNames[i]);
+        }
+        valueOffsets[count] = position;
+        
+        this.names = sortedNames;
+        this.offsets = valueOffsets;
+        this.values = position == valueCount ? flatValues : Arrays.copyOf(flatValues, position);
     }
     
     /**
-     * Sets the SAML NameID
-     * 
-     * @param nameId the NameID to set
+     * Constructor used by deserialization; arrays are already canonical and sorted
      */
-    public void setNameId(String nameId) {
+    private SAMLUserInfo(String nameId, String sessionIndex, String notBefore, String notOnOrAfter,
+                         String[] names, int[] offsets, String[] values) {
         this.nameId = nameId;
+        this.sessionIndex = sessionIndex;
+        this.notBefore = notBefore;
+        this.notOnOrAfter = notOnOrAfter;
+        this.names = names;
+        this.offsets = offsets;
+        this.values = values;
     }
     
     /**
-     * Gets the user attributes from SAML assertion
+     * Gets the SAML NameID (user identifier)
      * 
-     * @return map of attribute names to attribute values
+     * @return the NameID
      */
-    public Map<String, List<String>> getAttributes() {
-        return attributes;
+    public String getNameId() {
+        return nameId;
     }
     
     /**
-     * Sets the user attributes
+     * Gets the user attributes from SAML assertion as a read-only view
      * 
-     * @param attributes the attributes to set
+     * @return map of attribute names to attribute values, sorted by name
      */
-    public void setAttributes(Map<String, List<String>> attributes) {
-        this.attributes = attributes;
+    public Map<String, List<String>> getAttributes() {
+        return new AttributeMap();
     }
     
     /**
@@ -86,15 +162,6 @@ public class SAMLUserInfo {
         return sessionIndex;
     }
     
-    /**
-     * Sets the SAML session index
-     * 
-     * @param sessionIndex the session index to set
-     */
-    public void setSessionIndex(String sessionIndex) {
-        this.sessionIndex = sessionIndex;
-    }
-    
     /**
      * Gets the assertion validity end time
      * 
@@ -104,15 +171,6 @@ public class SAMLUserInfo {
         return notOnOrAfter;
     }
     
-    /**
-     * Sets the assertion validity end time
-     * 
-     * @param notOnOrAfter the notOnOrAfter timestamp to set
-     */
-    public void setNotOnOrAfter(String notOnOrAfter) {
-        this.notOnOrAfter = notOnOrAfter;
-    }
-    
     /**
      * Gets the assertion validity start time
      * 
@@ -123,12 +181,12 @@ public class SAMLUserInfo {
     }
     
     /**
-     * Sets the assertion validity start time
+     * Gets the number of attributes
      * 
-     * @param notBefore the notBefore timestamp to set
+     * @return the attribute count
      */
-    public void setNotBefore(String notBefore) {
-        this.notBefore = notBefore;
+    public int getAttributeCount() {
+        return names.length;
     }
     
     /**
@@ -138,11 +196,9 @@ public class SAMLUserInfo {
      * @return the first value of the attribute, or null if not found
      */
     public String getAttributeValue(String attributeName) {
-        if (attributes != null && attributes.containsKey(attributeName)) {
-            List<String> values = attributes.get(attributeName);
-            if (values != null && !values.isEmpty()) {
-                return values.get(0);
-            }
+        int index = indexOf(attributeName);
+        if (index >= 0 && offsets[index] < offsets[index + 1]) {
+            return values[offsets[index]];
         }
         return null;
     }
@@ -151,13 +207,11 @@ public class SAMLUserInfo {
      * Gets all values for a specific attribute
      * 
      * @param attributeName the name of the attribute
-     * @return list of attribute values, or null if not found
+     * @return read-only list of attribute values, or null if not found
      */
     public List<String> getAttributeValues(String attributeName) {
-        if (attributes != null && attributes.containsKey(attributeName)) {
-            return attributes.get(attributeName);
-        }
-        return null;
+        int index = indexOf(attributeName);
+        return index >= 0 ? valuesAt(index) : null;
     }
     
     /**
@@ -167,11 +221,23 @@ public class SAMLUserInfo {
      * @return true if the attribute exists and has values
      */
     public boolean hasAttribute(String attributeName) {
-        if (attributes != null && attributes.containsKey(attributeName)) {
-            List<String> values = attributes.get(attributeName);
-            return values != null && !values.isEmpty();
+        int index = indexOf(attributeName);
+        return index >= 0 && offsets[index] < offsets[index + 1];
+    }
+    
+    /**
+     * Finds an attribute with a single binary search over the sorted names
+     */
+    private int indexOf(String attributeName) {
+        if (attributeName == null || names.length == 0) {
+            return -1;
         }
-        return false;
+        int index = Arrays.binarySearch(names, attributeName);
+        return index >= 0 ? index : -1;
+    }
+    
+    private List<String> valuesAt(int index) {
+        return Collections.unmodifiableList(Arrays.asList(values).subList(offsets[index], offsets[index + 1]));
     }
     
     @Override
@@ -179,7 +245,156 @@ public class SAMLUserInfo {
         return "SAMLUserInfo{" +
                 "nameId='" + nameId + '\'' +
                 ", sessionIndex='" + sessionIndex + '\'' +
-                ", attributesCount=" + (attributes != null ? attributes.size() : 0) +
+                ", attributesCount=" + names.length +
                 '}';
     }
-} 
\ No newline at end of file
+    
+    private Object writeReplace() {
+        return new SerializedForm(this);
+    }
+    
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("SAMLUserInfo must be deserialized through its serialized form");
+    }
+    
+    /**
+     * Read-only map view over the flat attribute arrays
+     */
+    private final class AttributeMap extends AbstractMap<String, List<String>> {
+        
+        @Override
+        public int size() {
+            return names.length;
+        }
+        
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && indexOf((String) key) >= 0;
+        }
+        
+        @Override
+        public List<String> get(Object key) {
+            return key instanceof String ? getAttributeValues((String) key) : null;
+        }
+        
+        @Override
+        public Set<Entry<String, List<String>>> entrySet() {
+            return new AbstractSet<Entry<String, List<String>>>() {
+                @Override
+                public int size() {
+                    return names.length;
+                }
+                
+                @Override
+                public Iterator<Entry<String, List<String>>> iterator() {
+                    return new Iterator<Entry<String, List<String>>>() {
+                        private int next = 0;
+                        
+                        @Override
+                        public boolean hasNext() {
+                            return next < names.length;
+                        }
+                        
+                        @Override
+                        public Entry<String, List<String>> next() {
+                            if (next >= names.length) {
+                                throw new NoSuchElementException();
+                            }
+                            int index = next++;
+                            return new SimpleImmutableEntry<>(names[index], valuesAt(index));
+                        }
+                    };
+                }
+            };
+        }
+    }
+    
+    /**
+     * Compact wire form used for session persistence and replication.
+     * Layout: version, four nullable strings, attribute count, then per
+     * attribute its name, value count and values, in {@link WireFormat}.
+     */
+    private static final class SerializedForm implements Externalizable {
+        
+        private static final long serialVersionUID = 1L;
+        private static final byte VERSION = 2;
+        
+        private SAMLUserInfo userInfo;
+        
+        /**
+         * Required by {@link Externalizable}
+         */
+        public SerializedForm() {
+            // Filled in by readExternal
+        }
+        
+        SerializedForm(SAMLUserInfo userInfo) {
+            this.userInfo = userInfo;
+        }
+        
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeByte(VERSION);
+            WireFormat.writeNullable(out, userInfo.nameId);
+            WireFormat.writeNullable(out, userInfo.sessionIndex);
+            WireFormat.writeNullable(out, userInfo.notBefore);
+            WireFormat.writeNullable(out, userInfo.notOnOrAfter);
+            WireFormat.writeCount(out, userInfo.names.length);
+            for (int i = 0; i < userInfo.names.length; i++) {
+                WireFormat.writeString(out, userInfo.names[i]);
+                int from = userInfo.offsets[i];
+                int to = userInfo.offsets[i + 1];
+                WireFormat.writeCount(out, to - from);
+                for (int v = from; v < to; v++) {
+                    WireFormat.writeNullable(out, userInfo.values[v]);
+                }
+            }
+        }
+        
+        @Override
+        public void readExternal(ObjectInput in) throws IOException {
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new InvalidObjectException("Unsupported SAMLUserInfo version: " + version);
+            }
+            String nameId = WireFormat.readNullable(in);
+            String sessionIndex = WireFormat.readNullable(in);
+            String notBefore = WireFormat.readNullable(in);
+            String notOnOrAfter = WireFormat.readNullable(in);
+            
+            int count = WireFormat.readCount(in);
+            if (count == 0) {
+                userInfo = new SAMLUserInfo(nameId, sessionIndex, notBefore, notOnOrAfter, NO_STRINGS, NO_VALUES,
+                        NO_STRINGS);
+                return;
+            }
+            String[] names = new String[count];
+            int[] offsets = new int[count + 1];
+            String[] values = new String[Math.max(count, 4)];
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                names[i] = AttributeNames.canonical(WireFormat.readString(in));
+                if (i > 0 && names[i - 1].compareTo(names[i]) >= 0) {
+                    throw new InvalidObjectException("SAMLUserInfo attribute names are not sorted");
+                }
+                offsets[i] = position;
+                int valueCount = WireFormat.readCount(in);
+                for (int v = 0; v < valueCount; v++) {
+                    // Grown as values arrive, not by the count, which only the stream vouches for
+                    if (position == values.length) {
+                        values = Arrays.copyOf(values, values.length * 2);
+                    }
+                    values[position++] = WireFormat.readNullable(in);
+                }
+            }
+            offsets[count] = position;
+            
+            userInfo = new SAMLUserInfo(nameId, sessionIndex, notBefore, notOnOrAfter, names, offsets,
+                    position == 0 ? NO_STRINGS : Arrays.copyOf(values, position));
+        }
+        
+        private Object readResolve() {
+            return userInfo;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.sample.saml.service;
+
+import com.sample.saml.metrics.LatencyHistogram;
+import com.sample.saml.metrics.SAMLMetrics;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission Control
+ * 
+ * Load shedding in front of the endpoints that verify signatures, /saml/acs
+ * and /saml/sls, so a burst of posts cannot take every core away from the
+ * rest of the application. A request is admitted in two steps:
+ * <ol>
+ *   <li>the client's token bucket must hold a token: each client address
+ *       may start {@code clientRate} requests per second, with bursts of up
+ *       to {@code clientBurst};</li>
+ *   <li>one of {@code maxConcurrent} permits, by default one per CPU, must
+ *       be free or become free within {@code maxWait}; at most
+ *       {@code queueCapacity} requests wait for one, in arrival order.</li>
+ * </ol>
+ * A request that is not admitted gets a {@link Ticket} saying why and when
+ * to retry, and the endpoint answers 503 with Retry-After at once.
+ * 
+ * The client address is the remote address, or the last entry of
+ * {@code clientAddressHeader} as appended by a trusted proxy. Behind a proxy
+ * without that header every client has the proxy's address and shares its
+ * bucket, so the per-client limit is only configured where it is set.
+ * 
+ * Buckets are kept as the theoretical arrival time of the next request
+ * (GCRA), one CAS per request. A client idle long enough for its bucket to
+ * be full again is the same as a new one, so such buckets are swept out;
+ * beyond {@code maxClients} active clients, new ones are not rate limited
+ * until a sweep frees room (the concurrency limit still applies).
+ * 
+ * Rejections, permits in use, queue depth and tracked clients are exported
+ * through {@link SAMLMetrics} by {@link #registerMetrics()}.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class AdmissionControl {
+    
+    private static final LongAdder ADMITTED = SAMLMetrics.counter("admission", "admitted", "none");
+    private static final LongAdder REJECTED_CLIENT_RATE = SAMLMetrics.counter("admission", "rejected", "client_rate");
+    private static final LongAdder REJECTED_QUEUE_FULL = SAMLMetrics.counter("admission", "rejected", "queue_full");
+    private static final LongAdder REJECTED_WAIT_TIMEOUT = SAMLMetrics.counter("admission", "rejected", "wait_timeout");
+    private static final LatencyHistogram WAIT = SAMLMetrics.histogram("admission", "wait");
+    
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    
+    private final boolean enabled;
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final int maxClients;
+    private final String clientAddressHeader;
+    private final int maxConcurrent;
+    private final int queueCapacity;
+    private final long maxWaitNanos;
+    
+    private final Semaphore permits;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+    
+    /**
+     * Constructor
+     * 
+     * @param enabled false to admit every request
+     * @param clientRate requests per second each client may start; 0 or less disables the per-client limit
+     * @param clientBurst requests a client may start at once
+     * @param maxClients number of client buckets kept
+     * @param clientAddressHeader header whose last entry is the client address (e.g. X-Forwarded-For
+     *        set by a trusted proxy), or null to use the remote address
+     * @param maxConcurrent requests processed at once; 0 or less uses the number of CPUs
+     * @param queueCapacity requests that may wait for a permit
+     * @param maxWaitMillis how long a request waits for a permit
+     */
+    public AdmissionControl(boolean enabled, double clientRate, int clientBurst, int maxClients,
+                            String clientAddressHeader, int maxConcurrent, int queueCapacity, long maxWaitMillis) {
+        if (clientBurst < 1 || maxClients < 1 || queueCapacity < 0 || maxWaitMillis < 0) {
+            throw new IllegalArgumentException("Invalid admission control limits");
+        }
+        this.enabled = enabled;
+        this.nanosPerToken = clientRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / clientRate) : 0;
+        this.burstNanos = nanosPerToken * clientBurst;
+        this.maxClients = maxClients;
+        this.clientAddressHeader = clientAddressHeader != null && !clientAddressHeader.trim().isEmpty()
+                ? clientAddressHeader.trim() : null;
+        this.maxConcurrent = maxConcurrent > 0 ? maxConcurrent : Runtime.getRuntime().availableProcessors();
+        this.queueCapacity = queueCapacity;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.permits = new Semaphore(this.maxConcurrent, true);
+    }
+    
+    /**
+     * Admits a request from the client it came from
+     * 
+     * @param request the HTTP request
+     * @return the ticket; close it when the request is done
+     */
+    public Ticket admit(HttpServletRequest request) {
+        return admit(clientAddress(request));
+    }
+    
+    /**
+     * Admits a request from a client, waiting up to the configured time for a permit
+     * 
+     * @param client the client address
+     * @return the ticket; close it when the request is done
+     */
+    public Ticket admit(String client) {
+        if (!enabled) {
+            return new Ticket(null, null, 0);
+        }
+        
+        long now = System.nanoTime();
+        long retryNanos = takeToken(client, now);
+        if (retryNanos > 0) {
+            REJECTED_CLIENT_RATE.increment();
+            return new Ticket(null, "client_rate", retryAfterSeconds(retryNanos));
+        }
+        
+        try {
+            // Timed, so a fair semaphore does not let this request barge past the waiting ones
+            if (permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                ADMITTED.increment();
+                return new Ticket(this, null, 0);
+            }
+            if (waiting.incrementAndGet() > queueCapacity) {
+                waiting.decrementAndGet();
+                REJECTED_QUEUE_FULL.increment();
+                return new Ticket(null, "queue_full", retryAfterSeconds(maxWaitNanos));
+            }
+            try {
+                if (permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS)) {
+                    ADMITTED.increment();
+                    return new Ticket(this, null, 0);
+                }
+            } finally {
+                waiting.decrementAndGet();
+                WAIT.recordSince(now);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        REJECTED_WAIT_TIMEOUT.increment();
+        return new Ticket(null, "wait_timeout", retryAfterSeconds(maxWaitNanos));
+    }
+    
+    /**
+     * Takes a token from the client's bucket
+     * 
+     * @return 0 if taken, otherwise nanoseconds until one is available
+     */
+    private long takeToken(String client, long now) {
+        if (nanosPerToken == 0) {
+            return 0;
+        }
+        AtomicLong bucket = buckets.get(client);
+        if (bucket == null) {
+            sweep(now);
+            if (buckets.size() >= maxClients) {
+                return 0;
+            }
+            bucket = buckets.computeIfAbsent(client, key -> new AtomicLong(now - burstNanos));
+        }
+        while (true) {
+            long next = bucket.get();
+            // The bucket is full when the next arrival is a whole burst in the past
+            long updated = Math.max(next, now - burstNanos) + nanosPerToken;
+            if (updated > now) {
+                return updated - now;
+            }
+            if (bucket.compareAndSet(next, updated)) {
+                return 0;
+            }
+        }
+    }
+    
+    /**
+     * Drops the buckets that have refilled, at most once per second
+     */
+    private void sweep(long now) {
+        long due = nextSweep.get();
+        if (now - due < 0 || !nextSweep.compareAndSet(due, now + SWEEP_INTERVAL_NANOS)) {
+            return;
+        }
+        buckets.values().removeIf(bucket -> bucket.get() + burstNanos <= now);
+    }
+    
+    private String clientAddress(HttpServletRequest request) {
+        if (clientAddressHeader != null) {
+            String forwarded = request.getHeader(clientAddressHeader);
+            if (forwarded != null && !forwarded.trim().isEmpty()) {
+                // The entry added by the trusted proxy; earlier ones are whatever the client sent
+                return forwarded.substring(forwarded.lastIndexOf(',') + 1).trim();
+            }
+        }
+        String remote = request.getRemoteAddr();
+        return remote != null ? remote : "unknown";
+    }
+    
+    private static long retryAfterSeconds(long nanos) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(nanos + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+    
+    /**
+     * Exports permits in use, queue depth and tracked clients as gauges of component "admission"
+     */
+    public void registerMetrics() {
+        SAMLMetrics.gauge("admission", "in_flight", () -> maxConcurrent - permits.availablePermits());
+        SAMLMetrics.gauge("admission", "queue_depth", waiting::get);
+        SAMLMetrics.gauge("admission", "clients", buckets::size);
+    }
+    
+    /**
+     * Gets the number of requests processed at once
+     * 
+     * @return the concurrency limit
+     */
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+    
+    /**
+     * Gets the number of requests waiting for a permit
+     * 
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return waiting.get();
+    }
+    
+    /**
+     * Outcome of an admission. An admitted request holds a permit until the
+     * ticket is closed; closing more than once, or closing a rejected
+     * ticket, does nothing.
+     */
+    public static final class Ticket implements AutoCloseable {
+        
+        private final AdmissionControl owner;
+        private final String rejection;
+        private final long retryAfterSeconds;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        
+        Ticket(AdmissionControl owner, String rejection, long retryAfterSeconds) {
+            this.owner = owner;
+            this.rejection = rejection;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+        
+        /**
+         * Checks whether the request may proceed
+         * 
+         * @return true if admitted
+         */
+        public boolean isAdmitted() {
+            return rejection == null;
+        }
+        
+        /**
+         * Gets why the request was not admitted
+         * 
+         * @return "client_rate", "queue_full" or "wait_timeout", or null if admitted
+         */
+        public String getRejection() {
+            return rejection;
+        }
+        
+        /**
+         * Gets when the client should retry
+         * 
+         * @return seconds for the Retry-After header
+         */
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+        
+        /**
+         * Releases the permit
+         */
+        @Override
+        public void close() {
+            if (owner != null && closed.compareAndSet(false, true)) {
+                owner.permits.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.sample.saml.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Assertion Replay Cache
+ * 
+ * Remembers the IDs of accepted assertions until their NotOnOrAfter time so
+ * a replayed SAMLResponse is rejected. The cache is a ring of time slots;
+ * each slot owns an insert-only, open-addressed table of 64-bit ID hashes in
+ * a primitive {@link AtomicLongArray}. Because an assertion's slot is derived
+ * from its own NotOnOrAfter, a replay always lands in the same table, so
+ * duplicate detection needs no deletes and no per-entry objects: whole slots
+ * are dropped at once when their time has passed. Lookups take no lock;
+ * inserts lock only their slot.
+ * 
+ * A slot's table starts small and doubles as it fills, up to four entries
+ * per assertion of {@code slotCapacity}, so memory follows the login rate:
+ * about 16 to 32 bytes per assertion held, and at most
+ * {@code 32 * slotCapacity} bytes per slot across
+ * {@code (horizon + skew) / slot + 2} slots.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class AssertionReplayCache {
+    
+    private static final long EMPTY = 0L;
+    private static final int INITIAL_TABLE_SIZE = 64;
+    
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    });
+    
+    private final long slotMillis;
+    private final long horizonMillis;
+    private final long clockSkewMillis;
+    private final int slotCapacity;
+    private final int tableSize;
+    private final AtomicReferenceArray<Slot> ring;
+    
+    private final LongAdder replays = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+    
+    /**
+     * Constructor
+     * 
+     * @param slotSeconds width of one time slot
+     * @param horizonSeconds longest assertion lifetime that can be tracked
+     * @param clockSkewSeconds extra time an entry is kept after its NotOnOrAfter
+     * @param slotCapacity maximum number of assertions accepted per slot
+     */
+    public AssertionReplayCache(int slotSeconds, int horizonSeconds, int clockSkewSeconds, int slotCapacity) {
+        this(slotSeconds, horizonSeconds, clockSkewSeconds, slotCapacity, 0);
+    }
+    
+    /**
+     * Constructor for clocks that do not only move forward, such as tools
+     * replaying old responses in parallel, each at its own time. The ring
+     * keeps slots for {@code retentionSeconds} of NotOnOrAfter times, so an
+     * assertion older than the latest one seen is still found.
+     * 
+     * @param slotSeconds width of one time slot
+     * @param horizonSeconds longest assertion lifetime that can be tracked
+     * @param clockSkewSeconds extra time an entry is kept after its NotOnOrAfter
+     * @param slotCapacity maximum number of assertions accepted per slot
+     * @param retentionSeconds span of NotOnOrAfter times kept at once; at least horizon plus skew
+     */
+    public AssertionReplayCache(int slotSeconds, int horizonSeconds, int clockSkewSeconds, int slotCapacity,
+                                long retentionSeconds) {
+        if (slotSeconds <= 0 || horizonSeconds <= 0 || clockSkewSeconds < 0 || slotCapacity <= 0
+                || retentionSeconds < 0) {
+            throw new IllegalArgumentException("Invalid replay cache sizing");
+        }
+        this.slotMillis = slotSeconds * 1000L;
+        this.horizonMillis = horizonSeconds * 1000L;
+        this.clockSkewMillis = clockSkewSeconds * 1000L;
+        this.slotCapacity = slotCapacity;
+        // Largest table: a power of two, at most half full at capacity
+        this.tableSize = Integer.highestOneBit(Math.max(2, slotCapacity) - 1) << 2;
+        long retentionMillis = Math.max(horizonMillis + clockSkewMillis, retentionSeconds * 1000L);
+        if (retentionMillis / slotMillis > Integer.MAX_VALUE - 2) {
+            throw new IllegalArgumentException("Invalid replay cache sizing");
+        }
+        int slots = (int) (retentionMillis / slotMillis) + 2;
+        this.ring = new AtomicReferenceArray<>(slots);
+    }
+    
+    /**
+     * Checks, without recording anything, whether an assertion was already accepted.
+     * Intended as a cheap pre-check before signature validation.
+     * 
+     * @param assertionId the assertion ID
+     * @param notOnOrAfter the assertion expiry in epoch milliseconds
+     * @return true if the assertion was already accepted
+     */
+    public boolean isReplay(String assertionId, long notOnOrAfter) {
+        if (assertionId == null || notOnOrAfter == Long.MAX_VALUE) {
+            return false;
+        }
+        long slotId = Math.floorDiv(notOnOrAfter, slotMillis);
+        Slot slot = ring.get(index(slotId));
+        if (slot == null || slot.id != slotId) {
+            return false;
+        }
+        boolean replay = slot.contains(hash(assertionId));
+        if (replay) {
+            replays.increment();
+        }
+        return replay;
+    }
+    
+    /**
+     * Records a verified assertion
+     * 
+     * @param assertionId the assertion ID
+     * @param notOnOrAfter the assertion expiry in epoch milliseconds
+     * @param now the current time in epoch milliseconds
+     * @return true if recorded, false if the same assertion was already accepted
+     * @throws IllegalStateException if the assertion cannot be tracked (lifetime
+     *         beyond the horizon, already expired or slot full); callers must
+     *         reject the response
+     */
+    public boolean markUsed(String assertionId, long notOnOrAfter, long now) {
+        if (assertionId == null) {
+            throw new IllegalStateException("Assertion has no ID");
+        }
+        if (notOnOrAfter == Long.MAX_VALUE) {
+            throw new IllegalStateException("Assertion has no NotOnOrAfter");
+        }
+        if (notOnOrAfter - now > horizonMillis) {
+            throw new IllegalStateException("Assertion lifetime exceeds replay cache horizon");
+        }
+        if (notOnOrAfter + clockSkewMillis < now) {
+            // Its slot may already be reused, so a replay could not be caught later
+            throw new IllegalStateException("Assertion has already expired");
+        }
+        
+        long slotId = Math.floorDiv(notOnOrAfter, slotMillis);
+        int index = index(slotId);
+        while (true) {
+            Slot slot = ring.get(index);
+            if (slot == null || slot.id < slotId) {
+                // Empty or holding a slot whose time has passed: replace it wholesale
+                if (!ring.compareAndSet(index, slot, new Slot(slotId, tableSize))) {
+                    continue;
+                }
+                slot = ring.get(index);
+            }
+            if (slot.id != slotId) {
+                // A newer slot took over this position, so this one has already expired
+                throw new IllegalStateException("Assertion has already expired");
+            }
+            int result = slot.insert(hash(assertionId), slotCapacity);
+            if (result < 0) {
+                overflows.increment();
+                throw new IllegalStateException("Assertion replay cache slot is full");
+            }
+            if (result == 0) {
+                replays.increment();
+                return false;
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Gets the number of replays detected
+     * 
+     * @return the replay count
+     */
+    public long getReplayCount() {
+        return replays.sum();
+    }
+    
+    /**
+     * Gets the number of assertions rejected because a slot was full
+     * 
+     * @return the overflow count
+     */
+    public long getOverflowCount() {
+        return overflows.sum();
+    }
+    
+    /**
+     * Gets the number of assertions currently tracked, including expired slots not yet reused
+     * 
+     * @return the approximate entry count
+     */
+    public long size() {
+        long total = 0;
+        for (int i = 0; i < ring.length(); i++) {
+            Slot slot = ring.get(i);
+            if (slot != null) {
+                total += slot.size.get();
+            }
+        }
+        return total;
+    }
+    
+    private int index(long slotId) {
+        return (int) Math.floorMod(slotId, (long) ring.length());
+    }
+    
+    private static long hash(String assertionId) {
+        MessageDigest digest = digests.get();
+        byte[] bytes = digest.digest(assertionId.getBytes(StandardCharsets.UTF_8));
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        // Zero marks an empty table entry
+        return value == EMPTY ? 1L : value;
+    }
+    
+    /**
+     * One time slot: an insert-only open-addressed set of ID hashes, whose
+     * table is replaced by one twice its size when half full
+     */
+    private static final class Slot {
+        
+        private final long id;
+        private final int maxTableSize;
+        private final AtomicInteger size = new AtomicInteger();
+        // Replaced under the slot's lock, only after the new table holds every key
+        private volatile AtomicLongArray keys;
+        
+        private Slot(long id, int maxTableSize) {
+            this.id = id;
+            this.maxTableSize = maxTableSize;
+            this.keys = new AtomicLongArray(Math.min(INITIAL_TABLE_SIZE, maxTableSize));
+        }
+        
+        private boolean contains(long key) {
+            return find(keys, key) >= 0;
+        }
+        
+        /**
+         * @return 1 if inserted, 0 if already present, -1 if the slot is full
+         */
+        private synchronized int insert(long key, int capacity) {
+            AtomicLongArray table = keys;
+            int index = find(table, key);
+            if (index >= 0) {
+                return 0;
+            }
+            if (size.get() >= capacity) {
+                return -1;
+            }
+            if (size.get() + 1 > table.length() / 2) {
+                if (table.length() >= maxTableSize) {
+                    return -1;
+                }
+                table = grow(table);
+                index = find(table, key);
+            }
+            table.set(~index, key);
+            size.incrementAndGet();
+            return 1;
+        }
+        
+        private AtomicLongArray grow(AtomicLongArray table) {
+            AtomicLongArray grown = new AtomicLongArray(table.length() * 2);
+            for (int i = 0; i < table.length(); i++) {
+                long key = table.get(i);
+                if (key != EMPTY) {
+                    grown.set(~find(grown, key), key);
+                }
+            }
+            keys = grown;
+            return grown;
+        }
+        
+        /**
+         * @return the index of the key, or the complement of the empty entry it would go in
+         */
+        private static int find(AtomicLongArray table, long key) {
+            int mask = table.length() - 1;
+            int index = (int) (key ^ (key >>> 32)) & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                long current = table.get(index);
+                if (current == key) {
+                    return index;
+                }
+                if (current == EMPTY) {
+                    return ~index;
+                }
+                index = (index + 1) & mask;
+            }
+            // Never reached: a table is at most half full
+            return ~index;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.sample.saml.service;
+
+import com.onelogin.saml2.settings.Saml2Settings;
+import com.onelogin.saml2.util.Util;
+import com.sample.saml.util.IdPKeyMaterial;
+import com.sample.saml.util.IdPMetadata;
+import org.w3c.dom.Document;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * IdP Signing Keys
+ * 
+ * The verification keys of one {@link IdPMetadata} snapshot, each with
+ * toolkit settings that trust that key alone, kept in most recently
+ * successful order. A response is validated against the front key first,
+ * so in steady state, and after a rollover once the new key has verified
+ * one response, it costs exactly one signature check. Only when the front
+ * key fails are the others tried against the already parsed document, and
+ * the one that verifies moves to the front.
+ * 
+ * A snapshot built after a metadata refresh starts from the order of the
+ * one it replaces. The order is an immutable array replaced on change, so
+ * readers never lock; a lost update between two racing promotions only
+ * costs one more fallback on a later response.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+final class IdPSigningKeys {
+    
+    private final IdPMetadata metadata;
+    private final List<IdPKeyMaterial> keys;
+    private final Saml2Settings[] settings;
+    private final Saml2Settings allKeysSettings;
+    
+    private volatile int[] order;
+    
+    /**
+     * Constructor
+     * 
+     * @param metadata the metadata snapshot
+     * @param previous the keys of the previous snapshot, whose order carries over to keys still listed; may be null
+     * @param build builds settings trusting the given certificates, the first one as the main IdP certificate
+     */
+    IdPSigningKeys(IdPMetadata metadata, IdPSigningKeys previous,
+                   Function<List<X509Certificate>, Saml2Settings> build) {
+        this.metadata = metadata;
+        this.keys = metadata.getSigningKeys();
+        this.settings = new Saml2Settings[keys.size()];
+        List<X509Certificate> certificates = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            X509Certificate certificate = keys.get(i).getCertificate();
+            settings[i] = build.apply(Collections.singletonList(certificate));
+            certificates.add(certificate);
+        }
+        this.allKeysSettings = keys.size() == 1 ? settings[0] : build.apply(certificates);
+        this.order = initialOrder(previous);
+    }
+    
+    /**
+     * Keys of the previous snapshot first, in their order, then new keys in metadata order
+     */
+    private int[] initialOrder(IdPSigningKeys previous) {
+        Map<String, Integer> rank = new HashMap<>();
+        if (previous != null) {
+            int[] previousOrder = previous.order;
+            for (int i = 0; i < previousOrder.length; i++) {
+                rank.put(previous.keys.get(previousOrder[i]).getFingerprint(), i);
+            }
+        }
+        Comparator<Integer> byRank = Comparator.comparingInt(
+                key -> rank.getOrDefault(keys.get(key).getFingerprint(), Integer.MAX_VALUE));
+        return IntStream.range(0, keys.size()).boxed().sorted(byRank).mapToInt(Integer::intValue).toArray();
+    }
+    
+    /**
+     * Gets the metadata snapshot the keys came from
+     * 
+     * @return the snapshot
+     */
+    IdPMetadata getMetadata() {
+        return metadata;
+    }
+    
+    /**
+     * Gets the number of keys
+     * 
+     * @return the key count
+     */
+    int size() {
+        return keys.size();
+    }
+    
+    /**
+     * Gets the key to try first
+     * 
+     * @return the index of the most recently successful key
+     */
+    int preferred() {
+        return order[0];
+    }
+    
+    /**
+     * Gets the settings that trust one key
+     * 
+     * @param key the key index
+     * @return the settings
+     */
+    Saml2Settings getSettings(int key) {
+        return settings[key];
+    }
+    
+    /**
+     * Gets settings that trust every key, for messages the toolkit verifies on its own (logout)
+     * 
+     * @return the settings
+     */
+    Saml2Settings getAllKeysSettings() {
+        return allKeysSettings;
+    }
+    
+    /**
+     * Finds which key signed a response whose signature the given key did not verify,
+     * trying the others in most recently successful order, and moves it to the front
+     * 
+     * @param document the parsed (and decrypted) response
+     * @param failed the key that was already tried
+     * @return the index of the signing key, or -1 if none verifies the signature
+     * @throws Exception if the signature cannot be located
+     */
+    int findSigner(Document document, int failed) throws Exception {
+        String xpath = Util.query(document, Util.RESPONSE_SIGNATURE_XPATH).getLength() > 0
+                ? Util.RESPONSE_SIGNATURE_XPATH : Util.ASSERTION_SIGNATURE_XPATH;
+        for (int key : order) {
+            if (key != failed && Util.validateSign(document,
+                    Collections.singletonList(keys.get(key).getCertificate()), null, null, xpath)) {
+                promote(key);
+                return key;
+            }
+        }
+        return -1;
+    }
+    
+    private void promote(int key) {
+        int[] current = order;
+        if (current[0] == key) {
+            return;
+        }
+        int[] updated = new int[current.length];
+        updated[0] = key;
+        int next = 1;
+        for (int other : current) {
+            if (other != key) {
+                updated[next++] = other;
+            }
+        }
+        order = updated;
+    }
+}
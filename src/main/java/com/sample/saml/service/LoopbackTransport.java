@@ -0,0 +1,117 @@
+package com.sample.saml.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Loopback Transport
+ * 
+ * An in-process {@link ReplicationTransport}: the nodes of a group are
+ * replicators in the same JVM, such as several webapps of one container
+ * or the simulated nodes of a test. Each node has a delivery thread of its
+ * own, so a publisher never waits for a receiver, and receives a copy of
+ * every batch, as it would from a network. Transports made with the
+ * no-argument constructor share one group for the JVM.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class LoopbackTransport implements ReplicationTransport {
+    
+    private static final Logger logger = LoggerFactory.getLogger(LoopbackTransport.class);
+    
+    private static final Set<LoopbackTransport> JVM_GROUP = new CopyOnWriteArraySet<>();
+    
+    private final Set<LoopbackTransport> group;
+    private volatile Consumer<byte[]> receiver;
+    private volatile ExecutorService delivery;
+    
+    /**
+     * Constructor joining the group of the JVM
+     */
+    public LoopbackTransport() {
+        this(JVM_GROUP);
+    }
+    
+    /**
+     * Constructor joining a group of its own
+     * 
+     * @param group the group, from {@link #newGroup()}
+     */
+    public LoopbackTransport(Set<LoopbackTransport> group) {
+        this.group = group;
+    }
+    
+    /**
+     * Creates an empty group, for transports that must not see the JVM's
+     * 
+     * @return the group
+     */
+    public static Set<LoopbackTransport> newGroup() {
+        return new CopyOnWriteArraySet<>();
+    }
+    
+    /**
+     * Joins the group and starts this node's delivery thread
+     * 
+     * @param nodeId the name of this node, for the thread
+     * @param receiver receives the batches of the other members
+     */
+    @Override
+    public void start(String nodeId, Consumer<byte[]> receiver) {
+        this.receiver = receiver;
+        this.delivery = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "saml-replication-loopback-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        group.add(this);
+    }
+    
+    /**
+     * Queues a copy of the batch on the delivery thread of every other member
+     * 
+     * @param batch the batch
+     */
+    @Override
+    public void publish(byte[] batch) {
+        for (LoopbackTransport member : group) {
+            if (member != this) {
+                member.deliver(batch.clone());
+            }
+        }
+    }
+    
+    /**
+     * Leaves the group; batches not yet delivered are dropped
+     */
+    @Override
+    public void close() {
+        group.remove(this);
+        ExecutorService executor = delivery;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+    
+    private void deliver(byte[] batch) {
+        try {
+            delivery.execute(() -> {
+                try {
+                    receiver.accept(batch);
+                } catch (RuntimeException e) {
+                    logger.warn("Replication batch failed to apply", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed while the batch was published
+        }
+    }
+}
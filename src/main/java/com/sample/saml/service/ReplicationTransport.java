@@ -0,0 +1,42 @@
+package com.sample.saml.service;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Replication Transport
+ * 
+ * Carries the batches of a {@link SessionReplicator} between the nodes of
+ * a cluster. A batch is an opaque byte array; a transport delivers each
+ * one published by a node to every other node, in the order published,
+ * and need not deliver it back to its sender. Implementations are named by
+ * {@code app.session.replication.transport} and need a public no-argument
+ * constructor; {@link LoopbackTransport} connects the nodes of one JVM.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public interface ReplicationTransport {
+    
+    /**
+     * Joins the cluster
+     * 
+     * @param nodeId the name of this node
+     * @param receiver receives the batches of the other nodes, one at a time
+     * @throws IOException if the cluster cannot be joined
+     */
+    void start(String nodeId, Consumer<byte[]> receiver) throws IOException;
+    
+    /**
+     * Sends a batch to the other nodes; the array is not changed afterwards
+     * 
+     * @param batch the batch
+     * @throws IOException if the batch cannot be sent
+     */
+    void publish(byte[] batch) throws IOException;
+    
+    /**
+     * Leaves the cluster; nothing is delivered after this returns
+     */
+    void close();
+}
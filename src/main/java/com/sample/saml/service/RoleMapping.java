@@ -0,0 +1,298 @@
+package com.sample.saml.service;
+
+import com.sample.saml.metrics.SAMLMetrics;
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.util.ConfigSnapshot;
+import com.sample.saml.util.SAMLConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Role Mapping
+ * 
+ * Attribute-to-role rules, compiled once per configuration snapshot from
+ * {@code app.roles.rule.<role>} properties. A rule is a list of conditions
+ * separated by {@code |}, and grants its role when any of them holds:
+ * <ul>
+ *   <li>{@code <attribute>=<value>} - the attribute has this value</li>
+ *   <li>{@code <attribute>^=<prefix>} - one of its values starts with the prefix</li>
+ *   <li>{@code <attribute>} - the attribute is present</li>
+ * </ul>
+ * Values of {@code app.roles.attribute} that name a role are granted as
+ * that role as well, which is how "role" routes in saml-routes.conf worked
+ * before rules existed.
+ * 
+ * Roles are numbered once per JVM by the first rule or route that names
+ * them, so a {@link RoleSet} is a bitset and a route's roles a mask, and
+ * both stay valid across reloads. Conditions are grouped by attribute:
+ * evaluating a user reads only the attributes rules name, with one hash
+ * lookup per value for all exact conditions on the attribute together.
+ * The result is evaluated at login and kept in the session; a reload
+ * compiles a new mapping, and sessions are evaluated again on their next
+ * role check.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class RoleMapping {
+    
+    private static final Logger logger = LoggerFactory.getLogger(RoleMapping.class);
+    
+    /**
+     * Prefix of the rule properties; the rest of the key is the role name
+     */
+    public static final String RULE_PREFIX = "app.roles.rule.";
+    
+    private static final long[] NO_BITS = new long[0];
+    
+    // Role numbers, assigned under the class lock and never reused
+    private static final ConcurrentMap<String, Integer> numbers = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[0];
+    
+    private static final LongAdder EVALUATED = SAMLMetrics.counter("roles", "evaluated", "none");
+    
+    private final AttributeRule[] rules;
+    private final String roleAttribute;
+    private final int ruleCount;
+    
+    /**
+     * Compiles the rules of a configuration snapshot
+     * 
+     * @param config the configuration snapshot
+     * @throws IllegalArgumentException if a rule is malformed
+     */
+    public RoleMapping(ConfigSnapshot config) {
+        Map<String, String> rules = new LinkedHashMap<>();
+        for (String key : config.getPropertyNames(RULE_PREFIX)) {
+            rules.put(key.substring(RULE_PREFIX.length()), config.getProperty(key));
+        }
+        this.roleAttribute = config.getProperty("app.roles.attribute", "Role").trim();
+        
+        Map<String, AttributeRule> byAttribute = new LinkedHashMap<>();
+        for (Map.Entry<String, String> rule : rules.entrySet()) {
+            String role = rule.getKey();
+            long[] mask = mask(role);
+            for (String condition : rule.getValue().split("\\|")) {
+                compile(role, condition.trim(), mask, byAttribute);
+            }
+        }
+        for (AttributeRule rule : byAttribute.values()) {
+            rule.freeze();
+        }
+        this.rules = byAttribute.values().toArray(new AttributeRule[0]);
+        this.ruleCount = rules.size();
+        if (ruleCount > 0) {
+            logger.info("Compiled {} role rules over {} attributes (config version {})", ruleCount,
+                    this.rules.length, config.getVersion());
+        }
+    }
+    
+    /**
+     * Returns the mapping of the current configuration snapshot
+     * 
+     * @return the shared mapping
+     */
+    public static RoleMapping getInstance() {
+        return SAMLConfig.getSnapshot().getDerived(RoleMapping.class, RoleMapping::new);
+    }
+    
+    /**
+     * Evaluates the rules against a user's attributes
+     * 
+     * @param userInfo the authenticated user
+     * @return the granted roles
+     */
+    public RoleSet evaluate(SAMLUserInfo userInfo) {
+        EVALUATED.increment();
+        long[] bits = new long[(names.length + 63) >> 6];
+        boolean granted = false;
+        for (AttributeRule rule : rules) {
+            List<String> values = userInfo.getAttributeValues(rule.attribute);
+            if (values != null && !values.isEmpty()) {
+                granted |= rule.apply(values, bits);
+            }
+        }
+        List<String> direct = userInfo.getAttributeValues(roleAttribute);
+        if (direct != null) {
+            for (String value : direct) {
+                Integer number = numbers.get(value);
+                if (number != null && number >> 6 < bits.length) {
+                    bits[number >> 6] |= 1L << number;
+                    granted = true;
+                }
+            }
+        }
+        return new RoleSet(granted ? bits : NO_BITS, this);
+    }
+    
+    /**
+     * Checks whether a role set was computed by this mapping; one computed
+     * before a reload or restored with its session is not
+     * 
+     * @param roles the role set, may be null
+     * @return true if the role set is current
+     */
+    public boolean isCurrent(RoleSet roles) {
+        return roles != null && roles.mapping == this;
+    }
+    
+    /**
+     * Gets the number of compiled rules
+     * 
+     * @return the rule count
+     */
+    public int getRuleCount() {
+        return ruleCount;
+    }
+    
+    /**
+     * Builds the bit mask of some roles, numbering roles not seen before
+     * 
+     * @param roles the role names
+     * @return the mask
+     */
+    public static long[] mask(String... roles) {
+        int[] assigned = new int[roles.length];
+        int highest = -1;
+        for (int i = 0; i < roles.length; i++) {
+            assigned[i] = number(roles[i]);
+            highest = Math.max(highest, assigned[i]);
+        }
+        long[] mask = new long[(highest >> 6) + 1];
+        for (int number : assigned) {
+            mask[number >> 6] |= 1L << number;
+        }
+        return mask;
+    }
+    
+    /**
+     * Gets the number of a role
+     * 
+     * @return the number, or -1 if no rule or route names the role
+     */
+    static int numberOf(String role) {
+        Integer number = numbers.get(role);
+        return number != null ? number : -1;
+    }
+    
+    /**
+     * Gets the name of a role number
+     */
+    static String nameOf(int number) {
+        return names[number];
+    }
+    
+    private static synchronized int number(String role) {
+        if (role.isEmpty() || role.indexOf(',') >= 0 || !role.trim().equals(role)) {
+            throw new IllegalArgumentException("Invalid role name: '" + role + "'");
+        }
+        Integer number = numbers.get(role);
+        if (number == null) {
+            String[] grown = Arrays.copyOf(names, names.length + 1);
+            grown[names.length] = role;
+            // Name first, so a number read from the map always has one
+            names = grown;
+            number = names.length - 1;
+            numbers.put(role, number);
+        }
+        return number;
+    }
+    
+    private static void compile(String role, String condition, long[] mask, Map<String, AttributeRule> byAttribute) {
+        int equals = condition.indexOf('=');
+        boolean prefix = equals > 0 && condition.charAt(equals - 1) == '^';
+        String attribute = (equals < 0 ? condition : condition.substring(0, prefix ? equals - 1 : equals)).trim();
+        String value = equals < 0 ? null : condition.substring(equals + 1).trim();
+        if (attribute.isEmpty() || (value != null && value.isEmpty())) {
+            throw new IllegalArgumentException("Invalid condition for role " + role + ": '" + condition + "'");
+        }
+        AttributeRule rule = byAttribute.computeIfAbsent(attribute, AttributeRule::new);
+        if (value == null) {
+            rule.present = or(rule.present, mask);
+        } else if (prefix) {
+            rule.byPrefix.merge(value, mask, RoleMapping::or);
+            rule.prefixLengths.add(value.length());
+        } else {
+            rule.byValue.merge(value, mask, RoleMapping::or);
+        }
+    }
+    
+    private static long[] or(long[] left, long[] right) {
+        if (left == null) {
+            return right;
+        }
+        long[] merged = Arrays.copyOf(left, Math.max(left.length, right.length));
+        for (int i = 0; i < right.length; i++) {
+            merged[i] |= right[i];
+        }
+        return merged;
+    }
+    
+    /**
+     * Sets the bits of a mask; masks never reach past the bits of a later evaluation
+     */
+    private static void set(long[] bits, long[] mask) {
+        for (int i = 0; i < mask.length; i++) {
+            bits[i] |= mask[i];
+        }
+    }
+    
+    /**
+     * All conditions on one attribute. Prefixes are looked up like values,
+     * once per distinct prefix length that fits the value.
+     */
+    private static final class AttributeRule {
+        
+        private final String attribute;
+        private final Map<String, long[]> byValue = new HashMap<>();
+        private final Map<String, long[]> byPrefix = new HashMap<>();
+        private final SortedSet<Integer> prefixLengths = new TreeSet<>();
+        private long[] present;
+        private int[] lengths = new int[0];
+        
+        private AttributeRule(String attribute) {
+            this.attribute = attribute;
+        }
+        
+        private boolean apply(List<String> values, long[] bits) {
+            boolean granted = false;
+            if (present != null) {
+                set(bits, present);
+                granted = true;
+            }
+            for (String value : values) {
+                long[] mask = byValue.isEmpty() ? null : byValue.get(value);
+                if (mask != null) {
+                    set(bits, mask);
+                    granted = true;
+                }
+                for (int length : lengths) {
+                    if (length > value.length()) {
+                        break;
+                    }
+                    mask = byPrefix.get(value.substring(0, length));
+                    if (mask != null) {
+                        set(bits, mask);
+                        granted = true;
+                    }
+                }
+            }
+            return granted;
+        }
+        
+        private void freeze() {
+            lengths = prefixLengths.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.sample.saml.service;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Role Set
+ * 
+ * The roles a {@link RoleMapping} granted to one user, as a bitset over the
+ * role numbers. It is computed at login and kept in the session as
+ * {@code saml.roles}, so a role check on later requests is a word-wise AND
+ * against a route's mask. Role numbers only hold within one JVM, so a set
+ * is serialized by role name, and the mapping that computed it not at all:
+ * a set restored with the session is never current, and the filter
+ * evaluates the user's roles again.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class RoleSet implements Serializable {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final long[] bits;
+    
+    // Compared by identity; null after deserialization
+    final transient RoleMapping mapping;
+    
+    RoleSet(long[] bits, RoleMapping mapping) {
+        this.bits = bits;
+        this.mapping = mapping;
+    }
+    
+    /**
+     * Checks whether any role of a mask is granted
+     * 
+     * @param mask role bits, see {@link RoleMapping#mask(String...)}
+     * @return true if at least one of the roles is granted
+     */
+    public boolean hasAny(long[] mask) {
+        int words = Math.min(bits.length, mask.length);
+        for (int i = 0; i < words; i++) {
+            if ((bits[i] & mask[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Checks whether a role is granted
+     * 
+     * @param role the role name
+     * @return true if the role is granted; false for a role no rule or route names
+     */
+    public boolean has(String role) {
+        int number = RoleMapping.numberOf(role);
+        return number >= 0 && number >> 6 < bits.length && (bits[number >> 6] & 1L << number) != 0;
+    }
+    
+    /**
+     * Gets the granted role names
+     * 
+     * @return the role names, in role number order
+     */
+    public List<String> getRoles() {
+        List<String> roles = new ArrayList<>();
+        for (int word = 0; word < bits.length; word++) {
+            for (long rest = bits[word]; rest != 0; rest &= rest - 1) {
+                roles.add(RoleMapping.nameOf(word << 6 | Long.numberOfTrailingZeros(rest)));
+            }
+        }
+        return roles;
+    }
+    
+    @Override
+    public String toString() {
+        return "RoleSet" + getRoles();
+    }
+    
+    /**
+     * Builds a set from role names, as carried outside this JVM; names no
+     * rule or route knows are dropped. The set is never current.
+     * 
+     * @param roles the role names
+     * @return the role set
+     */
+    static RoleSet of(String[] roles) {
+        long[] bits = new long[0];
+        for (String role : roles) {
+            int number = RoleMapping.numberOf(role);
+            if (number >= 0) {
+                if (number >> 6 >= bits.length) {
+                    bits = Arrays.copyOf(bits, (number >> 6) + 1);
+                }
+                bits[number >> 6] |= 1L << number;
+            }
+        }
+        return new RoleSet(bits, null);
+    }
+    
+    private Object writeReplace() {
+        return new SerializedForm(getRoles().toArray(new String[0]));
+    }
+    
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("RoleSet is serialized through its SerializedForm");
+    }
+    
+    /**
+     * Role names of a set, numbered again in the JVM that restores it
+     */
+    private static final class SerializedForm implements Serializable {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final String[] roles;
+        
+        private SerializedForm(String[] roles) {
+            this.roles = roles;
+        }
+        
+        private Object readResolve() {
+            return of(roles);
+        }
+    }
+}
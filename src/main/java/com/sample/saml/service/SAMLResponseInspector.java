@@ -0,0 +1,463 @@
+package com.sample.saml.service;
+
+import com.onelogin.saml2.exception.ValidationError;
+import org.joda.time.DateTimeUtils;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * SAML Response Inspector
+ * 
+ * Cheap streaming (StAX) pre-check of an undecoded SAMLResponse, run before
+ * the toolkit does its DOM parse and signature checks. It rejects responses
+ * that are too large or too deeply nested, that are not a samlp:Response,
+ * whose Destination is not our ACS URL, whose IssueInstant is stale or in
+ * the future, or whose response or assertion Issuer is not the configured
+ * IdP. The root element and the response Issuer come first in a response,
+ * so most rejections stop after a few hundred bytes. The response can also
+ * be scanned while it is read from the request body and base64 decoded, so
+ * an oversized or misaddressed one is refused before it has been buffered.
+ * 
+ * Nothing here is trusted: a response that passes is verified in full by
+ * the toolkit, and the extracted summary is only used to reject requests
+ * early and to decide which checks the verified path runs. Rejections use
+ * the toolkit's {@link ValidationError} codes. DTDs and external entities
+ * are disabled. The current time comes from the toolkit's clock
+ * ({@link DateTimeUtils}), so these checks and the toolkit's conditions
+ * agree on it, also when a tool fixes that clock to replay old responses.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class SAMLResponseInspector {
+    
+    private static final String SAML2_ASSERTION_NS = "urn:oasis:names:tc:SAML:2.0:assertion";
+    private static final String SAML2_PROTOCOL_NS = "urn:oasis:names:tc:SAML:2.0:protocol";
+    
+    private static final XMLInputFactory inputFactory = createInputFactory();
+    
+    private final String expectedDestination;
+    private final String expectedIssuer;
+    private final long maxAgeMillis;
+    private final long clockSkewMillis;
+    private final int maxBytes;
+    private final int maxDepth;
+    
+    /**
+     * Creates an inspector
+     * 
+     * @param expectedDestination the ACS URL, or null to skip the Destination check
+     * @param expectedIssuer the IdP entity ID, or null to skip the Issuer check
+     * @param maxAgeMillis maximum age of the response IssueInstant, 0 to skip the check
+     * @param clockSkewMillis tolerated clock difference to the IdP
+     * @param maxBytes maximum size of the decoded response
+     * @param maxDepth maximum element nesting depth
+     */
+    public SAMLResponseInspector(String expectedDestination, String expectedIssuer, long maxAgeMillis,
+                                 long clockSkewMillis, int maxBytes, int maxDepth) {
+        this.expectedDestination = expectedDestination;
+        this.expectedIssuer = expectedIssuer;
+        this.maxAgeMillis = maxAgeMillis;
+        this.clockSkewMillis = clockSkewMillis;
+        this.maxBytes = maxBytes;
+        this.maxDepth = maxDepth;
+    }
+    
+    /**
+     * Decodes and scans a base64 encoded SAMLResponse
+     * 
+     * @param samlResponse the SAMLResponse form parameter
+     * @return the extracted, unverified summary
+     * @throws ValidationError if the response fails one of the pre-checks
+     * @throws IllegalArgumentException if the value is not base64 encoded XML
+     */
+    public Summary inspect(String samlResponse) throws ValidationError {
+        // Refuse to decode beyond the size limit
+        if (samlResponse.length() > getMaxEncodedLength()) {
+            throw tooLarge();
+        }
+        byte[] xml;
+        try {
+            xml = Base64.getMimeDecoder().decode(samlResponse);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("SAMLResponse is not valid base64", e);
+        }
+        return inspect(xml, DateTimeUtils.currentTimeMillis());
+    }
+    
+    /**
+     * Decodes and scans a base64 encoded SAMLResponse while it is read, for
+     * callers that stream the request body instead of buffering the form
+     * parameter. The base64 text is copied to {@code encoded} as it goes by,
+     * since the toolkit needs it as a string; reading stops as soon as the
+     * encoded or the decoded size limit is exceeded. The copy is only grown
+     * to the expected length once the root element has passed its checks,
+     * so a rejected response costs little more than what was read of it.
+     * 
+     * @param samlResponse the form-decoded SAMLResponse value
+     * @param encoded receives the base64 text; holds the whole value once this method returns
+     * @param expectedLength expected length of the value, such as the request content length
+     * @return the extracted, unverified summary
+     * @throws ValidationError if the response fails one of the pre-checks, including the size limits
+     * @throws IllegalArgumentException if the value is not base64 encoded XML
+     * @throws IOException if reading the value fails
+     */
+    public Summary inspect(InputStream samlResponse, StringBuilder encoded, long expectedLength)
+            throws ValidationError, IOException {
+        CappedStream body = new CappedStream(samlResponse, getMaxEncodedLength(), encoded);
+        int capacity = (int) Math.min(expectedLength, getMaxEncodedLength());
+        try {
+            Summary summary = scan(new CappedStream(Base64.getMimeDecoder().wrap(body), maxBytes, null),
+                    DateTimeUtils.currentTimeMillis(), () -> encoded.ensureCapacity(capacity));
+            // The scan stops at the end of the document; the toolkit needs the rest of the value too
+            body.drain();
+            return summary;
+        } catch (LimitExceeded e) {
+            throw tooLarge();
+        } catch (IllegalArgumentException e) {
+            if (body.readFailure != null) {
+                throw body.readFailure;
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * Scans a decoded SAMLResponse document
+     * 
+     * @param xml the response XML
+     * @param now current time in epoch milliseconds
+     * @return the extracted, unverified summary
+     * @throws ValidationError if the response fails one of the pre-checks
+     * @throws IllegalArgumentException if the document is not well-formed XML
+     */
+    public Summary inspect(byte[] xml, long now) throws ValidationError {
+        if (xml.length > maxBytes) {
+            throw tooLarge();
+        }
+        return scan(new ByteArrayInputStream(xml), now, null);
+    }
+    
+    /**
+     * Gets the longest base64 value that can decode to at most the maximum response size
+     * 
+     * @return the maximum encoded length in characters
+     */
+    public long getMaxEncodedLength() {
+        // Base64 with MIME line breaks is under 1.4 times the decoded size
+        return maxBytes * 7L / 5;
+    }
+    
+    private Summary scan(InputStream xml, long now, Runnable rootAccepted) throws ValidationError {
+        String assertionId = null;
+        long notOnOrAfter = Long.MAX_VALUE;
+        boolean encrypted = false;
+        boolean inAssertion = false;
+        int depth = 0;
+        
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(xml);
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                if (++depth > maxDepth) {
+                    throw new ValidationError("SAML Response nests elements deeper than " + maxDepth,
+                            ValidationError.INVALID_XML_FORMAT);
+                }
+                if (depth == 1) {
+                    checkResponse(reader, now);
+                    if (rootAccepted != null) {
+                        rootAccepted.run();
+                    }
+                    continue;
+                }
+                if (depth == 2) {
+                    inAssertion = false;
+                }
+                if (!SAML2_ASSERTION_NS.equals(reader.getNamespaceURI())) {
+                    continue;
+                }
+                String name = reader.getLocalName();
+                if ("Issuer".equals(name) && (depth == 2 || depth == 3 && inAssertion)) {
+                    // Consumes the end tag
+                    checkIssuer(reader.getElementText());
+                    depth--;
+                } else if ("EncryptedAssertion".equals(name)) {
+                    encrypted = true;
+                } else if ("Assertion".equals(name)) {
+                    inAssertion = depth == 2;
+                    if (assertionId == null) {
+                        assertionId = reader.getAttributeValue(null, "ID");
+                    }
+                } else if ("SubjectConfirmationData".equals(name) && depth == 5 && inAssertion) {
+                    // Only the assertion's own Assertion/Subject/SubjectConfirmation/SubjectConfirmationData,
+                    // the values the toolkit reports once the assertion is verified
+                    notOnOrAfter = Math.min(notOnOrAfter, parseInstant(reader.getAttributeValue(null, "NotOnOrAfter")));
+                }
+            }
+        } catch (XMLStreamException e) {
+            // A streamed response can exceed a size limit in the middle of the scan
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof LimitExceeded) {
+                    throw tooLarge();
+                }
+            }
+            throw new IllegalArgumentException("SAMLResponse is not well-formed XML", e);
+        } finally {
+            close(reader);
+        }
+        
+        return new Summary(assertionId, notOnOrAfter, encrypted);
+    }
+    
+    private void checkResponse(XMLStreamReader reader, long now) throws ValidationError {
+        if (!SAML2_PROTOCOL_NS.equals(reader.getNamespaceURI()) || !"Response".equals(reader.getLocalName())) {
+            throw new ValidationError("SAML Response root element is not samlp:Response",
+                    ValidationError.INVALID_XML_FORMAT);
+        }
+        
+        // The toolkit only checks a Destination that is present
+        String destination = reader.getAttributeValue(null, "Destination");
+        if (destination != null && expectedDestination != null) {
+            if (destination.isEmpty()) {
+                throw new ValidationError("The response has an empty Destination value", ValidationError.EMPTY_DESTINATION);
+            }
+            if (!destination.equals(expectedDestination)) {
+                throw new ValidationError("The response was received at " + expectedDestination
+                        + " instead of " + destination, ValidationError.WRONG_DESTINATION);
+            }
+        }
+        
+        String issueInstant = reader.getAttributeValue(null, "IssueInstant");
+        if (issueInstant == null) {
+            throw new ValidationError("SAML Response has no IssueInstant", ValidationError.INVALID_XML_FORMAT);
+        }
+        long issued = parseDateTime(issueInstant);
+        if (issued == Long.MAX_VALUE) {
+            throw new ValidationError("SAML Response IssueInstant is not a valid dateTime",
+                    ValidationError.INVALID_ISSUE_INSTANT_FORMAT);
+        }
+        if (issued > now + clockSkewMillis) {
+            throw new ValidationError("SAML Response IssueInstant is in the future", ValidationError.ASSERTION_TOO_EARLY);
+        }
+        if (maxAgeMillis > 0 && issued < now - maxAgeMillis - clockSkewMillis) {
+            throw new ValidationError("SAML Response was issued more than " + maxAgeMillis / 1000 + " seconds ago",
+                    ValidationError.RESPONSE_EXPIRED);
+        }
+    }
+    
+    private void checkIssuer(String issuer) throws ValidationError {
+        if (expectedIssuer != null && !expectedIssuer.equals(issuer.trim())) {
+            throw new ValidationError("Invalid issuer in the Assertion/Response (expected '" + expectedIssuer
+                    + "', found '" + issuer.trim() + "')", ValidationError.WRONG_ISSUER);
+        }
+    }
+    
+    private ValidationError tooLarge() {
+        return new ValidationError("SAML Response exceeds " + maxBytes + " bytes", ValidationError.INVALID_XML_FORMAT);
+    }
+    
+    private static long parseInstant(String value) {
+        if (value == null) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            return Instant.parse(value).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+    
+    private static long parseDateTime(String value) {
+        try {
+            return Instant.parse(value).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // Like the toolkit, read a dateTime without a zone as UTC
+            try {
+                return LocalDateTime.parse(value).toInstant(ZoneOffset.UTC).toEpochMilli();
+            } catch (DateTimeParseException notLocal) {
+                return Long.MAX_VALUE;
+            }
+        }
+    }
+    
+    private static void close(XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                // Nothing useful to do, the reader holds no external resources
+            }
+        }
+    }
+    
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        try {
+            factory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        } catch (IllegalArgumentException e) {
+            // Property not supported by this StAX implementation; DTDs are already disabled
+        }
+        return factory;
+    }
+    
+    /**
+     * Signals that a {@link CappedStream} went past its limit
+     */
+    private static final class LimitExceeded extends IOException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        LimitExceeded() {
+            super("Size limit exceeded");
+        }
+    }
+    
+    /**
+     * Fails once more than a given number of bytes has been read, optionally
+     * copying them to a string builder as ASCII characters
+     */
+    private static final class CappedStream extends FilterInputStream {
+        
+        private final long limit;
+        private final StringBuilder copy;
+        private long count;
+        private IOException readFailure;
+        
+        CappedStream(InputStream in, long limit, StringBuilder copy) {
+            super(in);
+            this.limit = limit;
+            this.copy = copy;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int next = readIn(null, 0, 1);
+            if (next >= 0) {
+                counted(1);
+                if (copy != null) {
+                    copy.append((char) next);
+                }
+            }
+            return next;
+        }
+        
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            int read = readIn(target, offset, length);
+            if (read > 0) {
+                counted(read);
+                if (copy != null) {
+                    for (int i = offset; i < offset + read; i++) {
+                        copy.append((char) (target[i] & 0xff));
+                    }
+                }
+            }
+            return read;
+        }
+        
+        private int readIn(byte[] target, int offset, int length) throws IOException {
+            try {
+                return target == null ? in.read() : in.read(target, offset, length);
+            } catch (LimitExceeded e) {
+                throw e;
+            } catch (IOException e) {
+                readFailure = e;
+                throw e;
+            }
+        }
+        
+        private void counted(int read) throws LimitExceeded {
+            count += read;
+            if (count > limit) {
+                throw new LimitExceeded();
+            }
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes count and are copied like read ones
+            return Math.max(0, read(new byte[(int) Math.min(n, 4096)]));
+        }
+        
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+        
+        void drain() throws IOException {
+            byte[] buffer = new byte[4096];
+            while (read(buffer, 0, buffer.length) >= 0) {
+                // Counted and copied by read
+            }
+        }
+    }
+    
+    /**
+     * Unverified fields extracted from a SAMLResponse
+     */
+    public static final class Summary {
+        
+        private final String assertionId;
+        private final long notOnOrAfter;
+        private final boolean encrypted;
+        
+        Summary(String assertionId, long notOnOrAfter, boolean encrypted) {
+            this.assertionId = assertionId;
+            this.notOnOrAfter = notOnOrAfter;
+            this.encrypted = encrypted;
+        }
+        
+        /**
+         * Gets the ID of the first assertion
+         * 
+         * @return the assertion ID, or null if none was found
+         */
+        public String getAssertionId() {
+            return assertionId;
+        }
+        
+        /**
+         * Gets the earliest NotOnOrAfter of the subject confirmations of the
+         * top-level assertion. Unverified: only good for looking up a replay,
+         * never for recording one.
+         * 
+         * @return epoch milliseconds, or Long.MAX_VALUE if none was present
+         */
+        public long getNotOnOrAfter() {
+            return notOnOrAfter;
+        }
+        
+        /**
+         * Checks whether the response carries an EncryptedAssertion
+         * 
+         * @return true if an encrypted assertion was found
+         */
+        public boolean isEncrypted() {
+            return encrypted;
+        }
+    }
+}
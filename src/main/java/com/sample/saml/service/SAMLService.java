@@ -1,22 +1,49 @@
 package com.sample.saml.service;
 
 import com.onelogin.saml2.Auth;
+import com.onelogin.saml2.authn.SamlResponse;
 import com.onelogin.saml2.exception.SettingsException;
-import com.onelogin.saml2.exception.XMLEntityException;
+import com.onelogin.saml2.exception.ValidationError;
+import com.onelogin.saml2.logout.LogoutRequest;
 import com.onelogin.saml2.settings.Saml2Settings;
 import com.onelogin.saml2.settings.SettingsBuilder;
+import com.onelogin.saml2.util.SchemaFactory;
+import com.onelogin.saml2.util.Util;
+import com.sample.saml.metrics.LatencyHistogram;
+import com.sample.saml.metrics.SAMLMetrics;
 import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.util.ConfigSnapshot;
+import com.sample.saml.util.IdPKeyMaterialCache;
+import com.sample.saml.util.IdPMetadata;
+import com.sample.saml.util.IdPMetadataProvider;
 import com.sample.saml.util.SAMLConfig;
+import com.sample.saml.util.XmlParserPool;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.Instant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
 
+import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * SAML Service Provider Implementation
@@ -32,139 +59,355 @@ public class SAMLService {
     
     private static final Logger logger = LoggerFactory.getLogger(SAMLService.class);
     
-    private Auth auth;
-    private Saml2Settings settings;
+    // Survives service rebuilds on config reload, so replays across a reload are still caught
+    private static final AssertionReplayCache sharedReplayCache = new AssertionReplayCache(
+            SAMLConfig.getIntProperty("saml.replayCache.slotSeconds", 60),
+            SAMLConfig.getIntProperty("saml.replayCache.horizonSeconds", 3600),
+            SAMLConfig.getIntProperty("saml.replayCache.clockSkewSeconds", 180),
+            SAMLConfig.getIntProperty("saml.replayCache.slotCapacity", 65536));
+    
+    // Bounded platform pool for parsing and signature validation when requests run on virtual threads
+    private static final VerificationPool sharedVerificationPool = new VerificationPool(
+            SAMLConfig.getIntProperty("saml.verify.poolSize", 0),
+            SAMLConfig.getIntProperty("saml.verify.queueCapacity", 1024),
+            SAMLConfig.getBooleanProperty("saml.verify.offload", true));
+    
+    // Per-client rate and concurrency limits in front of the ACS and SLS endpoints
+    private static final AdmissionControl sharedAdmissionControl = createAdmissionControl();
+    
+    // IdP signing keys from metadata, refreshed in the background; disabled unless idp.metadata.location is set
+    private static final IdPMetadataProvider sharedMetadataProvider = createMetadataProvider();
+    
+    // Live sessions by NameID and SessionIndex, for logout requests from the IdP
+    private static final SessionRegistry sharedSessionRegistry = createSessionRegistry();
+    
+    // SAML session data kept on disk across restarts; the file is opened on first access
+    private static final SessionStore sharedSessionStore = createSessionStore();
+    
+    // SAML session data sent as deltas to the other nodes; disabled unless a transport is configured
+    private static final SessionReplicator sharedSessionReplicator = createSessionReplicator();
+    
+    // Instruments are looked up once; recording is lock-free and allocation-free
+    private static final LatencyHistogram ACS_PRECHECK = SAMLMetrics.histogram("acs", "precheck");
+    private static final LatencyHistogram ACS_PARSE = SAMLMetrics.histogram("acs", "parse");
+    private static final LatencyHistogram ACS_VALIDATE = SAMLMetrics.histogram("acs", "validate");
+    private static final LatencyHistogram ACS_EXTRACT = SAMLMetrics.histogram("acs", "extract");
+    private static final LatencyHistogram ACS_REPLAY = SAMLMetrics.histogram("acs", "replay");
+    private static final LatencyHistogram ACS_USER_INFO = SAMLMetrics.histogram("acs", "user_info");
+    private static final LatencyHistogram ACS_SESSION = SAMLMetrics.histogram("acs", "session");
+    private static final LatencyHistogram ACS_TOTAL = SAMLMetrics.histogram("acs", "total");
+    private static final LatencyHistogram ACS_FAILED = SAMLMetrics.histogram("acs", "failed");
+    private static final LongAdder ACS_SUCCESS = SAMLMetrics.counter("acs", "success", "none");
+    private static final LongAdder ACS_KEY_FALLBACK = SAMLMetrics.counter("acs", "key_fallback", "none");
+    private static final LatencyHistogram LOGIN_TOTAL = SAMLMetrics.histogram("login", "total");
+    private static final LongAdder LOGIN_SUCCESS = SAMLMetrics.counter("login", "success", "none");
+    private static final LatencyHistogram SLS_VALIDATE = SAMLMetrics.histogram("sls", "validate");
+    private static final LatencyHistogram SLS_TOTAL = SAMLMetrics.histogram("sls", "total");
+    private static final LongAdder SLS_SUCCESS = SAMLMetrics.counter("sls", "success", "none");
+    private static final LatencyHistogram SLO_VALIDATE = SAMLMetrics.histogram("slo", "validate");
+    private static final LatencyHistogram SLO_SESSIONS = SAMLMetrics.histogram("slo", "sessions");
+    private static final LatencyHistogram SLO_TOTAL = SAMLMetrics.histogram("slo", "total");
+    private static final LongAdder SLO_SUCCESS = SAMLMetrics.counter("slo", "success", "none");
+    private static final LongAdder SLO_ENDED = SAMLMetrics.counter("slo", "session_ended", "none");
+    
+    private static final Map<Integer, String> VALIDATION_ERRORS = validationErrorNames();
+    
+    private final ConfigSnapshot config;
+    private final Saml2Settings settings;
+    private final AssertionReplayCache replayCache;
+    
+    // Schema validation with pooled validators, unless the settings leave it to the toolkit
+    private final boolean schemaValidation;
+    
+    // Streaming checks run before the toolkit sees a response
+    private final SAMLResponseInspector inspector;
+    
+    // Generated on first use; a new service instance is derived from every config snapshot
+    private volatile SPMetadata spMetadata;
+    
+    // Whether IdP keys come from metadata; services over prebuilt settings keep the keys they were given
+    private final boolean metadataKeys;
+    
+    // Keys of the current metadata snapshot, rebuilt when a refresh publishes new ones
+    private volatile IdPSigningKeys signingKeys;
     
     /**
-     * Constructor that initializes the SAML service with configuration
+     * Constructor that builds fresh SAML settings from the current configuration.
+     * Prefer {@link #getInstance()} on the request path; this constructor
+     * re-reads and re-decodes the whole configuration every time.
      * 
      * @throws RuntimeException if SAML configuration is invalid
      */
     public SAMLService() {
-        logger.info("🐛 DEBUG: Initializing SAML service");
-        logger.debug("🐛 DEBUG: SAMLService constructor called");
-        initializeSAML();
+        this(SAMLConfig.getSnapshot());
+    }
+    
+    /**
+     * Constructor that builds SAML settings from one configuration snapshot
+     * 
+     * @param config the configuration snapshot
+     * @throws RuntimeException if SAML configuration is invalid
+     */
+    public SAMLService(ConfigSnapshot config) {
+        this(config, buildSettings(config));
+    }
+    
+    /**
+     * Constructor that wraps already built SAML settings.
+     * The settings are treated as immutable and shared by all requests.
+     * 
+     * @param settings prebuilt SAML settings
+     */
+    public SAMLService(Saml2Settings settings) {
+        this(SAMLConfig.getSnapshot(), settings, sharedReplayCache, false);
+    }
+    
+    /**
+     * Constructor that wraps already built SAML settings and uses its own
+     * replay cache instead of the application-wide one (tools and benchmarks)
+     * 
+     * @param settings prebuilt SAML settings
+     * @param replayCache the replay cache to record accepted assertions in
+     */
+    public SAMLService(Saml2Settings settings, AssertionReplayCache replayCache) {
+        this(SAMLConfig.getSnapshot(), settings, replayCache, false);
+    }
+    
+    private SAMLService(ConfigSnapshot config, Saml2Settings settings) {
+        this(config, settings, sharedReplayCache, true);
+    }
+    
+    private SAMLService(ConfigSnapshot config, Saml2Settings settings, AssertionReplayCache replayCache,
+                        boolean metadataKeys) {
+        if (settings == null) {
+            throw new IllegalArgumentException("SAML settings must not be null");
+        }
+        this.config = config;
+        this.settings = settings;
+        this.replayCache = replayCache;
+        this.metadataKeys = metadataKeys;
+        this.schemaValidation = settings.isStrict() && !settings.getWantXMLValidation()
+                && config.getBooleanProperty("saml.security.wantXmlValidation", true);
+        URL acsUrl = settings.getSpAssertionConsumerServiceUrl();
+        this.inspector = new SAMLResponseInspector(acsUrl != null ? acsUrl.toString() : null, settings.getIdpEntityId(),
+                config.getIntProperty("saml.precheck.maxResponseAgeSeconds", 300) * 1000L,
+                config.getIntProperty("saml.precheck.clockSkewSeconds", 180) * 1000L,
+                config.getIntProperty("saml.precheck.maxResponseBytes", 1048576),
+                config.getIntProperty("saml.precheck.maxDepth", 64));
+        // Built here, off the request path, like the rest of the service
+        signingKeys();
+        logger.info("SAML service initialized for SP {} (config version {})", settings.getSpEntityId(), config.getVersion());
     }
     
     /**
-     * Initializes the SAML toolkit with configuration from properties
+     * Returns the SAML service for the current configuration snapshot.
+     * The service is built once per snapshot and swapped together with it
+     * on reload, so this is a single volatile read on the request path.
      * 
-     * @throws RuntimeException if initialization fails
+     * @return the shared SAML service
      */
-    private void initializeSAML() {
+    public static SAMLService getInstance() {
+        return SAMLConfig.getSnapshot().getDerived(SAMLService.class, SAMLService::new);
+    }
+    
+    /**
+     * Returns the application-scoped SAML service
+     * 
+     * @param context the servlet context
+     * @return the shared SAML service
+     */
+    public static SAMLService getInstance(ServletContext context) {
+        return getInstance();
+    }
+    
+    /**
+     * Returns the SAML service of the tenant a request is addressed to, or
+     * the shared one if it matches no tenant (see {@link TenantRegistry})
+     * 
+     * @param request the HTTP request
+     * @return the tenant's or the shared SAML service
+     */
+    public static SAMLService getInstance(HttpServletRequest request) {
+        return TenantRegistry.getInstance().getService(request);
+    }
+    
+    /**
+     * Builds the SAML service of one tenant. Its settings come from the
+     * tenant's configuration alone: the shared IdP metadata is not used.
+     * 
+     * @param config the shared configuration with the tenant's properties over it
+     * @return the tenant's SAML service
+     * @throws RuntimeException if the tenant's configuration is invalid
+     */
+    public static SAMLService forTenant(ConfigSnapshot config) {
+        return new SAMLService(config, buildSettings(config, null), sharedReplayCache, false);
+    }
+    
+    /**
+     * Builds the SAML toolkit settings from the current configuration
+     * 
+     * @return the built SAML settings
+     * @throws RuntimeException if the settings cannot be built
+     */
+    public static Saml2Settings buildSettings() {
+        return buildSettings(SAMLConfig.getSnapshot());
+    }
+    
+    /**
+     * Builds the SAML toolkit settings from a configuration snapshot. Without
+     * {@code idp.x509cert}, the first signing key of the IdP metadata is used
+     * if it has loaded.
+     * 
+     * @param config the configuration snapshot
+     * @return the built SAML settings
+     * @throws RuntimeException if the settings cannot be built
+     */
+    public static Saml2Settings buildSettings(ConfigSnapshot config) {
+        String idpCert = config.getProperty("idp.x509cert");
+        IdPMetadata metadata = sharedMetadataProvider.current();
+        boolean configured = idpCert != null && !idpCert.trim().isEmpty();
+        return buildSettings(config, configured || metadata == null ? null
+                : metadata.getSigningKeys().get(0).getCertificate());
+    }
+    
+    /**
+     * Builds the SAML toolkit settings from a configuration snapshot with a given IdP certificate
+     * 
+     * @param config the configuration snapshot
+     * @param idpCertificate the IdP certificate to trust, or null for the configured one
+     * @return the built SAML settings
+     * @throws RuntimeException if the settings cannot be built
+     */
+    private static Saml2Settings buildSettings(ConfigSnapshot config, X509Certificate idpCertificate) {
         try {
-            logger.debug("🐛 DEBUG: Loading SAML settings from configuration");
-            
-            // Create settings builder and configure SAML settings
-            SettingsBuilder builder = new SettingsBuilder();
-            logger.debug("🐛 DEBUG: SettingsBuilder created");
-            
             // Build SAML settings from configuration
-            Map<String, Object> config = getSAMLConfiguration();
-            logger.debug("🐛 DEBUG: SAML configuration retrieved, building settings");
-            settings = builder.fromValues(config).build();
-            logger.debug("🐛 DEBUG: SAML settings built successfully");
-            
-            // Create Auth instance with settings
-            auth = new Auth(settings, null, null);
-            logger.debug("🐛 DEBUG: Auth instance created");
-            
-            logger.info("✅ SAML service initialized successfully");
-            logger.debug("🐛 DEBUG: SAML settings loaded - SP Entity ID: {}", settings.getSpEntityId());
-            
-        } catch (SettingsException e) {
-            logger.error("❌ Failed to initialize SAML settings", e);
-            logger.debug("🐛 DEBUG: SettingsException details: {}", e.getMessage());
-            throw new RuntimeException("SAML initialization failed", e);
+            Map<String, Object> values = getSAMLConfiguration(config);
+            if (idpCertificate != null) {
+                values.put(SettingsBuilder.IDP_X509CERT_PROPERTY_KEY, idpCertificate);
+            }
+            Saml2Settings built = new SettingsBuilder().fromValues(values).build();
+            return built;
+        
         } catch (Exception e) {
-            logger.error("❌ Unexpected error during SAML initialization", e);
-            logger.debug("🐛 DEBUG: Exception details: {}", e.getMessage());
+            logger.error("Failed to build SAML settings", e);
             throw new RuntimeException("SAML initialization failed", e);
         }
     }
     
     /**
-     * Creates SAML configuration map from properties
+     * Creates a toolkit Auth instance bound to a single request/response pair.
+     * Auth keeps per-request state (errors, NameID, attributes) and must never
+     * be shared between threads, but creating one over prebuilt settings is cheap.
+     * 
+     * @param request HTTP request, may be null for operations that do not read it
+     * @param response HTTP response, may be null for operations that do not redirect
+     * @return a new Auth instance
+     * @throws SettingsException if the shared settings are invalid
+     */
+    public Auth createAuth(HttpServletRequest request, HttpServletResponse response) throws SettingsException {
+        IdPSigningKeys keys = signingKeys();
+        return new Auth(keys != null ? keys.getAllKeysSettings() : settings, request, response);
+    }
+    
+    /**
+     * Gets the signing keys of the current IdP metadata, building them when a
+     * refresh has published new metadata. The provider's listener builds them
+     * on its refresh thread, so requests find them ready; a racing duplicate
+     * build is harmless.
+     * 
+     * @return the keys, or null if the IdP certificate comes from configuration
+     */
+    IdPSigningKeys signingKeys() {
+        IdPMetadata metadata = metadataKeys ? sharedMetadataProvider.current() : null;
+        if (metadata == null) {
+            return null;
+        }
+        IdPSigningKeys keys = signingKeys;
+        if (keys == null || keys.getMetadata() != metadata) {
+            keys = new IdPSigningKeys(metadata, keys, certificates -> {
+                Saml2Settings built = buildSettings(config, certificates.get(0));
+                if (certificates.size() > 1) {
+                    built.setIdpx509certMulti(certificates);
+                }
+                return built;
+            });
+            signingKeys = keys;
+            logger.info("Built settings for {} IdP signing keys of metadata version {}", keys.size(),
+                    metadata.getVersion());
+        }
+        return keys;
+    }
+    
+    /**
+     * Creates SAML configuration map from properties.
+     * The toolkit reads flat "onelogin.saml2.*" keys; the IdP certificate is
+     * passed as an already parsed X509Certificate from {@link IdPKeyMaterialCache}
+     * so the toolkit never decodes it again.
      * 
+     * @param properties the configuration snapshot to read from
      * @return Map containing SAML configuration
      */
-    private Map<String, Object> getSAMLConfiguration() {
+    private static Map<String, Object> getSAMLConfiguration(ConfigSnapshot properties) {
         logger.debug("Building SAML configuration from properties");
         
         Map<String, Object> config = new HashMap<>();
+        config.put(SettingsBuilder.STRICT_PROPERTY_KEY, true);
         
         // Service Provider (SP) Configuration
-        Map<String, Object> sp = new HashMap<>();
-        sp.put("entityId", SAMLConfig.getProperty("sp.entityId"));
-        sp.put("assertionConsumerService", new HashMap<String, Object>() {{
-            put("url", SAMLConfig.getProperty("sp.assertionConsumerService.url"));
-            put("binding", "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST");
-        }});
-        sp.put("singleLogoutService", new HashMap<String, Object>() {{
-            put("url", SAMLConfig.getProperty("sp.singleLogoutService.url"));
-            put("binding", "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect");
-        }});
+        config.put(SettingsBuilder.SP_ENTITYID_PROPERTY_KEY, properties.getProperty("sp.entityId"));
+        config.put(SettingsBuilder.SP_ASSERTION_CONSUMER_SERVICE_URL_PROPERTY_KEY, properties.getProperty("sp.assertionConsumerService.url"));
+        config.put(SettingsBuilder.SP_ASSERTION_CONSUMER_SERVICE_BINDING_PROPERTY_KEY, "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST");
+        config.put(SettingsBuilder.SP_SINGLE_LOGOUT_SERVICE_URL_PROPERTY_KEY, properties.getProperty("sp.singleLogoutService.url"));
+        config.put(SettingsBuilder.SP_SINGLE_LOGOUT_SERVICE_BINDING_PROPERTY_KEY, "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect");
+        
+        String nameIdFormat = properties.getProperty("saml.nameIdFormat");
+        if (nameIdFormat != null && !nameIdFormat.trim().isEmpty()) {
+            config.put(SettingsBuilder.SP_NAMEIDFORMAT_PROPERTY_KEY, nameIdFormat);
+        }
         
         // Add SP certificate and private key if configured
-        String spCert = SAMLConfig.getProperty("sp.x509cert");
-        String spKey = SAMLConfig.getProperty("sp.privateKey");
+        String spCert = properties.getProperty("sp.x509cert");
+        String spKey = properties.getProperty("sp.privateKey");
         if (spCert != null && !spCert.trim().isEmpty()) {
-            sp.put("x509cert", spCert);
+            config.put(SettingsBuilder.SP_X509CERT_PROPERTY_KEY, spCert);
         }
         if (spKey != null && !spKey.trim().isEmpty()) {
-            sp.put("privateKey", spKey);
+            config.put(SettingsBuilder.SP_PRIVATEKEY_PROPERTY_KEY, spKey);
         }
         
-        config.put("sp", sp);
-        
         // Identity Provider (IdP) Configuration
-        Map<String, Object> idp = new HashMap<>();
-        idp.put("entityId", SAMLConfig.getProperty("idp.entityId"));
-        idp.put("singleSignOnService", new HashMap<String, Object>() {{
-            put("url", SAMLConfig.getProperty("idp.singleSignOnService.url"));
-            put("binding", "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect");
-        }});
-        idp.put("singleLogoutService", new HashMap<String, Object>() {{
-            put("url", SAMLConfig.getProperty("idp.singleLogoutService.url"));
-            put("binding", "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect");
-        }});
+        config.put(SettingsBuilder.IDP_ENTITYID_PROPERTY_KEY, properties.getProperty("idp.entityId"));
+        config.put(SettingsBuilder.IDP_SINGLE_SIGN_ON_SERVICE_URL_PROPERTY_KEY, properties.getProperty("idp.singleSignOnService.url"));
+        config.put(SettingsBuilder.IDP_SINGLE_SIGN_ON_SERVICE_BINDING_PROPERTY_KEY, "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect");
+        config.put(SettingsBuilder.IDP_SINGLE_LOGOUT_SERVICE_URL_PROPERTY_KEY, properties.getProperty("idp.singleLogoutService.url"));
+        config.put(SettingsBuilder.IDP_SINGLE_LOGOUT_SERVICE_BINDING_PROPERTY_KEY, "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect");
         
-        // Add IdP certificate if configured
-        String idpCert = SAMLConfig.getProperty("idp.x509cert");
+        // Add IdP certificate if configured, decoded once through the key material cache
+        String idpCert = properties.getProperty("idp.x509cert");
         if (idpCert != null && !idpCert.trim().isEmpty()) {
-            idp.put("x509cert", idpCert);
+            config.put(SettingsBuilder.IDP_X509CERT_PROPERTY_KEY, IdPKeyMaterialCache.resolve(idpCert).getCertificate());
         }
         
-        config.put("idp", idp);
-        
         // Security Settings
-        Map<String, Object> security = new HashMap<>();
-        security.put("wantAssertionsSigned", SAMLConfig.getBooleanProperty("saml.security.wantAssertionsSigned", true));
-        security.put("authnRequestsSigned", SAMLConfig.getBooleanProperty("saml.security.authnRequestsSigned", true));
-        security.put("logoutRequestSigned", SAMLConfig.getBooleanProperty("saml.security.logoutRequestSigned", true));
-        security.put("logoutResponseSigned", SAMLConfig.getBooleanProperty("saml.security.logoutResponseSigned", true));
-        security.put("wantNameIdEncrypted", SAMLConfig.getBooleanProperty("saml.security.wantNameIdEncrypted", false));
-        security.put("wantAssertionsEncrypted", SAMLConfig.getBooleanProperty("saml.security.wantAssertionsEncrypted", false));
-        security.put("wantNameIdInLogoutRequest", SAMLConfig.getBooleanProperty("saml.security.wantNameIdInLogoutRequest", true));
-        
-        config.put("security", security);
+        config.put(SettingsBuilder.SECURITY_WANT_ASSERTIONS_SIGNED, properties.getBooleanProperty("saml.security.wantAssertionsSigned", true));
+        config.put(SettingsBuilder.SECURITY_AUTHREQUEST_SIGNED, properties.getBooleanProperty("saml.security.authnRequestsSigned", true));
+        config.put(SettingsBuilder.SECURITY_LOGOUTREQUEST_SIGNED, properties.getBooleanProperty("saml.security.logoutRequestSigned", true));
+        config.put(SettingsBuilder.SECURITY_LOGOUTRESPONSE_SIGNED, properties.getBooleanProperty("saml.security.logoutResponseSigned", true));
+        config.put(SettingsBuilder.SECURITY_WANT_NAMEID_ENCRYPTED, properties.getBooleanProperty("saml.security.wantNameIdEncrypted", false));
+        config.put(SettingsBuilder.SECURITY_WANT_ASSERTIONS_ENCRYPTED, properties.getBooleanProperty("saml.security.wantAssertionsEncrypted", false));
+        config.put(SettingsBuilder.SECURITY_WANT_NAMEID, properties.getBooleanProperty("saml.security.wantNameIdInLogoutRequest", true));
+        // The toolkit recompiles the schema on every validation; the service validates against a cached one instead
+        config.put(SettingsBuilder.SECURITY_WANT_XML_VALIDATION, false);
         
         // Contact Information (optional)
-        Map<String, Object> contact = new HashMap<>();
-        contact.put("technical", new HashMap<String, Object>() {{
-            put("givenName", "SAML SSO Sample App");
-            put("emailAddress", "admin@example.com");
-        }});
-        config.put("contactPerson", contact);
+        config.put(SettingsBuilder.CONTACT_TECHNICAL_GIVEN_NAME, "SAML SSO Sample App");
+        config.put(SettingsBuilder.CONTACT_TECHNICAL_EMAIL_ADDRESS, "admin@example.com");
         
         // Organization Information (optional)
-        Map<String, Object> organization = new HashMap<>();
-        organization.put("en-US", new HashMap<String, Object>() {{
-            put("name", "SAML SSO Sample Organization");
-            put("displayname", "SAML SSO Sample");
-            put("url", "https://example.com");
-        }});
-        config.put("organization", organization);
+        config.put(SettingsBuilder.ORGANIZATION_NAME, "SAML SSO Sample Organization");
+        config.put(SettingsBuilder.ORGANIZATION_DISPLAYNAME, "SAML SSO Sample");
+        config.put(SettingsBuilder.ORGANIZATION_URL, "https://example.com");
+        config.put(SettingsBuilder.ORGANIZATION_LANG, "en-US");
         
         logger.debug("SAML configuration built successfully");
         return config;
@@ -179,88 +422,508 @@ public class SAMLService {
      * @throws IOException if redirect fails
      */
     public void login(HttpServletRequest request, HttpServletResponse response, String relayState) throws IOException {
-        logger.info("🐛 DEBUG: Initiating SAML login");
-        logger.debug("🐛 DEBUG: Login method called with relayState: {}", relayState);
-        logger.debug("🐛 DEBUG: Request URL: {}", request.getRequestURL());
-        logger.debug("🐛 DEBUG: Request method: {}", request.getMethod());
+        // Guarded so the request getters only run when this request is being traced
+        if (logger.isDebugEnabled()) {
+            logger.debug("Initiating SAML login: {} {}, relayState={}, IdP SSO URL={}",
+                    request.getMethod(), request.getRequestURI(), relayState, settings.getIdpSingleSignOnServiceUrl());
+        }
         
+        long start = System.nanoTime();
         try {
             // Store relay state in session if provided
             if (relayState != null && !relayState.trim().isEmpty()) {
                 HttpSession session = request.getSession();
                 session.setAttribute("saml.relayState", relayState);
-                logger.debug("🐛 DEBUG: Stored relay state in session: {}", relayState);
-            } else {
-                logger.debug("🐛 DEBUG: No relay state provided");
             }
             
-            // Log SAML settings for debugging
-            logger.debug("🐛 DEBUG: SP Entity ID: {}", settings.getSpEntityId());
-            logger.debug("🐛 DEBUG: IdP Entity ID: {}", settings.getIdpEntityId());
-            logger.debug("🐛 DEBUG: IdP SSO URL: {}", settings.getIdpSingleSignOnServiceUrl());
-            
             // Initiate SAML authentication
-            logger.debug("🐛 DEBUG: Calling auth.login()");
-            auth.login(relayState);
-            logger.info("✅ SAML login initiated successfully");
-            logger.debug("🐛 DEBUG: User should be redirected to IdP");
-            
+            createAuth(request, response).login(relayState);
+            LOGIN_TOTAL.recordSince(start);
+            LOGIN_SUCCESS.increment();
+            logger.debug("SAML login initiated, redirecting to IdP");
+        
         } catch (Exception e) {
-            logger.error("❌ Failed to initiate SAML login", e);
-            logger.debug("🐛 DEBUG: Exception type: {}", e.getClass().getSimpleName());
-            logger.debug("🐛 DEBUG: Exception message: {}", e.getMessage());
+            SAMLMetrics.failure("login", e.getClass().getSimpleName());
+            logger.error("Failed to initiate SAML login", e);
             throw new RuntimeException("SAML login initiation failed", e);
         }
     }
     
     /**
-     * Processes SAML response from IdP and validates authentication
+     * Processes SAML response from IdP and validates authentication.
+     * Each phase is timed into {@link SAMLMetrics} under operation "acs":
+     * precheck (reading the response, base64 and streaming
+     * {@link SAMLResponseInspector} checks, replay pre-check), parse (toolkit
+     * decode and DOM parse), validate (schema, signature, conditions),
+     * extract (NameID, attributes, session index), replay (recording the
+     * assertion) and user_info.
      * 
      * @param request HTTP request containing SAML response
      * @return SAMLUserInfo containing user information if authentication successful
      * @throws RuntimeException if authentication fails
      */
     public SAMLUserInfo processResponse(HttpServletRequest request) {
-        logger.info("Processing SAML response from IdP");
+        return processResponse(request, null);
+    }
+    
+    /**
+     * Processes a SAML response read from the request body as a stream. The
+     * response is base64 decoded and pre-checked as it is read, so the
+     * size limit holds before the body has been buffered, and only its
+     * base64 text is kept for the toolkit instead of the container's copy
+     * of the body plus the decoded parameter string.
+     * 
+     * @param request HTTP request the SAML response was posted with
+     * @param samlResponse the form-decoded SAMLResponse value, or null to use the request parameter
+     * @return SAMLUserInfo containing user information if authentication successful
+     * @throws RuntimeException if authentication fails
+     */
+    public SAMLUserInfo processResponse(HttpServletRequest request, InputStream samlResponse) {
+        logger.debug("Processing SAML response from IdP");
         
+        long start = System.nanoTime();
+        String error = "internal";
+        boolean prechecked = false;
         try {
-            // Get SAML response from request parameters
-            String samlResponse = request.getParameter("SAMLResponse");
-            if (samlResponse == null) {
-                throw new RuntimeException("SAMLResponse parameter not found in request");
+            // Reject oversized, misaddressed, stale and foreign responses and known replays
+            // before paying for DOM parsing and signature validation
+            String encoded;
+            SAMLResponseInspector.Summary summary;
+            if (samlResponse != null) {
+                error = "malformed";
+                // Grown to the body length once the response looks like ours; %-escapes make that a slight overestimate
+                StringBuilder copy = new StringBuilder(16384);
+                summary = inspector.inspect(samlResponse, copy, request.getContentLengthLong());
+                // Only the string is kept while the toolkit verifies; the builder is garbage from here
+                encoded = copy.toString();
+            } else {
+                // Get SAML response from request parameters
+                encoded = request.getParameter("SAMLResponse");
+                if (encoded == null) {
+                    error = "missing_parameter";
+                    throw new RuntimeException("SAMLResponse parameter not found in request");
+                }
+                error = "malformed";
+                summary = inspector.inspect(encoded);
             }
-            
-            // Process the SAML response
-            auth.processResponse(samlResponse);
-            
-            // Check for errors
-            if (auth.getErrors().size() > 0) {
-                String errorMsg = "SAML authentication errors: " + auth.getErrors();
-                logger.error(errorMsg);
-                throw new RuntimeException(errorMsg);
+            prechecked = true;
+            if (replayCache.isReplay(summary.getAssertionId(), summary.getNotOnOrAfter())) {
+                logger.warn("Rejected replayed SAML assertion: {}", summary.getAssertionId());
+                error = "replay";
+                throw new RuntimeException("SAML assertion has already been used");
             }
+            long phase = ACS_PRECHECK.recordSince(start);
+            
+            // Decode, parse and validate schema, signature, destination, audience and
+            // time conditions; CPU-bound, so virtual threads hand it to the verification pool
+            String currentUrl = request.getRequestURL().toString();
+            boolean encrypted = summary.isEncrypted();
+            SamlResponse response = sharedVerificationPool.call(() -> verify(currentUrl, encoded, encrypted));
+            phase = System.nanoTime();
             
             // Get user information from SAML assertion
-            String nameId = auth.getNameId();
-            Map<String, List<String>> attributes = auth.getAttributes();
+            error = "internal";
+            String nameId = response.getNameId();
+            Map<String, List<String>> attributes = response.getAttributes();
+            String sessionIndex = response.getSessionIndex();
+            String assertionId = response.getAssertionId();
+            long notOnOrAfter = getNotOnOrAfter(response.getAssertionNotOnOrAfter());
+            phase = ACS_EXTRACT.recordSince(phase);
             
-            logger.info("SAML authentication successful for user: {}", nameId);
-            logger.debug("SAML attributes received: {}", attributes);
+            // Record the verified assertion; also catches two copies racing through validation.
+            // Timed by the toolkit's clock, which the conditions were just checked against.
+            // An assertion that cannot be recorded (expired, no NotOnOrAfter, slot full) is rejected
+            error = "replay_untracked";
+            if (!replayCache.markUsed(assertionId, notOnOrAfter, DateTimeUtils.currentTimeMillis())) {
+                logger.warn("Rejected replayed SAML assertion: {}", assertionId);
+                error = "replay";
+                throw new RuntimeException("SAML assertion has already been used");
+            }
+            error = "internal";
+            phase = ACS_REPLAY.recordSince(phase);
             
-            // Create user info object
-            SAMLUserInfo userInfo = new SAMLUserInfo();
-            userInfo.setNameId(nameId);
-            userInfo.setAttributes(attributes);
-            userInfo.setSessionIndex(auth.getSessionIndex());
+            // Create compact, immutable user info object
+            SAMLUserInfo userInfo = new SAMLUserInfo(nameId, attributes, sessionIndex, null,
+                    notOnOrAfter == Long.MAX_VALUE ? null : java.time.Instant.ofEpochMilli(notOnOrAfter).toString());
+            ACS_USER_INFO.recordSince(phase);
+            ACS_TOTAL.recordSince(start);
+            ACS_SUCCESS.increment();
             
+            logger.info("SAML authentication successful for user: {}", nameId);
+            logger.debug("SAML attributes received: {}", attributes.keySet());
             return userInfo;
-            
+        
         } catch (Exception e) {
-            logger.error("Failed to process SAML response", e);
+            ACS_FAILED.recordSince(start);
+            if (e instanceof ValidationError) {
+                error = validationErrorType(e);
+            } else if (e instanceof RejectedExecutionException) {
+                error = "overloaded";
+            } else if (e instanceof IOException) {
+                error = "body_read";
+            }
+            SAMLMetrics.failure("acs", error);
+            if (!prechecked && (e instanceof ValidationError || e instanceof IOException)) {
+                // Cheap to trigger in bulk, so no stack trace
+                logger.warn("Rejected SAML response in pre-check: {}", e.getMessage());
+            } else {
+                logger.error("Failed to process SAML response", e);
+            }
             throw new RuntimeException("SAML response processing failed", e);
         }
     }
     
+    /**
+     * Parses and validates a SAML response, timed as the "parse" and
+     * "validate" phases of operation "acs". With IdP metadata, the response
+     * is validated against the most recently successful signing key; if its
+     * signature does not verify, the other keys are tried on the parsed
+     * document and the response is validated again with the one that
+     * verifies (counted as "key_fallback").
+     * 
+     * @param currentUrl URL the response was posted to
+     * @param samlResponse the base64 encoded response
+     * @param encrypted whether the response carries an encrypted assertion
+     * @return the validated response
+     * @throws Exception the toolkit's validation error if the response is invalid
+     */
+    private SamlResponse verify(String currentUrl, String samlResponse, boolean encrypted) throws Exception {
+        long start = System.nanoTime();
+        IdPSigningKeys keys = signingKeys();
+        int key = keys != null ? keys.preferred() : -1;
+        ParsedResponse response = new ParsedResponse(key >= 0 ? keys.getSettings(key) : settings, currentUrl,
+                samlResponse);
+        long phase = ACS_PARSE.recordSince(start);
+        
+        if (schemaValidation) {
+            // The checks the toolkit runs when XML validation is on, against the cached schema
+            if (encrypted && !XmlParserPool.validate(XmlParserPool.parse(
+                    Util.base64decoder(samlResponse)), SchemaFactory.SAML_SCHEMA_PROTOCOL_2_0)) {
+                throw new ValidationError("Invalid SAML Response. Not match the saml-schema-protocol-2.0.xsd",
+                        ValidationError.INVALID_XML_FORMAT);
+            }
+            if (!XmlParserPool.validate(response.getDocument(), SchemaFactory.SAML_SCHEMA_PROTOCOL_2_0)) {
+                throw new ValidationError(encrypted
+                        ? "Invalid decrypted SAML Response. Not match the saml-schema-protocol-2.0.xsd"
+                        : "Invalid SAML Response. Not match the saml-schema-protocol-2.0.xsd",
+                        ValidationError.INVALID_XML_FORMAT);
+            }
+        }
+        if (!response.isValid() && keys != null && keys.size() > 1 && isSignatureFailure(response)) {
+            int signer = keys.findSigner(response.getDocument(), key);
+            if (signer >= 0) {
+                ACS_KEY_FALLBACK.increment();
+                logger.info("SAML response signed with IdP key {} of metadata version {}", signer,
+                        keys.getMetadata().getVersion());
+                response = new ParsedResponse(keys.getSettings(signer), currentUrl, samlResponse);
+            }
+        }
+        if (!response.isValid()) {
+            logger.error("SAML authentication errors: {}", response.getError());
+            Exception validationException = response.getValidationException();
+            throw validationException instanceof ValidationError ? validationException
+                    : new ValidationError(response.getError(), -1);
+        }
+        ACS_VALIDATE.recordSince(phase);
+        return response;
+    }
+    
+    private static boolean isSignatureFailure(SamlResponse response) {
+        Exception exception = response.getValidationException();
+        return exception instanceof ValidationError
+                && ((ValidationError) exception).getErrorCode() == ValidationError.INVALID_SIGNATURE;
+    }
+    
+    /**
+     * Stores an authenticated user in the HTTP session, timed as the
+     * "session" phase of operation "acs"
+     * 
+     * @param request the ACS request
+     * @param userInfo the authenticated user
+     * @return the session
+     */
+    public HttpSession establishSession(HttpServletRequest request, SAMLUserInfo userInfo) {
+        long start = System.nanoTime();
+        HttpSession session = request.getSession();
+        // Before the user: SAMLSessionListener indexes the session under this IdP when the user is set
+        session.setAttribute("saml.idpEntityId", settings.getIdpEntityId());
+        session.setAttribute("saml.userInfo", userInfo);
+        session.setAttribute("saml.sessionIndex", userInfo.getSessionIndex());
+        // Role rules are evaluated once per login; role routes only test the bits
+        session.setAttribute("saml.roles", RoleMapping.getInstance().evaluate(userInfo));
+        ACS_SESSION.recordSince(start);
+        return session;
+    }
+    
+    /**
+     * Issues the session token of a login in stateless cookie mode (see
+     * {@link SessionTokens}), timed as the "session" phase of operation "acs"
+     * 
+     * @param userInfo the authenticated user
+     * @return the cookie value, or null if logins are kept in container sessions
+     */
+    public String issueSessionToken(SAMLUserInfo userInfo) {
+        SessionTokens tokens = SessionTokens.getInstance();
+        if (!tokens.isEnabled()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        // Null for a token too large for a cookie: the caller falls back to establishSession
+        String token = tokens.issue(userInfo, RoleMapping.getInstance().evaluate(userInfo));
+        ACS_SESSION.recordSince(start);
+        return token;
+    }
+    
+    /**
+     * Gets the earliest verified NotOnOrAfter of the assertion. The pre-check
+     * scan is not consulted: its values are unsigned and could move the
+     * replay cache entry into a slot that has already expired.
+     * 
+     * @param verified NotOnOrAfter values reported by the toolkit
+     * @return expiry in epoch milliseconds, or Long.MAX_VALUE if there is none
+     */
+    private static long getNotOnOrAfter(List<Instant> verified) {
+        long earliest = Long.MAX_VALUE;
+        if (verified != null) {
+            for (Instant instant : verified) {
+                earliest = Math.min(earliest, instant.getMillis());
+            }
+        }
+        return earliest;
+    }
+    
+    /**
+     * Maps a toolkit validation failure to a metric label, using the name
+     * of its error code constant (e.g. "invalid_signature")
+     * 
+     * @param exception the validation exception, may be null
+     * @return the error type
+     */
+    private static String validationErrorType(Exception exception) {
+        if (exception instanceof ValidationError) {
+            String name = VALIDATION_ERRORS.get(((ValidationError) exception).getErrorCode());
+            if (name != null) {
+                return name;
+            }
+        }
+        return "invalid_response";
+    }
+    
+    private static Map<Integer, String> validationErrorNames() {
+        Map<Integer, String> names = new HashMap<>();
+        for (Field field : ValidationError.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == int.class) {
+                try {
+                    names.put(field.getInt(null), field.getName().toLowerCase(Locale.ROOT));
+                } catch (IllegalAccessException e) {
+                    // Public constant, cannot happen
+                }
+            }
+        }
+        return names;
+    }
+    
+    /**
+     * Gets the application-wide assertion replay cache
+     * 
+     * @return the replay cache
+     */
+    public static AssertionReplayCache getReplayCache() {
+        return sharedReplayCache;
+    }
+    
+    /**
+     * Gets the application-wide signature verification pool
+     * 
+     * @return the verification pool
+     */
+    public static VerificationPool getVerificationPool() {
+        return sharedVerificationPool;
+    }
+    
+    /**
+     * Gets the application-wide admission control of the ACS and SLS endpoints
+     * 
+     * @return the admission control
+     */
+    public static AdmissionControl getAdmissionControl() {
+        return sharedAdmissionControl;
+    }
+    
+    /**
+     * Gets the application-wide index of live sessions
+     * 
+     * @return the session registry
+     */
+    public static SessionRegistry getSessionRegistry() {
+        return sharedSessionRegistry;
+    }
+    
+    /**
+     * Gets the application-wide persistent session store
+     * 
+     * @return the session store; disabled if no store file is configured
+     */
+    public static SessionStore getSessionStore() {
+        return sharedSessionStore;
+    }
+    
+    /**
+     * Gets the application-wide session replicator
+     * 
+     * @return the session replicator; disabled if no transport is configured
+     */
+    public static SessionReplicator getSessionReplicator() {
+        return sharedSessionReplicator;
+    }
+    
+    /**
+     * Restores the session a request's browser had before a restart, from
+     * the session store, or on another node, from the replicas it sent;
+     * under a new session ID
+     * 
+     * @param request a request whose session ID the container does not know
+     * @return the restored session, or null if none was stored or replicated
+     */
+    public static HttpSession restoreSession(HttpServletRequest request) {
+        String sessionId = request.getRequestedSessionId();
+        HttpSession session = sharedSessionStore.restore(sessionId, record -> establishRestored(request, record));
+        if (session == null) {
+            session = sharedSessionReplicator.restore(sessionId, record -> establishRestored(request, record));
+        }
+        try {
+            // A parallel request's restore; it may have logged out since
+            return session != null && session.getAttribute("saml.userInfo") != null ? session : null;
+        } catch (IllegalStateException e) {
+            return null;
+        }
+    }
+    
+    private static HttpSession establishRestored(HttpServletRequest request, SessionStore.Record record) {
+        HttpSession restored = request.getSession();
+        restored.setAttribute("saml.idpEntityId", record.getIdpEntityId());
+        if (record.getRelayState() != null) {
+            restored.setAttribute("saml.relayState", record.getRelayState());
+        }
+        // Last of the stored attributes: the listeners index, store and replicate the session once, complete
+        restored.setAttribute("saml.userInfo", record.getUserInfo());
+        restored.setAttribute("saml.sessionIndex", record.getUserInfo().getSessionIndex());
+        restored.setAttribute("saml.roles", RoleMapping.getInstance().evaluate(record.getUserInfo()));
+        return restored;
+    }
+    
+    /**
+     * Gets the application-wide IdP metadata provider
+     * 
+     * @return the metadata provider; disabled if no metadata location is configured
+     */
+    public static IdPMetadataProvider getMetadataProvider() {
+        return sharedMetadataProvider;
+    }
+    
+    private static IdPMetadataProvider createMetadataProvider() {
+        int refreshSeconds = SAMLConfig.getIntProperty("idp.metadata.refreshSeconds", 300);
+        int timeoutMillis = SAMLConfig.getIntProperty("idp.metadata.timeoutMillis", 5000);
+        String signingCert = SAMLConfig.getProperty("idp.metadata.signingCert", "").trim();
+        IdPMetadataProvider provider;
+        try {
+            provider = new IdPMetadataProvider(
+                    SAMLConfig.getProperty("idp.metadata.location", ""),
+                    SAMLConfig.getProperty("idp.entityId", ""),
+                    refreshSeconds, timeoutMillis,
+                    signingCert.isEmpty() ? SAMLConfig.getProperty("idp.x509cert", "") : signingCert);
+        } catch (IllegalArgumentException e) {
+            logger.error("IdP metadata disabled: {}", e.getMessage());
+            provider = new IdPMetadataProvider(null, null, refreshSeconds, timeoutMillis, null);
+        }
+        if (provider.isEnabled()) {
+            provider.start();
+            // Settings for new keys are built on the refresh thread, never by the first request to see them
+            provider.addListener(metadata -> getInstance().signingKeys());
+            provider.registerMetrics();
+        }
+        return provider;
+    }
+    
+    private static SessionRegistry createSessionRegistry() {
+        SessionRegistry registry = new SessionRegistry();
+        registry.registerMetrics();
+        return registry;
+    }
+    
+    private static SessionStore createSessionStore() {
+        String file = SAMLConfig.getProperty("app.session.store.file", "").trim();
+        int compactIntervalSeconds = SAMLConfig.getIntProperty("app.session.store.compactIntervalSeconds", 60);
+        long lifetimeSeconds = SAMLConfig.getIntProperty("app.session.timeout", 30) * 60L;
+        SessionStore store;
+        try {
+            store = new SessionStore(file.isEmpty() ? null : Paths.get(file), compactIntervalSeconds, lifetimeSeconds,
+                    SAMLConfig.getProperty("app.session.store.key", ""));
+        } catch (IllegalArgumentException e) {
+            logger.error("Session store disabled: {}", e.getMessage());
+            store = new SessionStore(null, compactIntervalSeconds, lifetimeSeconds, null);
+        }
+        if (store.isEnabled()) {
+            store.preload();
+            store.registerMetrics();
+        }
+        return store;
+    }
+    
+    private static SessionReplicator createSessionReplicator() {
+        String transportClass = SAMLConfig.getProperty("app.session.replication.transport", "").trim();
+        ReplicationTransport transport = null;
+        if (!transportClass.isEmpty()) {
+            try {
+                transport = Class.forName(transportClass).asSubclass(ReplicationTransport.class)
+                        .getConstructor().newInstance();
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                logger.error("Session replication disabled, cannot create transport {}", transportClass, e);
+            }
+        }
+        String nodeId = SAMLConfig.getProperty("app.session.replication.nodeId", "").trim();
+        SessionReplicator replicator;
+        try {
+            replicator = createSessionReplicator(nodeId, transport,
+                    SAMLConfig.getProperty("app.session.replication.keys", ""));
+        } catch (IllegalArgumentException e) {
+            logger.error("Session replication disabled: {}", e.getMessage());
+            replicator = createSessionReplicator(nodeId, null, "");
+        }
+        if (replicator.isEnabled()) {
+            try {
+                replicator.start();
+                replicator.registerMetrics();
+            } catch (IOException e) {
+                logger.error("Session replication disabled, transport {} failed to start", transportClass, e);
+            }
+        }
+        return replicator;
+    }
+    
+    private static SessionReplicator createSessionReplicator(String nodeId, ReplicationTransport transport,
+                                                             String clusterKeys) {
+        return new SessionReplicator(nodeId.isEmpty() ? ManagementFactory.getRuntimeMXBean().getName() : nodeId,
+                transport, sharedSessionRegistry, sharedSessionStore,
+                SAMLConfig.getIntProperty("app.session.replication.flushMillis", 20),
+                SAMLConfig.getIntProperty("app.session.replication.maxBatchBytes", 65536),
+                SAMLConfig.getIntProperty("app.session.timeout", 30) * 60L, clusterKeys);
+    }
+    
+    private static AdmissionControl createAdmissionControl() {
+        AdmissionControl admissionControl = new AdmissionControl(
+                SAMLConfig.getBooleanProperty("saml.admission.enabled", true),
+                SAMLConfig.getIntProperty("saml.admission.clientRatePerSecond", 0),
+                SAMLConfig.getIntProperty("saml.admission.clientBurst", 20),
+                SAMLConfig.getIntProperty("saml.admission.maxClients", 100000),
+                SAMLConfig.getProperty("saml.admission.clientAddressHeader", ""),
+                SAMLConfig.getIntProperty("saml.admission.maxConcurrent", 0),
+                SAMLConfig.getIntProperty("saml.admission.queueCapacity", 64),
+                SAMLConfig.getIntProperty("saml.admission.maxWaitMillis", 1000));
+        admissionControl.registerMetrics();
+        return admissionControl;
+    }
+    
     /**
      * Initiates SAML logout by redirecting to IdP
      * 
@@ -270,7 +933,7 @@ public class SAMLService {
      * @throws IOException if redirect fails
      */
     public void logout(HttpServletRequest request, HttpServletResponse response, String relayState) throws IOException {
-        logger.info("Initiating SAML logout");
+        logger.debug("Initiating SAML logout");
         
         try {
             // Get session index from session if available
@@ -281,9 +944,9 @@ public class SAMLService {
             }
             
             // Initiate SAML logout - using null for LogoutRequestParams
-            auth.logout(relayState, null);
-            logger.info("SAML logout initiated successfully");
-            
+            createAuth(request, response).logout(relayState, null);
+            logger.debug("SAML logout initiated successfully");
+        
         } catch (Exception e) {
             logger.error("Failed to initiate SAML logout", e);
             throw new RuntimeException("SAML logout initiation failed", e);
@@ -298,48 +961,160 @@ public class SAMLService {
      * @throws RuntimeException if logout processing fails
      */
     public boolean processLogoutResponse(HttpServletRequest request) {
-        logger.info("Processing SAML logout response from IdP");
+        logger.debug("Processing SAML logout response from IdP");
         
+        long start = System.nanoTime();
+        String error = "internal";
         try {
             // Get SAML response from request parameters
             String samlResponse = request.getParameter("SAMLResponse");
             if (samlResponse == null) {
+                error = "missing_parameter";
                 throw new RuntimeException("SAMLResponse parameter not found in request");
             }
             
             // Process the logout response - using null for LogoutResponseParams
+            Auth auth = createAuth(request, null);
+            long phase = System.nanoTime();
+            if (schemaValidation && !XmlParserPool.validate(XmlParserPool.parse(Util.base64decodedInflated(samlResponse)),
+                    SchemaFactory.SAML_SCHEMA_PROTOCOL_2_0)) {
+                // Reported under the toolkit's error code for a logout response it rejects
+                error = "invalid_logout_response";
+                throw new RuntimeException("SAML logout response does not match the saml-schema-protocol-2.0.xsd");
+            }
             auth.processSLO();
+            SLS_VALIDATE.recordSince(phase);
             
-            // Check for errors
+            // Check for errors; the toolkit reports a small fixed set of error codes
             if (auth.getErrors().size() > 0) {
+                error = auth.getErrors().get(0);
                 String errorMsg = "SAML logout errors: " + auth.getErrors();
                 logger.error(errorMsg);
                 throw new RuntimeException(errorMsg);
             }
             
+            SLS_TOTAL.recordSince(start);
+            SLS_SUCCESS.increment();
             logger.info("SAML logout processed successfully");
             return true;
-            
+        
         } catch (Exception e) {
+            SAMLMetrics.failure("sls", error);
             logger.error("Failed to process SAML logout response", e);
             throw new RuntimeException("SAML logout response processing failed", e);
         }
     }
     
     /**
-     * Generates SP metadata XML
+     * Processes a LogoutRequest from the IdP: validates it, invalidates the
+     * sessions it names through the {@link SessionRegistry} (those with its
+     * SessionIndexes, or all of its NameID if it lists none) and builds the
+     * LogoutResponse. The caller's own session is left to the endpoint.
+     * 
+     * @param request HTTP request containing the logout request
+     * @return the URL that sends the LogoutResponse to the IdP
+     * @throws RuntimeException if the logout request is invalid or cannot be processed
+     */
+    public String processLogoutRequest(HttpServletRequest request) {
+        logger.debug("Processing SAML logout request from IdP");
+        
+        long start = System.nanoTime();
+        String error = "internal";
+        try {
+            String samlRequest = request.getParameter("SAMLRequest");
+            if (samlRequest == null) {
+                error = "missing_parameter";
+                throw new RuntimeException("SAMLRequest parameter not found in request");
+            }
+            
+            Auth auth = createAuth(request, null);
+            long phase = System.nanoTime();
+            // Parsed once with the pooled builders; the NameID and SessionIndexes are read from it below
+            Document document = XmlParserPool.parse(Util.base64decodedInflated(samlRequest));
+            if (schemaValidation && !XmlParserPool.validate(document, SchemaFactory.SAML_SCHEMA_PROTOCOL_2_0)) {
+                // Reported under the toolkit's error code for a logout request it rejects
+                error = "invalid_logout_request";
+                throw new RuntimeException("SAML logout request does not match the saml-schema-protocol-2.0.xsd");
+            }
+            // Local sessions are ended below, by index; stay=true returns the LogoutResponse URL
+            String responseUrl = auth.processSLO(true, null, true);
+            if (auth.getErrors().size() > 0) {
+                error = auth.getErrors().get(0);
+                String errorMsg = "SAML logout request errors: " + auth.getErrors();
+                logger.error(errorMsg);
+                throw new RuntimeException(errorMsg);
+            }
+            SLO_VALIDATE.recordSince(phase);
+            
+            phase = System.nanoTime();
+            List<String> sessionIndexes = new ArrayList<>(1);
+            String nameId = null;
+            for (Node child = document.getDocumentElement().getFirstChild(); child != null;
+                    child = child.getNextSibling()) {
+                if ("urn:oasis:names:tc:SAML:2.0:assertion".equals(child.getNamespaceURI())
+                        && "NameID".equals(child.getLocalName())) {
+                    nameId = child.getTextContent();
+                } else if ("urn:oasis:names:tc:SAML:2.0:protocol".equals(child.getNamespaceURI())
+                        && "SessionIndex".equals(child.getLocalName())) {
+                    sessionIndexes.add(child.getTextContent());
+                }
+            }
+            if (nameId == null) {
+                // An EncryptedID: the toolkit decrypts it with the SP key
+                nameId = LogoutRequest.getNameId(document, settings.getSPkey());
+            }
+            int ended = sharedSessionRegistry.invalidate(settings.getIdpEntityId(), nameId, sessionIndexes);
+            // Stored sessions not restored since a restart are in no registry
+            sharedSessionStore.end(settings.getIdpEntityId(), nameId, sessionIndexes);
+            // And sessions of this user on the other nodes
+            sharedSessionReplicator.end(settings.getIdpEntityId(), nameId, sessionIndexes);
+            SLO_SESSIONS.recordSince(phase);
+            SLO_ENDED.add(ended);
+            
+            SLO_TOTAL.recordSince(start);
+            SLO_SUCCESS.increment();
+            logger.info("SAML logout request processed, {} session(s) ended", ended);
+            return responseUrl;
+        
+        } catch (Exception e) {
+            SAMLMetrics.failure("slo", error);
+            logger.error("Failed to process SAML logout request", e);
+            throw new RuntimeException("SAML logout request processing failed", e);
+        }
+    }
+    
+    /**
+     * Gets the SP metadata XML
      * 
      * @return SP metadata as XML string
      * @throws RuntimeException if metadata generation fails
      */
     public String getMetadata() {
-        logger.info("Generating SP metadata");
+        return getSPMetadata().getXml();
+    }
+    
+    /**
+     * Gets the precomputed SP metadata, generating it on first use and again
+     * once half of its validUntil window has passed. A racing duplicate build
+     * is harmless: either snapshot is valid.
+     * 
+     * @return the immutable SP metadata snapshot
+     * @throws RuntimeException if metadata generation fails
+     */
+    public SPMetadata getSPMetadata() {
+        SPMetadata metadata = spMetadata;
+        if (metadata != null && metadata.isCurrent(System.currentTimeMillis())) {
+            return metadata;
+        }
         
+        logger.info("Generating SP metadata");
         try {
-            String metadata = auth.getSettings().getSPMetadata();
-            logger.info("SP metadata generated successfully");
+            metadata = new SPMetadata(settings.getSPMetadata(),
+                    config.getIntProperty("app.metadata.cacheMaxAge", 300));
+            spMetadata = metadata;
+            logger.info("SP metadata generated successfully, ETag: {}", metadata.getETag());
             return metadata;
-            
+        
         } catch (Exception e) {
             logger.error("Failed to generate SP metadata", e);
             throw new RuntimeException("SP metadata generation failed", e);
@@ -347,7 +1122,9 @@ public class SAMLService {
     }
     
     /**
-     * Gets the SAML settings object
+     * Gets the SAML settings object. Settings built by {@link #buildSettings}
+     * have the toolkit's XML schema validation turned off, because the service
+     * validates against a cached schema before handing messages to the toolkit.
      * 
      * @return Saml2Settings object
      */
@@ -356,11 +1133,26 @@ public class SAMLService {
     }
     
     /**
-     * Gets the Auth object for advanced operations
+     * Gets the configuration snapshot this service was built from
      * 
-     * @return Auth object
+     * @return the configuration snapshot
      */
-    public Auth getAuth() {
-        return auth;
+    public ConfigSnapshot getConfig() {
+        return config;
+    }
+    
+    /**
+     * SAML response that exposes the document the toolkit validates,
+     * the decrypted one if the assertion was encrypted
+     */
+    private static final class ParsedResponse extends SamlResponse {
+        
+        ParsedResponse(Saml2Settings settings, String currentUrl, String samlResponse) throws Exception {
+            super(settings, currentUrl, samlResponse);
+        }
+        
+        Document getDocument() {
+            return getSAMLResponseDocument();
+        }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,239 @@
+package com.sample.saml.service;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Precomputed SP Metadata
+ * 
+ * Immutable snapshot of the SP metadata document for one configuration
+ * version. The XML is encoded once into plain and gzip byte arrays and
+ * carries a strong ETag derived from its content, so serving it is a
+ * header comparison and a single array write.
+ * 
+ * The toolkit stamps the document with a {@code validUntil} two days after
+ * it was built, so a snapshot only stays current for the first half of
+ * that window; {@link #isCurrent(long)} tells the owner when to rebuild,
+ * long before an IdP that refreshes our metadata would see it expire.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class SPMetadata {
+    
+    private static final String CONTENT_TYPE = "application/xml";
+    
+    private final String xml;
+    private final byte[] plainBody;
+    private final byte[] gzipBody;
+    private final String etag;
+    private final String gzipEtag;
+    private final String cacheControl;
+    private final long refreshAt;
+    
+    /**
+     * Encodes the given metadata XML
+     * 
+     * @param xml the SP metadata document
+     * @param maxAgeSeconds Cache-Control max-age advertised to clients
+     */
+    public SPMetadata(String xml, int maxAgeSeconds) {
+        this.xml = xml;
+        this.plainBody = xml.getBytes(StandardCharsets.UTF_8);
+        this.gzipBody = gzip(plainBody);
+        
+        String digest = sha256(plainBody);
+        this.etag = "\"" + digest + "\"";
+        this.gzipEtag = "\"" + digest + "-gz\"";
+        this.cacheControl = "public, max-age=" + Math.max(0, maxAgeSeconds);
+        this.refreshAt = refreshAt(xml, System.currentTimeMillis());
+    }
+    
+    /**
+     * Checks whether the snapshot is still in the first half of its validity
+     * 
+     * @param now the current time in epoch milliseconds
+     * @return false once the metadata should be rebuilt
+     */
+    public boolean isCurrent(long now) {
+        return now < refreshAt;
+    }
+    
+    /**
+     * Gets the metadata XML
+     * 
+     * @return the metadata document
+     */
+    public String getXml() {
+        return xml;
+    }
+    
+    /**
+     * Gets the strong ETag of the uncompressed representation
+     * 
+     * @return the quoted ETag value
+     */
+    public String getETag() {
+        return etag;
+    }
+    
+    /**
+     * Writes the metadata to the response, honouring If-None-Match and
+     * Accept-Encoding. Responds 304 without a body when the client copy is current.
+     * 
+     * @param request HTTP request
+     * @param response HTTP response
+     * @throws IOException if writing the body fails
+     */
+    public void writeTo(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        boolean gzip = acceptsGzip(request.getHeader("Accept-Encoding"));
+        String currentEtag = gzip ? gzipEtag : etag;
+        
+        response.setHeader("ETag", currentEtag);
+        response.setHeader("Cache-Control", cacheControl);
+        response.setHeader("Vary", "Accept-Encoding");
+        
+        if (matchesIfNoneMatch(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        
+        byte[] body = gzip ? gzipBody : plainBody;
+        response.setContentType(CONTENT_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+    
+    /**
+     * Checks an If-None-Match header against both representations.
+     * Uses the weak comparison required for If-None-Match, so W/ prefixes match too.
+     * 
+     * @param header the If-None-Match header value, may be null
+     * @return true if the client already has the current metadata
+     */
+    boolean matchesIfNoneMatch(String header) {
+        if (header == null) {
+            return false;
+        }
+        int length = header.length();
+        int start = 0;
+        while (start < length) {
+            int end = header.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            int from = start;
+            int to = end;
+            while (from < to && header.charAt(from) == ' ') {
+                from++;
+            }
+            while (to > from && header.charAt(to - 1) == ' ') {
+                to--;
+            }
+            if (to - from == 1 && header.charAt(from) == '*') {
+                return true;
+            }
+            if (header.startsWith("W/", from)) {
+                from += 2;
+            }
+            if (regionEquals(header, from, to, etag) || regionEquals(header, from, to, gzipEtag)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+    
+    /**
+     * Halfway between now and the document's validUntil; never, if it has none
+     */
+    private static long refreshAt(String xml, long now) {
+        int start = xml.indexOf("validUntil=\"");
+        if (start < 0) {
+            return Long.MAX_VALUE;
+        }
+        start += "validUntil=\"".length();
+        int end = xml.indexOf('"', start);
+        try {
+            long validUntil = Instant.parse(xml.substring(start, end)).toEpochMilli();
+            return now + (validUntil - now) / 2;
+        } catch (DateTimeParseException | StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid validUntil in SP metadata", e);
+        }
+    }
+    
+    private static boolean regionEquals(String header, int from, int to, String tag) {
+        return to - from == tag.length() && header.regionMatches(from, tag, 0, tag.length());
+    }
+    
+    /**
+     * Checks whether an Accept-Encoding header admits gzip: listed, as
+     * gzip, x-gzip or *, with a q value above 0; an explicit gzip entry
+     * overrides *
+     * 
+     * @param acceptEncoding the header, may be null
+     * @return true if the body may be sent gzip-compressed
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        double gzip = -1;
+        double any = -1;
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parts = entry.split(";");
+            String coding = parts[0].trim();
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.length() > 2 && parameter.substring(0, 2).equalsIgnoreCase("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        // Not a q value; the entry is ignored
+                        quality = 0;
+                    }
+                }
+            }
+            if (coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip")) {
+                gzip = Math.max(gzip, quality);
+            } else if (coding.equals("*")) {
+                any = Math.max(any, quality);
+            }
+        }
+        return (gzip >= 0 ? gzip : any) > 0;
+    }
+    
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(64, data.length / 3));
+        try (GZIPOutputStream out = new GZIPOutputStream(buffer)) {
+            out.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to compress SP metadata", e);
+        }
+        return buffer.toByteArray();
+    }
+    
+    private static String sha256(byte[] data) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.sample.saml.service;
+
+import com.sample.saml.metrics.SAMLMetrics;
+
+import javax.servlet.http.HttpSession;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Session Registry
+ * 
+ * Finds the live HTTP sessions of a SAML login by SessionIndex and by
+ * NameID, so a LogoutRequest from the IdP ends exactly the sessions it
+ * names with a hash lookup instead of a scan of every session in the
+ * container. {@link com.sample.saml.listener.SAMLSessionListener} keeps it
+ * current as sessions gain or lose their user and are destroyed.
+ * 
+ * Each indexed session costs one entry, a weak reference that carries the
+ * IdP entity ID, NameID and SessionIndex already held by the session, plus
+ * one map node per key. A key with a single session maps to the entry
+ * itself; only a user with several sessions gets an array. The references
+ * are weak so the index never keeps a session alive that the container
+ * dropped without telling listeners; cleared entries are purged as new ones
+ * are added. Entries are matched on the IdP too, so tenants' users with the
+ * same NameID never end each other's sessions.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class SessionRegistry {
+    
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+    
+    // Values are an Entry, or an Entry[] when several sessions share the key
+    private final ConcurrentMap<String, Object> byNameId = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Object> bySessionIndex = new ConcurrentHashMap<>();
+    private final ReferenceQueue<HttpSession> collected = new ReferenceQueue<>();
+    
+    private final LongAdder indexed = new LongAdder();
+    private final LongAdder purged = new LongAdder();
+    
+    /**
+     * Indexes a session under its user's NameID and SessionIndex
+     * 
+     * @param session the session
+     * @param idpEntityId the IdP that authenticated the user
+     * @param nameId the user's NameID
+     * @param sessionIndex the SessionIndex of the login, may be null
+     */
+    public void register(HttpSession session, String idpEntityId, String nameId, String sessionIndex) {
+        if (nameId == null) {
+            return;
+        }
+        purgeCollected();
+        Entry entry = new Entry(session, collected, idpEntityId, nameId, sessionIndex);
+        byNameId.merge(nameId, entry, SessionRegistry::append);
+        if (sessionIndex != null) {
+            bySessionIndex.merge(sessionIndex, entry, SessionRegistry::append);
+        }
+        indexed.increment();
+    }
+    
+    /**
+     * Removes a session from the index
+     * 
+     * @param session the session
+     * @param nameId the NameID it was indexed under
+     * @param sessionIndex the SessionIndex it was indexed under, may be null
+     */
+    public void unregister(HttpSession session, String nameId, String sessionIndex) {
+        if (nameId == null) {
+            return;
+        }
+        int removed = remove(byNameId, nameId, session, null);
+        if (sessionIndex != null) {
+            remove(bySessionIndex, sessionIndex, session, null);
+        }
+        indexed.add(-removed);
+    }
+    
+    /**
+     * Finds the live sessions a LogoutRequest names: those with one of the
+     * given SessionIndexes, or with none given, all sessions of the NameID
+     * 
+     * @param idpEntityId the IdP that sent the request
+     * @param nameId the NameID of the request
+     * @param sessionIndexes the SessionIndexes of the request, may be empty
+     * @return the sessions
+     */
+    public List<HttpSession> find(String idpEntityId, String nameId, List<String> sessionIndexes) {
+        List<HttpSession> sessions = new ArrayList<>(1);
+        for (Entry entry : findEntries(idpEntityId, nameId, sessionIndexes)) {
+            HttpSession session = entry.get();
+            if (session != null) {
+                sessions.add(session);
+            }
+        }
+        return sessions;
+    }
+    
+    /**
+     * Invalidates the live sessions a LogoutRequest names (see {@link #find})
+     * 
+     * @param idpEntityId the IdP that sent the request
+     * @param nameId the NameID of the request
+     * @param sessionIndexes the SessionIndexes of the request, may be empty
+     * @return the number of sessions invalidated
+     */
+    public int invalidate(String idpEntityId, String nameId, List<String> sessionIndexes) {
+        int invalidated = 0;
+        for (Entry entry : findEntries(idpEntityId, nameId, sessionIndexes)) {
+            HttpSession session = entry.get();
+            if (session == null) {
+                continue;
+            }
+            try {
+                // The listener removes it from the index
+                session.invalidate();
+                invalidated++;
+            } catch (IllegalStateException e) {
+                // Already invalidated without the listener hearing of it
+                unregister(session, entry.nameId, entry.sessionIndex);
+            }
+        }
+        return invalidated;
+    }
+    
+    /**
+     * Gets the number of indexed sessions
+     * 
+     * @return the session count
+     */
+    public long size() {
+        return indexed.sum();
+    }
+    
+    /**
+     * Exports indexed sessions and purged entries as gauges of component "sessions"
+     */
+    public void registerMetrics() {
+        SAMLMetrics.gauge("sessions", "indexed", this::size);
+        SAMLMetrics.gauge("sessions", "purged", purged::sum);
+    }
+    
+    private List<Entry> findEntries(String idpEntityId, String nameId, List<String> sessionIndexes) {
+        if (nameId == null) {
+            return Collections.emptyList();
+        }
+        List<Entry> found = new ArrayList<>(1);
+        if (sessionIndexes == null || sessionIndexes.isEmpty()) {
+            collect(byNameId.get(nameId), idpEntityId, nameId, found);
+        } else {
+            for (String sessionIndex : sessionIndexes) {
+                collect(bySessionIndex.get(sessionIndex), idpEntityId, nameId, found);
+            }
+        }
+        return found;
+    }
+    
+    private static void collect(Object value, String idpEntityId, String nameId, List<Entry> found) {
+        for (Entry entry : entries(value)) {
+            if (entry.get() != null && entry.nameId.equals(nameId) && Objects.equals(entry.idpEntityId, idpEntityId)
+                    && !found.contains(entry)) {
+                found.add(entry);
+            }
+        }
+    }
+    
+    /**
+     * Removes entries whose session was garbage collected while still indexed
+     */
+    private void purgeCollected() {
+        for (Object reference = collected.poll(); reference != null; reference = collected.poll()) {
+            Entry entry = (Entry) reference;
+            int removed = remove(byNameId, entry.nameId, null, entry);
+            if (entry.sessionIndex != null) {
+                remove(bySessionIndex, entry.sessionIndex, null, entry);
+            }
+            indexed.add(-removed);
+            purged.add(removed);
+        }
+    }
+    
+    private static Object append(Object current, Object added) {
+        Entry[] entries = entries(current);
+        Entry[] grown = Arrays.copyOf(entries, entries.length + 1);
+        grown[entries.length] = (Entry) added;
+        return grown;
+    }
+    
+    /**
+     * Removes the entries of a session (or one given entry) under a key, and cleared entries met on the way
+     * 
+     * @return the number of entries removed
+     */
+    private static int remove(ConcurrentMap<String, Object> map, String key, HttpSession session, Entry target) {
+        int[] removed = {0};
+        map.computeIfPresent(key, (ignored, current) -> {
+            Entry[] entries = entries(current);
+            Entry[] kept = new Entry[entries.length];
+            int count = 0;
+            for (Entry entry : entries) {
+                HttpSession referent = entry.get();
+                if (entry == target || referent == null || referent == session) {
+                    removed[0]++;
+                } else {
+                    kept[count++] = entry;
+                }
+            }
+            if (count == entries.length) {
+                return current;
+            }
+            return count == 0 ? null : count == 1 ? kept[0] : Arrays.copyOf(kept, count);
+        });
+        return removed[0];
+    }
+    
+    private static Entry[] entries(Object value) {
+        if (value == null) {
+            return NO_ENTRIES;
+        }
+        return value instanceof Entry ? new Entry[] {(Entry) value} : (Entry[]) value;
+    }
+    
+    /**
+     * One indexed session
+     */
+    private static final class Entry extends WeakReference<HttpSession> {
+        
+        private final String idpEntityId;
+        private final String nameId;
+        private final String sessionIndex;
+        
+        Entry(HttpSession session, ReferenceQueue<HttpSession> queue, String idpEntityId, String nameId,
+              String sessionIndex) {
+            super(session, queue);
+            this.idpEntityId = idpEntityId;
+            this.nameId = nameId;
+            this.sessionIndex = sessionIndex;
+        }
+    }
+}
@@ -0,0 +1,842 @@
+package com.sample.saml.service;
+
+import com.sample.saml.metrics.LatencyHistogram;
+import com.sample.saml.metrics.SAMLMetrics;
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.util.WireFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpSession;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Session Replicator
+ * 
+ * Copies the SAML data of sessions to the other nodes of a cluster, so a
+ * node that fails or leaves the load balancer does not log its users out,
+ * and requests need not stick to the node that logged them in. Enabled
+ * with {@code app.session.replication.transport}, the
+ * {@link ReplicationTransport} that carries batches between nodes.
+ * 
+ * Sessions are never serialized whole. A change is a delta of a session's
+ * SAML data: the user and IdP once at login, then only a new RelayState, a
+ * later expiry once half of the lifetime has passed, or the removal at
+ * logout; a LogoutRequest from the IdP sends only its NameID and
+ * SessionIndexes. Changes are queued by session ID and coalesced until the
+ * next flush, every few milliseconds or as soon as a batch is full, so a
+ * login that sets the user and then the RelayState sends one delta, and
+ * the queue never holds more than one delta per session however slow the
+ * transport is. Flushes run on one thread, which alone talks to the
+ * transport.
+ * 
+ * Peers keep what they receive as the encoded bytes and decode a user
+ * only when a browser comes with a session ID the node does not know, as
+ * after a failover. The session is then established again under a new ID,
+ * as with the {@link SessionStore}, the old ID keeps leading to it for a
+ * few seconds, and the other nodes drop the old one. A LogoutRequest
+ * received by one node ends the user's sessions on every node: peers
+ * invalidate the ones in their {@link SessionRegistry}, end them in their
+ * store and refuse to restore them from their replicas.
+ * 
+ * Every batch carries a truncated HMAC-SHA256 under a cluster key from
+ * {@code app.session.replication.keys}, in the format of the session
+ * cookie keys ({@link SessionTokens}): the first key signs, all of them
+ * are accepted. A batch that does not verify is dropped unread, so only
+ * nodes holding the key can plant or end sessions. Removals and logouts
+ * that fail to send are queued again until they go through; a peer that
+ * missed one could otherwise restore a session that was logged out. A
+ * batch that arrives after a later one from the same node brings only its
+ * removals and logouts: its other changes may have been overtaken, and a
+ * late login must not bring back a session removed since. Removals are
+ * safe in any order, as a session ID is never logged in again once its
+ * session is removed.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class SessionReplicator {
+    
+    private static final Logger logger = LoggerFactory.getLogger(SessionReplicator.class);
+    
+    /**
+     * Session attribute holding the expiry peers last received for the session, in epoch milliseconds
+     */
+    public static final String REPLICATED_UNTIL = "saml.replicatedUntil";
+    
+    private static final String USER_INFO = "saml.userInfo";
+    private static final String IDP_ENTITY_ID = "saml.idpEntityId";
+    private static final String RELAY_STATE = "saml.relayState";
+    
+    private static final byte VERSION = 3;
+    private static final int HEADER_LENGTH = 2;
+    private static final int TAG_LENGTH = 16;
+    
+    // Delta flags; a delta with USER always has EXPIRY
+    private static final int USER = 1;
+    private static final int RELAY_STATE_CHANGED = 2;
+    private static final int EXPIRY = 4;
+    private static final int REMOVE = 8;
+    
+    private static final long RESTORE_GRACE_MILLIS = 30_000;
+    private static final long SWEEP_MILLIS = 60_000;
+    
+    private static final LatencyHistogram FLUSH_TIME = SAMLMetrics.histogram("replication", "flush");
+    private static final LatencyHistogram APPLY_TIME = SAMLMetrics.histogram("replication", "apply");
+    private static final LatencyHistogram LAG = SAMLMetrics.histogram("replication", "lag");
+    private static final LatencyHistogram RESTORE_TIME = SAMLMetrics.histogram("replication", "restore");
+    private static final LongAdder BATCHES_SENT = SAMLMetrics.counter("replication", "sent", "none");
+    private static final LongAdder DELTAS_SENT = SAMLMetrics.counter("replication", "deltas", "none");
+    private static final LongAdder BYTES_SENT = SAMLMetrics.counter("replication", "bytes", "none");
+    private static final LongAdder COALESCED = SAMLMetrics.counter("replication", "coalesced", "none");
+    private static final LongAdder BATCHES_RECEIVED = SAMLMetrics.counter("replication", "received", "none");
+    private static final LongAdder GAPS = SAMLMetrics.counter("replication", "gap", "none");
+    private static final LongAdder LATE = SAMLMetrics.counter("replication", "late", "none");
+    private static final LongAdder SEND_FAILED = SAMLMetrics.counter("replication", "failed", "io");
+    private static final LongAdder MALFORMED = SAMLMetrics.counter("replication", "failed", "malformed");
+    private static final LongAdder UNKNOWN_KEY = SAMLMetrics.counter("replication", "failed", "unknown_key");
+    private static final LongAdder FORGED = SAMLMetrics.counter("replication", "failed", "bad_mac");
+    private static final LongAdder REQUEUED = SAMLMetrics.counter("replication", "requeued", "none");
+    private static final LongAdder RESTORED = SAMLMetrics.counter("replication", "restored", "none");
+    private static final LongAdder NOT_FOUND = SAMLMetrics.counter("replication", "missed", "not_found");
+    private static final LongAdder LOGGED_OUT = SAMLMetrics.counter("replication", "missed", "logged_out");
+    
+    private final String nodeId;
+    private final ReplicationTransport transport;
+    private final SessionRegistry registry;
+    private final SessionStore store;
+    private final long flushMillis;
+    private final int maxBatchBytes;
+    private final long defaultLifetimeMillis;
+    // Indexed by key ID; the first configured key signs batches
+    private final SessionTokens.Key[] keys = new SessionTokens.Key[256];
+    private final SessionTokens.Key signingKey;
+    
+    // Changes not yet sent, guarded by pendingLock
+    private final Object pendingLock = new Object();
+    private Map<String, Delta> pending = new LinkedHashMap<>();
+    private List<End> pendingEnds = new ArrayList<>();
+    private int pendingBytes;
+    private long firstPendingMicros;
+    private long sequence;
+    
+    // The sessions of the other nodes, and the logouts they sent
+    private final Map<String, Replica> replicas = new ConcurrentHashMap<>();
+    private final Map<String, Long> ended = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastSequences = new ConcurrentHashMap<>();
+    private final Map<String, Restored> restored = new HashMap<>();
+    
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private volatile boolean running;
+    private ScheduledExecutorService executor;
+    
+    /**
+     * Constructor; nothing is sent or received before {@link #start()}
+     * 
+     * @param nodeId the name of this node in the cluster
+     * @param transport the transport, or null to disable replication
+     * @param registry this node's live sessions, ended by LogoutRequests other nodes receive
+     * @param store this node's session store, likewise
+     * @param flushMillis milliseconds between flushes
+     * @param maxBatchBytes queued bytes that flush a batch before its time
+     * @param defaultLifetimeSeconds lifetime of a session without a container timeout
+     * @param clusterKeys the comma-separated {@code <id>:<base64 secret>} keys batches are signed with
+     * @throws IllegalArgumentException if a setting is invalid, or a transport is given without keys
+     */
+    public SessionReplicator(String nodeId, ReplicationTransport transport, SessionRegistry registry,
+                             SessionStore store, int flushMillis, int maxBatchBytes, long defaultLifetimeSeconds,
+                             String clusterKeys) {
+        if (flushMillis < 1 || maxBatchBytes < 1024 || defaultLifetimeSeconds < 1) {
+            throw new IllegalArgumentException("Invalid session replication interval, batch size or lifetime");
+        }
+        SessionTokens.Key first = null;
+        for (SessionTokens.Key key : SessionTokens.parseKeys(clusterKeys, "saml-replication", "session replication")) {
+            keys[key.id] = key;
+            if (first == null) {
+                first = key;
+            }
+        }
+        if (transport != null && first == null) {
+            throw new IllegalArgumentException("app.session.replication.transport needs app.session.replication.keys");
+        }
+        this.signingKey = first;
+        this.nodeId = nodeId;
+        this.transport = transport;
+        this.registry = registry;
+        this.store = store;
+        this.flushMillis = flushMillis;
+        this.maxBatchBytes = maxBatchBytes;
+        this.defaultLifetimeMillis = TimeUnit.SECONDS.toMillis(defaultLifetimeSeconds);
+        // From the clock, so the batches of a restarted node still follow its earlier ones
+        this.sequence = nowMicros();
+    }
+    
+    /**
+     * Checks whether a transport is configured
+     * 
+     * @return true if sessions are replicated
+     */
+    public boolean isEnabled() {
+        return transport != null;
+    }
+    
+    /**
+     * Joins the cluster and starts the flush thread
+     * 
+     * @throws IOException if the transport cannot join the cluster
+     */
+    public synchronized void start() throws IOException {
+        if (transport == null || running) {
+            return;
+        }
+        transport.start(nodeId, this::receive);
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "saml-session-replication");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // An exception escaping a periodic task would cancel it for good
+        executor.scheduleWithFixedDelay(() -> runLogged(this::flush), flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(() -> runLogged(this::sweep), SWEEP_MILLIS, SWEEP_MILLIS,
+                TimeUnit.MILLISECONDS);
+        running = true;
+        logger.info("Session replication started for node {}, flushing every {} ms", nodeId, flushMillis);
+    }
+    
+    /**
+     * Queues a session's SAML data, as its user is set; a session without a user is not replicated
+     * 
+     * @param session the session
+     */
+    public void save(HttpSession session) {
+        if (!running) {
+            return;
+        }
+        Object userInfo = session.getAttribute(USER_INFO);
+        if (!(userInfo instanceof SAMLUserInfo)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = now + lifetimeMillis(session);
+        byte[] user;
+        try {
+            user = encodeUser((String) session.getAttribute(IDP_ENTITY_ID), (SAMLUserInfo) userInfo);
+        } catch (IOException e) {
+            // A value past the wire format limit; the session just is not replicated
+            logger.warn("Session of {} not replicated: {}", ((SAMLUserInfo) userInfo).getNameId(), e.getMessage());
+            MALFORMED.increment();
+            return;
+        }
+        Object relayState = session.getAttribute(RELAY_STATE);
+        queue(session.getId(), USER | RELAY_STATE_CHANGED | EXPIRY, now, user, (String) relayState, expiresAt);
+        session.setAttribute(REPLICATED_UNTIL, expiresAt);
+    }
+    
+    /**
+     * Queues a session's new RelayState, if its user is already replicated
+     * 
+     * @param session the session
+     */
+    public void saveRelayState(HttpSession session) {
+        if (running && session.getAttribute(USER_INFO) instanceof SAMLUserInfo) {
+            queue(session.getId(), RELAY_STATE_CHANGED, 0, null, (String) session.getAttribute(RELAY_STATE), 0);
+        }
+    }
+    
+    /**
+     * Queues a later expiry once half of a session's lifetime has passed;
+     * otherwise a session attribute read, without locking
+     * 
+     * @param session a session in use
+     */
+    public void touch(HttpSession session) {
+        if (!running) {
+            return;
+        }
+        Object replicatedUntil = session.getAttribute(REPLICATED_UNTIL);
+        long now = System.currentTimeMillis();
+        long lifetime = lifetimeMillis(session);
+        if (replicatedUntil instanceof Long && (Long) replicatedUntil - now > lifetime / 2) {
+            return;
+        }
+        if (replicatedUntil == null) {
+            // Logged in before replication started
+            save(session);
+            return;
+        }
+        long expiresAt = now + lifetime;
+        queue(session.getId(), EXPIRY, 0, null, null, expiresAt);
+        session.setAttribute(REPLICATED_UNTIL, expiresAt);
+    }
+    
+    /**
+     * Queues the removal of a session at logout
+     * 
+     * @param session the session
+     */
+    public void remove(HttpSession session) {
+        if (running) {
+            queue(session.getId(), REMOVE, 0, null, null, 0);
+        }
+    }
+    
+    /**
+     * Queues the end of the sessions a LogoutRequest names on the other nodes
+     * 
+     * @param idpEntityId the IdP that sent the request
+     * @param nameId the NameID of the request
+     * @param sessionIndexes the SessionIndexes of the request, may be empty
+     */
+    public void end(String idpEntityId, String nameId, List<String> sessionIndexes) {
+        if (!running || nameId == null) {
+            return;
+        }
+        End end = new End(System.currentTimeMillis(), idpEntityId, nameId, new ArrayList<>(sessionIndexes));
+        synchronized (pendingLock) {
+            if (pending.isEmpty() && pendingEnds.isEmpty()) {
+                firstPendingMicros = nowMicros();
+            }
+            pendingEnds.add(end);
+        }
+    }
+    
+    /**
+     * Restores a session another node replicated, for a browser whose
+     * session ID this node does not know. The other nodes drop the old ID,
+     * and here it leads to the restored session for a few seconds. Only
+     * claiming the replica holds the lock; the session is established after
+     * it is released, so restores after a failover run in parallel.
+     * 
+     * @param sessionId the session ID the browser sent
+     * @param establish establishes a new session from a replicated record
+     * @return the restored session, or null if none was replicated or it ended
+     */
+    public HttpSession restore(String sessionId, Function<SessionStore.Record, HttpSession> establish) {
+        if (!running || sessionId == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        SessionStore.Record record;
+        CompletableFuture<HttpSession> restoring;
+        synchronized (restored) {
+            Restored previous = restored.get(sessionId);
+            if (previous != null && previous.until > now) {
+                restoring = previous.session;
+                record = null;
+            } else {
+                Replica replica = replicas.get(sessionId);
+                if (replica == null || replica.expiresAt <= now) {
+                    NOT_FOUND.increment();
+                    return null;
+                }
+                try {
+                    record = decodeUser(replica);
+                } catch (IOException e) {
+                    // Never the session ID: it is a bearer credential
+                    logger.warn("Unreadable session replica: {}", e.getMessage());
+                    MALFORMED.increment();
+                    return null;
+                }
+                SAMLUserInfo userInfo = record.getUserInfo();
+                if (isEnded(record.getIdpEntityId(), userInfo.getNameId(), userInfo.getSessionIndex(),
+                        replica.savedAt)) {
+                    replicas.remove(sessionId);
+                    LOGGED_OUT.increment();
+                    return null;
+                }
+                // Claimed now, so no parallel request restores it a second time
+                restoring = new CompletableFuture<>();
+                restored.put(sessionId, new Restored(restoring, now + RESTORE_GRACE_MILLIS));
+            }
+        }
+        if (record == null) {
+            // A parallel request is establishing it; null if that failed
+            return restoring.join();
+        }
+        HttpSession session = null;
+        try {
+            // The listener replicates the new session as its user is set, on this thread
+            session = establish.apply(record);
+        } finally {
+            restoring.complete(session);
+        }
+        if (session != null) {
+            replicas.remove(sessionId);
+            queue(sessionId, REMOVE, 0, null, null, 0);
+            RESTORED.increment();
+            RESTORE_TIME.recordSince(start);
+        }
+        return session;
+    }
+    
+    /**
+     * Applies a batch from another node; called by the transport. A batch
+     * whose MAC does not verify under a cluster key is dropped unread.
+     * 
+     * @param batch the batch
+     */
+    public void receive(byte[] batch) {
+        long start = System.nanoTime();
+        if (batch.length < HEADER_LENGTH + TAG_LENGTH || batch[0] != VERSION) {
+            logger.warn("Dropped replication batch of {} bytes: unknown format", batch.length);
+            MALFORMED.increment();
+            return;
+        }
+        SessionTokens.Key key = keys[batch[1] & 0xFF];
+        if (key == null) {
+            logger.warn("Dropped replication batch signed with unknown key {}", batch[1] & 0xFF);
+            UNKNOWN_KEY.increment();
+            return;
+        }
+        if (!verify(key, batch)) {
+            logger.warn("Dropped replication batch of {} bytes: MAC does not verify", batch.length);
+            FORGED.increment();
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch, HEADER_LENGTH,
+                    batch.length - HEADER_LENGTH - TAG_LENGTH));
+            String origin = WireFormat.readString(in);
+            if (origin.equals(nodeId)) {
+                return;
+            }
+            long batchSequence = in.readLong();
+            long firstQueuedMicros = in.readLong();
+            Long last = lastSequences.get(origin);
+            boolean late = last != null && batchSequence <= last;
+            if (late) {
+                LATE.increment();
+            } else {
+                lastSequences.put(origin, batchSequence);
+                if (last != null && batchSequence != last + 1) {
+                    // Batches lost or delayed by the transport, or a restarted node
+                    GAPS.increment();
+                }
+            }
+            int deltaCount = in.readInt();
+            for (int i = 0; i < deltaCount; i++) {
+                applyDelta(in, late);
+            }
+            int endCount = in.readInt();
+            for (int i = 0; i < endCount; i++) {
+                applyEnd(in);
+            }
+            BATCHES_RECEIVED.increment();
+            LAG.record(TimeUnit.MICROSECONDS.toNanos(Math.max(0, nowMicros() - firstQueuedMicros)));
+            APPLY_TIME.recordSince(start);
+        } catch (IOException e) {
+            logger.warn("Malformed replication batch of {} bytes: {}", batch.length, e.getMessage());
+            MALFORMED.increment();
+        }
+    }
+    
+    /**
+     * Sends the queued changes now; the flush thread calls this every few milliseconds
+     */
+    public void flush() {
+        flushQueued.set(false);
+        long start = System.nanoTime();
+        Map<String, Delta> deltas;
+        List<End> ends;
+        long batchSequence;
+        long firstQueuedMicros;
+        int estimate;
+        synchronized (pendingLock) {
+            if (pending.isEmpty() && pendingEnds.isEmpty()) {
+                return;
+            }
+            deltas = pending;
+            ends = pendingEnds;
+            estimate = pendingBytes;
+            firstQueuedMicros = firstPendingMicros;
+            batchSequence = ++sequence;
+            pending = new LinkedHashMap<>();
+            pendingEnds = new ArrayList<>();
+            pendingBytes = 0;
+        }
+        try {
+            byte[] batch = encodeBatch(batchSequence, firstQueuedMicros, deltas, ends, estimate);
+            transport.publish(batch);
+            BATCHES_SENT.increment();
+            DELTAS_SENT.add(deltas.size() + ends.size());
+            BYTES_SENT.add(batch.length);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            // Other changes catch up with the session's next one, but a removal or a logout has no next one
+            int requeued = requeue(deltas, ends);
+            logger.warn("Failed to send replication batch {} of {} deltas, {} queued again: {}", batchSequence,
+                    deltas.size() + ends.size(), requeued, e.toString());
+            SEND_FAILED.increment();
+        }
+        FLUSH_TIME.recordSince(start);
+    }
+    
+    /**
+     * Gets the number of sessions replicated from other nodes
+     * 
+     * @return the replicas held
+     */
+    public int size() {
+        return replicas.size();
+    }
+    
+    /**
+     * Registers the replication gauges with {@link SAMLMetrics}
+     */
+    public void registerMetrics() {
+        SAMLMetrics.gauge("replication", "replicas", replicas::size);
+        SAMLMetrics.gauge("replication", "pending", () -> {
+            synchronized (pendingLock) {
+                return pending.size() + pendingEnds.size();
+            }
+        });
+    }
+    
+    /**
+     * Sends the changes still queued and leaves the cluster
+     */
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        transport.close();
+        logger.info("Session replication stopped for node {}", nodeId);
+    }
+    
+    /**
+     * Queues the removals and logouts of a batch that failed to send
+     * again, ahead of what was queued since. A session changed since then
+     * already has a newer delta, which replaces the removal.
+     * 
+     * @return the number of entries queued again
+     */
+    private int requeue(Map<String, Delta> deltas, List<End> ends) {
+        int requeued;
+        synchronized (pendingLock) {
+            if (pending.isEmpty() && pendingEnds.isEmpty()) {
+                firstPendingMicros = nowMicros();
+            }
+            Map<String, Delta> retried = new LinkedHashMap<>();
+            for (Map.Entry<String, Delta> entry : deltas.entrySet()) {
+                if ((entry.getValue().flags & REMOVE) != 0 && !pending.containsKey(entry.getKey())) {
+                    retried.put(entry.getKey(), entry.getValue());
+                    pendingBytes += 16 + entry.getKey().length();
+                }
+            }
+            requeued = retried.size() + ends.size();
+            retried.putAll(pending);
+            pending = retried;
+            List<End> retriedEnds = new ArrayList<>(ends);
+            retriedEnds.addAll(pendingEnds);
+            pendingEnds = retriedEnds;
+        }
+        REQUEUED.add(requeued);
+        return requeued;
+    }
+    
+    private void queue(String sessionId, int flags, long savedAt, byte[] user, String relayState, long expiresAt) {
+        boolean full;
+        synchronized (pendingLock) {
+            if (pending.isEmpty() && pendingEnds.isEmpty()) {
+                firstPendingMicros = nowMicros();
+            }
+            Delta delta = pending.get(sessionId);
+            if (delta == null) {
+                delta = new Delta();
+                pending.put(sessionId, delta);
+                pendingBytes += 16 + sessionId.length();
+            } else {
+                COALESCED.increment();
+            }
+            if ((flags & REMOVE) != 0) {
+                delta.flags = REMOVE;
+                delta.user = null;
+                delta.relayState = null;
+            } else if ((delta.flags & REMOVE) != 0 && (flags & USER) == 0) {
+                // A removed session has nothing left to change; a removal is sent alone
+                return;
+            } else {
+                if ((flags & USER) != 0) {
+                    // A login again in the same session: the new user replaces whatever peers had
+                    delta.flags &= ~REMOVE;
+                    delta.savedAt = savedAt;
+                    delta.user = user;
+                    pendingBytes += user.length;
+                }
+                if ((flags & RELAY_STATE_CHANGED) != 0) {
+                    delta.relayState = relayState;
+                    pendingBytes += relayState != null ? relayState.length() : 0;
+                }
+                if ((flags & EXPIRY) != 0) {
+                    delta.expiresAt = expiresAt;
+                }
+                delta.flags |= flags;
+            }
+            full = pendingBytes >= maxBatchBytes;
+        }
+        if (full && flushQueued.compareAndSet(false, true)) {
+            ScheduledExecutorService flusher = executor;
+            if (flusher != null && !flusher.isShutdown()) {
+                flusher.execute(this::flush);
+            }
+        }
+    }
+    
+    private byte[] encodeBatch(long batchSequence, long firstQueuedMicros, Map<String, Delta> deltas, List<End> ends,
+                               int estimate) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(estimate + 64 + TAG_LENGTH);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        out.writeByte(signingKey.id);
+        WireFormat.writeString(out, nodeId);
+        out.writeLong(batchSequence);
+        out.writeLong(firstQueuedMicros);
+        out.writeInt(deltas.size());
+        for (Map.Entry<String, Delta> entry : deltas.entrySet()) {
+            Delta delta = entry.getValue();
+            out.writeByte(delta.flags);
+            WireFormat.writeString(out, entry.getKey());
+            if ((delta.flags & USER) != 0) {
+                out.writeLong(delta.savedAt);
+                WireFormat.writeCount(out, delta.user.length);
+                out.write(delta.user);
+            }
+            if ((delta.flags & RELAY_STATE_CHANGED) != 0) {
+                WireFormat.writeNullable(out, delta.relayState);
+            }
+            if ((delta.flags & EXPIRY) != 0) {
+                out.writeLong(delta.expiresAt);
+            }
+        }
+        out.writeInt(ends.size());
+        for (End end : ends) {
+            out.writeLong(end.time);
+            WireFormat.writeNullable(out, end.idpEntityId);
+            WireFormat.writeString(out, end.nameId);
+            WireFormat.writeCount(out, end.sessionIndexes.size());
+            for (String sessionIndex : end.sessionIndexes) {
+                WireFormat.writeString(out, sessionIndex);
+            }
+        }
+        out.flush();
+        byte[] signed = bytes.toByteArray();
+        byte[] batch = Arrays.copyOf(signed, signed.length + TAG_LENGTH);
+        System.arraycopy(signingKey.mac(signed, signed.length), 0, batch, signed.length, TAG_LENGTH);
+        return batch;
+    }
+    
+    private static boolean verify(SessionTokens.Key key, byte[] batch) {
+        int signed = batch.length - TAG_LENGTH;
+        try {
+            byte[] expected = Arrays.copyOf(key.mac(batch, signed), TAG_LENGTH);
+            return MessageDigest.isEqual(expected, Arrays.copyOfRange(batch, signed, batch.length));
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+    
+    private void runLogged(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            logger.error("Session replication task failed", e);
+        }
+    }
+    
+    /**
+     * Applies one session's delta; of a late batch, only a removal
+     */
+    private void applyDelta(DataInputStream in, boolean late) throws IOException {
+        int flags = in.readByte();
+        String sessionId = WireFormat.readString(in);
+        if ((flags & REMOVE) != 0) {
+            replicas.remove(sessionId);
+            return;
+        }
+        Replica replica;
+        if ((flags & USER) != 0) {
+            long savedAt = in.readLong();
+            byte[] user = new byte[WireFormat.readCount(in)];
+            in.readFully(user);
+            replica = late ? null : new Replica(user, savedAt);
+            if (replica != null) {
+                replicas.put(sessionId, replica);
+            }
+        } else {
+            // Null for a session this node restored meanwhile, or one sent before it joined
+            replica = late ? null : replicas.get(sessionId);
+        }
+        if ((flags & RELAY_STATE_CHANGED) != 0) {
+            String relayState = WireFormat.readNullable(in);
+            if (replica != null) {
+                replica.relayState = relayState;
+            }
+        }
+        if ((flags & EXPIRY) != 0) {
+            long expiresAt = in.readLong();
+            if (replica != null) {
+                replica.expiresAt = expiresAt;
+            }
+        }
+    }
+    
+    private void applyEnd(DataInputStream in) throws IOException {
+        long time = in.readLong();
+        String idpEntityId = WireFormat.readNullable(in);
+        String nameId = WireFormat.readString(in);
+        int count = WireFormat.readCount(in);
+        List<String> sessionIndexes = new ArrayList<>(Math.min(count, 16));
+        for (int i = 0; i < count; i++) {
+            sessionIndexes.add(WireFormat.readString(in));
+        }
+        if (sessionIndexes.isEmpty()) {
+            ended.merge(SessionStore.endKey('n', idpEntityId, nameId), time, Math::max);
+        }
+        for (String sessionIndex : sessionIndexes) {
+            ended.merge(SessionStore.endKey('s', idpEntityId, sessionIndex), time, Math::max);
+        }
+        // Sessions restored here, and stored ones not restored yet
+        int invalidated = registry.invalidate(idpEntityId, nameId, sessionIndexes);
+        store.end(idpEntityId, nameId, sessionIndexes);
+        logger.debug("Replicated logout of {} ended {} session(s)", nameId, invalidated);
+    }
+    
+    private boolean isEnded(String idpEntityId, String nameId, String sessionIndex, long savedAt) {
+        Long byName = ended.get(SessionStore.endKey('n', idpEntityId, nameId));
+        if (byName != null && byName >= savedAt) {
+            return true;
+        }
+        Long bySession = sessionIndex != null ? ended.get(SessionStore.endKey('s', idpEntityId, sessionIndex)) : null;
+        return bySession != null && bySession >= savedAt;
+    }
+    
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        replicas.values().removeIf(replica -> replica.expiresAt <= now);
+        // A session saved before a logout cannot outlive it by more than a lifetime and its touches
+        ended.values().removeIf(time -> time + 2 * defaultLifetimeMillis <= now);
+        synchronized (restored) {
+            restored.values().removeIf(entry -> entry.until <= now);
+        }
+    }
+    
+    private long lifetimeMillis(HttpSession session) {
+        int seconds = session.getMaxInactiveInterval();
+        return seconds > 0 ? TimeUnit.SECONDS.toMillis(seconds) : defaultLifetimeMillis;
+    }
+    
+    private static byte[] encodeUser(String idpEntityId, SAMLUserInfo userInfo) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        WireFormat.writeNullable(out, idpEntityId);
+        WireFormat.writeString(out, userInfo.getNameId());
+        WireFormat.writeNullable(out, userInfo.getSessionIndex());
+        WireFormat.writeNullable(out, userInfo.getNotBefore());
+        WireFormat.writeNullable(out, userInfo.getNotOnOrAfter());
+        WireFormat.writeAttributes(out, userInfo.getAttributes());
+        return bytes.toByteArray();
+    }
+    
+    private static SessionStore.Record decodeUser(Replica replica) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(replica.user));
+        String idpEntityId = WireFormat.readNullable(in);
+        String nameId = WireFormat.readString(in);
+        String sessionIndex = WireFormat.readNullable(in);
+        String notBefore = WireFormat.readNullable(in);
+        String notOnOrAfter = WireFormat.readNullable(in);
+        Map<String, List<String>> attributes = WireFormat.readAttributes(in);
+        return new SessionStore.Record(replica.savedAt, idpEntityId,
+                new SAMLUserInfo(nameId, attributes, sessionIndex, notBefore, notOnOrAfter), replica.relayState);
+    }
+    
+    private static long nowMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1_000;
+    }
+    
+    /**
+     * The changes to one session since the last flush
+     */
+    private static final class Delta {
+    
+        private int flags;
+        private long savedAt;
+        private byte[] user;
+        private String relayState;
+        private long expiresAt;
+    }
+    
+    private static final class End {
+    
+        private final long time;
+        private final String idpEntityId;
+        private final String nameId;
+        private final List<String> sessionIndexes;
+        
+        private End(long time, String idpEntityId, String nameId, List<String> sessionIndexes) {
+            this.time = time;
+            this.idpEntityId = idpEntityId;
+            this.nameId = nameId;
+            this.sessionIndexes = sessionIndexes;
+        }
+    }
+    
+    /**
+     * A session of another node: its user as received, decoded only for a restore
+     */
+    private static final class Replica {
+    
+        private final byte[] user;
+        private final long savedAt;
+        private volatile String relayState;
+        private volatile long expiresAt;
+        
+        private Replica(byte[] user, long savedAt) {
+            this.user = user;
+            this.savedAt = savedAt;
+        }
+    }
+    
+    /**
+     * A restored session, completed once it is established
+     */
+    private static final class Restored {
+    
+        private final CompletableFuture<HttpSession> session;
+        private final long until;
+        
+        private Restored(CompletableFuture<HttpSession> session, long until) {
+            this.session = session;
+            this.until = until;
+        }
+    }
+}
@@ -0,0 +1,1084 @@
+package com.sample.saml.service;
+
+import com.sample.saml.metrics.LatencyHistogram;
+import com.sample.saml.metrics.SAMLMetrics;
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.util.WireFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpSession;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
+
+/**
+ * Session Store
+ * 
+ * Keeps the SAML data of sessions - the user, the IdP that authenticated
+ * them, the SessionIndex and the RelayState - in a file, so a restarted or
+ * redeployed node takes its users back without sending all of them to the
+ * IdP at once. Enabled with {@code app.session.store.file}.
+ * 
+ * The file is an append-only log of CRC-checked binary records, mapped
+ * into memory in chunks of 64 MB: a session's state when it gains its
+ * user or RelayState, a later expiry while it is in use, its removal at
+ * logout, and the end of a NameID's or SessionIndex's sessions by a
+ * LogoutRequest from the IdP. Startup does not wait for the file: it is
+ * opened by {@link #preload()} or the first access, which scans the record
+ * headers into an open-addressing table from session ID hash to file offset; a record is decoded only when its browser comes
+ * back with the old session ID and finds no session in the container. The
+ * session is then established again under a new ID, and the old ID keeps
+ * leading to it for a few seconds, for requests the browser sent in
+ * parallel. The session is established outside the store's lock, so the
+ * session listeners it fires never hold up other requests' writes.
+ * 
+ * Session IDs are bearer credentials, so neither the file nor the log
+ * holds them: records are keyed by a truncated HMAC-SHA256 of the ID under
+ * {@code app.session.store.key}, and the file is created readable by its
+ * owner only.
+ * 
+ * Sessions are removed only at logout, never when the container destroys
+ * them - containers destroy every session on shutdown - and those that
+ * time out are dropped by their expiry. A background thread forces the
+ * mapped chunks to disk and, once superseded records make up half of the
+ * file, compacts it: live records are copied to a new file while requests
+ * keep appending to the old one, then the records appended meanwhile are
+ * copied and the new file replaces the old.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class SessionStore {
+    
+    private static final Logger logger = LoggerFactory.getLogger(SessionStore.class);
+    
+    /**
+     * Session attribute holding the expiry of the session's stored record, in epoch milliseconds
+     */
+    public static final String STORED_UNTIL = "saml.storedUntil";
+    
+    private static final String USER_INFO = "saml.userInfo";
+    private static final String IDP_ENTITY_ID = "saml.idpEntityId";
+    private static final String RELAY_STATE = "saml.relayState";
+    
+    // "SAMU": records keyed by ID digests, int-length strings; older files ("SAMS", "SAMT") are refused
+    private static final int MAGIC = 0x53414D55;
+    private static final int FILE_HEADER_LENGTH = 8;
+    // Body length, then CRC32C of the body
+    private static final int RECORD_HEADER_LENGTH = 8;
+    // In place of a body length: the rest of the chunk is unused
+    private static final int CHUNK_END = -1;
+    private static final int CHUNK_SIZE = 64 << 20;
+    
+    private static final byte PUT = 1;
+    private static final byte TOUCH = 2;
+    private static final byte REMOVE = 3;
+    private static final byte END = 4;
+    // Type, time, ID length: the ID follows, and in PUT and TOUCH records the expiry after it
+    private static final int ID_OFFSET = 11;
+    // Bytes of the session ID digest kept in place of the ID
+    private static final int DIGEST_LENGTH = 16;
+    
+    private static final long RESTORE_GRACE_MILLIS = 30_000;
+    private static final long MIN_COMPACT_BYTES = 4 << 20;
+    private static final long MAX_LOCKED_COPY = 1 << 20;
+    private static final int MAX_COPY_ROUNDS = 8;
+    private static final int MAX_ENDS = 4096;
+    
+    private static final LatencyHistogram OPEN_TIME = SAMLMetrics.histogram("store", "open");
+    private static final LatencyHistogram RESTORE_TIME = SAMLMetrics.histogram("store", "restore");
+    private static final LatencyHistogram COMPACT_TIME = SAMLMetrics.histogram("store", "compact");
+    private static final LongAdder RESTORED = SAMLMetrics.counter("store", "restored", "none");
+    private static final LongAdder NOT_FOUND = SAMLMetrics.counter("store", "missed", "not_found");
+    private static final LongAdder LOGGED_OUT = SAMLMetrics.counter("store", "missed", "logged_out");
+    private static final LongAdder WRITE_FAILED = SAMLMetrics.counter("store", "failed", "io");
+    
+    private final Path file;
+    private final SessionTokens.Key idKey;
+    private final long compactIntervalMillis;
+    private final long defaultLifetimeMillis;
+    private final Object compactLock = new Object();
+    
+    // Guarded by this store's lock; log and index are null until the first access
+    private Log log;
+    private Index index;
+    private final Map<String, Restored> restored = new HashMap<>();
+    private boolean closed;
+    private ScheduledExecutorService maintenance;
+    
+    /**
+     * Constructor; the file is not touched before the first access
+     * 
+     * @param file the store file, or null to disable the store
+     * @param compactIntervalSeconds seconds between flushes and compaction checks
+     * @param defaultLifetimeSeconds lifetime of a session without a container timeout
+     * @param idKey base64 secret of at least 32 bytes that session IDs are hashed with; required with a file
+     * @throws IllegalArgumentException if a setting is invalid, or a file is given without a key
+     */
+    public SessionStore(Path file, int compactIntervalSeconds, long defaultLifetimeSeconds, String idKey) {
+        if (compactIntervalSeconds < 1 || defaultLifetimeSeconds < 1) {
+            throw new IllegalArgumentException("Invalid session store interval or lifetime");
+        }
+        if (file != null && (idKey == null || idKey.trim().isEmpty())) {
+            throw new IllegalArgumentException("app.session.store.file needs app.session.store.key");
+        }
+        this.file = file;
+        this.idKey = file != null ? SessionTokens.Key.of(idKey, "saml-store", "session store") : null;
+        this.compactIntervalMillis = TimeUnit.SECONDS.toMillis(compactIntervalSeconds);
+        this.defaultLifetimeMillis = TimeUnit.SECONDS.toMillis(defaultLifetimeSeconds);
+    }
+    
+    /**
+     * Checks whether a store file is configured
+     * 
+     * @return true if sessions are stored
+     */
+    public boolean isEnabled() {
+        return file != null;
+    }
+    
+    /**
+     * Opens and scans the file on a background thread, so the first request
+     * that needs the store does not pay for the scan; startup does not wait for it
+     */
+    public void preload() {
+        if (file == null) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            synchronized (this) {
+                open();
+            }
+        }, "saml-session-store-open");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Stores a session's current SAML data; a session without a user is not stored
+     * 
+     * @param session the session
+     */
+    public void save(HttpSession session) {
+        if (file == null) {
+            return;
+        }
+        Object userInfo = session.getAttribute(USER_INFO);
+        if (!(userInfo instanceof SAMLUserInfo)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = now + lifetimeMillis(session);
+        byte[] body;
+        try {
+            body = put(digest(session.getId()), now, expiresAt, (String) session.getAttribute(IDP_ENTITY_ID),
+                    (SAMLUserInfo) userInfo, (String) session.getAttribute(RELAY_STATE));
+        } catch (IOException e) {
+            // A record past the size of a chunk; the session just is not stored
+            logger.warn("Session of {} not stored: {}", ((SAMLUserInfo) userInfo).getNameId(), e.getMessage());
+            WRITE_FAILED.increment();
+            return;
+        }
+        if (append(body)) {
+            session.setAttribute(STORED_UNTIL, expiresAt);
+        }
+    }
+    
+    /**
+     * Extends the expiry of a session's record once half of its lifetime has
+     * passed; otherwise a session attribute read, without locking
+     * 
+     * @param session a session in use
+     */
+    public void touch(HttpSession session) {
+        if (file == null) {
+            return;
+        }
+        Object storedUntil = session.getAttribute(STORED_UNTIL);
+        long now = System.currentTimeMillis();
+        long lifetime = lifetimeMillis(session);
+        if (storedUntil instanceof Long && (Long) storedUntil - now > lifetime / 2) {
+            return;
+        }
+        if (storedUntil == null) {
+            // Logged in before the store was enabled
+            save(session);
+            return;
+        }
+        long expiresAt = now + lifetime;
+        if (append(record(TOUCH, now, digest(session.getId()), expiresAt))) {
+            session.setAttribute(STORED_UNTIL, expiresAt);
+        }
+    }
+    
+    /**
+     * Removes a session at logout
+     * 
+     * @param session the session
+     */
+    public void remove(HttpSession session) {
+        if (file != null) {
+            append(record(REMOVE, System.currentTimeMillis(), digest(session.getId()), 0));
+        }
+    }
+    
+    /**
+     * Ends the stored sessions a LogoutRequest names, restored or not: all of
+     * the NameID's sessions, or only those of the given SessionIndexes
+     * 
+     * @param idpEntityId the IdP that sent the request
+     * @param nameId the NameID of the request
+     * @param sessionIndexes the SessionIndexes of the request, may be empty
+     */
+    public void end(String idpEntityId, String nameId, List<String> sessionIndexes) {
+        if (file == null || nameId == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (sessionIndexes.isEmpty()) {
+            append(record(END, now, utf8(endKey('n', idpEntityId, nameId)), 0));
+        }
+        for (String sessionIndex : sessionIndexes) {
+            append(record(END, now, utf8(endKey('s', idpEntityId, sessionIndex)), 0));
+        }
+    }
+    
+    /**
+     * Restores the session a browser had before a restart. The record is
+     * removed from the store, and its session ID leads to the restored
+     * session for a few seconds. Only finding and decoding the record hold
+     * the store's lock; the session is established after it is released.
+     * 
+     * @param sessionId the session ID the browser sent
+     * @param establish establishes a new session from a stored record
+     * @return the restored session, or null if none is stored or it ended
+     */
+    public HttpSession restore(String sessionId, Function<Record, HttpSession> establish) {
+        if (file == null || sessionId == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        byte[] id = digest(sessionId);
+        byte[] body;
+        Record record;
+        CompletableFuture<HttpSession> restoring;
+        synchronized (this) {
+            if (!open()) {
+                return null;
+            }
+            Restored previous = restored.get(sessionId);
+            if (previous != null && previous.until > now) {
+                restoring = previous.session;
+                body = null;
+                record = null;
+            } else {
+                int slot = index.find(hash(id, 0, id.length));
+                if (slot < 0 || index.expiries[slot] <= now) {
+                    NOT_FOUND.increment();
+                    return null;
+                }
+                body = log.read(index.offsets[slot] + RECORD_HEADER_LENGTH, index.lengths[slot] - RECORD_HEADER_LENGTH);
+                try {
+                    record = decode(body, id);
+                } catch (IOException e) {
+                    logger.warn("Unreadable session record at offset {}: {}", index.offsets[slot], e.getMessage());
+                    record = null;
+                }
+                if (record == null) {
+                    // A record of another ID with the same hash, or a damaged one
+                    NOT_FOUND.increment();
+                    return null;
+                }
+                if (index.isEnded(record.idpEntityId, record.userInfo.getNameId(),
+                        record.userInfo.getSessionIndex(), record.savedAt)) {
+                    append(record(REMOVE, now, id, 0));
+                    LOGGED_OUT.increment();
+                    return null;
+                }
+                // Removed now, so no parallel request restores it a second time
+                append(record(REMOVE, now, id, 0));
+                restoring = new CompletableFuture<>();
+                restored.put(sessionId, new Restored(restoring, now + RESTORE_GRACE_MILLIS));
+            }
+        }
+        if (record == null) {
+            // A parallel request is establishing it; null if that failed
+            return restoring.join();
+        }
+        HttpSession session = null;
+        try {
+            // The listener stores the new session as its user is set, on this thread
+            session = establish.apply(record);
+        } finally {
+            restoring.complete(session);
+            if (session == null) {
+                // Stored again for the browser's next request
+                append(body);
+            }
+        }
+        RESTORED.increment();
+        RESTORE_TIME.recordSince(start);
+        return session;
+    }
+    
+    /**
+     * Rewrites the file with live records only; requests keep appending
+     * while it runs, and wait only for the records appended meanwhile to be
+     * copied
+     * 
+     * @throws IOException if the new file cannot be written
+     */
+    public void compact() throws IOException {
+        if (file == null) {
+            return;
+        }
+        synchronized (compactLock) {
+            long start = System.nanoTime();
+            Log source;
+            long end;
+            Index snapshot;
+            synchronized (this) {
+                if (!open()) {
+                    return;
+                }
+                source = log;
+                end = log.position;
+                snapshot = index.copy();
+            }
+            
+            Path target = file.resolveSibling(file.getFileName() + ".compact");
+            Files.deleteIfExists(target);
+            Log compacted = Log.open(target);
+            Index rebuilt = new Index(snapshot.size);
+            long now = System.currentTimeMillis();
+            try {
+                for (int slot = 0; slot < snapshot.keys.length; slot++) {
+                    if (snapshot.keys[slot] == 0 || snapshot.expiries[slot] <= now) {
+                        continue;
+                    }
+                    byte[] body = source.read(snapshot.offsets[slot] + RECORD_HEADER_LENGTH,
+                            snapshot.lengths[slot] - RECORD_HEADER_LENGTH);
+                    if (!snapshot.ended.isEmpty() && snapshot.isEnded(body)) {
+                        continue;
+                    }
+                    // The record carries the expiry it was written with; later ones were in TOUCH records
+                    ByteBuffer.wrap(body).putLong(ID_OFFSET + idLength(body), snapshot.expiries[slot]);
+                    rebuilt.put(snapshot.keys[slot], compacted.append(body), RECORD_HEADER_LENGTH + body.length,
+                            snapshot.expiries[slot]);
+                }
+                compacted.force();
+                // Ends were applied to every copied record; later records are newer than them. Those
+                // are copied without the lock while many are left, then the rest with it
+                long copied = end;
+                for (int round = 0; ; round++) {
+                    long until;
+                    synchronized (this) {
+                        if (closed || log != source) {
+                            compacted.close();
+                            Files.deleteIfExists(target);
+                            return;
+                        }
+                        until = log.position;
+                        if (until - copied <= MAX_LOCKED_COPY || round == MAX_COPY_ROUNDS) {
+                            replay(source, copied, until, compacted, rebuilt, now);
+                            compacted.force();
+                            Files.move(target, file, StandardCopyOption.REPLACE_EXISTING,
+                                    StandardCopyOption.ATOMIC_MOVE);
+                            source.close();
+                            log = compacted;
+                            index = rebuilt;
+                            break;
+                        }
+                    }
+                    copied = replay(source, copied, until, compacted, rebuilt, now);
+                }
+            } catch (IOException | RuntimeException e) {
+                compacted.close();
+                Files.deleteIfExists(target);
+                throw e;
+            }
+            COMPACT_TIME.recordSince(start);
+            logger.info("Compacted session store {} from {} to {} bytes, {} sessions, in {} ms", file, end,
+                    compacted.position, rebuilt.size, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+    
+    /**
+     * Gets the number of stored sessions, opening the store if needed
+     * 
+     * @return the number of sessions with an unexpired record
+     */
+    public synchronized int size() {
+        return open() ? index.size : 0;
+    }
+    
+    /**
+     * Gets the bytes of the file in use, live and superseded records together
+     * 
+     * @return the bytes used, 0 before the first access
+     */
+    public synchronized long getUsedBytes() {
+        return log != null ? log.position : 0;
+    }
+    
+    /**
+     * Registers the store gauges with {@link SAMLMetrics}
+     */
+    public void registerMetrics() {
+        SAMLMetrics.gauge("store", "sessions", () -> {
+            synchronized (this) {
+                return index != null ? index.size : 0;
+            }
+        });
+        SAMLMetrics.gauge("store", "used_bytes", this::getUsedBytes);
+        SAMLMetrics.gauge("store", "live_bytes", () -> {
+            synchronized (this) {
+                return index != null ? index.liveBytes : 0;
+            }
+        });
+    }
+    
+    /**
+     * Flushes the file and stops the background thread; the store is not written after this
+     */
+    public synchronized void close() {
+        closed = true;
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+            maintenance = null;
+        }
+        if (log != null) {
+            try {
+                log.force();
+                log.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close session store {}", file, e);
+            }
+        }
+    }
+    
+    /**
+     * Opens and scans the file on first access; under the store's lock
+     * 
+     * @return true if the store can be used
+     */
+    private boolean open() {
+        if (log != null || closed) {
+            return log != null && !closed;
+        }
+        long start = System.nanoTime();
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            Log opened = Log.open(file);
+            Index scanned = new Index(1024);
+            long end = replay(opened, FILE_HEADER_LENGTH, Long.MAX_VALUE, null, scanned, System.currentTimeMillis());
+            opened.recover(end);
+            log = opened;
+            index = scanned;
+        } catch (IOException e) {
+            logger.error("Failed to open session store {}, sessions are not stored", file, e);
+            closed = true;
+            return false;
+        }
+        maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "saml-session-store");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::maintain, compactIntervalMillis, compactIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        OPEN_TIME.recordSince(start);
+        logger.info("Opened session store {}: {} sessions in {} bytes, in {} ms", file, index.size, log.position,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return true;
+    }
+    
+    private synchronized boolean append(byte[] body) {
+        if (!open()) {
+            return false;
+        }
+        try {
+            long offset = log.append(body);
+            index.apply(body, offset, RECORD_HEADER_LENGTH + body.length, System.currentTimeMillis());
+            return true;
+        } catch (IOException e) {
+            logger.warn("Failed to append to session store {}: {}", file, e.getMessage());
+            WRITE_FAILED.increment();
+            return false;
+        }
+    }
+    
+    /**
+     * Applies the records of a log between two offsets to an index, copying
+     * them to another log if given
+     * 
+     * @return the offset after the last complete record
+     */
+    private static long replay(Log source, long offset, long limit, Log copy, Index index, long now)
+            throws IOException {
+        while (offset < limit) {
+            int inChunk = (int) (offset % CHUNK_SIZE);
+            if (CHUNK_SIZE - inChunk < RECORD_HEADER_LENGTH) {
+                offset += CHUNK_SIZE - inChunk;
+                continue;
+            }
+            int chunk = (int) (offset / CHUNK_SIZE);
+            if (chunk >= source.chunks.size()) {
+                return offset;
+            }
+            MappedByteBuffer buffer = source.chunks.get(chunk);
+            int length = buffer.getInt(inChunk);
+            if (length == CHUNK_END) {
+                offset += CHUNK_SIZE - inChunk;
+                continue;
+            }
+            if (length <= ID_OFFSET || length > CHUNK_SIZE - inChunk - RECORD_HEADER_LENGTH) {
+                // Zero where nothing was written yet; anything else is a torn record
+                return offset;
+            }
+            byte[] body = new byte[length];
+            buffer.get(inChunk + RECORD_HEADER_LENGTH, body);
+            CRC32C crc = new CRC32C();
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(inChunk + 4)) {
+                return offset;
+            }
+            long applied = copy != null ? copy.append(body) : offset;
+            index.apply(body, applied, RECORD_HEADER_LENGTH + length, now);
+            offset += RECORD_HEADER_LENGTH + length;
+        }
+        return offset;
+    }
+    
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        boolean due;
+        synchronized (this) {
+            if (closed || log == null) {
+                return;
+            }
+            index.removeExpired(now);
+            restored.values().removeIf(entry -> entry.until <= now);
+            try {
+                log.force();
+            } catch (IOException e) {
+                logger.warn("Failed to flush session store {}: {}", file, e.getMessage());
+            }
+            long used = log.position;
+            due = (used >= MIN_COMPACT_BYTES && used - index.liveBytes >= used / 2) || index.ended.size() >= MAX_ENDS;
+        }
+        if (due) {
+            try {
+                compact();
+            } catch (IOException e) {
+                logger.error("Failed to compact session store {}", file, e);
+            }
+        }
+    }
+    
+    private long lifetimeMillis(HttpSession session) {
+        int seconds = session.getMaxInactiveInterval();
+        return seconds > 0 ? TimeUnit.SECONDS.toMillis(seconds) : defaultLifetimeMillis;
+    }
+    
+    static String endKey(char kind, String idpEntityId, String value) {
+        return kind + ":" + idpEntityId + " " + value;
+    }
+    
+    /**
+     * Gets what the file keeps of a session ID: a truncated HMAC-SHA256
+     * under the store key, never the ID itself
+     */
+    private byte[] digest(String sessionId) {
+        byte[] bytes = utf8(sessionId);
+        try {
+            return Arrays.copyOf(idKey.mac(bytes, bytes.length), DIGEST_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+    
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static byte[] record(byte type, long time, byte[] id, long expiresAt) {
+        try {
+            return header(type, time, id, expiresAt).toByteArray();
+        } catch (IOException e) {
+            // Session IDs and logout keys fit a record
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static ByteArrayOutputStream header(byte type, long time, byte[] id, long expiresAt) throws IOException {
+        if (id.length > Short.MAX_VALUE) {
+            throw new IOException("ID of " + id.length + " bytes");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeLong(time);
+        out.writeShort(id.length);
+        out.write(id);
+        if (type == PUT || type == TOUCH) {
+            out.writeLong(expiresAt);
+        }
+        return bytes;
+    }
+    
+    private static byte[] put(byte[] id, long time, long expiresAt, String idpEntityId, SAMLUserInfo userInfo,
+                              String relayState) throws IOException {
+        ByteArrayOutputStream bytes = header(PUT, time, id, expiresAt);
+        DataOutputStream out = new DataOutputStream(bytes);
+        WireFormat.writeNullable(out, idpEntityId);
+        WireFormat.writeString(out, userInfo.getNameId());
+        WireFormat.writeNullable(out, userInfo.getSessionIndex());
+        WireFormat.writeNullable(out, relayState);
+        WireFormat.writeNullable(out, userInfo.getNotBefore());
+        WireFormat.writeNullable(out, userInfo.getNotOnOrAfter());
+        WireFormat.writeAttributes(out, userInfo.getAttributes());
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Decodes a PUT record
+     * 
+     * @return the record, or null if it is not a PUT record of the given ID digest
+     */
+    private static Record decode(byte[] body, byte[] expectedId) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        if (in.readByte() != PUT) {
+            return null;
+        }
+        long savedAt = in.readLong();
+        byte[] id = new byte[in.readShort()];
+        in.readFully(id);
+        if (!MessageDigest.isEqual(id, expectedId)) {
+            return null;
+        }
+        in.skipBytes(8);
+        String idpEntityId = WireFormat.readNullable(in);
+        String nameId = WireFormat.readString(in);
+        String sessionIndex = WireFormat.readNullable(in);
+        String relayState = WireFormat.readNullable(in);
+        String notBefore = WireFormat.readNullable(in);
+        String notOnOrAfter = WireFormat.readNullable(in);
+        Map<String, List<String>> attributes = WireFormat.readAttributes(in);
+        return new Record(savedAt, idpEntityId, new SAMLUserInfo(nameId, attributes, sessionIndex, notBefore,
+                notOnOrAfter), relayState);
+    }
+    
+    private static int idLength(byte[] body) {
+        return (body[ID_OFFSET - 2] & 0xff) << 8 | body[ID_OFFSET - 1] & 0xff;
+    }
+    
+    /**
+     * FNV-1a over the ID bytes, with a final mix; never 0, which marks a free slot
+     */
+    private static long hash(byte[] bytes, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ (bytes[i] & 0xff)) * 0x100000001b3L;
+        }
+        hash = (hash ^ hash >>> 33) * 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash != 0 ? hash : 1;
+    }
+    
+    /**
+     * A stored session, as read back for a restore; also a replicated one
+     */
+    public static final class Record {
+        
+        private final long savedAt;
+        private final String idpEntityId;
+        private final SAMLUserInfo userInfo;
+        private final String relayState;
+        
+        Record(long savedAt, String idpEntityId, SAMLUserInfo userInfo, String relayState) {
+            this.savedAt = savedAt;
+            this.idpEntityId = idpEntityId;
+            this.userInfo = userInfo;
+            this.relayState = relayState;
+        }
+        
+        /**
+         * Gets the IdP that authenticated the user
+         * 
+         * @return the IdP entity ID, may be null
+         */
+        public String getIdpEntityId() {
+            return idpEntityId;
+        }
+        
+        /**
+         * Gets the user
+         * 
+         * @return the user, with the SessionIndex of the login
+         */
+        public SAMLUserInfo getUserInfo() {
+            return userInfo;
+        }
+        
+        /**
+         * Gets the RelayState kept in the session
+         * 
+         * @return the RelayState, may be null
+         */
+        public String getRelayState() {
+            return relayState;
+        }
+    }
+    
+    /**
+     * A restored session, completed once it is established
+     */
+    private static final class Restored {
+        
+        private final CompletableFuture<HttpSession> session;
+        private final long until;
+        
+        private Restored(CompletableFuture<HttpSession> session, long until) {
+            this.session = session;
+            this.until = until;
+        }
+    }
+    
+    /**
+     * The file, mapped chunk by chunk as it grows. A record never spans
+     * chunks; its length is written last, so a scan never sees a partly
+     * written record as complete.
+     */
+    private static final class Log {
+        
+        private static final Set<PosixFilePermission> OWNER_ONLY = EnumSet.of(PosixFilePermission.OWNER_READ,
+                PosixFilePermission.OWNER_WRITE);
+        
+        private final FileChannel channel;
+        // Read without the store's lock while compacting
+        private final List<MappedByteBuffer> chunks = new CopyOnWriteArrayList<>();
+        private long position = FILE_HEADER_LENGTH;
+        
+        private Log(FileChannel channel) {
+            this.channel = channel;
+        }
+        
+        private static Log open(Path path) throws IOException {
+            Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            FileChannel channel;
+            if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                // Owner only, also for a file created with broader permissions before
+                channel = FileChannel.open(path, options, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+                Files.setPosixFilePermissions(path, OWNER_ONLY);
+            } else {
+                channel = FileChannel.open(path, options);
+            }
+            Log log = new Log(channel);
+            try {
+                long size = channel.size();
+                for (int chunk = 0; chunk == 0 || (long) chunk * CHUNK_SIZE < size; chunk++) {
+                    log.map(chunk);
+                }
+                MappedByteBuffer first = log.chunks.get(0);
+                if (size == 0) {
+                    first.putInt(4, CHUNK_SIZE);
+                    first.putInt(0, MAGIC);
+                } else if (first.getInt(0) != MAGIC || first.getInt(4) != CHUNK_SIZE) {
+                    throw new IOException("Not a session store file: " + path);
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            return log;
+        }
+        
+        private void map(int chunk) throws IOException {
+            chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) chunk * CHUNK_SIZE, CHUNK_SIZE));
+        }
+        
+        private long append(byte[] body) throws IOException {
+            int length = RECORD_HEADER_LENGTH + body.length;
+            if (length > CHUNK_SIZE - FILE_HEADER_LENGTH) {
+                throw new IOException("Record of " + length + " bytes");
+            }
+            int inChunk = (int) (position % CHUNK_SIZE);
+            if (inChunk + length > CHUNK_SIZE) {
+                if (CHUNK_SIZE - inChunk >= RECORD_HEADER_LENGTH) {
+                    chunks.get((int) (position / CHUNK_SIZE)).putInt(inChunk, CHUNK_END);
+                }
+                position += CHUNK_SIZE - inChunk;
+                inChunk = 0;
+            }
+            int chunk = (int) (position / CHUNK_SIZE);
+            if (chunk == chunks.size()) {
+                map(chunk);
+            }
+            MappedByteBuffer buffer = chunks.get(chunk);
+            CRC32C crc = new CRC32C();
+            crc.update(body);
+            buffer.put(inChunk + RECORD_HEADER_LENGTH, body);
+            buffer.putInt(inChunk + 4, (int) crc.getValue());
+            buffer.putInt(inChunk, body.length);
+            long offset = position;
+            position += length;
+            return offset;
+        }
+        
+        private byte[] read(long offset, int length) {
+            byte[] bytes = new byte[length];
+            chunks.get((int) (offset / CHUNK_SIZE)).get((int) (offset % CHUNK_SIZE), bytes);
+            return bytes;
+        }
+        
+        /**
+         * Continues after the last complete record: whatever follows it in
+         * its chunk is cleared, so a later scan cannot run into it
+         */
+        private void recover(long end) {
+            position = end;
+            int chunk = (int) (end / CHUNK_SIZE);
+            if (chunk >= chunks.size()) {
+                return;
+            }
+            MappedByteBuffer buffer = chunks.get(chunk);
+            int inChunk = (int) (end % CHUNK_SIZE);
+            if (inChunk + 4 <= CHUNK_SIZE && buffer.getInt(inChunk) != 0) {
+                logger.warn("Session store has a damaged record at offset {}; later records are dropped", end);
+                buffer.put(inChunk, new byte[CHUNK_SIZE - inChunk]);
+                for (int later = chunk + 1; later < chunks.size(); later++) {
+                    chunks.get(later).put(0, new byte[CHUNK_SIZE]);
+                }
+            }
+        }
+        
+        private void force() throws IOException {
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+        }
+        
+        private void close() throws IOException {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Session ID hashes to the offset, length and expiry of their last PUT
+     * record, in open-addressing arrays with linear probing; and the logout
+     * times of NameIDs and SessionIndexes ended by the IdP
+     */
+    private static final class Index {
+        
+        private long[] keys;
+        private long[] offsets;
+        private long[] expiries;
+        private int[] lengths;
+        private int size;
+        private long liveBytes;
+        private final Map<String, Long> ended = new HashMap<>();
+        
+        private Index(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+            keys = new long[capacity];
+            offsets = new long[capacity];
+            expiries = new long[capacity];
+            lengths = new int[capacity];
+        }
+        
+        private void apply(byte[] body, long offset, int length, long now) {
+            byte type = body[0];
+            int idLength = idLength(body);
+            if (type == END) {
+                long time = ByteBuffer.wrap(body).getLong(1);
+                ended.merge(new String(body, ID_OFFSET, idLength, StandardCharsets.UTF_8), time, Math::max);
+                return;
+            }
+            long key = hash(body, ID_OFFSET, idLength);
+            if (type == REMOVE) {
+                remove(key);
+                return;
+            }
+            long expiresAt = ByteBuffer.wrap(body).getLong(ID_OFFSET + idLength);
+            if (type == PUT) {
+                if (expiresAt > now) {
+                    put(key, offset, length, expiresAt);
+                } else {
+                    remove(key);
+                }
+            } else if (type == TOUCH) {
+                int slot = find(key);
+                if (slot >= 0) {
+                    expiries[slot] = expiresAt;
+                }
+            }
+        }
+        
+        private int find(long key) {
+            int mask = keys.length - 1;
+            for (int slot = home(key, mask); keys[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+        
+        private void put(long key, long offset, int length, long expiresAt) {
+            if ((size + 1) * 4L > keys.length * 3L) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int slot = home(key, mask);
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == key) {
+                liveBytes -= lengths[slot];
+            } else {
+                keys[slot] = key;
+                size++;
+            }
+            offsets[slot] = offset;
+            lengths[slot] = length;
+            expiries[slot] = expiresAt;
+            liveBytes += length;
+        }
+        
+        private void remove(long key) {
+            int slot = find(key);
+            if (slot < 0) {
+                return;
+            }
+            liveBytes -= lengths[slot];
+            size--;
+            // Backward-shift deletion: later entries of the probe run move up, no tombstones
+            int mask = keys.length - 1;
+            int hole = slot;
+            for (int next = (hole + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+                if (((next - home(keys[next], mask)) & mask) >= ((next - hole) & mask)) {
+                    keys[hole] = keys[next];
+                    offsets[hole] = offsets[next];
+                    lengths[hole] = lengths[next];
+                    expiries[hole] = expiries[next];
+                    hole = next;
+                }
+            }
+            keys[hole] = 0;
+        }
+        
+        private void removeExpired(long now) {
+            long[] expired = new long[16];
+            int count = 0;
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] != 0 && expiries[slot] <= now) {
+                    if (count == expired.length) {
+                        expired = Arrays.copyOf(expired, count * 2);
+                    }
+                    expired[count++] = keys[slot];
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                remove(expired[i]);
+            }
+        }
+        
+        private boolean isEnded(String idpEntityId, String nameId, String sessionIndex, long savedAt) {
+            Long byName = ended.get(endKey('n', idpEntityId, nameId));
+            if (byName != null && byName >= savedAt) {
+                return true;
+            }
+            Long bySession = sessionIndex != null ? ended.get(endKey('s', idpEntityId, sessionIndex)) : null;
+            return bySession != null && bySession >= savedAt;
+        }
+        
+        /**
+         * Checks a PUT record against the ends, reading only the fields before the attributes
+         */
+        private boolean isEnded(byte[] body) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            in.skipBytes(1);
+            long savedAt = in.readLong();
+            in.skipBytes(in.readShort() + 8);
+            String idpEntityId = WireFormat.readNullable(in);
+            String nameId = WireFormat.readString(in);
+            return isEnded(idpEntityId, nameId, WireFormat.readNullable(in), savedAt);
+        }
+        
+        private Index copy() {
+            Index copy = new Index(0);
+            copy.keys = keys.clone();
+            copy.offsets = offsets.clone();
+            copy.expiries = expiries.clone();
+            copy.lengths = lengths.clone();
+            copy.size = size;
+            copy.liveBytes = liveBytes;
+            copy.ended.putAll(ended);
+            return copy;
+        }
+        
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldOffsets = offsets;
+            long[] oldExpiries = expiries;
+            int[] oldLengths = lengths;
+            keys = new long[oldKeys.length * 2];
+            offsets = new long[keys.length];
+            expiries = new long[keys.length];
+            lengths = new int[keys.length];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = home(oldKeys[i], mask);
+                    while (keys[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    offsets[slot] = oldOffsets[i];
+                    expiries[slot] = oldExpiries[i];
+                    lengths[slot] = oldLengths[i];
+                }
+            }
+        }
+        
+        private static int home(long key, int mask) {
+            return (int) (key ^ key >>> 32) & mask;
+        }
+    }
+}
@@ -0,0 +1,588 @@
+package com.sample.saml.service;
+
+import com.sample.saml.metrics.SAMLMetrics;
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.util.ConfigSnapshot;
+import com.sample.saml.util.SAMLConfig;
+import com.sample.saml.util.WireFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Session Tokens
+ * 
+ * Stateless alternative to the container session, enabled with
+ * {@code app.session.cookie.enabled}: the user is carried in a cookie
+ * instead of an {@link javax.servlet.http.HttpSession}, so nodes need no
+ * sticky sessions and the heap does not grow with logged-in users.
+ * 
+ * A token is a compact binary record - NameID, SessionIndex, issue and
+ * expiry times, the attributes listed in
+ * {@code app.session.cookie.attributes} and the granted role names -
+ * behind a three-byte header of format version, key ID and flags. With
+ * {@code app.session.cookie.encrypt} it is sealed with AES-GCM, whose tag
+ * authenticates the header as well; otherwise it is plain and followed by
+ * a truncated HMAC-SHA256. Keys come from {@code app.session.cookie.keys},
+ * a list of {@code <id>:<base64 secret>}: the first one issues tokens, all
+ * of them are accepted. To rotate, put a new key first and drop the old one
+ * after {@code app.session.timeout}; tokens issued with an older key are
+ * reissued with the current one on their next request.
+ * 
+ * Tokens expire {@code app.session.timeout} minutes after they were
+ * issued and are reissued once half of that has passed, which makes the
+ * timeout one of inactivity, as for container sessions. Roles are those
+ * granted at login; a role rule reload applies from the next login. A
+ * token cannot be revoked by the server, so a LogoutRequest from the IdP
+ * only ends it in the browser that carries it.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class SessionTokens {
+    
+    private static final Logger logger = LoggerFactory.getLogger(SessionTokens.class);
+    
+    /**
+     * Largest cookie value issued; a larger token falls back to the container session
+     */
+    public static final int MAX_TOKEN_LENGTH = 3800;
+    
+    private static final byte FORMAT_VERSION = 2;
+    private static final byte FLAG_ENCRYPTED = 1;
+    private static final int HEADER_LENGTH = 3;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    
+    private static final SecureRandom random = new SecureRandom();
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+    
+    // JCA ciphers are stateful and not thread-safe; initialised per use
+    private static final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/GCM not available", e);
+        }
+    });
+    
+    private static final LongAdder ISSUED = SAMLMetrics.counter("cookie", "issued", "none");
+    private static final LongAdder VALID = SAMLMetrics.counter("cookie", "valid", "none");
+    private static final LongAdder EXPIRED = SAMLMetrics.counter("cookie", "invalid", "expired");
+    private static final LongAdder UNKNOWN_KEY = SAMLMetrics.counter("cookie", "invalid", "unknown_key");
+    private static final LongAdder FORGED = SAMLMetrics.counter("cookie", "invalid", "bad_mac");
+    private static final LongAdder MALFORMED = SAMLMetrics.counter("cookie", "invalid", "malformed");
+    private static final LongAdder OVERSIZED = SAMLMetrics.counter("cookie", "oversized", "none");
+    
+    private final boolean enabled;
+    private final String cookieName;
+    private final boolean encrypt;
+    private final boolean secureOnly;
+    private final long lifetimeSeconds;
+    private final String[] attributes;
+    // Indexed by key ID; the first configured key issues tokens
+    private final Key[] keys = new Key[256];
+    private final Key current;
+    
+    /**
+     * Reads the cookie mode settings of a configuration snapshot
+     * 
+     * @param config the configuration snapshot
+     * @throws IllegalArgumentException if the mode is enabled without valid keys
+     */
+    public SessionTokens(ConfigSnapshot config) {
+        this.enabled = config.getBooleanProperty("app.session.cookie.enabled", false);
+        this.cookieName = config.getProperty("app.session.cookie.name", "SAMLSESSION").trim();
+        this.encrypt = config.getBooleanProperty("app.session.cookie.encrypt", true);
+        this.secureOnly = config.getBooleanProperty("app.session.cookie.secure", true);
+        this.lifetimeSeconds = TimeUnit.MINUTES.toSeconds(
+                Math.max(1, config.getIntProperty("app.session.timeout", 30)));
+        this.attributes = split(config.getProperty("app.session.cookie.attributes", ""));
+        
+        Key first = null;
+        for (Key key : parseKeys(config.getProperty("app.session.cookie.keys", ""), "saml-session",
+                "session cookie")) {
+            keys[key.id] = key;
+            if (first == null) {
+                first = key;
+            }
+        }
+        if (enabled && first == null) {
+            throw new IllegalArgumentException("app.session.cookie.enabled needs app.session.cookie.keys");
+        }
+        this.current = first;
+        if (enabled) {
+            logger.info("Stateless session cookies enabled: {} ({}), key {}, {} attributes carried", cookieName,
+                    encrypt ? "AES-GCM" : "HMAC-SHA256", current.id, attributes.length);
+        }
+    }
+    
+    /**
+     * Returns the session tokens of the current configuration snapshot
+     * 
+     * @return the shared instance
+     */
+    public static SessionTokens getInstance() {
+        return SAMLConfig.getSnapshot().getDerived(SessionTokens.class, SessionTokens::new);
+    }
+    
+    /**
+     * Checks whether logins are kept in cookies instead of container sessions
+     * 
+     * @return true in cookie mode
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * Issues a token for a login
+     * 
+     * @param userInfo the authenticated user
+     * @param roles the granted roles
+     * @return the cookie value, or null if the token would exceed {@link #MAX_TOKEN_LENGTH}
+     */
+    public String issue(SAMLUserInfo userInfo, RoleSet roles) {
+        long now = now();
+        Map<String, List<String>> carried = new LinkedHashMap<>();
+        for (String attribute : attributes) {
+            List<String> values = userInfo.getAttributeValues(attribute);
+            if (values != null) {
+                carried.put(attribute, values);
+            }
+        }
+        return issue(new SAMLUserInfo(userInfo.getNameId(), carried, userInfo.getSessionIndex()), roles.getRoles(),
+                now, now + lifetimeSeconds);
+    }
+    
+    /**
+     * Reissues a token with a fresh expiry and the current key
+     * 
+     * @param token a valid token
+     * @return the cookie value, or null if the token would exceed {@link #MAX_TOKEN_LENGTH}
+     */
+    public String refresh(Token token) {
+        long now = now();
+        return issue(token.userInfo, token.roles.getRoles(), now, now + lifetimeSeconds);
+    }
+    
+    /**
+     * Reads and validates the token cookie of a request
+     * 
+     * @param request the HTTP request
+     * @return the token, or null if there is none or it is not valid
+     */
+    public Token read(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        for (Cookie cookie : cookies) {
+            if (cookieName.equals(cookie.getName())) {
+                return decode(cookie.getValue());
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Validates a token
+     * 
+     * @param value the cookie value
+     * @return the token, or null if it is not valid or has expired
+     */
+    public Token decode(String value) {
+        byte[] bytes;
+        try {
+            bytes = decoder.decode(value);
+        } catch (IllegalArgumentException e) {
+            MALFORMED.increment();
+            return null;
+        }
+        if (bytes.length < HEADER_LENGTH + TAG_LENGTH || bytes[0] != FORMAT_VERSION) {
+            MALFORMED.increment();
+            return null;
+        }
+        Key key = keys[bytes[1] & 0xFF];
+        if (key == null) {
+            UNKNOWN_KEY.increment();
+            return null;
+        }
+        byte[] payload;
+        try {
+            payload = (bytes[2] & FLAG_ENCRYPTED) != 0 ? open(key, bytes) : verify(key, bytes);
+        } catch (GeneralSecurityException e) {
+            payload = null;
+        }
+        if (payload == null) {
+            FORGED.increment();
+            return null;
+        }
+        try {
+            Token token = read(payload, key);
+            if (token.expiresAt <= now()) {
+                EXPIRED.increment();
+                return null;
+            }
+            VALID.increment();
+            return token;
+        } catch (IOException | IllegalArgumentException e) {
+            // Authenticated, so only a format bug gets here
+            MALFORMED.increment();
+            return null;
+        }
+    }
+    
+    /**
+     * Checks whether a token should be reissued: half its lifetime has
+     * passed, or it was issued with a key that no longer issues tokens
+     * 
+     * @param token a valid token
+     * @return true if the token should be refreshed
+     */
+    public boolean isRefreshDue(Token token) {
+        return token.key != current || token.expiresAt - now() < lifetimeSeconds / 2;
+    }
+    
+    /**
+     * Sets the token cookie on a response
+     * 
+     * @param request the HTTP request
+     * @param response the HTTP response
+     * @param value the cookie value
+     */
+    public void write(HttpServletRequest request, HttpServletResponse response, String value) {
+        response.addHeader("Set-Cookie", cookie(request, value, false));
+    }
+    
+    /**
+     * Removes the token cookie from the browser
+     * 
+     * @param request the HTTP request
+     * @param response the HTTP response
+     */
+    public void clear(HttpServletRequest request, HttpServletResponse response) {
+        response.addHeader("Set-Cookie", cookie(request, "", true));
+    }
+    
+    private String cookie(HttpServletRequest request, String value, boolean expire) {
+        String path = request.getContextPath().isEmpty() ? "/" : request.getContextPath();
+        // Cookie has no SameSite in Servlet 4, so the header is written directly
+        return cookieName + "=" + value + "; Path=" + path + (expire ? "; Max-Age=0" : "") + "; HttpOnly"
+                + (secureOnly || request.isSecure() ? "; Secure" : "") + "; SameSite=Lax";
+    }
+    
+    /**
+     * Issues a token valid for the given times
+     * 
+     * @param userInfo the user, with the attributes to carry
+     * @param roles the granted role names
+     * @param issuedAt seconds since the epoch
+     * @param expiresAt seconds since the epoch
+     * @return the cookie value, or null if the token would exceed {@link #MAX_TOKEN_LENGTH}
+     */
+    String issue(SAMLUserInfo userInfo, List<String> roles, long issuedAt, long expiresAt) {
+        byte[] payload;
+        try {
+            payload = write(userInfo, roles, issuedAt, expiresAt);
+        } catch (IOException e) {
+            // A value past the wire format limit: far over the cookie limit anyway
+            payload = null;
+        }
+        byte[] header = {FORMAT_VERSION, (byte) current.id, encrypt ? FLAG_ENCRYPTED : 0};
+        String value = null;
+        if (payload != null) {
+            try {
+                value = encoder.encodeToString(encrypt ? seal(current, header, payload)
+                        : sign(current, header, payload));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Cannot protect session token", e);
+            }
+        }
+        if (value == null || value.length() > MAX_TOKEN_LENGTH) {
+            OVERSIZED.increment();
+            logger.warn("Session token for {} exceeds {} characters, keeping the login in the container session",
+                    userInfo.getNameId(), MAX_TOKEN_LENGTH);
+            return null;
+        }
+        ISSUED.increment();
+        return value;
+    }
+    
+    private static byte[] write(SAMLUserInfo userInfo, List<String> roles, long issuedAt, long expiresAt)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt((int) issuedAt);
+            out.writeInt((int) expiresAt);
+            WireFormat.writeString(out, userInfo.getNameId());
+            WireFormat.writeNullable(out, userInfo.getSessionIndex());
+            WireFormat.writeAttributes(out, userInfo.getAttributes());
+            WireFormat.writeCount(out, roles.size());
+            for (String role : roles) {
+                WireFormat.writeString(out, role);
+            }
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static Token read(byte[] payload, Key key) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long issuedAt = Integer.toUnsignedLong(in.readInt());
+        long expiresAt = Integer.toUnsignedLong(in.readInt());
+        String nameId = WireFormat.readString(in);
+        String sessionIndex = WireFormat.readNullable(in);
+        Map<String, List<String>> attributes = WireFormat.readAttributes(in);
+        String[] roles = new String[WireFormat.readCount(in)];
+        for (int i = 0; i < roles.length; i++) {
+            roles[i] = WireFormat.readString(in);
+        }
+        return new Token(new SAMLUserInfo(nameId, attributes, sessionIndex), RoleSet.of(roles), issuedAt, expiresAt,
+                key);
+    }
+    
+    private static byte[] sign(Key key, byte[] header, byte[] payload) throws GeneralSecurityException {
+        byte[] token = new byte[header.length + payload.length + TAG_LENGTH];
+        System.arraycopy(header, 0, token, 0, header.length);
+        System.arraycopy(payload, 0, token, header.length, payload.length);
+        byte[] mac = key.mac(token, header.length + payload.length);
+        System.arraycopy(mac, 0, token, header.length + payload.length, TAG_LENGTH);
+        return token;
+    }
+    
+    private static byte[] verify(Key key, byte[] token) throws GeneralSecurityException {
+        int signed = token.length - TAG_LENGTH;
+        byte[] expected = Arrays.copyOf(key.mac(token, signed), TAG_LENGTH);
+        if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(token, signed, token.length))) {
+            return null;
+        }
+        return Arrays.copyOfRange(token, HEADER_LENGTH, signed);
+    }
+    
+    private static byte[] seal(Key key, byte[] header, byte[] payload) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key.encryption, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(header);
+        byte[] token = new byte[header.length + NONCE_LENGTH + cipher.getOutputSize(payload.length)];
+        System.arraycopy(header, 0, token, 0, header.length);
+        System.arraycopy(nonce, 0, token, header.length, NONCE_LENGTH);
+        cipher.doFinal(payload, 0, payload.length, token, header.length + NONCE_LENGTH);
+        return token;
+    }
+    
+    private static byte[] open(Key key, byte[] token) throws GeneralSecurityException {
+        if (token.length < HEADER_LENGTH + NONCE_LENGTH + TAG_LENGTH) {
+            return null;
+        }
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, key.encryption,
+                new GCMParameterSpec(TAG_LENGTH * 8, token, HEADER_LENGTH, NONCE_LENGTH));
+        cipher.updateAAD(token, 0, HEADER_LENGTH);
+        try {
+            return cipher.doFinal(token, HEADER_LENGTH + NONCE_LENGTH, token.length - HEADER_LENGTH - NONCE_LENGTH);
+        } catch (AEADBadTagException e) {
+            return null;
+        }
+    }
+    
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+    
+    /**
+     * Parses a list of {@code <id>:<base64 secret>} keys, as configured for
+     * the session cookie, in the order they are listed
+     * 
+     * @param list the comma-separated keys
+     * @param context label the MAC and encryption keys are derived under, so a
+     *        secret shared by two uses yields different keys
+     * @param description what the keys protect, for error messages
+     * @return the keys, the first being the one that signs
+     * @throws IllegalArgumentException if an entry is invalid or a key ID is listed twice
+     */
+    static List<Key> parseKeys(String list, String context, String description) {
+        List<Key> parsed = new ArrayList<>();
+        boolean[] seen = new boolean[256];
+        for (String entry : split(list)) {
+            Key key = Key.parse(entry, context, description);
+            if (seen[key.id]) {
+                throw new IllegalArgumentException("Key ID " + key.id + " of the " + description
+                        + " is configured twice");
+            }
+            seen[key.id] = true;
+            parsed.add(key);
+        }
+        return parsed;
+    }
+    
+    private static String[] split(String list) {
+        List<String> items = new ArrayList<>();
+        for (String item : list.split(",")) {
+            if (!item.trim().isEmpty()) {
+                items.add(item.trim());
+            }
+        }
+        return items.toArray(new String[0]);
+    }
+    
+    /**
+     * A validated token
+     */
+    public static final class Token {
+        
+        private final SAMLUserInfo userInfo;
+        private final RoleSet roles;
+        private final long issuedAt;
+        private final long expiresAt;
+        private final Key key;
+        
+        private Token(SAMLUserInfo userInfo, RoleSet roles, long issuedAt, long expiresAt, Key key) {
+            this.userInfo = userInfo;
+            this.roles = roles;
+            this.issuedAt = issuedAt;
+            this.expiresAt = expiresAt;
+            this.key = key;
+        }
+        
+        /**
+         * Gets the user, with the attributes the token carries
+         * 
+         * @return the user
+         */
+        public SAMLUserInfo getUserInfo() {
+            return userInfo;
+        }
+        
+        /**
+         * Gets the roles granted at login
+         * 
+         * @return the roles
+         */
+        public RoleSet getRoles() {
+            return roles;
+        }
+        
+        /**
+         * Gets when the token was issued
+         * 
+         * @return seconds since the epoch
+         */
+        public long getIssuedAt() {
+            return issuedAt;
+        }
+        
+        /**
+         * Gets when the token expires
+         * 
+         * @return seconds since the epoch
+         */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+    
+    /**
+     * One configured key, with the MAC and encryption keys derived from its
+     * secret; also protects the batches of the {@link SessionReplicator}
+     */
+    static final class Key {
+        
+        final int id;
+        private final SecretKeySpec mac;
+        private final SecretKeySpec encryption;
+        // MAC initialised with this key, one per thread; doFinal leaves it ready for reuse
+        private final ThreadLocal<Mac> macs = new ThreadLocal<>();
+        
+        private Key(int id, byte[] secret, String context) throws GeneralSecurityException {
+            this.id = id;
+            // Separate keys for the two modes, so a secret never serves both
+            this.mac = new SecretKeySpec(derive(secret, context + "-mac"), "HmacSHA256");
+            this.encryption = new SecretKeySpec(derive(secret, context + "-enc"), "AES");
+        }
+        
+        private static Key parse(String entry, String context, String description) {
+            int colon = entry.indexOf(':');
+            try {
+                int id = Integer.parseInt(entry.substring(0, Math.max(0, colon)).trim());
+                if (id < 0 || id > 255) {
+                    throw new IllegalArgumentException("needs an ID of 0-255");
+                }
+                return create(id, entry.substring(colon + 1), context);
+            } catch (IllegalArgumentException | GeneralSecurityException e) {
+                // Never echo the secret
+                throw new IllegalArgumentException("Invalid " + description + " key " + (colon > 0
+                        ? entry.substring(0, colon).trim() : "entry") + ": " + e.getMessage(), e);
+            }
+        }
+        
+        /**
+         * Derives a key from a single base64 secret, for uses without rotation
+         * 
+         * @param secret the base64 secret, at least 32 bytes
+         * @param context label the MAC and encryption keys are derived under
+         * @param description what the key protects, for error messages
+         * @return the key, with ID 0
+         * @throws IllegalArgumentException if the secret is invalid
+         */
+        static Key of(String secret, String context, String description) {
+            try {
+                return create(0, secret, context);
+            } catch (IllegalArgumentException | GeneralSecurityException e) {
+                throw new IllegalArgumentException("Invalid " + description + " key: " + e.getMessage(), e);
+            }
+        }
+        
+        private static Key create(int id, String secret, String context) throws GeneralSecurityException {
+            byte[] bytes = Base64.getDecoder().decode(secret.trim());
+            if (bytes.length < 32) {
+                throw new IllegalArgumentException("needs at least 32 bytes of secret");
+            }
+            return new Key(id, bytes, context);
+        }
+        
+        byte[] mac(byte[] data, int length) throws GeneralSecurityException {
+            Mac hmac = macs.get();
+            if (hmac == null) {
+                hmac = Mac.getInstance("HmacSHA256");
+                hmac.init(mac);
+                macs.set(hmac);
+            }
+            hmac.update(data, 0, length);
+            return hmac.doFinal();
+        }
+        
+        private static byte[] derive(byte[] secret, String label) throws GeneralSecurityException {
+            Mac hmac = Mac.getInstance("HmacSHA256");
+            hmac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return hmac.doFinal(label.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
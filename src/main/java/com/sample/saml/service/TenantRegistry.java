@@ -0,0 +1,495 @@
+package com.sample.saml.service;
+
+import com.sample.saml.metrics.LatencyHistogram;
+import com.sample.saml.metrics.SAMLMetrics;
+import com.sample.saml.util.ConfigSnapshot;
+import com.sample.saml.util.SAMLConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Tenant Registry
+ * 
+ * Serves several IdPs from one deployment. Tenants are defined in the
+ * properties file named by {@code saml.tenants.file}, one block of keys per
+ * tenant ID:
+ * <pre>
+ * acme.host=sso.acme.example
+ * acme.path=acme
+ * acme.idp.entityId=https://idp.acme.example/metadata
+ * acme.idp.singleSignOnService.url=https://idp.acme.example/sso
+ * acme.idp.x509cert=MIIC...
+ * </pre>
+ * Every key other than {@code host} and {@code path} replaces the shared
+ * property of the same name for that tenant. The SP URLs default to the
+ * shared ones with the tenant's host and path, e.g.
+ * {@code https://sso.acme.example/java-saml-sso/saml/acs/acme}.
+ * 
+ * A request belongs to the tenant whose host is the request's server name,
+ * else whose path is the first segment after the endpoint
+ * ({@code /saml/acs/acme}), else the one named by a {@code tenant} query
+ * parameter; otherwise it is served with the shared configuration. Each
+ * step is one hash map lookup. Tenants can also be found by IdP entity ID.
+ * 
+ * A tenant's {@link SAMLService} is built on first use and cached. Requests
+ * that arrive while it is being built wait for that one build. Beyond
+ * {@code saml.tenants.maxCached} built tenants, the least recently used are
+ * dropped and rebuilt when next needed, so memory is bounded by the cache
+ * size plus the tenant definitions themselves. The registry is derived from
+ * the configuration snapshot: a reload re-reads the tenants file and starts
+ * with an empty cache.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class TenantRegistry {
+    
+    private static final Logger logger = LoggerFactory.getLogger(TenantRegistry.class);
+    
+    private static final LongAdder HIT = SAMLMetrics.counter("tenant", "hit", "none");
+    private static final LongAdder BUILT = SAMLMetrics.counter("tenant", "built", "none");
+    private static final LongAdder EVICTED = SAMLMetrics.counter("tenant", "evicted", "none");
+    private static final LatencyHistogram BUILD = SAMLMetrics.histogram("tenant", "build");
+    
+    private static final Pattern TENANT_ID = Pattern.compile("[A-Za-z0-9_-]+");
+    private static final String[] SP_URL_KEYS = {
+        "sp.entityId", "sp.assertionConsumerService.url", "sp.singleLogoutService.url"
+    };
+    
+    // Last-use stamps closer together than this are not rewritten, so hot tenants do not bounce a cache line
+    private static final long LAST_USED_RESOLUTION_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    
+    private final ConfigSnapshot config;
+    private final Map<String, Tenant> byId;
+    private final Map<String, Tenant> byHost;
+    private final Map<String, Tenant> byPath;
+    private final Map<String, Tenant> byEntityId;
+    private final int maxCached;
+    
+    private final ConcurrentMap<String, Cached> services = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    
+    /**
+     * Constructor that reads the tenants file named in the configuration
+     * 
+     * @param config the configuration snapshot
+     * @throws IllegalStateException if the tenants file cannot be read
+     * @throws IllegalArgumentException if a tenant definition is invalid
+     */
+    public TenantRegistry(ConfigSnapshot config) {
+        this(config, loadTenants(config.getProperty("saml.tenants.file", "")));
+    }
+    
+    /**
+     * Constructor with tenant definitions in the format of the tenants file
+     * 
+     * @param config the configuration snapshot the tenants' settings are layered on
+     * @param tenants the tenant properties
+     * @throws IllegalArgumentException if a tenant definition is invalid
+     */
+    public TenantRegistry(ConfigSnapshot config, Properties tenants) {
+        this.config = config;
+        this.maxCached = Math.max(1, config.getIntProperty("saml.tenants.maxCached", 1000));
+        
+        Map<String, Map<String, String>> blocks = new TreeMap<>();
+        for (String key : tenants.stringPropertyNames()) {
+            int dot = key.indexOf('.');
+            if (dot <= 0 || dot == key.length() - 1) {
+                throw new IllegalArgumentException("Tenant property is not <tenant>.<key>: " + key);
+            }
+            blocks.computeIfAbsent(key.substring(0, dot), id -> new HashMap<>())
+                    .put(key.substring(dot + 1), tenants.getProperty(key).trim());
+        }
+        
+        int capacity = blocks.size() * 4 / 3 + 1;
+        Map<String, Tenant> ids = new HashMap<>(capacity);
+        Map<String, Tenant> hosts = new HashMap<>(capacity);
+        Map<String, Tenant> paths = new HashMap<>(capacity);
+        Map<String, Tenant> entityIds = new HashMap<>(capacity);
+        // The same dozen keys repeat in every tenant; keep one copy of each
+        Map<String, String> keys = new HashMap<>();
+        for (Map.Entry<String, Map<String, String>> block : blocks.entrySet()) {
+            Tenant tenant = new Tenant(block.getKey(), block.getValue(), keys);
+            ids.put(tenant.id, tenant);
+            index(hosts, tenant.host, tenant, "host");
+            index(paths, tenant.path, tenant, "path");
+            index(entityIds, tenant.entityId, tenant, "idp.entityId");
+        }
+        this.byId = ids;
+        this.byHost = hosts;
+        this.byPath = paths;
+        this.byEntityId = entityIds;
+        
+        SAMLMetrics.gauge("tenant", "defined", byId::size);
+        SAMLMetrics.gauge("tenant", "cached", services::size);
+        if (!byId.isEmpty()) {
+            logger.info("Loaded {} tenants, keeping up to {} built (config version {})", byId.size(), maxCached,
+                    config.getVersion());
+        }
+    }
+    
+    /**
+     * Returns the registry of the current configuration snapshot
+     * 
+     * @return the shared registry
+     */
+    public static TenantRegistry getInstance() {
+        return SAMLConfig.getSnapshot().getDerived(TenantRegistry.class, TenantRegistry::new);
+    }
+    
+    /**
+     * Finds the tenant a request is addressed to
+     * 
+     * @param request the HTTP request
+     * @return the tenant, or null if the request matches none
+     */
+    public Tenant resolve(HttpServletRequest request) {
+        if (byId.isEmpty()) {
+            return null;
+        }
+        Tenant tenant = null;
+        if (!byHost.isEmpty()) {
+            String host = request.getServerName();
+            tenant = host != null ? byHost.get(host.toLowerCase(Locale.ROOT)) : null;
+        }
+        if (tenant == null && !byPath.isEmpty()) {
+            String pathInfo = request.getPathInfo();
+            if (pathInfo != null && pathInfo.length() > 1) {
+                int end = pathInfo.indexOf('/', 1);
+                tenant = byPath.get(pathInfo.substring(1, end < 0 ? pathInfo.length() : end));
+            }
+        }
+        if (tenant == null) {
+            // From the query string only: reading parameters would consume a streamed ACS body
+            String id = queryParameter(request.getQueryString(), "tenant");
+            tenant = id != null ? byId.get(id) : null;
+        }
+        return tenant;
+    }
+    
+    /**
+     * Gets the SAML service for a request: its tenant's, or the shared one
+     * 
+     * @param request the HTTP request
+     * @return the SAML service
+     * @throws RuntimeException if the tenant's service cannot be built
+     */
+    public SAMLService getService(HttpServletRequest request) {
+        Tenant tenant = resolve(request);
+        return tenant != null ? getService(tenant) : config.getDerived(SAMLService.class, SAMLService::new);
+    }
+    
+    /**
+     * Gets a tenant's SAML service, building it on first use
+     * 
+     * @param tenant the tenant
+     * @return the tenant's SAML service
+     * @throws RuntimeException if the tenant's service cannot be built
+     */
+    public SAMLService getService(Tenant tenant) {
+        Cached cached = services.get(tenant.id);
+        if (cached == null) {
+            Cached created = new Cached();
+            cached = services.putIfAbsent(tenant.id, created);
+            if (cached == null) {
+                build(tenant, created);
+                return created.get();
+            }
+        }
+        HIT.increment();
+        long now = System.nanoTime();
+        if (now - cached.lastUsed > LAST_USED_RESOLUTION_NANOS) {
+            cached.lastUsed = now;
+        }
+        return cached.get();
+    }
+    
+    private void build(Tenant tenant, Cached cached) {
+        long start = System.nanoTime();
+        try {
+            SAMLService service = SAMLService.forTenant(config.withOverrides("tenant " + tenant.id, overrides(tenant)));
+            cached.service.complete(service);
+            BUILT.increment();
+            BUILD.recordSince(start);
+        } catch (RuntimeException e) {
+            // Not cached: the next request for the tenant tries again
+            services.remove(tenant.id, cached);
+            cached.service.completeExceptionally(e);
+            SAMLMetrics.failure("tenant", "build");
+            logger.error("Failed to build SAML service for tenant {}", tenant.id, e);
+            return;
+        }
+        evictIfNeeded();
+    }
+    
+    /**
+     * Drops the least recently used tenants once the cache is over its limit.
+     * One thread sorts the last-use stamps and evicts down to 15/16 of the
+     * limit, so a run of cold tenants does not sort on every build.
+     */
+    private void evictIfNeeded() {
+        if (services.size() <= maxCached || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long[] stamps = services.values().stream().mapToLong(cached -> cached.lastUsed).sorted().toArray();
+            int excess = stamps.length - (maxCached - maxCached / 16);
+            if (excess <= 0) {
+                return;
+            }
+            // Tenants used since the stamps were read have newer ones and stay
+            long cutoff = stamps[excess - 1];
+            int[] evicted = {0};
+            services.values().removeIf(cached -> {
+                if (evicted[0] < excess && cached.lastUsed <= cutoff && cached.service.isDone()) {
+                    evicted[0]++;
+                    return true;
+                }
+                return false;
+            });
+            EVICTED.add(evicted[0]);
+            logger.debug("Evicted {} tenant services, {} cached", evicted[0], services.size());
+        } finally {
+            evicting.set(false);
+        }
+    }
+    
+    /**
+     * The tenant's properties, with SP URLs moved to its host and path unless it sets them
+     */
+    private Map<String, String> overrides(Tenant tenant) {
+        Map<String, String> overrides = new HashMap<>();
+        for (int i = 0; i < tenant.properties.length; i += 2) {
+            overrides.put(tenant.properties[i], tenant.properties[i + 1]);
+        }
+        for (String key : SP_URL_KEYS) {
+            String shared = config.getProperty(key);
+            if (!overrides.containsKey(key) && shared != null && !shared.trim().isEmpty()) {
+                overrides.put(key, tenantUrl(shared.trim(), tenant));
+            }
+        }
+        return overrides;
+    }
+    
+    private static String tenantUrl(String url, Tenant tenant) {
+        String suffix = tenant.path != null ? "/" + tenant.path : "";
+        URI uri = URI.create(url);
+        if (tenant.host == null || uri.getHost() == null) {
+            return url + suffix;
+        }
+        return uri.getScheme() + "://" + tenant.host + (uri.getPort() != -1 ? ":" + uri.getPort() : "")
+                + uri.getRawPath() + suffix;
+    }
+    
+    private static void index(Map<String, Tenant> index, String key, Tenant tenant, String name) {
+        if (key == null) {
+            return;
+        }
+        Tenant previous = index.putIfAbsent(key, tenant);
+        if (previous != null) {
+            throw new IllegalArgumentException("Tenants " + previous.id + " and " + tenant.id + " have the same "
+                    + name + ": " + key);
+        }
+    }
+    
+    private static String queryParameter(String query, String name) {
+        if (query == null) {
+            return null;
+        }
+        int start = 0;
+        while (start < query.length()) {
+            int end = query.indexOf('&', start);
+            if (end < 0) {
+                end = query.length();
+            }
+            if (query.startsWith(name, start) && start + name.length() < end && query.charAt(start + name.length()) == '=') {
+                return query.substring(start + name.length() + 1, end);
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+    
+    private static Properties loadTenants(String file) {
+        Properties tenants = new Properties();
+        if (file == null || file.trim().isEmpty()) {
+            return tenants;
+        }
+        try (InputStream input = Files.newInputStream(Paths.get(file.trim()))) {
+            tenants.load(input);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read tenants file " + file, e);
+        }
+        return tenants;
+    }
+    
+    /**
+     * Finds a tenant by ID
+     * 
+     * @param id the tenant ID
+     * @return the tenant, or null
+     */
+    public Tenant getTenant(String id) {
+        return byId.get(id);
+    }
+    
+    /**
+     * Finds the tenant of an IdP
+     * 
+     * @param idpEntityId the IdP entity ID
+     * @return the tenant, or null
+     */
+    public Tenant findByEntityId(String idpEntityId) {
+        return byEntityId.get(idpEntityId);
+    }
+    
+    /**
+     * Gets the number of defined tenants
+     * 
+     * @return the tenant count
+     */
+    public int getTenantCount() {
+        return byId.size();
+    }
+    
+    /**
+     * Gets the number of tenants whose service is built or being built
+     * 
+     * @return the cached count
+     */
+    public int getCachedCount() {
+        return services.size();
+    }
+    
+    /**
+     * One tenant definition: how requests find it and the properties it replaces
+     */
+    public static final class Tenant {
+        
+        private final String id;
+        private final String host;
+        private final String path;
+        private final String entityId;
+        // Alternating keys and values; a map per tenant costs several times more at 10k tenants
+        private final String[] properties;
+        
+        private Tenant(String id, Map<String, String> definition, Map<String, String> keys) {
+            if (!TENANT_ID.matcher(id).matches()) {
+                throw new IllegalArgumentException("Invalid tenant ID: " + id);
+            }
+            Map<String, String> remaining = new TreeMap<>(definition);
+            String definedHost = remaining.remove("host");
+            String definedPath = remaining.remove("path");
+            this.id = id;
+            this.host = definedHost != null && !definedHost.isEmpty() ? definedHost.toLowerCase(Locale.ROOT) : null;
+            this.path = definedPath != null && !definedPath.replace("/", "").isEmpty()
+                    ? definedPath.replaceAll("^/+|/+$", "") : null;
+            if (path != null && path.contains("/")) {
+                throw new IllegalArgumentException("Tenant " + id + " path must be a single segment: " + definedPath);
+            }
+            this.entityId = remaining.get("idp.entityId");
+            if (entityId == null || entityId.isEmpty()) {
+                throw new IllegalArgumentException("Tenant " + id + " has no idp.entityId");
+            }
+            this.properties = new String[remaining.size() * 2];
+            int i = 0;
+            for (Map.Entry<String, String> property : remaining.entrySet()) {
+                properties[i++] = keys.computeIfAbsent(property.getKey(), key -> key);
+                properties[i++] = property.getValue();
+            }
+        }
+        
+        /**
+         * Gets the tenant ID
+         * 
+         * @return the ID
+         */
+        public String getId() {
+            return id;
+        }
+        
+        /**
+         * Gets the host requests for this tenant arrive on
+         * 
+         * @return the lower-case host name, or null
+         */
+        public String getHost() {
+            return host;
+        }
+        
+        /**
+         * Gets the path segment after the endpoint that selects this tenant
+         * 
+         * @return the path segment, or null
+         */
+        public String getPath() {
+            return path;
+        }
+        
+        /**
+         * Gets the tenant's IdP entity ID
+         * 
+         * @return the entity ID
+         */
+        public String getEntityId() {
+            return entityId;
+        }
+        
+        /**
+         * Gets the properties this tenant replaces
+         * 
+         * @return the properties by key
+         */
+        public Map<String, String> getProperties() {
+            Map<String, String> map = new TreeMap<>();
+            for (int i = 0; i < properties.length; i += 2) {
+                map.put(properties[i], properties[i + 1]);
+            }
+            return Collections.unmodifiableMap(map);
+        }
+        
+        @Override
+        public String toString() {
+            return "Tenant{id=" + id + ", host=" + host + ", path=" + path + ", idp=" + entityId
+                    + ", properties=" + properties.length / 2 + "}";
+        }
+    }
+    
+    /**
+     * A tenant's service, built once; requests arriving during the build wait for it
+     */
+    private static final class Cached {
+        
+        private final CompletableFuture<SAMLService> service = new CompletableFuture<>();
+        private volatile long lastUsed = System.nanoTime();
+        
+        SAMLService get() {
+            try {
+                return service.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.sample.saml.service;
+
+import com.sample.saml.metrics.LatencyHistogram;
+import com.sample.saml.metrics.SAMLMetrics;
+import com.sample.saml.util.RequestTrace;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Signature Verification Pool
+ * 
+ * A small, bounded pool of platform threads for the CPU-heavy part of
+ * processing a SAML response (DOM parsing, schema and signature validation).
+ * 
+ * When the container runs each request on a virtual thread, doing this
+ * work inline would keep a carrier thread busy for the whole validation:
+ * virtual threads are not time-sliced, and the XML security code holds
+ * monitors while it works, which pins the carrier. With enough concurrent
+ * logins every carrier ends up verifying and requests that only wait on
+ * I/O stop making progress. Handing the work to this pool bounds the
+ * number of concurrent verifications, and the virtual thread parks
+ * (releasing its carrier) while it waits for the result.
+ * 
+ * Callers on platform threads (the classic Tomcat worker pool) run the
+ * task inline; the worker pool already bounds their concurrency.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class VerificationPool {
+    
+    private static final LatencyHistogram QUEUE_WAIT = SAMLMetrics.histogram("verify", "queue_wait");
+    private static final LongAdder REJECTED = SAMLMetrics.counter("verify", "rejected", "queue_full");
+    
+    private final ThreadPoolExecutor executor;
+    private final boolean offload;
+    
+    /**
+     * Constructor
+     * 
+     * @param poolSize number of verification threads; 0 or less uses the number of CPUs
+     * @param queueCapacity number of verifications that may wait for a thread
+     * @param offload false to always verify on the calling thread
+     */
+    public VerificationPool(int poolSize, int queueCapacity, boolean offload) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        int threads = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+        AtomicInteger sequence = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), task -> {
+                    Thread thread = new Thread(task, "saml-verify-" + sequence.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.offload = offload;
+    }
+    
+    /**
+     * Runs a verification task. On a virtual thread the task runs on the
+     * pool and the caller parks until it completes; otherwise it runs inline.
+     * 
+     * @param task the verification task
+     * @return the task's result
+     * @throws RejectedExecutionException if the pool and its queue are full
+     * @throws Exception anything thrown by the task
+     */
+    public <T> T call(Callable<T> task) throws Exception {
+        if (!offload || !Thread.currentThread().isVirtual()) {
+            return task.call();
+        }
+        
+        Future<T> future = submit(task);
+        
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+    
+    /**
+     * Runs a task on the pool without waiting for it, e.g. to finish an
+     * asynchronous servlet request off the container's thread
+     * 
+     * @param task the task
+     * @throws RejectedExecutionException if the pool and its queue are full
+     */
+    public void execute(Runnable task) {
+        submit(() -> {
+            task.run();
+            return null;
+        });
+    }
+    
+    private <T> Future<T> submit(Callable<T> task) {
+        long submitted = System.nanoTime();
+        String traceId = RequestTrace.getTraceId();
+        try {
+            return executor.submit(() -> {
+                QUEUE_WAIT.recordSince(submitted);
+                if (traceId == null) {
+                    return task.call();
+                }
+                RequestTrace.begin(traceId);
+                try {
+                    return task.call();
+                } finally {
+                    RequestTrace.end();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            REJECTED.increment();
+            throw e;
+        }
+    }
+    
+    /**
+     * Gets the number of verifications waiting for a thread
+     * 
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+    
+    /**
+     * Gets the number of verification threads
+     * 
+     * @return the pool size
+     */
+    public int getPoolSize() {
+        return executor.getMaximumPoolSize();
+    }
+    
+    /**
+     * Stops the pool threads; verifications already queued still complete
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
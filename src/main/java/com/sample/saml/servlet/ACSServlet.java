@@ -0,0 +1,420 @@
+package com.sample.saml.servlet;
+
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.service.AdmissionControl;
+import com.sample.saml.service.SAMLService;
+import com.sample.saml.service.SessionTokens;
+import com.sample.saml.util.ConfigSnapshot;
+import com.sample.saml.util.SAMLConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Assertion Consumer Service Endpoint
+ * 
+ * Receives the SAMLResponse posted by the IdP at /saml/acs, validates it
+ * with the shared {@link SAMLService}, establishes the session - or in
+ * stateless cookie mode sets the {@link SessionTokens} cookie instead - and
+ * redirects to the RelayState or the configured success page.
+ * 
+ * On a platform-thread container the request is completed asynchronously:
+ * the container thread is released while parsing and signature validation
+ * run on the bounded verification pool ({@code app.acs.async}). On a
+ * virtual thread the request is processed in place, since the service
+ * already moves the CPU-bound work off the carrier.
+ * 
+ * A form-encoded body is read as a stream ({@code app.acs.streaming}): the
+ * SAMLResponse value is base64 decoded and pre-checked as it arrives, and
+ * the container never builds its parameter strings. When the request is
+ * completed asynchronously, the body is first read into memory with a
+ * non-blocking {@link ReadListener}, so a slow upload holds no pool thread
+ * and only a fully received body is handed to the verification pool.
+ * 
+ * Requests pass {@link AdmissionControl} first; one that is not admitted
+ * gets 503 with Retry-After before any of its body is read. The admission
+ * is held until the response has been verified.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public class ACSServlet extends HttpServlet {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private static final Logger logger = LoggerFactory.getLogger(ACSServlet.class);
+    
+    private static final int MAX_RELAY_STATE_BYTES = 8192;
+    
+    /**
+     * Handles the HTTP-POST binding
+     * 
+     * @param request the HTTP request
+     * @param response the HTTP response
+     * @throws IOException if writing the response fails
+     */
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ConfigSnapshot config = SAMLConfig.getSnapshot();
+        // Reading a parameter would make the container consume the body, so a streamed one is checked later
+        boolean streaming = isFormBody(request) && config.getBooleanProperty("app.acs.streaming", true);
+        if (!streaming && request.getParameter("SAMLResponse") == null) {
+            rejectMissing(request, response);
+            return;
+        }
+        
+        AdmissionControl.Ticket ticket = SAMLService.getAdmissionControl().admit(request);
+        if (!ticket.isAdmitted()) {
+            // Counted by the admission control; a flood would otherwise flood the log
+            logger.debug("ACS request not admitted: {}", ticket.getRejection());
+            EndpointResponses.overloaded(request, response, ticket.getRetryAfterSeconds());
+            return;
+        }
+        
+        if (Thread.currentThread().isVirtual() || !request.isAsyncSupported()
+                || !config.getBooleanProperty("app.acs.async", true)) {
+            try {
+                consume(request, response, streaming ? request.getInputStream() : null, () -> true);
+            } finally {
+                ticket.close();
+            }
+            return;
+        }
+        
+        long maxBodyBytes = maxBodyBytes(config);
+        if (streaming && request.getContentLengthLong() > maxBodyBytes) {
+            ticket.close();
+            logger.warn("ACS request body of {} bytes exceeds {} bytes", request.getContentLengthLong(), maxBodyBytes);
+            EndpointResponses.error(request, response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    "SAML response too large.");
+            return;
+        }
+        
+        AsyncExchange exchange;
+        try {
+            exchange = new AsyncExchange(request.startAsync(), request, response, ticket);
+        } catch (RuntimeException e) {
+            ticket.close();
+            throw e;
+        }
+        exchange.context.setTimeout(config.getIntProperty("app.acs.asyncTimeoutMillis", 30000));
+        exchange.context.addListener(exchange);
+        if (!streaming) {
+            exchange.submit(null);
+            return;
+        }
+        // Read by the container as data arrives; the pool gets the body once it is complete
+        ServletInputStream input = request.getInputStream();
+        input.setReadListener(new BodyReader(exchange, input, maxBodyBytes));
+    }
+    
+    /**
+     * Processes the SAMLResponse and writes the redirect or error
+     * 
+     * @param request the HTTP request
+     * @param response the HTTP response
+     * @param body the form-encoded body to read the SAMLResponse from, or null to use the request parameters
+     * @param claim called right before writing; false if the response was already sent
+     * @throws IOException if writing the response fails
+     */
+    private void consume(HttpServletRequest request, HttpServletResponse response, InputStream body,
+                         BooleanSupplier claim) throws IOException {
+        SAMLService samlService;
+        try {
+            samlService = SAMLService.getInstance(request);
+        } catch (RuntimeException e) {
+            // TenantRegistry has logged why the tenant's service could not be built
+            if (claim.getAsBoolean()) {
+                EndpointResponses.error(request, response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                        "SAML authentication failed.");
+            }
+            return;
+        }
+        SAMLUserInfo userInfo;
+        String relayState = null;
+        try {
+            if (body != null) {
+                FormBodyReader form = new FormBodyReader(body, charset(request));
+                userInfo = null;
+                for (String field = form.nextField(); field != null; field = form.nextField()) {
+                    if ("SAMLResponse".equals(field) && userInfo == null) {
+                        userInfo = samlService.processResponse(request, form.value());
+                    } else if ("RelayState".equals(field) && relayState == null) {
+                        relayState = form.valueAsString(MAX_RELAY_STATE_BYTES);
+                    }
+                }
+                if (userInfo == null) {
+                    if (claim.getAsBoolean()) {
+                        rejectMissing(request, response);
+                    }
+                    return;
+                }
+            } else {
+                userInfo = samlService.processResponse(request);
+                relayState = request.getParameter("RelayState");
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to read ACS request body: {}", e.getMessage());
+            if (claim.getAsBoolean()) {
+                EndpointResponses.error(request, response, HttpServletResponse.SC_BAD_REQUEST,
+                        "No SAML response received.");
+            }
+            return;
+        } catch (RuntimeException e) {
+            // processResponse has logged the cause
+            if (claim.getAsBoolean()) {
+                if (e.getCause() instanceof RejectedExecutionException) {
+                    EndpointResponses.overloaded(request, response);
+                } else {
+                    EndpointResponses.error(request, response, HttpServletResponse.SC_FORBIDDEN,
+                            "SAML authentication failed.");
+                }
+            }
+            return;
+        }
+        
+        String token = samlService.issueSessionToken(userInfo);
+        HttpSession session = token == null ? samlService.establishSession(request, userInfo) : null;
+        String target;
+        if (relayState != null && !relayState.trim().isEmpty()) {
+            if (session != null) {
+                session.setAttribute("saml.relayState", relayState);
+            }
+            target = relayState;
+        } else {
+            target = request.getContextPath() + samlService.getConfig().getProperty("app.login.success.url", "/welcome.jsp");
+        }
+        if (claim.getAsBoolean()) {
+            if (token != null) {
+                SessionTokens.getInstance().write(request, response, token);
+            }
+            response.sendRedirect(target);
+        }
+    }
+    
+    private static void rejectMissing(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        logger.warn("ACS accessed without SAMLResponse parameter");
+        EndpointResponses.error(request, response, HttpServletResponse.SC_BAD_REQUEST, "No SAML response received.");
+    }
+    
+    /**
+     * Gets the largest form body buffered for asynchronous processing. The
+     * SAMLResponse is checked against the tenant's own size limit once it is
+     * read; this only bounds the memory a request can take before then.
+     */
+    private static long maxBodyBytes(ConfigSnapshot config) {
+        long maxEncoded = config.getIntProperty("saml.precheck.maxResponseBytes", 1048576) * 7L / 5;
+        // Every character may arrive %-escaped, plus the RelayState and field names
+        return 3 * (maxEncoded + MAX_RELAY_STATE_BYTES) + 1024;
+    }
+    
+    private static boolean isFormBody(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        return contentType != null
+                && contentType.toLowerCase(Locale.ROOT).startsWith("application/x-www-form-urlencoded");
+    }
+    
+    private static Charset charset(HttpServletRequest request) {
+        String encoding = request.getCharacterEncoding();
+        try {
+            return encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8;
+        } catch (IllegalArgumentException e) {
+            // Unknown or malformed charset name; SAMLResponse and RelayState are ASCII in practice
+            return StandardCharsets.UTF_8;
+        }
+    }
+    
+    /**
+     * One asynchronous ACS request. Whichever of the worker and the timeout
+     * claims the response first writes it and completes the request. The
+     * admission is released by the worker, or at completion if the request
+     * never reached one.
+     */
+    private final class AsyncExchange implements AsyncListener {
+    
+        private final AsyncContext context;
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final AdmissionControl.Ticket ticket;
+        private final AtomicBoolean responded = new AtomicBoolean();
+        private final AtomicBoolean handedOff = new AtomicBoolean();
+        private volatile InputStream body;
+        
+        AsyncExchange(AsyncContext context, HttpServletRequest request, HttpServletResponse response,
+                      AdmissionControl.Ticket ticket) {
+            this.context = context;
+            this.request = request;
+            this.response = response;
+            this.ticket = ticket;
+        }
+        
+        boolean claim() {
+            return responded.compareAndSet(false, true);
+        }
+        
+        /**
+         * Hands the request to the verification pool
+         * 
+         * @param body the buffered form body, or null to use the request parameters
+         * @throws IOException if writing the overload response fails
+         */
+        void submit(InputStream body) throws IOException {
+            if (!handedOff.compareAndSet(false, true)) {
+                // Completed while the body was being read
+                return;
+            }
+            this.body = body;
+            try {
+                SAMLService.getVerificationPool().execute(this::run);
+            } catch (RejectedExecutionException e) {
+                ticket.close();
+                logger.warn("Verification pool full, rejecting ACS request");
+                if (claim()) {
+                    EndpointResponses.overloaded(request, response);
+                    context.complete();
+                }
+            }
+        }
+        
+        /**
+         * Answers the request with an error before it reached the pool
+         */
+        void reject(int status, String message) throws IOException {
+            if (claim()) {
+                EndpointResponses.error(request, response, status, message);
+                context.complete();
+            }
+        }
+        
+        void run() {
+            boolean[] owner = new boolean[1];
+            try {
+                consume(request, response, body, () -> owner[0] = claim());
+            } catch (Exception e) {
+                logger.error("Failed to complete ACS request", e);
+                if (!owner[0] && claim()) {
+                    owner[0] = true;
+                    response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+            } finally {
+                ticket.close();
+                if (owner[0]) {
+                    context.complete();
+                }
+            }
+        }
+        
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            if (claim()) {
+                logger.warn("ACS request timed out waiting for verification");
+                EndpointResponses.overloaded(request, response);
+                context.complete();
+            }
+        }
+        
+        @Override
+        public void onComplete(AsyncEvent event) {
+            if (handedOff.compareAndSet(false, true)) {
+                // Timed out or failed while the body was being read
+                ticket.close();
+            }
+        }
+        
+        @Override
+        public void onError(AsyncEvent event) {
+            logger.warn("ACS request failed", event.getThrowable());
+        }
+        
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // Not restarted
+        }
+    }
+    
+    /**
+     * Reads the body of an asynchronous request whenever the container has
+     * data for it, and submits the exchange once the body is complete.
+     */
+    private static final class BodyReader implements ReadListener {
+    
+        private final AsyncExchange exchange;
+        private final ServletInputStream input;
+        private final long maxBytes;
+        private final Body body;
+        private final byte[] chunk = new byte[8192];
+        
+        BodyReader(AsyncExchange exchange, ServletInputStream input, long maxBytes) {
+            this.exchange = exchange;
+            this.input = input;
+            this.maxBytes = maxBytes;
+            long length = exchange.request.getContentLengthLong();
+            this.body = new Body(length > 0 ? (int) length : 16384);
+        }
+        
+        @Override
+        public void onDataAvailable() throws IOException {
+            // Nothing more is read once the request has been answered
+            while (!exchange.responded.get() && input.isReady()) {
+                int read = input.read(chunk);
+                if (read < 0) {
+                    return;
+                }
+                if (body.size() + read > maxBytes) {
+                    logger.warn("ACS request body exceeds {} bytes", maxBytes);
+                    exchange.reject(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "SAML response too large.");
+                    return;
+                }
+                body.write(chunk, 0, read);
+            }
+        }
+        
+        @Override
+        public void onAllDataRead() throws IOException {
+            exchange.submit(body.toInputStream());
+        }
+        
+        @Override
+        public void onError(Throwable t) {
+            logger.warn("Failed to read ACS request body: {}", t.getMessage());
+            try {
+                exchange.reject(HttpServletResponse.SC_BAD_REQUEST, "No SAML response received.");
+            } catch (IOException e) {
+                logger.debug("Failed to write ACS error response", e);
+            }
+        }
+    }
+    
+    /**
+     * A body buffer read back without copying
+     */
+    private static final class Body extends ByteArrayOutputStream {
+    
+        Body(int size) {
+            super(size);
+        }
+        
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.sample.saml.servlet;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal Endpoint Responses
+ * 
+ * Error bodies for the SAML endpoints: a few hundred bytes of static HTML
+ * written straight to the output stream, with no page rendering and no
+ * exception details sent to the client (the cause is in the log).
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+final class EndpointResponses {
+    
+    private static final String CONTENT_TYPE = "text/html; charset=UTF-8";
+    
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private EndpointResponses() {
+        // Utility class - no instantiation needed
+    }
+    
+    /**
+     * Writes a short error page with a link back to the login page
+     * 
+     * @param request the HTTP request
+     * @param response the HTTP response
+     * @param status the HTTP status
+     * @param message plain-text message; must not contain client input
+     * @throws IOException if writing fails
+     */
+    static void error(HttpServletRequest request, HttpServletResponse response, int status, String message)
+            throws IOException {
+        String body = "<!DOCTYPE html><html><head><meta charset=\"UTF-8\"><title>SAML SSO Sample App</title>"
+                + "</head><body><p>" + message + "</p><p><a href=\"" + request.getContextPath()
+                + "/login.jsp\">Sign in again</a></p></body></html>";
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        response.setStatus(status);
+        response.setContentType(CONTENT_TYPE);
+        response.setHeader("Cache-Control", "no-store");
+        response.setContentLength(bytes.length);
+        response.getOutputStream().write(bytes);
+    }
+    
+    /**
+     * Answers 503 with Retry-After when the verification pool is full
+     * 
+     * @param request the HTTP request
+     * @param response the HTTP response
+     * @throws IOException if writing fails
+     */
+    static void overloaded(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        overloaded(request, response, 1);
+    }
+    
+    /**
+     * Answers 503 with Retry-After when a request is not admitted
+     * 
+     * @param request the HTTP request
+     * @param response the HTTP response
+     * @param retryAfterSeconds seconds until the client should retry
+     * @throws IOException if writing fails
+     */
+    static void overloaded(HttpServletRequest request, HttpServletResponse response, long retryAfterSeconds)
+            throws IOException {
+        response.setHeader("Retry-After", Long.toString(retryAfterSeconds));
+        error(request, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                "The service is busy, please try again in a moment.");
+    }
+}
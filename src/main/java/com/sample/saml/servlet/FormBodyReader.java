@@ -0,0 +1,201 @@
+package com.sample.saml.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Streaming application/x-www-form-urlencoded Reader
+ * 
+ * Reads form fields from a POST body one at a time without buffering it,
+ * unlike {@code getParameter}, which makes the container read the whole
+ * body and decode every value into a string first. The current value can
+ * be consumed as a stream of form-decoded bytes ({@code +} as space,
+ * {@code %XX} escapes); whatever part of it is left unread is skipped by
+ * the next call to {@link #nextField()}.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+final class FormBodyReader {
+    
+    private static final int MAX_NAME_LENGTH = 256;
+    
+    // Results of nextDecoded() besides a decoded byte value
+    private static final int END = -1;
+    private static final int AMPERSAND = -2;
+    private static final int EQUALS = -3;
+    
+    private final InputStream body;
+    private final Charset charset;
+    private final byte[] buffer = new byte[8192];
+    private int position;
+    private int limit;
+    
+    // Set once the '&' or end of body after the current value has been consumed
+    private boolean valueEnded = true;
+    private final ValueStream value = new ValueStream();
+    
+    /**
+     * Creates a reader over a request body
+     * 
+     * @param body the request body
+     * @param charset the charset of percent-encoded names and values
+     */
+    FormBodyReader(InputStream body, Charset charset) {
+        this.body = body;
+        this.charset = charset;
+    }
+    
+    /**
+     * Advances to the next field, skipping the unread rest of the current value
+     * 
+     * @return the decoded field name, or null at the end of the body
+     * @throws IOException if reading the body fails or a name is too long
+     */
+    String nextField() throws IOException {
+        while (!valueEnded) {
+            value.skip(Long.MAX_VALUE);
+        }
+        ByteArrayOutputStream name = new ByteArrayOutputStream(32);
+        while (true) {
+            int next = nextDecoded();
+            if (next == END) {
+                if (name.size() == 0) {
+                    return null;
+                }
+                // A name without '=' has an empty value
+                return name.toString(charset);
+            }
+            if (next == AMPERSAND) {
+                if (name.size() == 0) {
+                    continue;
+                }
+                return name.toString(charset);
+            }
+            if (next == EQUALS) {
+                valueEnded = false;
+                return name.toString(charset);
+            }
+            if (name.size() == MAX_NAME_LENGTH) {
+                throw new IOException("Form field name longer than " + MAX_NAME_LENGTH + " bytes");
+            }
+            name.write(next);
+        }
+    }
+    
+    /**
+     * Gets the value of the current field as a stream of decoded bytes
+     * 
+     * @return the value stream; empty once consumed
+     */
+    InputStream value() {
+        return value;
+    }
+    
+    /**
+     * Reads the value of the current field as a string
+     * 
+     * @param maxLength maximum decoded length in bytes
+     * @return the decoded value
+     * @throws IOException if reading fails or the value is longer than maxLength
+     */
+    String valueAsString(int maxLength) throws IOException {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(64);
+        int next;
+        while ((next = value.read()) >= 0) {
+            if (decoded.size() == maxLength) {
+                throw new IOException("Form field value longer than " + maxLength + " bytes");
+            }
+            decoded.write(next);
+        }
+        return decoded.toString(charset);
+    }
+    
+    /**
+     * Reads and form-decodes one byte of a name or value
+     */
+    private int nextDecoded() throws IOException {
+        int next = nextRaw();
+        switch (next) {
+            case -1:
+                return END;
+            case '&':
+                return AMPERSAND;
+            case '=':
+                return EQUALS;
+            case '+':
+                return ' ';
+            case '%':
+                int high = Character.digit(nextRaw(), 16);
+                int low = Character.digit(nextRaw(), 16);
+                if (high < 0 || low < 0) {
+                    throw new IOException("Malformed percent-encoding in form body");
+                }
+                return (high << 4) | low;
+            default:
+                return next;
+        }
+    }
+    
+    private int nextRaw() throws IOException {
+        if (position == limit) {
+            limit = body.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xff;
+    }
+    
+    /**
+     * The current value; '=' inside a value is literal
+     */
+    private final class ValueStream extends InputStream {
+        
+        @Override
+        public int read() throws IOException {
+            if (valueEnded) {
+                return -1;
+            }
+            int next = nextDecoded();
+            if (next == END || next == AMPERSAND) {
+                valueEnded = true;
+                return -1;
+            }
+            return next == EQUALS ? '=' : next;
+        }
+        
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int count = 0;
+            while (count < length) {
+                if (position == limit && count > 0) {
+                    // Return what is available rather than block for more input
+                    break;
+                }
+                // Copy plain bytes straight out of the buffer; fall back to read() for the rest
+                if (!valueEnded && position < limit) {
+                    int b = buffer[position] & 0xff;
+                    if (b != '&' && b != '+' && b != '%') {
+                        target[offset + count++] = (byte) b;
+                        position++;
+                        continue;
+                    }
+                }
+                int next = read();
+                if (next < 0) {
+                    break;
+                }
+                target[offset + count++] = (byte) next;
+            }
+            return count == 0 && valueEnded ? -1 : count;
+        }
+    }
+}
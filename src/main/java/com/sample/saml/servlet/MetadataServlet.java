@@ -0,0 +1,45 @@
+package com.sample.saml.servlet;
+
+import com.sample.saml.service.SAMLService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * SP Metadata Endpoint
+ * 
+ * Serves the SP metadata XML at /saml/metadata, the SP entity ID, so IdPs
+ * can import it from that URL. The body is precomputed by the shared
+ * {@link SAMLService}, with ETag/304 and gzip support.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public class MetadataServlet extends HttpServlet {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private static final Logger logger = LoggerFactory.getLogger(MetadataServlet.class);
+    
+    /**
+     * Writes the SP metadata
+     * 
+     * @param request the HTTP request
+     * @param response the HTTP response
+     * @throws IOException if writing the response fails
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        try {
+            SAMLService.getInstance(request).getSPMetadata().writeTo(request, response);
+        } catch (RuntimeException e) {
+            logger.error("Failed to serve SP metadata", e);
+            EndpointResponses.error(request, response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                    "Failed to generate metadata.");
+        }
+    }
+}
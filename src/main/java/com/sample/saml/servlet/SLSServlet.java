@@ -0,0 +1,127 @@
+package com.sample.saml.servlet;
+
+import com.sample.saml.service.AdmissionControl;
+import com.sample.saml.service.SAMLService;
+import com.sample.saml.service.SessionTokens;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+
+/**
+ * Single Logout Service Endpoint
+ * 
+ * Handles logout messages from the IdP at /saml/sls, over either the
+ * HTTP-Redirect or the HTTP-POST binding. A validated LogoutRequest ends
+ * the sessions it names, found through the
+ * {@link com.sample.saml.service.SessionRegistry}, and the browser's own
+ * session, then sends the LogoutResponse to the IdP; a LogoutResponse is
+ * validated by the shared {@link SAMLService} before returning to the
+ * configured logout page. Messages pass {@link AdmissionControl} first and
+ * get 503 with Retry-After when they are not admitted.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public class SLSServlet extends HttpServlet {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private static final Logger logger = LoggerFactory.getLogger(SLSServlet.class);
+    
+    /**
+     * Handles the HTTP-Redirect binding
+     * 
+     * @param request the HTTP request
+     * @param response the HTTP response
+     * @throws IOException if writing the response fails
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        handle(request, response);
+    }
+    
+    /**
+     * Handles the HTTP-POST binding
+     * 
+     * @param request the HTTP request
+     * @param response the HTTP response
+     * @throws IOException if writing the response fails
+     */
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        handle(request, response);
+    }
+    
+    private void handle(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        boolean logoutRequest = request.getParameter("SAMLRequest") != null;
+        if (!logoutRequest && request.getParameter("SAMLResponse") == null) {
+            logger.warn("SLS accessed without SAML parameters");
+            EndpointResponses.error(request, response, HttpServletResponse.SC_BAD_REQUEST,
+                    "Invalid logout request.");
+            return;
+        }
+        
+        try (AdmissionControl.Ticket ticket = SAMLService.getAdmissionControl().admit(request)) {
+            if (!ticket.isAdmitted()) {
+                // Counted by the admission control; a flood would otherwise flood the log
+                logger.debug("SLS request not admitted: {}", ticket.getRejection());
+                EndpointResponses.overloaded(request, response, ticket.getRetryAfterSeconds());
+            } else if (logoutRequest) {
+                processLogoutRequest(request, response);
+            } else {
+                processLogoutResponse(request, response);
+            }
+        }
+    }
+    
+    private void processLogoutRequest(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String logoutResponseUrl;
+        try {
+            // Ends the sessions the request names, wherever their browsers are
+            logoutResponseUrl = SAMLService.getInstance(request).processLogoutRequest(request);
+        } catch (RuntimeException e) {
+            // processLogoutRequest has logged the cause
+            EndpointResponses.error(request, response, HttpServletResponse.SC_BAD_REQUEST,
+                    "Logout request processing failed.");
+            return;
+        }
+        
+        HttpSession session = request.getSession(false);
+        if (session != null) {
+            logger.info("Invalidating session for logout request");
+            try {
+                SAMLService.getSessionStore().remove(session);
+                SAMLService.getSessionReplicator().remove(session);
+                session.invalidate();
+            } catch (IllegalStateException e) {
+                // Already ended as one of the sessions the request named
+            }
+        }
+        // A stateless session cookie can only be ended in the browser that carries it
+        SessionTokens tokens = SessionTokens.getInstance();
+        if (tokens.isEnabled()) {
+            tokens.clear(request, response);
+        }
+        logger.info("Redirecting logout response to IdP");
+        response.sendRedirect(logoutResponseUrl);
+    }
+    
+    private void processLogoutResponse(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        SAMLService samlService = SAMLService.getInstance(request);
+        try {
+            samlService.processLogoutResponse(request);
+        } catch (RuntimeException e) {
+            // processLogoutResponse has logged the cause
+            EndpointResponses.error(request, response, HttpServletResponse.SC_BAD_REQUEST,
+                    "Logout response processing failed.");
+            return;
+        }
+        response.sendRedirect(request.getContextPath()
+                + samlService.getConfig().getProperty("app.logout.success.url", "/index.jsp"));
+    }
+}
@@ -0,0 +1,123 @@
+package com.sample.saml.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration File Watcher
+ * 
+ * Watches the directory of a configuration file with a {@link WatchService}
+ * and runs a callback when the file is created or modified. Bursts of events
+ * (editors often write a file in several steps) are collapsed into one
+ * callback after a short quiet period. Runs on a single daemon thread.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class ConfigFileWatcher implements Closeable {
+    
+    private static final Logger logger = LoggerFactory.getLogger(ConfigFileWatcher.class);
+    
+    private final Path file;
+    private final Runnable onChange;
+    private final long debounceMillis;
+    private final WatchService watchService;
+    private final Thread thread;
+    
+    private ConfigFileWatcher(Path file, Runnable onChange, long debounceMillis) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.onChange = onChange;
+        this.debounceMillis = debounceMillis;
+        this.watchService = this.file.getFileSystem().newWatchService();
+        this.file.getParent().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(this::run, "saml-config-watcher");
+        this.thread.setDaemon(true);
+    }
+    
+    /**
+     * Starts watching a file
+     * 
+     * @param file the file to watch
+     * @param onChange callback run after the file changed
+     * @param debounceMillis quiet period before the callback runs
+     * @return the running watcher
+     * @throws IOException if the directory cannot be watched
+     */
+    public static ConfigFileWatcher start(Path file, Runnable onChange, long debounceMillis) throws IOException {
+        ConfigFileWatcher watcher = new ConfigFileWatcher(file, onChange, debounceMillis);
+        watcher.thread.start();
+        logger.info("Watching {} for configuration changes", watcher.file);
+        return watcher;
+    }
+    
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.take();
+                boolean changed = drain(key);
+                
+                // Collapse further events until the file has been quiet for the debounce period
+                while (changed) {
+                    WatchKey next = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    drain(next);
+                }
+                
+                if (changed) {
+                    try {
+                        onChange.run();
+                    } catch (RuntimeException e) {
+                        logger.error("Configuration change handler failed for {}", file, e);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Shutting down
+        }
+        logger.info("Stopped watching {}", file);
+    }
+    
+    /**
+     * Consumes the events of a key
+     * 
+     * @return true if any event concerned the watched file
+     */
+    private boolean drain(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || (context instanceof Path && file.getFileName().equals(context))) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+    
+    /**
+     * Stops the watcher thread
+     */
+    @Override
+    public void close() {
+        thread.interrupt();
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close configuration watch service", e);
+        }
+    }
+}
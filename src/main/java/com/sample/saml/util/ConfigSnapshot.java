@@ -0,0 +1,204 @@
+package com.sample.saml.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Immutable Configuration Snapshot
+ * 
+ * One consistent version of the SAML configuration. Boolean and integer
+ * values are parsed once when the snapshot is built, so typed lookups are
+ * a single map read. Objects derived from the configuration (such as the
+ * SAML toolkit settings) are memoized per snapshot via
+ * {@link #getDerived(Class, Function)}, which means they are swapped
+ * together with the configuration they were built from.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class ConfigSnapshot {
+    
+    private final long version;
+    private final String source;
+    private final Map<String, Value> values;
+    private final Map<Class<?>, Object> derived = new ConcurrentHashMap<>();
+    
+    /**
+     * Constructor
+     * 
+     * @param version monotonically increasing version number
+     * @param source description of where the properties were loaded from
+     * @param properties the loaded properties, copied
+     */
+    ConfigSnapshot(long version, String source, Properties properties) {
+        this.version = version;
+        this.source = source;
+        Map<String, Value> parsed = new HashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            parsed.put(key, new Value(properties.getProperty(key)));
+        }
+        this.values = Collections.unmodifiableMap(parsed);
+    }
+    
+    private ConfigSnapshot(long version, String source, Map<String, Value> values) {
+        this.version = version;
+        this.source = source;
+        this.values = Collections.unmodifiableMap(values);
+    }
+    
+    /**
+     * Returns a snapshot of the same version with some properties replaced,
+     * such as one tenant's IdP settings over the shared configuration.
+     * Values not overridden are shared with this snapshot; derived objects
+     * are not.
+     * 
+     * @param source description of the overrides
+     * @param overrides the properties to replace
+     * @return the new snapshot
+     */
+    public ConfigSnapshot withOverrides(String source, Map<String, String> overrides) {
+        Map<String, Value> merged = new HashMap<>(values);
+        overrides.forEach((key, value) -> merged.put(key, new Value(value)));
+        return new ConfigSnapshot(version, source, merged);
+    }
+    
+    /**
+     * Gets the snapshot version
+     * 
+     * @return the version, starting at 1
+     */
+    public long getVersion() {
+        return version;
+    }
+    
+    /**
+     * Gets where the snapshot was loaded from
+     * 
+     * @return the source description
+     */
+    public String getSource() {
+        return source;
+    }
+    
+    /**
+     * Retrieves a configuration property value
+     * 
+     * @param key the property key
+     * @return the property value, or null if not found
+     */
+    public String getProperty(String key) {
+        Value value = values.get(key);
+        return value != null ? value.raw : null;
+    }
+    
+    /**
+     * Retrieves a configuration property value with a default fallback
+     * 
+     * @param key the property key
+     * @param defaultValue the default value if property is not found
+     * @return the property value or the default value
+     */
+    public String getProperty(String key, String defaultValue) {
+        Value value = values.get(key);
+        return value != null ? value.raw : defaultValue;
+    }
+    
+    /**
+     * Retrieves a boolean configuration property
+     * 
+     * @param key the property key
+     * @param defaultValue the default value if property is not found
+     * @return the boolean value
+     */
+    public boolean getBooleanProperty(String key, boolean defaultValue) {
+        Value value = values.get(key);
+        return value != null ? value.bool : defaultValue;
+    }
+    
+    /**
+     * Retrieves an integer configuration property
+     * 
+     * @param key the property key
+     * @param defaultValue the default value if property is not found or invalid
+     * @return the integer value
+     */
+    public int getIntProperty(String key, int defaultValue) {
+        Value value = values.get(key);
+        return value != null && value.isInt ? value.integer : defaultValue;
+    }
+    
+    /**
+     * Lists the property keys that start with a prefix, such as a family of
+     * rules named by their key
+     * 
+     * @param prefix the key prefix
+     * @return the matching keys, sorted
+     */
+    public List<String> getPropertyNames(String prefix) {
+        List<String> names = new ArrayList<>();
+        for (String key : values.keySet()) {
+            if (key.startsWith(prefix)) {
+                names.add(key);
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+    
+    /**
+     * Checks whether a property holds a value that is not a valid integer
+     * 
+     * @param key the property key
+     * @return true if the property is present but not an integer
+     */
+    boolean isInvalidInt(String key) {
+        Value value = values.get(key);
+        return value != null && !value.isInt;
+    }
+    
+    /**
+     * Returns an object derived from this snapshot, building it on first use.
+     * Concurrent callers wait for a single build.
+     * 
+     * @param type the derived type, used as the memoization key
+     * @param factory builds the object from this snapshot
+     * @param <T> the derived type
+     * @return the derived object
+     */
+    public <T> T getDerived(Class<T> type, Function<ConfigSnapshot, ? extends T> factory) {
+        return type.cast(derived.computeIfAbsent(type, key -> factory.apply(this)));
+    }
+    
+    /**
+     * One property value with its typed forms parsed up front
+     */
+    private static final class Value {
+        
+        private final String raw;
+        private final boolean bool;
+        private final boolean isInt;
+        private final int integer;
+        
+        private Value(String raw) {
+            this.raw = raw;
+            String trimmed = raw.trim();
+            this.bool = Boolean.parseBoolean(trimmed);
+            int parsed = 0;
+            boolean valid;
+            try {
+                parsed = Integer.parseInt(trimmed);
+                valid = true;
+            } catch (NumberFormatException e) {
+                valid = false;
+            }
+            this.isInt = valid;
+            this.integer = parsed;
+        }
+    }
+}
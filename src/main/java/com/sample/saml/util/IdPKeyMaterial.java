@@ -0,0 +1,68 @@
+package com.sample.saml.util;
+
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+
+/**
+ * Decoded IdP Key Material
+ * 
+ * Immutable holder for an IdP signing certificate after it has been parsed
+ * once: the certificate itself, its public key and its SHA-256 fingerprint.
+ * Signatures are verified by the toolkit against {@link #getCertificate()}.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class IdPKeyMaterial {
+    
+    private final String fingerprint;
+    private final X509Certificate certificate;
+    private final PublicKey publicKey;
+    
+    /**
+     * Constructor
+     * 
+     * @param fingerprint hex SHA-256 fingerprint of the DER encoding
+     * @param certificate the parsed certificate
+     */
+    IdPKeyMaterial(String fingerprint, X509Certificate certificate) {
+        this.fingerprint = fingerprint;
+        this.certificate = certificate;
+        this.publicKey = certificate.getPublicKey();
+    }
+    
+    /**
+     * Gets the SHA-256 fingerprint of the certificate
+     * 
+     * @return lowercase hex fingerprint
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+    
+    /**
+     * Gets the parsed certificate
+     * 
+     * @return the X.509 certificate
+     */
+    public X509Certificate getCertificate() {
+        return certificate;
+    }
+    
+    /**
+     * Gets the certificate public key
+     * 
+     * @return the public key
+     */
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+    
+    @Override
+    public String toString() {
+        return "IdPKeyMaterial{" +
+                "fingerprint='" + fingerprint + '\'' +
+                ", subject='" + certificate.getSubjectX500Principal().getName() + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,164 @@
+package com.sample.saml.util;
+
+import com.sample.saml.metrics.SAMLMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * IdP Key Material Cache
+ * 
+ * Caches parsed IdP certificates keyed by their SHA-256 fingerprint so that
+ * the base64 value of {@code idp.x509cert} is turned into an
+ * {@link X509Certificate} and public key only once per configuration.
+ * The most recently resolved configuration string is remembered as well, so
+ * the common case is a single string comparison. The cache is cleared when
+ * the SAML configuration is reloaded, and when it holds {@link #MAX_ENTRIES}
+ * certificates: with many tenants, each bringing its own, it would otherwise
+ * keep every certificate ever built for.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class IdPKeyMaterialCache {
+    
+    private static final Logger logger = LoggerFactory.getLogger(IdPKeyMaterialCache.class);
+    
+    /**
+     * Certificates kept before the cache starts over
+     */
+    public static final int MAX_ENTRIES = 1024;
+    
+    private static final Map<String, IdPKeyMaterial> byFingerprint = new ConcurrentHashMap<>();
+    // Exported with the other counters, as keycache hit and miss
+    private static final LongAdder hits = SAMLMetrics.counter("keycache", "hit", "none");
+    private static final LongAdder misses = SAMLMetrics.counter("keycache", "miss", "none");
+    
+    // Last configured value and its material, published together
+    private static volatile LastResolved last;
+    
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private IdPKeyMaterialCache() {
+        // Utility class - no instantiation needed
+    }
+    
+    /**
+     * Resolves key material for a certificate as found in configuration
+     * (base64 DER, optionally wrapped in PEM armour and line breaks)
+     * 
+     * @param encodedCertificate the configured certificate value
+     * @return the decoded key material
+     * @throws IllegalArgumentException if the value is not a valid X.509 certificate
+     */
+    public static IdPKeyMaterial resolve(String encodedCertificate) {
+        LastResolved current = last;
+        if (current != null && current.encoded.equals(encodedCertificate)) {
+            hits.increment();
+            return current.material;
+        }
+        
+        byte[] der = decode(encodedCertificate);
+        String fingerprint = fingerprint(der);
+        IdPKeyMaterial material = byFingerprint.get(fingerprint);
+        if (material != null) {
+            hits.increment();
+        } else {
+            if (byFingerprint.size() >= MAX_ENTRIES) {
+                byFingerprint.clear();
+            }
+            material = byFingerprint.computeIfAbsent(fingerprint, key -> parse(key, der));
+        }
+        
+        last = new LastResolved(encodedCertificate, material);
+        return material;
+    }
+    
+    /**
+     * Clears all cached key material; called when the configuration changes
+     */
+    public static void invalidate() {
+        logger.info("Invalidating IdP key material cache ({} entries)", byFingerprint.size());
+        last = null;
+        byFingerprint.clear();
+    }
+    
+    /**
+     * Gets the number of lookups served without parsing
+     * 
+     * @return the hit count
+     */
+    public static long getHitCount() {
+        return hits.sum();
+    }
+    
+    /**
+     * Gets the number of lookups that had to parse a certificate
+     * 
+     * @return the miss count
+     */
+    public static long getMissCount() {
+        return misses.sum();
+    }
+    
+    private static IdPKeyMaterial parse(String fingerprint, byte[] der) {
+        misses.increment();
+        try {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            X509Certificate certificate = (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(der));
+            IdPKeyMaterial material = new IdPKeyMaterial(fingerprint, certificate);
+            logger.info("Parsed IdP certificate: {}", material);
+            return material;
+        } catch (CertificateException e) {
+            throw new IllegalArgumentException("Invalid IdP X.509 certificate", e);
+        }
+    }
+    
+    private static byte[] decode(String encodedCertificate) {
+        String base64 = encodedCertificate
+                .replace("-----BEGIN CERTIFICATE-----", "")
+                .replace("-----END CERTIFICATE-----", "");
+        try {
+            return Base64.getMimeDecoder().decode(base64);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("IdP certificate is not valid base64", e);
+        }
+    }
+    
+    private static String fingerprint(byte[] der) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(der);
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+    
+    /**
+     * Configured value and the material it resolved to
+     */
+    private static final class LastResolved {
+        private final String encoded;
+        private final IdPKeyMaterial material;
+        
+        private LastResolved(String encoded, IdPKeyMaterial material) {
+            this.encoded = encoded;
+            this.material = material;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.sample.saml.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * IdP Metadata Snapshot
+ * 
+ * The result of one successful load of the IdP's SAML metadata: its entity
+ * ID and signing keys, already decoded, in the order the metadata lists
+ * them. Immutable; {@link IdPMetadataProvider} publishes a new snapshot
+ * whenever the keys change.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class IdPMetadata {
+    
+    private final String entityId;
+    private final List<IdPKeyMaterial> signingKeys;
+    private final String location;
+    private final long version;
+    private final long loadedAt;
+    
+    /**
+     * Constructor
+     * 
+     * @param entityId the IdP entity ID
+     * @param signingKeys the signing keys, at least one
+     * @param location where the metadata was loaded from
+     * @param version sequence number of this snapshot, starting at 1
+     * @param loadedAt when the metadata was loaded, in epoch milliseconds
+     */
+    public IdPMetadata(String entityId, List<IdPKeyMaterial> signingKeys, String location, long version, long loadedAt) {
+        if (signingKeys.isEmpty()) {
+            throw new IllegalArgumentException("IdP metadata must contain at least one signing key");
+        }
+        this.entityId = entityId;
+        this.signingKeys = Collections.unmodifiableList(new ArrayList<>(signingKeys));
+        this.location = location;
+        this.version = version;
+        this.loadedAt = loadedAt;
+    }
+    
+    /**
+     * Gets the IdP entity ID
+     * 
+     * @return the entity ID
+     */
+    public String getEntityId() {
+        return entityId;
+    }
+    
+    /**
+     * Gets the signing keys in metadata order
+     * 
+     * @return the unmodifiable list of keys
+     */
+    public List<IdPKeyMaterial> getSigningKeys() {
+        return signingKeys;
+    }
+    
+    /**
+     * Gets where the metadata was loaded from
+     * 
+     * @return the file path or URL
+     */
+    public String getLocation() {
+        return location;
+    }
+    
+    /**
+     * Gets the sequence number of this snapshot
+     * 
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+    
+    /**
+     * Gets when the metadata was loaded
+     * 
+     * @return epoch milliseconds
+     */
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+    
+    /**
+     * Checks whether another snapshot has the same keys in the same order
+     * 
+     * @param other the other snapshot, may be null
+     * @return true if the fingerprints match
+     */
+    public boolean hasSameKeys(IdPMetadata other) {
+        if (other == null || other.signingKeys.size() != signingKeys.size()) {
+            return false;
+        }
+        for (int i = 0; i < signingKeys.size(); i++) {
+            if (!signingKeys.get(i).getFingerprint().equals(other.signingKeys.get(i).getFingerprint())) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    @Override
+    public String toString() {
+        return "IdPMetadata{entityId=" + entityId + ", keys=" + signingKeys.size() + ", version=" + version
+                + ", location=" + location + "}";
+    }
+}
@@ -0,0 +1,445 @@
+package com.sample.saml.util;
+
+import com.onelogin.saml2.util.Util;
+import com.sample.saml.metrics.SAMLMetrics;
+import org.joda.time.DateTimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * IdP Metadata Provider
+ * 
+ * Loads the IdP's signing keys from its SAML metadata, from a file or an
+ * https URL, and keeps them current so the IdP can roll its keys over
+ * without a configuration change. Plain http is refused, and the metadata
+ * (its root or the IdP's EntityDescriptor) must carry an enveloped
+ * signature by a pinned certificate, so neither the network nor whoever
+ * serves the file can substitute keys. The first load runs in {@link #start()};
+ * after that a daemon thread refreshes every {@code refreshSeconds}. A
+ * refresh only downloads and parses when the source changed (file
+ * modification time and size, HTTP ETag and Last-Modified), and only
+ * publishes a new {@link IdPMetadata} when the keys did: one volatile
+ * write, so readers never wait for a fetch and never see a half-built
+ * snapshot. Metadata that cannot be fetched, does not parse, is not signed
+ * by the pinned certificate, has expired ({@code validUntil}) or lists no
+ * signing key is logged and the previous
+ * snapshot stays in use.
+ * 
+ * Loads, unchanged refreshes and failures are counted in
+ * {@link SAMLMetrics} under operation "metadata"; {@link #registerMetrics()}
+ * exports the number of keys and the age of the snapshot.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class IdPMetadataProvider implements Closeable {
+    
+    private static final Logger logger = LoggerFactory.getLogger(IdPMetadataProvider.class);
+    
+    private static final LongAdder LOADED = SAMLMetrics.counter("metadata", "loaded", "none");
+    private static final LongAdder UNCHANGED = SAMLMetrics.counter("metadata", "unchanged", "none");
+    
+    private static final String METADATA_NS = "urn:oasis:names:tc:SAML:2.0:metadata";
+    private static final String DSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+    private static final String SAML2_PROTOCOL = "urn:oasis:names:tc:SAML:2.0:protocol";
+    
+    // Aggregates of many entities can be large, but not unbounded
+    private static final int MAX_METADATA_BYTES = 32 * 1024 * 1024;
+    
+    private final String location;
+    private final String entityId;
+    private final X509Certificate signingCertificate;
+    private final long refreshMillis;
+    private final int timeoutMillis;
+    private final List<Consumer<IdPMetadata>> listeners = new CopyOnWriteArrayList<>();
+    
+    private volatile IdPMetadata current;
+    private ScheduledExecutorService scheduler;
+    
+    // What the last accepted source looked like; only touched under the refresh lock
+    private long fileModified = -1;
+    private long fileSize = -1;
+    private String etag;
+    private String lastModified;
+    private long version;
+    
+    /**
+     * Constructor
+     * 
+     * @param location file path, file: URL or https URL of the metadata; null or blank disables the provider
+     * @param entityId entity ID of the IdP to take from the metadata, or null for the only one in it
+     * @param refreshSeconds interval between refreshes
+     * @param timeoutMillis connect and read timeout of URL sources
+     * @param signingCertificate base64 certificate that must have signed the metadata; required with a location
+     * @throws IllegalArgumentException if the location is not a file or https URL, or the certificate is missing or invalid
+     */
+    public IdPMetadataProvider(String location, String entityId, int refreshSeconds, int timeoutMillis,
+            String signingCertificate) {
+        if (refreshSeconds < 1 || timeoutMillis < 1) {
+            throw new IllegalArgumentException("Invalid IdP metadata refresh interval or timeout");
+        }
+        this.location = location != null && !location.trim().isEmpty() ? location.trim() : null;
+        this.entityId = entityId != null && !entityId.trim().isEmpty() ? entityId.trim() : null;
+        if (this.location == null) {
+            this.signingCertificate = null;
+        } else if (!isUrl(this.location) && this.location.contains("://") && !this.location.startsWith("file:")) {
+            throw new IllegalArgumentException("IdP metadata must be a file or an https URL: " + this.location);
+        } else if (signingCertificate == null || signingCertificate.trim().isEmpty()) {
+            throw new IllegalArgumentException("IdP metadata needs a certificate to verify its signature");
+        } else {
+            this.signingCertificate = IdPKeyMaterialCache.resolve(signingCertificate.trim()).getCertificate();
+        }
+        this.refreshMillis = TimeUnit.SECONDS.toMillis(refreshSeconds);
+        this.timeoutMillis = timeoutMillis;
+    }
+    
+    /**
+     * Loads the metadata on the calling thread, then refreshes it in the background
+     */
+    public synchronized void start() {
+        if (location == null || scheduler != null) {
+            return;
+        }
+        refresh();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "saml-idp-metadata");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+        logger.info("Refreshing IdP metadata from {} every {} s", location, refreshMillis / 1000);
+    }
+    
+    /**
+     * Gets the current metadata; a single volatile read
+     * 
+     * @return the snapshot, or null if disabled or nothing has loaded yet
+     */
+    public IdPMetadata current() {
+        return current;
+    }
+    
+    /**
+     * Checks whether a metadata location is configured
+     * 
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return location != null;
+    }
+    
+    /**
+     * Fetches the metadata if its source changed and publishes it if its keys did.
+     * Never throws: failures are logged and counted, and the current snapshot is kept.
+     * 
+     * @return true if a new snapshot was published
+     */
+    public synchronized boolean refresh() {
+        if (location == null) {
+            return false;
+        }
+        try {
+            Source source = isUrl(location) ? fetchUrl() : readFile();
+            if (source == null) {
+                UNCHANGED.increment();
+                return false;
+            }
+            IdPMetadata loaded = parse(source.content);
+            fileModified = source.fileModified;
+            fileSize = source.fileSize;
+            etag = source.etag;
+            lastModified = source.lastModified;
+            if (loaded.hasSameKeys(current)) {
+                UNCHANGED.increment();
+                logger.debug("IdP metadata from {} changed, signing keys did not", location);
+                return false;
+            }
+            
+            version = loaded.getVersion();
+            current = loaded;
+            LOADED.increment();
+            logger.info("Loaded {}", loaded);
+            for (Consumer<IdPMetadata> listener : listeners) {
+                try {
+                    listener.accept(loaded);
+                } catch (RuntimeException e) {
+                    logger.error("IdP metadata listener failed", e);
+                }
+            }
+            return true;
+        
+        } catch (Exception e) {
+            SAMLMetrics.failure("metadata", e instanceof IOException ? "fetch" : "invalid");
+            logger.warn("Failed to refresh IdP metadata from {}, keeping {}: {}", location,
+                    current != null ? "version " + current.getVersion() : "no keys", e.toString());
+            return false;
+        }
+    }
+    
+    /**
+     * Registers a callback run on the refresh thread after a new snapshot is published
+     * 
+     * @param listener the callback
+     */
+    public void addListener(Consumer<IdPMetadata> listener) {
+        listeners.add(listener);
+    }
+    
+    /**
+     * Removes a callback
+     * 
+     * @param listener the callback
+     */
+    public void removeListener(Consumer<IdPMetadata> listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Exports the number of signing keys and the age of the snapshot as gauges of component "metadata"
+     */
+    public void registerMetrics() {
+        SAMLMetrics.gauge("metadata", "signing_keys", () -> {
+            IdPMetadata metadata = current;
+            return metadata != null ? metadata.getSigningKeys().size() : 0;
+        });
+        SAMLMetrics.gauge("metadata", "age_seconds", () -> {
+            IdPMetadata metadata = current;
+            return metadata != null ? (System.currentTimeMillis() - metadata.getLoadedAt()) / 1000 : -1;
+        });
+    }
+    
+    /**
+     * Stops the background refresh
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+    
+    private Source readFile() throws IOException {
+        Path path = location.startsWith("file:") ? Paths.get(URI.create(location)) : Paths.get(location);
+        long modified = Files.getLastModifiedTime(path).toMillis();
+        long size = Files.size(path);
+        if (modified == fileModified && size == fileSize) {
+            return null;
+        }
+        if (size > MAX_METADATA_BYTES) {
+            throw new IOException("IdP metadata larger than " + MAX_METADATA_BYTES + " bytes");
+        }
+        Source source = new Source(Files.readAllBytes(path));
+        source.fileModified = modified;
+        source.fileSize = size;
+        return source;
+    }
+    
+    private Source fetchUrl() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) URI.create(location).toURL().openConnection();
+        try {
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setRequestProperty("Accept", "application/samlmetadata+xml, application/xml, text/xml");
+            if (etag != null) {
+                connection.setRequestProperty("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return null;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + status + " from IdP metadata URL");
+            }
+            if (connection.getContentLengthLong() > MAX_METADATA_BYTES) {
+                throw new IOException("IdP metadata larger than " + MAX_METADATA_BYTES + " bytes");
+            }
+            Source source;
+            try (InputStream in = connection.getInputStream()) {
+                source = new Source(readLimited(in));
+            }
+            source.etag = connection.getHeaderField("ETag");
+            source.lastModified = connection.getHeaderField("Last-Modified");
+            return source;
+        } finally {
+            connection.disconnect();
+        }
+    }
+    
+    private static byte[] readLimited(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(65536);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (out.size() + read > MAX_METADATA_BYTES) {
+                throw new IOException("IdP metadata larger than " + MAX_METADATA_BYTES + " bytes");
+            }
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * Picks the IdP's EntityDescriptor and decodes the signing keys of its SAML 2.0 IDPSSODescriptor
+     */
+    private IdPMetadata parse(byte[] xml) throws Exception {
+        Document document = XmlParserPool.parse(xml);
+        Element root = document.getDocumentElement();
+        if (!METADATA_NS.equals(root.getNamespaceURI())) {
+            throw new IllegalArgumentException("Not SAML metadata: " + root.getLocalName());
+        }
+        checkValidUntil(root);
+        
+        Element entity = null;
+        NodeList entities = document.getElementsByTagNameNS(METADATA_NS, "EntityDescriptor");
+        for (int i = 0; i < entities.getLength(); i++) {
+            Element candidate = (Element) entities.item(i);
+            if (entityId == null ? entities.getLength() == 1 : entityId.equals(candidate.getAttribute("entityID"))) {
+                entity = candidate;
+                break;
+            }
+        }
+        if (entity == null) {
+            throw new IllegalArgumentException(entityId != null ? "No EntityDescriptor for " + entityId
+                    : "Metadata has " + entities.getLength() + " entities and idp.entityId is not set");
+        }
+        if (!isSigned(root) && (entity == root || !isSigned(entity))) {
+            throw new IllegalArgumentException("IdP metadata is not signed by the pinned certificate");
+        }
+        checkValidUntil(entity);
+        
+        // Keyed by fingerprint: the same certificate may be listed for signing and again without a use
+        Map<String, IdPKeyMaterial> keys = new LinkedHashMap<>();
+        for (Element descriptor : children(entity, "IDPSSODescriptor")) {
+            if (!(" " + descriptor.getAttribute("protocolSupportEnumeration") + " ").contains(" " + SAML2_PROTOCOL + " ")) {
+                continue;
+            }
+            checkValidUntil(descriptor);
+            for (Element keyDescriptor : children(descriptor, "KeyDescriptor")) {
+                String use = keyDescriptor.getAttribute("use");
+                if (!use.isEmpty() && !"signing".equals(use)) {
+                    continue;
+                }
+                NodeList certificates = keyDescriptor.getElementsByTagNameNS(DSIG_NS, "X509Certificate");
+                for (int i = 0; i < certificates.getLength(); i++) {
+                    IdPKeyMaterial key = IdPKeyMaterialCache.resolve(certificates.item(i).getTextContent().trim());
+                    keys.putIfAbsent(key.getFingerprint(), key);
+                }
+            }
+        }
+        return new IdPMetadata(entity.getAttribute("entityID"), new ArrayList<>(keys.values()), location,
+                version + 1, System.currentTimeMillis());
+    }
+    
+    /**
+     * Checks that the element carries an enveloped signature over itself by the pinned certificate.
+     * The reference must name the element, so a signature lifted from elsewhere in the document
+     * does not count.
+     */
+    private boolean isSigned(Element element) {
+        Element signature = null;
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && DSIG_NS.equals(child.getNamespaceURI())
+                    && "Signature".equals(child.getLocalName())) {
+                signature = (Element) child;
+                break;
+            }
+        }
+        if (signature == null) {
+            return false;
+        }
+        NodeList references = signature.getElementsByTagNameNS(DSIG_NS, "Reference");
+        if (references.getLength() != 1) {
+            return false;
+        }
+        String uri = ((Element) references.item(0)).getAttribute("URI");
+        String id = element.getAttribute("ID");
+        if (uri.isEmpty() ? element != element.getOwnerDocument().getDocumentElement()
+                : id.isEmpty() || !uri.equals("#" + id)) {
+            return false;
+        }
+        if (!id.isEmpty()) {
+            element.setIdAttribute("ID", true);
+        }
+        return Boolean.TRUE.equals(Util.validateSignNode(signature, signingCertificate, null, null));
+    }
+    
+    private static List<Element> children(Element parent, String localName) {
+        List<Element> children = new ArrayList<>();
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && METADATA_NS.equals(child.getNamespaceURI())
+                    && localName.equals(child.getLocalName())) {
+                children.add((Element) child);
+            }
+        }
+        return children;
+    }
+    
+    /**
+     * Rejects an element whose validUntil has passed, by the toolkit's clock
+     */
+    private static void checkValidUntil(Element element) {
+        String validUntil = element.getAttribute("validUntil");
+        if (validUntil.isEmpty()) {
+            return;
+        }
+        long expires;
+        try {
+            expires = Instant.parse(validUntil).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid validUntil: " + validUntil);
+        }
+        if (expires <= DateTimeUtils.currentTimeMillis()) {
+            throw new IllegalArgumentException(element.getLocalName() + " expired at " + validUntil);
+        }
+    }
+    
+    private static boolean isUrl(String location) {
+        return location.startsWith("https://");
+    }
+    
+    /**
+     * Fetched metadata and what identifies this version of its source
+     */
+    private static final class Source {
+        private final byte[] content;
+        private long fileModified = -1;
+        private long fileSize = -1;
+        private String etag;
+        private String lastModified;
+        
+        private Source(byte[] content) {
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.sample.saml.util;
+
+import org.slf4j.MDC;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-Request Debug Tracing
+ * 
+ * Marks the current thread as serving a traced request. While a request
+ * is traced, {@link RequestTraceTurboFilter} lets every log statement on
+ * that thread through regardless of the configured level, so one request
+ * can be followed in full detail while everything else logs at the
+ * production level.
+ * 
+ * When no request is traced anywhere the check is a single volatile read
+ * of a shared counter; the thread-local is only consulted while at least
+ * one traced request is in flight.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class RequestTrace {
+    
+    /**
+     * MDC key holding the trace id of the current traced request
+     */
+    public static final String MDC_KEY = "saml.trace";
+    
+    private static final AtomicInteger activeCount = new AtomicInteger();
+    private static final ThreadLocal<String> current = new ThreadLocal<>();
+    
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private RequestTrace() {
+        // Utility class - no instantiation needed
+    }
+    
+    /**
+     * Starts tracing the request served by the current thread.
+     * Must be paired with {@link #end()} in a finally block.
+     * 
+     * @param traceId id written to the MDC so the request's lines can be found
+     */
+    public static void begin(String traceId) {
+        if (current.get() != null) {
+            return;
+        }
+        current.set(traceId);
+        MDC.put(MDC_KEY, traceId);
+        activeCount.incrementAndGet();
+    }
+    
+    /**
+     * Stops tracing on the current thread
+     */
+    public static void end() {
+        if (current.get() == null) {
+            return;
+        }
+        current.remove();
+        MDC.remove(MDC_KEY);
+        activeCount.decrementAndGet();
+    }
+    
+    /**
+     * Checks whether the current thread serves a traced request
+     * 
+     * @return true if detailed logging is enabled for this thread
+     */
+    public static boolean isActive() {
+        return activeCount.get() != 0 && current.get() != null;
+    }
+    
+    /**
+     * Gets the trace id of the current thread, so work handed to another
+     * thread can be traced as well
+     * 
+     * @return the trace id, or null if the current request is not traced
+     */
+    public static String getTraceId() {
+        return activeCount.get() != 0 ? current.get() : null;
+    }
+    
+    /**
+     * Gets the number of traced requests currently in flight
+     * 
+     * @return the number of traced requests
+     */
+    public static int getActiveCount() {
+        return activeCount.get();
+    }
+}
@@ -0,0 +1,28 @@
+package com.sample.saml.util;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.turbo.TurboFilter;
+import ch.qos.logback.core.spi.FilterReply;
+import org.slf4j.Marker;
+
+/**
+ * Logback Turbo Filter for Traced Requests
+ * 
+ * Accepts every logging call, at any level, made by a thread serving a
+ * request marked with {@link RequestTrace}. Turbo filters run before the
+ * level check and before any event is created, so for untraced requests
+ * this adds one volatile read and the normal level check decides.
+ * 
+ * Registered in logback.xml with {@code <turboFilter class="..."/>}.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public class RequestTraceTurboFilter extends TurboFilter {
+    
+    @Override
+    public FilterReply decide(Marker marker, Logger logger, Level level, String format, Object[] params, Throwable t) {
+        return RequestTrace.isActive() ? FilterReply.ACCEPT : FilterReply.NEUTRAL;
+    }
+}
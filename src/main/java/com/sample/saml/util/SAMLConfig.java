@@ -5,7 +5,16 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * SAML Configuration Manager
@@ -14,6 +23,12 @@ import java.util.Properties;
  * from the saml.properties file. It provides centralized access to all
  * SAML-related configuration settings used throughout the application.
  * 
+ * The configuration is held as an immutable {@link ConfigSnapshot}
+ * published through a single atomic reference: reads are wait-free and
+ * a reload swaps the whole snapshot at once, so code that works from one
+ * snapshot always sees one consistent version. The file can be watched
+ * for changes and reloaded automatically.
+ * 
  * @author SAML SSO Sample App
  * @version 1.0.0
  */
@@ -22,8 +37,17 @@ public class SAMLConfig {
     private static final Logger logger = LoggerFactory.getLogger(SAMLConfig.class);
     private static final String CONFIG_FILE = "saml.properties";
     
-    private static Properties properties;
-    private static boolean initialized = false;
+    /**
+     * System property pointing at an external configuration file used instead of the classpath copy
+     */
+    public static final String CONFIG_FILE_PROPERTY = "saml.config.file";
+    
+    private static final AtomicReference<ConfigSnapshot> current = new AtomicReference<>();
+    
+    // Called with a new snapshot before it is published; throwing aborts the reload
+    private static final List<Consumer<ConfigSnapshot>> reloadListeners = new CopyOnWriteArrayList<>();
+    
+    private static ConfigFileWatcher watcher;
     
     /**
      * Private constructor to prevent instantiation
@@ -39,41 +63,72 @@ public class SAMLConfig {
      * 
      * @throws RuntimeException if configuration cannot be loaded
      */
-    public static synchronized void initialize() {
-        if (initialized) {
+    public static void initialize() {
+        if (current.get() != null) {
             logger.debug("SAML configuration already initialized");
             return;
         }
         
-        logger.info("Initializing SAML configuration from {}", CONFIG_FILE);
+        ConfigSnapshot snapshot = load(1);
+        if (current.compareAndSet(null, snapshot)) {
+            logger.info("SAML configuration initialized successfully");
+            logConfigurationSummary(snapshot);
+        }
+    }
+    
+    /**
+     * Gets the current configuration snapshot, initializing on first use.
+     * Code that reads several related values should read them all from one snapshot.
+     * 
+     * @return the current snapshot
+     */
+    public static ConfigSnapshot getSnapshot() {
+        ConfigSnapshot snapshot = current.get();
+        if (snapshot == null) {
+            logger.warn("SAML configuration not initialized, attempting to initialize now");
+            initialize();
+            snapshot = current.get();
+        }
+        return snapshot;
+    }
+    
+    /**
+     * Loads and validates a new snapshot from the configured source
+     * 
+     * @param version the version to assign
+     * @return the loaded snapshot
+     * @throws RuntimeException if configuration cannot be loaded or is invalid
+     */
+    private static ConfigSnapshot load(long version) {
+        Path externalFile = getExternalConfigFile();
+        String source = externalFile != null ? externalFile.toString() : "classpath:" + CONFIG_FILE;
+        logger.info("Loading SAML configuration from {}", source);
         
-        try (InputStream inputStream = SAMLConfig.class.getClassLoader().getResourceAsStream(CONFIG_FILE)) {
+        Properties properties = new Properties();
+        try (InputStream inputStream = externalFile != null
+                ? Files.newInputStream(externalFile)
+                : SAMLConfig.class.getClassLoader().getResourceAsStream(CONFIG_FILE)) {
             if (inputStream == null) {
                 throw new RuntimeException("SAML configuration file not found: " + CONFIG_FILE);
             }
-            
-            properties = new Properties();
             properties.load(inputStream);
-            
-            // Validate required properties
-            validateConfiguration();
-            
-            initialized = true;
-            logger.info("SAML configuration initialized successfully");
-            logConfigurationSummary();
-            
         } catch (IOException e) {
-            logger.error("Failed to load SAML configuration from {}", CONFIG_FILE, e);
+            logger.error("Failed to load SAML configuration from {}", source, e);
             throw new RuntimeException("Failed to load SAML configuration", e);
         }
+        
+        // Validate required properties
+        validateConfiguration(properties);
+        return new ConfigSnapshot(version, source, properties);
     }
     
     /**
      * Validates that all required SAML configuration properties are present
      * 
+     * @param properties the properties to validate
      * @throws RuntimeException if required properties are missing
      */
-    private static void validateConfiguration() {
+    private static void validateConfiguration(Properties properties) {
         logger.debug("Validating SAML configuration properties");
         
         String[] requiredProperties = {
@@ -91,40 +146,37 @@ public class SAMLConfig {
                 logger.error("Required SAML configuration property is missing: {}", property);
                 throw new RuntimeException("Missing required SAML configuration: " + property);
             }
-            logger.debug("Validated property: {} = {}", property, maskSensitiveValue(value));
+            if (logger.isDebugEnabled()) {
+                logger.debug("Validated property: {} = {}", property, maskSensitiveValue(value));
+            }
         }
     }
     
     /**
      * Logs a summary of the loaded configuration (excluding sensitive data)
+     * 
+     * @param snapshot the snapshot to describe
      */
-    private static void logConfigurationSummary() {
-        logger.info("SAML Configuration Summary:");
-        logger.info("  SP Entity ID: {}", getProperty("sp.entityId"));
-        logger.info("  SP ACS URL: {}", getProperty("sp.assertionConsumerService.url"));
-        logger.info("  SP SLO URL: {}", getProperty("sp.singleLogoutService.url"));
-        logger.info("  IdP Entity ID: {}", getProperty("idp.entityId"));
-        logger.info("  IdP SSO URL: {}", getProperty("idp.singleSignOnService.url"));
-        logger.info("  Protocol Binding: {}", getProperty("saml.protocol.binding"));
-        logger.info("  NameID Format: {}", getProperty("saml.nameIdFormat"));
-        logger.info("  Debug Mode: {}", getProperty("app.debug"));
+    private static void logConfigurationSummary(ConfigSnapshot snapshot) {
+        logger.info("SAML Configuration Summary (version {}):", snapshot.getVersion());
+        logger.info("  SP Entity ID: {}", snapshot.getProperty("sp.entityId"));
+        logger.info("  SP ACS URL: {}", snapshot.getProperty("sp.assertionConsumerService.url"));
+        logger.info("  SP SLO URL: {}", snapshot.getProperty("sp.singleLogoutService.url"));
+        logger.info("  IdP Entity ID: {}", snapshot.getProperty("idp.entityId"));
+        logger.info("  IdP SSO URL: {}", snapshot.getProperty("idp.singleSignOnService.url"));
+        logger.info("  Protocol Binding: {}", snapshot.getProperty("saml.protocol.binding"));
+        logger.info("  NameID Format: {}", snapshot.getProperty("saml.nameIdFormat"));
+        logger.info("  Debug Mode: {}", snapshot.getProperty("app.debug"));
     }
     
     /**
-     * Retrieves a configuration property value
+     * Retrieves a configuration property value from the current snapshot
      * 
      * @param key the property key
      * @return the property value, or null if not found
      */
     public static String getProperty(String key) {
-        if (!initialized) {
-            logger.warn("SAML configuration not initialized, attempting to initialize now");
-            initialize();
-        }
-        
-        String value = properties.getProperty(key);
-        logger.debug("Retrieved property: {} = {}", key, maskSensitiveValue(value));
-        return value;
+        return getSnapshot().getProperty(key);
     }
     
     /**
@@ -135,8 +187,7 @@ public class SAMLConfig {
      * @return the property value or the default value
      */
     public static String getProperty(String key, String defaultValue) {
-        String value = getProperty(key);
-        return value != null ? value : defaultValue;
+        return getSnapshot().getProperty(key, defaultValue);
     }
     
     /**
@@ -147,11 +198,7 @@ public class SAMLConfig {
      * @return the boolean value
      */
     public static boolean getBooleanProperty(String key, boolean defaultValue) {
-        String value = getProperty(key);
-        if (value == null) {
-            return defaultValue;
-        }
-        return Boolean.parseBoolean(value);
+        return getSnapshot().getBooleanProperty(key, defaultValue);
     }
     
     /**
@@ -162,16 +209,12 @@ public class SAMLConfig {
      * @return the integer value
      */
     public static int getIntProperty(String key, int defaultValue) {
-        String value = getProperty(key);
-        if (value == null) {
-            return defaultValue;
-        }
-        try {
-            return Integer.parseInt(value);
-        } catch (NumberFormatException e) {
-            logger.warn("Invalid integer value for property {}: {}, using default: {}", key, value, defaultValue);
-            return defaultValue;
+        ConfigSnapshot snapshot = getSnapshot();
+        if (snapshot.isInvalidInt(key)) {
+            logger.warn("Invalid integer value for property {}: {}, using default: {}",
+                    key, snapshot.getProperty(key), defaultValue);
         }
+        return snapshot.getIntProperty(key, defaultValue);
     }
     
     /**
@@ -199,16 +242,120 @@ public class SAMLConfig {
      * @return true if initialized, false otherwise
      */
     public static boolean isInitialized() {
-        return initialized;
+        return current.get() != null;
     }
     
     /**
-     * Reloads the configuration from the properties file
-     * Useful for runtime configuration updates
+     * Reloads the configuration from the properties file.
+     * The new snapshot is built and validated, reload listeners build their
+     * dependent objects from it, and only then is it published with a single
+     * compare-and-set. If anything fails the current snapshot stays in place.
+     * 
+     * @return true if a new snapshot was published
      */
-    public static synchronized void reload() {
+    public static boolean reload() {
         logger.info("Reloading SAML configuration");
-        initialized = false;
-        initialize();
+        
+        ConfigSnapshot base = current.get();
+        ConfigSnapshot candidate;
+        try {
+            candidate = load(base != null ? base.getVersion() + 1 : 1);
+            for (Consumer<ConfigSnapshot> listener : reloadListeners) {
+                listener.accept(candidate);
+            }
+        } catch (RuntimeException e) {
+            logger.error("SAML configuration reload failed, keeping version {}",
+                    base != null ? base.getVersion() : 0, e);
+            return false;
+        }
+        
+        if (!current.compareAndSet(base, candidate)) {
+            logger.warn("Concurrent SAML configuration reload detected, discarding version {}", candidate.getVersion());
+            return false;
+        }
+        logConfigurationSummary(candidate);
+        return true;
+    }
+    
+    /**
+     * Registers a callback that receives every new snapshot before it is
+     * published, e.g. to prebuild objects derived from it. Throwing an
+     * exception aborts the reload.
+     * 
+     * @param listener the callback to run
+     */
+    public static void addReloadListener(Consumer<ConfigSnapshot> listener) {
+        reloadListeners.add(listener);
+    }
+    
+    /**
+     * Removes a previously registered reload callback
+     * 
+     * @param listener the callback to remove
+     */
+    public static void removeReloadListener(Consumer<ConfigSnapshot> listener) {
+        reloadListeners.remove(listener);
+    }
+    
+    /**
+     * Starts reloading automatically when the configuration file changes.
+     * Only possible when the configuration is a plain file (external file
+     * or an unpacked classpath resource).
+     * 
+     * @return true if watching started
+     */
+    public static synchronized boolean startWatching() {
+        if (watcher != null) {
+            return true;
+        }
+        Path file = getConfigFile();
+        if (file == null) {
+            logger.info("SAML configuration is not a plain file, hot reload disabled");
+            return false;
+        }
+        try {
+            watcher = ConfigFileWatcher.start(file, SAMLConfig::reload,
+                    getSnapshot().getIntProperty("app.config.watchDebounceMillis", 500));
+            return true;
+        } catch (IOException e) {
+            logger.warn("Cannot watch SAML configuration file {}, hot reload disabled", file, e);
+            return false;
+        }
+    }
+    
+    /**
+     * Stops automatic reloading
+     */
+    public static synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+    
+    /**
+     * Resolves the configuration file on disk, if there is one
+     * 
+     * @return the file path, or null if the configuration is not a plain file
+     */
+    public static Path getConfigFile() {
+        Path externalFile = getExternalConfigFile();
+        if (externalFile != null) {
+            return externalFile;
+        }
+        URL resource = SAMLConfig.class.getClassLoader().getResource(CONFIG_FILE);
+        if (resource == null || !"file".equals(resource.getProtocol())) {
+            return null;
+        }
+        try {
+            return Paths.get(resource.toURI());
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+    
+    private static Path getExternalConfigFile() {
+        String file = System.getProperty(CONFIG_FILE_PROPERTY);
+        return file != null && !file.trim().isEmpty() ? Paths.get(file.trim()) : null;
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,170 @@
+package com.sample.saml.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary Wire Format
+ * 
+ * Strings and counts as written by the session formats: the serialized
+ * {@code SAMLUserInfo}, session tokens, the session store and replication
+ * batches. A string is an int byte length and its UTF-8 bytes (-1 for
+ * null), a count is an int. Unlike {@link DataOutput#writeUTF} and a short
+ * count, neither fails nor wraps on large attribute values or lists; values
+ * past {@link #MAX_LENGTH} are refused on both sides, so a corrupt length
+ * cannot make the reader allocate gigabytes.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+public final class WireFormat {
+    
+    /**
+     * Largest string, in UTF-8 bytes, and largest count written or read
+     */
+    public static final int MAX_LENGTH = 16 * 1024 * 1024;
+    
+    private WireFormat() {
+        // Static helpers only
+    }
+    
+    /**
+     * Writes a string that is not null
+     * 
+     * @param out the output
+     * @param value the string
+     * @throws IOException if writing fails or the string is longer than {@link #MAX_LENGTH} bytes
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeCount(out, bytes.length);
+        out.write(bytes);
+    }
+    
+    /**
+     * Reads a string written by {@link #writeString}
+     * 
+     * @param in the input
+     * @return the string
+     * @throws IOException if reading fails or the string is null or too long
+     */
+    public static String readString(DataInput in) throws IOException {
+        String value = readNullable(in);
+        if (value == null) {
+            throw new StreamCorruptedException("Unexpected null string");
+        }
+        return value;
+    }
+    
+    /**
+     * Writes a string that may be null
+     * 
+     * @param out the output
+     * @param value the string, or null
+     * @throws IOException if writing fails or the string is longer than {@link #MAX_LENGTH} bytes
+     */
+    public static void writeNullable(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            writeString(out, value);
+        }
+    }
+    
+    /**
+     * Reads a string written by {@link #writeNullable} or {@link #writeString}
+     * 
+     * @param in the input
+     * @return the string, or null
+     * @throws IOException if reading fails or the length is invalid
+     */
+    public static String readNullable(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new StreamCorruptedException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Writes the number of items that follow
+     * 
+     * @param out the output
+     * @param count the count
+     * @throws IOException if writing fails or the count is over {@link #MAX_LENGTH}
+     */
+    public static void writeCount(DataOutput out, int count) throws IOException {
+        if (count > MAX_LENGTH) {
+            throw new IOException("Count or length " + count + " over " + MAX_LENGTH);
+        }
+        out.writeInt(count);
+    }
+    
+    /**
+     * Reads a count written by {@link #writeCount}
+     * 
+     * @param in the input
+     * @return the count
+     * @throws IOException if reading fails or the count is negative or too large
+     */
+    public static int readCount(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_LENGTH) {
+            throw new StreamCorruptedException("Invalid count " + count);
+        }
+        return count;
+    }
+    
+    /**
+     * Writes SAML attributes: their count, then each name, value count and values
+     * 
+     * @param out the output
+     * @param attributes the attributes
+     * @throws IOException if writing fails or a value is too long
+     */
+    public static void writeAttributes(DataOutput out, Map<String, List<String>> attributes) throws IOException {
+        writeCount(out, attributes.size());
+        for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+            writeString(out, attribute.getKey());
+            writeCount(out, attribute.getValue().size());
+            for (String value : attribute.getValue()) {
+                writeString(out, value);
+            }
+        }
+    }
+    
+    /**
+     * Reads attributes written by {@link #writeAttributes}
+     * 
+     * @param in the input
+     * @return the attributes in written order
+     * @throws IOException if reading fails or the data is corrupt
+     */
+    public static Map<String, List<String>> readAttributes(DataInput in) throws IOException {
+        int count = readCount(in);
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            int valueCount = readCount(in);
+            // Sized by what has been read, not by the count
+            List<String> values = new ArrayList<>(Math.min(valueCount, 16));
+            for (int j = 0; j < valueCount; j++) {
+                values.add(readString(in));
+            }
+            attributes.put(name, values);
+        }
+        return attributes;
+    }
+}
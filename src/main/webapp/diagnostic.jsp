@@ -1,4 +1,5 @@
 <%@ page language="java" contentType="text/html; charset=UTF-8" pageEncoding="UTF-8"%>
+<%@ page import="com.sample.saml.util.IdPKeyMaterialCache" %>
 <%@ page import="com.sample.saml.util.SAMLConfig" %>
 <%@ page import="java.util.Properties" %>
 <%@ page import="java.io.InputStream" %>
@@ -198,6 +199,11 @@
                             <td><%= SAMLConfig.getProperty("idp.x509cert") != null && !SAMLConfig.getProperty("idp.x509cert").trim().isEmpty() ? "Configured" : "Missing" %></td>
                             <td><%= SAMLConfig.getProperty("idp.x509cert") != null && !SAMLConfig.getProperty("idp.x509cert").trim().isEmpty() ? "✓" : "⚠" %></td>
                         </tr>
+                        <tr>
+                            <td>IdP Key Cache</td>
+                            <td><%= IdPKeyMaterialCache.getHitCount() %> hits / <%= IdPKeyMaterialCache.getMissCount() %> misses</td>
+                            <td>✓</td>
+                        </tr>
                     </tbody>
                 </table>
             </div>
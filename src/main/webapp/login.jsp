@@ -13,10 +13,10 @@
     
     if ("login".equals(action)) {
         try {
-            logger.info("Initiating SAML login from login.jsp");
+            logger.debug("Initiating SAML login from login.jsp");
             
-            // Initialize SAML service
-            SAMLService samlService = new SAMLService();
+            // Get shared SAML service
+            SAMLService samlService = SAMLService.getInstance(request);
             
             // Get relay state if provided
             String relayState = request.getParameter("relayState");
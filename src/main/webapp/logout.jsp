@@ -14,20 +14,34 @@
     
     if ("logout".equals(action)) {
         try {
-            logger.info("Initiating SAML logout from logout.jsp");
+            logger.debug("Initiating SAML logout from logout.jsp");
             
-            // Get user info from session before clearing it
-            SAMLUserInfo userInfo = (SAMLUserInfo) session.getAttribute("saml.userInfo");
+            // Set by SAMLSessionFilter from the session or the stateless session cookie;
+            // read them directly when the page is reached without the filter
+            SAMLUserInfo userInfo = (SAMLUserInfo) request.getAttribute("samlUser");
+            if (userInfo == null) {
+                userInfo = (SAMLUserInfo) session.getAttribute("saml.userInfo");
+            }
+            com.sample.saml.service.SessionTokens tokens = com.sample.saml.service.SessionTokens.getInstance();
+            if (userInfo == null && tokens.isEnabled()) {
+                com.sample.saml.service.SessionTokens.Token token = tokens.read(request);
+                userInfo = token != null ? token.getUserInfo() : null;
+            }
             String userName = userInfo != null ? userInfo.getNameId() : "Unknown";
             
-            // Initialize SAML service
-            SAMLService samlService = new SAMLService();
+            // Get shared SAML service
+            SAMLService samlService = SAMLService.getInstance(request);
             
             // Get relay state if provided
             String relayState = request.getParameter("relayState");
             
-            // Clear session
+            // Clear session, stored and replicated copies included, and the session cookie in stateless cookie mode
+            SAMLService.getSessionStore().remove(session);
+            SAMLService.getSessionReplicator().remove(session);
             session.invalidate();
+            if (tokens.isEnabled()) {
+                tokens.clear(request, response);
+            }
             
             // Initiate SAML logout
             samlService.logout(request, response, relayState);
@@ -47,9 +61,9 @@
     String samlResponse = request.getParameter("SAMLResponse");
     if (samlResponse != null) {
         try {
-            logger.info("Processing SAML logout response");
+            logger.debug("Processing SAML logout response");
             
-            SAMLService samlService = new SAMLService();
+            SAMLService samlService = SAMLService.getInstance(request);
             boolean success = samlService.processLogoutResponse(request);
             
             if (success) {
@@ -1,35 +1,10 @@
 <%@ page language="java" contentType="text/html; charset=UTF-8" pageEncoding="UTF-8"%>
+<%@ page import="com.sample.saml.service.SAMLService" %>
 <%
-    // Import required classes
-    import com.sample.saml.service.SAMLService;
-    import org.slf4j.Logger;
-    import org.slf4j.LoggerFactory;
-    
-    Logger logger = LoggerFactory.getLogger("metadata.jsp");
-    
-    // Check if user wants to view metadata as HTML or download as XML
-    String format = request.getParameter("format");
-    
-    if ("xml".equals(format)) {
-        // Serve metadata as XML for download
-        try {
-            logger.info("Serving SP metadata as XML");
-            
-            SAMLService samlService = new SAMLService();
-            String metadata = samlService.getMetadata();
-            
-            response.setContentType("application/xml");
-            response.setHeader("Content-Disposition", "attachment; filename=\"sp-metadata.xml\"");
-            response.setCharacterEncoding("UTF-8");
-            
-            out.print(metadata);
-            return;
-            
-        } catch (Exception e) {
-            logger.error("Failed to generate SP metadata", e);
-            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to generate metadata");
-            return;
-        }
+    // The XML itself is served by MetadataServlet at the SP entity ID
+    if ("xml".equals(request.getParameter("format"))) {
+        response.sendRedirect(request.getContextPath() + "/saml/metadata");
+        return;
     }
 %>
 <!DOCTYPE html>
@@ -260,7 +235,7 @@
             </div>
             
             <div class="actions">
-                <a href="metadata.jsp?format=xml" class="btn">Download Metadata XML</a>
+                <a href="saml/metadata" class="btn" download="sp-metadata.xml">Download Metadata XML</a>
                 <a href="javascript:history.back()" class="btn btn-secondary">Back</a>
             </div>
             
@@ -268,7 +243,7 @@
                 <h4>Metadata Preview (First 500 characters):</h4>
                 <pre><%
                     try {
-                        SAMLService samlService = new SAMLService();
+                        SAMLService samlService = SAMLService.getInstance(request);
                         String metadata = samlService.getMetadata();
                         String preview = metadata.length() > 500 ? metadata.substring(0, 500) + "..." : metadata;
                         out.print(org.apache.commons.lang3.StringEscapeUtils.escapeHtml4(preview));
@@ -1,4 +1,4 @@
-<%@ page language="java" contentType="text/html; charset=UTF-8" pageEncoding="UTF-8"%>
+<%@ page language="java" contentType="text/html; charset=UTF-8" pageEncoding="UTF-8" session="false"%>
 <%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
 <%
     // Import required classes
@@ -6,8 +6,25 @@
     import java.util.List;
     import java.util.Map;
     
-    // Get user info from session
-    SAMLUserInfo userInfo = (SAMLUserInfo) session.getAttribute("saml.userInfo");
+    // Set by SAMLSessionFilter, from the session or, in stateless cookie mode, from the session cookie;
+    // read them directly when the page is reached without the filter
+    SAMLUserInfo userInfo = (SAMLUserInfo) request.getAttribute("samlUser");
+    HttpSession httpSession = request.getSession(false);
+    Object grantedRoles = request.getAttribute("samlRoles");
+    if (userInfo == null && httpSession != null) {
+        userInfo = (SAMLUserInfo) httpSession.getAttribute("saml.userInfo");
+    }
+    if (userInfo == null) {
+        com.sample.saml.service.SessionTokens tokens = com.sample.saml.service.SessionTokens.getInstance();
+        com.sample.saml.service.SessionTokens.Token token = tokens.isEnabled() ? tokens.read(request) : null;
+        if (token != null) {
+            userInfo = token.getUserInfo();
+            grantedRoles = token.getRoles();
+        }
+    }
+    if (grantedRoles == null && httpSession != null) {
+        grantedRoles = httpSession.getAttribute("saml.roles");
+    }
     
     if (userInfo == null) {
         // Redirect to login if no user info
@@ -253,6 +270,10 @@
                     <div class="detail-label">Session Index:</div>
                     <div class="detail-value"><%= userInfo.getSessionIndex() != null ? userInfo.getSessionIndex() : "Not provided" %></div>
                 </div>
+                <div class="detail-row">
+                    <div class="detail-label">Roles:</div>
+                    <div class="detail-value"><%= grantedRoles instanceof com.sample.saml.service.RoleSet && !((com.sample.saml.service.RoleSet) grantedRoles).getRoles().isEmpty() ? String.join(", ", ((com.sample.saml.service.RoleSet) grantedRoles).getRoles()) : "None granted" %></div>
+                </div>
                 <div class="detail-row">
                     <div class="detail-label">Attributes Count:</div>
                     <div class="detail-value"><%= userInfo.getAttributes() != null ? userInfo.getAttributes().size() : 0 %> attributes received</div>
@@ -277,18 +298,25 @@
             
             <div class="session-info">
                 <div class="session-title">Session Information</div>
+                <% if (httpSession != null) { %>
                 <div class="detail-row">
                     <div class="detail-label">Session ID:</div>
-                    <div class="detail-value"><%= session.getId() %></div>
+                    <div class="detail-value"><%= httpSession.getId() %></div>
                 </div>
                 <div class="detail-row">
                     <div class="detail-label">Creation Time:</div>
-                    <div class="detail-value"><%= new java.util.Date(session.getCreationTime()) %></div>
+                    <div class="detail-value"><%= new java.util.Date(httpSession.getCreationTime()) %></div>
                 </div>
                 <div class="detail-row">
                     <div class="detail-label">Last Access:</div>
-                    <div class="detail-value"><%= new java.util.Date(session.getLastAccessedTime()) %></div>
+                    <div class="detail-value"><%= new java.util.Date(httpSession.getLastAccessedTime()) %></div>
                 </div>
+                <% } else { %>
+                <div class="detail-row">
+                    <div class="detail-label">Session:</div>
+                    <div class="detail-value">Stateless session cookie, no server-side session</div>
+                </div>
+                <% } %>
             </div>
             
             <div class="actions">
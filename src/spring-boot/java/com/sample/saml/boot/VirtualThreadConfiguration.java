@@ -0,0 +1,40 @@
+package com.sample.saml.boot;
+
+import org.apache.coyote.ProtocolHandler;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual-Thread Request Execution (Spring Boot)
+ * 
+ * Runs every request handled by the embedded Tomcat on its own virtual
+ * thread when {@code spring.threads.virtual.enabled=true}, the property
+ * Spring Boot 3.2 uses for the same purpose. Spring Boot 2.7 has no such
+ * switch, so the connector's executor is replaced directly; the Tomcat
+ * deployment does the same with docker/server-virtual-threads.xml.
+ * 
+ * CPU-bound signature validation still runs on the application's bounded
+ * {@code VerificationPool}.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(name = "spring.threads.virtual.enabled", havingValue = "true")
+public class VirtualThreadConfiguration {
+    
+    /**
+     * Replaces the Tomcat worker pool with a virtual thread per request
+     * 
+     * @return the protocol handler customizer
+     */
+    @Bean
+    public TomcatProtocolHandlerCustomizer<ProtocolHandler> virtualThreadExecutorCustomizer() {
+        return protocolHandler -> protocolHandler.setExecutor(
+                Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("saml-vt-", 0).factory()));
+    }
+}
@@ -0,0 +1,84 @@
+package com.sample.saml.filter;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Route Matcher Tests
+ * 
+ * Exact rules win over prefix rules, the longest prefix wins, and anything
+ * unmatched falls to the default rule; the shipped saml-routes.conf keeps
+ * application pages behind a login.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+class RouteMatcherTest {
+    
+    private static final RouteRule DEFAULT = new RouteRule("/*", RoutePolicy.AUTHENTICATED);
+    
+    @Test
+    void exactRuleWinsOverPrefixAndLongestPrefixWins() {
+        RouteRule admin = new RouteRule("/admin/*", RoutePolicy.ROLE, "admin");
+        RouteRule reports = new RouteRule("/admin/reports/*", RoutePolicy.ROLE, "auditor");
+        RouteRule health = new RouteRule("/admin/health", RoutePolicy.PUBLIC);
+        RouteMatcher matcher = RouteMatcher.compile(Arrays.asList(admin, reports, health), DEFAULT);
+        
+        assertSame(admin, matcher.match("/admin/users"));
+        assertSame(admin, matcher.match("/admin/"));
+        assertSame(reports, matcher.match("/admin/reports/daily"));
+        assertSame(health, matcher.match("/admin/health"));
+        assertSame(admin, matcher.match("/admin/healthz"));
+        assertSame(DEFAULT, matcher.match("/administrator"));
+        assertSame(DEFAULT, matcher.match(""));
+        assertEquals(3, matcher.getRuleCount());
+    }
+    
+    @Test
+    void matchesAfterOffset() {
+        RouteRule css = new RouteRule("/css/*", RoutePolicy.PUBLIC);
+        RouteMatcher matcher = RouteMatcher.compile(Arrays.asList(css), DEFAULT);
+        
+        assertSame(css, matcher.match("/java-saml-sso/css/site.css", "/java-saml-sso".length()));
+        assertSame(DEFAULT, matcher.match("/java-saml-sso/welcome.jsp", "/java-saml-sso".length()));
+    }
+    
+    @Test
+    void readsRulesAndIgnoresCommentsAndBlankLines() throws IOException {
+        String rules = "# comment\n\n/login.jsp public\n  /reports/*   role  auditor,admin  \n";
+        List<RouteRule> parsed = RouteMatcher.readRules(
+                new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+        
+        assertEquals(2, parsed.size());
+        assertEquals(RoutePolicy.PUBLIC, parsed.get(0).getPolicy());
+        assertEquals(RoutePolicy.ROLE, parsed.get(1).getPolicy());
+        assertEquals(Arrays.asList("auditor", "admin"), Arrays.asList(parsed.get(1).getRoles()));
+    }
+    
+    @Test
+    void shippedRulesProtectApplicationPages() throws IOException {
+        RouteMatcher matcher;
+        try (InputStream input = RouteMatcherTest.class.getClassLoader().getResourceAsStream("saml-routes.conf")) {
+            assertNotNull(input);
+            matcher = RouteMatcher.compile(RouteMatcher.readRules(input), DEFAULT);
+        }
+        
+        assertEquals(RoutePolicy.PUBLIC, matcher.match("/").getPolicy());
+        assertEquals(RoutePolicy.PUBLIC, matcher.match("/login.jsp").getPolicy());
+        assertEquals(RoutePolicy.PUBLIC, matcher.match("/saml/acs").getPolicy());
+        assertEquals(RoutePolicy.PUBLIC, matcher.match("/css/site.css").getPolicy());
+        assertEquals(RoutePolicy.AUTHENTICATED, matcher.match("/welcome.jsp").getPolicy());
+        assertEquals(RoutePolicy.AUTHENTICATED, matcher.match("/logout.jsp").getPolicy());
+        assertEquals(RoutePolicy.AUTHENTICATED, matcher.match("/anything-else.jsp").getPolicy());
+    }
+}
@@ -0,0 +1,122 @@
+package com.sample.saml.filter;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * SAML Session Filter Routing Tests
+ * 
+ * The filter classifies a request by the path the container dispatches,
+ * servlet path plus path info, not by the raw request URI: a URI that
+ * starts like a public asset but resolves to a protected page, through
+ * "..;" or percent-encoded dots, still needs a login.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+class SAMLSessionFilterTest {
+    
+    private static final String CONTEXT = "/java-saml-sso";
+    
+    private final SAMLSessionFilter filter = new SAMLSessionFilter();
+    private final List<String> redirects = new ArrayList<>();
+    private int chained;
+    
+    @BeforeEach
+    void init() throws Exception {
+        filter.init(stub(FilterConfig.class, (name, args) -> null));
+    }
+    
+    @AfterEach
+    void destroy() {
+        filter.destroy();
+    }
+    
+    @Test
+    void semicolonTraversalToProtectedPageNeedsLogin() throws Exception {
+        // Tomcat strips ";" path parameters, then normalizes "/css/../welcome.jsp"
+        dispatch(CONTEXT + "/css/..;/welcome.jsp", "/welcome.jsp", null);
+        
+        assertEquals(0, chained);
+        assertEquals(List.of(CONTEXT + "/login.jsp"), redirects);
+    }
+    
+    @Test
+    void encodedTraversalToProtectedPageNeedsLogin() throws Exception {
+        dispatch(CONTEXT + "/css/%2e%2e/welcome.jsp", "/welcome.jsp", null);
+        dispatch(CONTEXT + "/images/%2E%2E/logout.jsp", "/logout.jsp", null);
+        
+        assertEquals(0, chained);
+        assertEquals(List.of(CONTEXT + "/login.jsp", CONTEXT + "/login.jsp"), redirects);
+    }
+    
+    @Test
+    void pathInfoIsPartOfTheMatchedPath() throws Exception {
+        // A servlet mapped to /* has an empty servlet path and the whole path as path info
+        dispatch(CONTEXT + "/welcome.jsp", "", "/welcome.jsp");
+        assertEquals(List.of(CONTEXT + "/login.jsp"), redirects);
+        
+        dispatch(CONTEXT + "/saml/metadata/signed", "/saml/metadata", "/signed");
+        assertEquals(1, chained);
+    }
+    
+    @Test
+    void publicPathsPassWithoutSession() throws Exception {
+        dispatch(CONTEXT + "/", "/", null);
+        dispatch(CONTEXT + "/css/site.css", "/css/site.css", null);
+        dispatch(CONTEXT + "/saml/acs", "/saml/acs", null);
+        
+        assertEquals(3, chained);
+        assertTrue(redirects.isEmpty());
+    }
+    
+    private void dispatch(String requestUri, String servletPath, String pathInfo) throws Exception {
+        HttpServletRequest request = stub(HttpServletRequest.class, (name, args) -> {
+            switch (name) {
+                case "getRequestURI": return requestUri;
+                case "getContextPath": return CONTEXT;
+                case "getServletPath": return servletPath;
+                case "getPathInfo": return pathInfo;
+                default: return null;
+            }
+        });
+        HttpServletResponse response = stub(HttpServletResponse.class, (name, args) -> {
+            if (name.equals("sendRedirect")) {
+                redirects.add((String) args[0]);
+            }
+            return null;
+        });
+        FilterChain chain = (chainRequest, chainResponse) -> chained++;
+        filter.doFilter(request, response, chain);
+    }
+    
+    private interface Answer {
+        Object answer(String method, Object[] args) throws Exception;
+    }
+    
+    private static <T> T stub(Class<T> type, Answer answer) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    Object result = answer.answer(method.getName(), args);
+                    if (result == null && method.getReturnType() == boolean.class) {
+                        return false;
+                    }
+                    if (result == null && method.getReturnType() == int.class) {
+                        return 0;
+                    }
+                    return result;
+                }));
+    }
+}
@@ -0,0 +1,121 @@
+package com.sample.saml.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * SAML User Info Tests
+ * 
+ * A user serialized in its compact wire form comes back with the same name
+ * ID, session index, validity and attributes, including null, empty and
+ * non-ASCII values; a form of another version or a truncated one is
+ * refused.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+class SAMLUserInfoTest {
+    
+    @Test
+    void roundTripsThroughWireForm() throws Exception {
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        attributes.put("mail", Arrays.asList("jdoe@example.com"));
+        attributes.put("displayName", Arrays.asList("Jörg Doe – 東京"));
+        attributes.put("memberOf", Arrays.asList("cn=staff", "cn=ops", ""));
+        attributes.put("empty", Collections.emptyList());
+        attributes.put("nullable", Arrays.asList("a", null));
+        SAMLUserInfo user = new SAMLUserInfo("jdoe@example.com", attributes, "_session-1",
+                "2024-05-01T12:00:00Z", "2024-05-01T12:05:00Z");
+        
+        SAMLUserInfo copy = deserialize(serialize(user));
+        assertEquals("jdoe@example.com", copy.getNameId());
+        assertEquals("_session-1", copy.getSessionIndex());
+        assertEquals("2024-05-01T12:00:00Z", copy.getNotBefore());
+        assertEquals("2024-05-01T12:05:00Z", copy.getNotOnOrAfter());
+        assertEquals(user.getAttributes(), copy.getAttributes());
+        assertEquals(5, copy.getAttributeCount());
+        assertEquals("Jörg Doe – 東京", copy.getAttributeValue("displayName"));
+        assertEquals(Arrays.asList("cn=staff", "cn=ops", ""), copy.getAttributeValues("memberOf"));
+        assertEquals(Arrays.asList("a", null), copy.getAttributeValues("nullable"));
+        // Kept, though without values
+        assertEquals(Collections.emptyList(), copy.getAttributeValues("empty"));
+        assertFalse(copy.hasAttribute("empty"));
+    }
+    
+    @Test
+    void roundTripsUserWithoutAttributesOrOptionalFields() throws Exception {
+        SAMLUserInfo copy = deserialize(serialize(new SAMLUserInfo("jdoe", null, null)));
+        
+        assertEquals("jdoe", copy.getNameId());
+        assertNull(copy.getSessionIndex());
+        assertNull(copy.getNotOnOrAfter());
+        assertEquals(0, copy.getAttributeCount());
+        assertTrue(copy.getAttributes().isEmpty());
+    }
+    
+    @Test
+    void refusesUnknownVersion() throws Exception {
+        byte[] bytes = serialize(new SAMLUserInfo("jdoe", Collections.emptyMap(), "_s1"));
+        // The version byte is followed by the length and bytes of the name ID
+        byte[] start = ByteBuffer.allocate(9).put((byte) 2).putInt(4).put("jdoe".getBytes(StandardCharsets.UTF_8)).array();
+        int version = indexOf(bytes, start);
+        assertTrue(version > 0);
+        
+        for (byte other : new byte[] {1, 3}) {
+            byte[] changed = bytes.clone();
+            changed[version] = other;
+            InvalidObjectException error = assertThrows(InvalidObjectException.class, () -> deserialize(changed));
+            assertTrue(error.getMessage().contains("version"));
+        }
+    }
+    
+    @Test
+    void refusesTruncatedWireForm() throws Exception {
+        Map<String, List<String>> attributes = Collections.singletonMap("mail", Arrays.asList("jdoe@example.com"));
+        byte[] bytes = serialize(new SAMLUserInfo("jdoe", attributes, "_s1"));
+        
+        assertThrows(IOException.class, () -> deserialize(Arrays.copyOf(bytes, bytes.length - 8)));
+    }
+    
+    private static byte[] serialize(SAMLUserInfo user) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(user);
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static SAMLUserInfo deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (SAMLUserInfo) in.readObject();
+        }
+    }
+    
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            if (Arrays.equals(bytes, i, i + part.length, part, 0, part.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
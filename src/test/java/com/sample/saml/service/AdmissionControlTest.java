@@ -0,0 +1,161 @@
+package com.sample.saml.service;
+
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Admission Control Tests
+ * 
+ * A client may start a burst of requests at once and then one per token
+ * interval, and is told when to retry; clients beyond the tracked number
+ * are not rate limited; requests beyond the concurrency limit wait in a
+ * bounded queue, and are turned away when it is full or the wait times out.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+class AdmissionControlTest {
+    
+    @Test
+    void allowsBurstThenRefillsAtClientRate() throws Exception {
+        AdmissionControl admission = new AdmissionControl(true, 5, 3, 100, null, 100, 0, 0);
+        
+        for (int i = 0; i < 3; i++) {
+            assertTrue(admitAndClose(admission, "10.0.0.1"), "request " + i);
+        }
+        AdmissionControl.Ticket rejected = admission.admit("10.0.0.1");
+        assertFalse(rejected.isAdmitted());
+        assertEquals("client_rate", rejected.getRejection());
+        // A fifth of a second away, rounded up to whole seconds
+        assertEquals(1, rejected.getRetryAfterSeconds());
+        // Other clients have their own buckets
+        assertTrue(admitAndClose(admission, "10.0.0.2"));
+        
+        // One token back after 200 ms, the next one after 400 ms
+        Thread.sleep(250);
+        assertTrue(admitAndClose(admission, "10.0.0.1"));
+        assertFalse(admission.admit("10.0.0.1").isAdmitted());
+    }
+    
+    @Test
+    void retryAfterCoversTimeUntilNextToken() {
+        AdmissionControl admission = new AdmissionControl(true, 0.25, 1, 100, null, 100, 0, 0);
+        
+        assertTrue(admitAndClose(admission, "10.0.0.1"));
+        AdmissionControl.Ticket rejected = admission.admit("10.0.0.1");
+        assertEquals("client_rate", rejected.getRejection());
+        assertEquals(4, rejected.getRetryAfterSeconds());
+    }
+    
+    @Test
+    void doesNotRateLimitClientsBeyondMaxClients() {
+        AdmissionControl admission = new AdmissionControl(true, 0.1, 1, 2, null, 100, 0, 0);
+        
+        assertTrue(admitAndClose(admission, "10.0.0.1"));
+        assertTrue(admitAndClose(admission, "10.0.0.2"));
+        assertFalse(admission.admit("10.0.0.1").isAdmitted());
+        assertFalse(admission.admit("10.0.0.2").isAdmitted());
+        // No room for a third bucket until the others have refilled and are swept
+        for (int i = 0; i < 5; i++) {
+            assertTrue(admitAndClose(admission, "10.0.0.3"));
+        }
+    }
+    
+    @Test
+    void keysClientByLastEntryOfAddressHeader() {
+        AdmissionControl admission = new AdmissionControl(true, 0.1, 1, 100, "X-Forwarded-For", 100, 0, 0);
+        
+        assertTrue(admitAndClose(admission, admission.admit(request("spoofed, 10.0.0.1", "192.168.0.1"))));
+        // Whatever the client put in front, the proxy's entry decides the bucket
+        assertFalse(admission.admit(request("other, 10.0.0.1", "192.168.0.1")).isAdmitted());
+        assertTrue(admitAndClose(admission, admission.admit(request("10.0.0.1, 10.0.0.2", "192.168.0.1"))));
+        // Without the header, the remote address
+        assertTrue(admitAndClose(admission, admission.admit(request(null, "192.168.0.1"))));
+        assertFalse(admission.admit(request(null, "192.168.0.1")).isAdmitted());
+    }
+    
+    @Test
+    void queuesUpToCapacityThenRejects() throws Exception {
+        AdmissionControl admission = new AdmissionControl(true, 0, 1, 100, null, 1, 1, 5000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AdmissionControl.Ticket held = admission.admit("10.0.0.1");
+            assertTrue(held.isAdmitted());
+            Future<AdmissionControl.Ticket> queued = executor.submit(() -> admission.admit("10.0.0.2"));
+            while (admission.getQueueDepth() == 0) {
+                Thread.sleep(1);
+            }
+            
+            AdmissionControl.Ticket full = admission.admit("10.0.0.3");
+            assertEquals("queue_full", full.getRejection());
+            assertEquals(5, full.getRetryAfterSeconds());
+            
+            held.close();
+            // Closing twice does not release a second permit
+            held.close();
+            AdmissionControl.Ticket admitted = queued.get(5, TimeUnit.SECONDS);
+            assertTrue(admitted.isAdmitted());
+            assertNull(admitted.getRejection());
+            assertEquals(0, admission.getQueueDepth());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    void rejectsAfterWaitTimeout() {
+        AdmissionControl admission = new AdmissionControl(true, 0, 1, 100, null, 1, 1, 50);
+        
+        AdmissionControl.Ticket held = admission.admit("10.0.0.1");
+        AdmissionControl.Ticket timedOut = admission.admit("10.0.0.2");
+        assertEquals("wait_timeout", timedOut.getRejection());
+        assertEquals(1, timedOut.getRetryAfterSeconds());
+        assertEquals(0, admission.getQueueDepth());
+        // A rejected ticket holds no permit
+        timedOut.close();
+        assertFalse(admission.admit("10.0.0.3").isAdmitted());
+        
+        held.close();
+        assertTrue(admitAndClose(admission, "10.0.0.3"));
+    }
+    
+    @Test
+    void admitsEverythingWhenDisabled() {
+        AdmissionControl admission = new AdmissionControl(false, 0.1, 1, 1, null, 1, 0, 0);
+        
+        for (int i = 0; i < 5; i++) {
+            assertTrue(admission.admit("10.0.0.1").isAdmitted());
+        }
+    }
+    
+    private static boolean admitAndClose(AdmissionControl admission, String client) {
+        return admitAndClose(admission, admission.admit(client));
+    }
+    
+    private static boolean admitAndClose(AdmissionControl admission, AdmissionControl.Ticket ticket) {
+        ticket.close();
+        return ticket.isAdmitted();
+    }
+    
+    private static HttpServletRequest request(String forwardedFor, String remoteAddress) {
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getHeader": return "X-Forwarded-For".equalsIgnoreCase((String) args[0]) ? forwardedFor : null;
+                        case "getRemoteAddr": return remoteAddress;
+                        default: return null;
+                    }
+                });
+    }
+}
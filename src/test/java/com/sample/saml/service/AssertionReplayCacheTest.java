@@ -0,0 +1,160 @@
+package com.sample.saml.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Assertion Replay Cache Tests
+ * 
+ * Replays are rejected for as long as the assertion could be accepted,
+ * including after the ring of slots has wrapped around; assertions the
+ * cache cannot track are refused instead of silently accepted.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+class AssertionReplayCacheTest {
+    
+    private static final long MINUTE = 60_000L;
+    private static final long START = 1_700_000_000_000L;
+    
+    // 60 s slots, 10 min horizon, 1 min skew: a ring of 13 slots
+    private final AssertionReplayCache cache = new AssertionReplayCache(60, 600, 60, 1000);
+    
+    @Test
+    void rejectsReplayOfRecordedAssertion() {
+        long notOnOrAfter = START + 5 * MINUTE;
+        
+        assertFalse(cache.isReplay("_a1", notOnOrAfter));
+        assertTrue(cache.markUsed("_a1", notOnOrAfter, START));
+        assertTrue(cache.isReplay("_a1", notOnOrAfter));
+        assertFalse(cache.markUsed("_a1", notOnOrAfter, START + MINUTE));
+        assertEquals(2, cache.getReplayCount());
+        
+        assertTrue(cache.markUsed("_a2", notOnOrAfter, START));
+    }
+    
+    @Test
+    void rejectsReplayAfterRingWrapsAround() {
+        long notOnOrAfter = START + 10 * MINUTE;
+        assertTrue(cache.markUsed("_target", notOnOrAfter, START));
+        
+        // Time moves on minute by minute, each minute filling the slots ahead: every ring
+        // position is reused at least once, except the one still holding the target's slot
+        for (long now = START; now <= notOnOrAfter; now += MINUTE) {
+            for (long lifetime = MINUTE; lifetime <= 10 * MINUTE; lifetime += MINUTE) {
+                cache.markUsed("_other-" + now + "-" + lifetime, now + lifetime, now);
+            }
+        }
+        
+        assertTrue(cache.isReplay("_target", notOnOrAfter));
+        assertFalse(cache.markUsed("_target", notOnOrAfter, notOnOrAfter));
+        assertFalse(cache.markUsed("_target", notOnOrAfter, notOnOrAfter + MINUTE - 1));
+    }
+    
+    @Test
+    void refusesAssertionPastNotOnOrAfterAndSkew() {
+        long notOnOrAfter = START + 5 * MINUTE;
+        assertTrue(cache.markUsed("_a1", notOnOrAfter, START));
+        
+        IllegalStateException expired = assertThrows(IllegalStateException.class,
+                () -> cache.markUsed("_a1", notOnOrAfter, notOnOrAfter + MINUTE + 1));
+        assertEquals("Assertion has already expired", expired.getMessage());
+        assertThrows(IllegalStateException.class,
+                () -> cache.markUsed("_new", notOnOrAfter, notOnOrAfter + MINUTE + 1));
+    }
+    
+    @Test
+    void refusesAssertionWhoseSlotWasTakenByNewerOne() {
+        // Same ring position, 13 slots later
+        long older = START;
+        long newer = START + 13 * MINUTE;
+        assertTrue(cache.markUsed("_newer", newer, newer - MINUTE));
+        
+        // The clock of this caller lags, so the skew check alone would let it through
+        IllegalStateException expired = assertThrows(IllegalStateException.class,
+                () -> cache.markUsed("_older", older, older - MINUTE));
+        assertEquals("Assertion has already expired", expired.getMessage());
+        assertFalse(cache.isReplay("_older", older));
+    }
+    
+    @Test
+    void refusesAssertionWithoutNotOnOrAfterOrBeyondHorizon() {
+        IllegalStateException missing = assertThrows(IllegalStateException.class,
+                () -> cache.markUsed("_a1", Long.MAX_VALUE, START));
+        assertEquals("Assertion has no NotOnOrAfter", missing.getMessage());
+        assertFalse(cache.isReplay("_a1", Long.MAX_VALUE));
+        
+        assertThrows(IllegalStateException.class, () -> cache.markUsed("_a2", START + 11 * MINUTE, START));
+        assertThrows(IllegalStateException.class, () -> cache.markUsed(null, START + MINUTE, START));
+    }
+    
+    @Test
+    void refusesAssertionsBeyondSlotCapacity() {
+        AssertionReplayCache small = new AssertionReplayCache(60, 600, 60, 2);
+        long notOnOrAfter = START + MINUTE;
+        assertTrue(small.markUsed("_a1", notOnOrAfter, START));
+        assertTrue(small.markUsed("_a2", notOnOrAfter, START));
+        
+        assertThrows(IllegalStateException.class, () -> small.markUsed("_a3", notOnOrAfter, START));
+        assertEquals(1, small.getOverflowCount());
+        assertFalse(small.markUsed("_a1", notOnOrAfter, START));
+    }
+    
+    @Test
+    void growsSlotTableAndKeepsEveryId() {
+        AssertionReplayCache large = new AssertionReplayCache(60, 600, 60, 10_000);
+        long notOnOrAfter = START + 5 * MINUTE;
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(large.markUsed("_a" + i, notOnOrAfter, START), "_a" + i);
+        }
+        
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(large.isReplay("_a" + i, notOnOrAfter), "_a" + i);
+        }
+        assertFalse(large.markUsed("_a0", notOnOrAfter, START));
+        assertFalse(large.markUsed("_a9999", notOnOrAfter, START));
+        assertEquals(10_000, large.size());
+        assertThrows(IllegalStateException.class, () -> large.markUsed("_extra", notOnOrAfter, START));
+    }
+    
+    @Test
+    void acceptsConcurrentlySubmittedAssertionOnce() throws Exception {
+        int threads = 8;
+        long notOnOrAfter = START + 5 * MINUTE;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 200; round++) {
+                String id = "_race-" + round;
+                CountDownLatch ready = new CountDownLatch(threads);
+                List<Future<Boolean>> results = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    results.add(executor.submit(() -> {
+                        ready.countDown();
+                        ready.await();
+                        return cache.markUsed(id, notOnOrAfter, START);
+                    }));
+                }
+                int accepted = 0;
+                for (Future<Boolean> result : results) {
+                    accepted += result.get(10, TimeUnit.SECONDS) ? 1 : 0;
+                }
+                assertEquals(1, accepted, id);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.sample.saml.service;
+
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.util.ConfigSnapshot;
+import com.sample.saml.util.SAMLConfig;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Role Mapping Tests
+ * 
+ * Exact, prefix and presence conditions grant their roles, as do values of
+ * the role attribute that name a known role; a role set keeps its role
+ * names through serialization and a reload, which numbers roles the same
+ * way but computes sets that are current only for the new mapping.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+class RoleMappingTest {
+    
+    private static final String GROUPS = "memberOf";
+    
+    @Test
+    void grantsRolesOfMatchingConditions() {
+        RoleMapping mapping = mapping(
+                "rm-admin", "memberOf=cn=admins,ou=groups | Role=administrator",
+                "rm-staff", "memberOf^=cn=staff-",
+                "rm-employee", "employeeNumber",
+                "rm-unused", "memberOf=cn=nobody");
+        
+        assertEquals(4, mapping.getRuleCount());
+        assertEquals(Arrays.asList("rm-admin"), roles(mapping, GROUPS, "cn=admins,ou=groups"));
+        assertEquals(Arrays.asList("rm-admin"), roles(mapping, "Role", "administrator"));
+        assertEquals(Arrays.asList("rm-staff"), roles(mapping, GROUPS, "cn=staff-berlin", "cn=guests"));
+        assertEquals(Arrays.asList("rm-employee"), roles(mapping, "employeeNumber", "4711"));
+        // The prefix on its own is a match, a shorter value or another case is not
+        assertEquals(Arrays.asList("rm-staff"), roles(mapping, GROUPS, "cn=staff-"));
+        assertEquals(Collections.emptyList(), roles(mapping, GROUPS, "cn=staff", "CN=admins,ou=groups"));
+        assertEquals(Collections.emptyList(), roles(mapping, "employeeNumber"));
+        
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        attributes.put(GROUPS, Arrays.asList("cn=staff-ops", "cn=admins,ou=groups"));
+        attributes.put("employeeNumber", Arrays.asList("4711"));
+        RoleSet all = mapping.evaluate(new SAMLUserInfo("jdoe", attributes, "_s1"));
+        // In role number order, which follows the order rules are read in
+        assertEquals(new HashSet<>(Arrays.asList("rm-admin", "rm-staff", "rm-employee")), new HashSet<>(all.getRoles()));
+        assertTrue(all.has("rm-staff"));
+        assertFalse(all.has("rm-unused"));
+        assertFalse(all.has("never-named"));
+        assertTrue(all.hasAny(RoleMapping.mask("rm-unused", "rm-employee")));
+        assertFalse(all.hasAny(RoleMapping.mask("rm-unused")));
+        assertTrue(mapping.isCurrent(all));
+    }
+    
+    @Test
+    void grantsKnownRolesNamedByRoleAttribute() {
+        // Named by a route only, as before rules existed
+        RoleMapping.mask("rm-route-only");
+        RoleMapping mapping = mapping();
+        
+        assertEquals(0, mapping.getRuleCount());
+        assertEquals(Arrays.asList("rm-route-only"), roles(mapping, "Role", "rm-route-only", "rm-not-a-role"));
+        assertEquals(Collections.emptyList(), roles(mapping, "Role", "rm-not-a-role"));
+    }
+    
+    @Test
+    void roleSetSurvivesSerializationAndReload() throws Exception {
+        RoleMapping before = mapping("rm-reader", "memberOf=cn=readers", "rm-writer", "memberOf=cn=writers");
+        RoleSet granted = before.evaluate(user(GROUPS, "cn=readers", "cn=writers"));
+        long[] route = RoleMapping.mask("rm-writer");
+        
+        RoleSet restored = roundTrip(granted);
+        assertNotSame(granted, restored);
+        assertEquals(granted.getRoles(), restored.getRoles());
+        assertTrue(restored.hasAny(route));
+        // Not computed by any mapping, so evaluated again on the next role check
+        assertFalse(before.isCurrent(restored));
+        
+        // A reload with changed rules keeps the numbers, so earlier masks still apply
+        RoleMapping after = mapping("rm-writer", "memberOf=cn=editors", "rm-owner", "memberOf=cn=owners");
+        assertFalse(after.isCurrent(granted));
+        RoleSet reevaluated = after.evaluate(user(GROUPS, "cn=editors", "cn=owners"));
+        assertTrue(after.isCurrent(reevaluated));
+        assertTrue(reevaluated.hasAny(route));
+        assertFalse(reevaluated.has("rm-reader"));
+        assertEquals(Arrays.asList("rm-writer", "rm-owner"), roundTrip(reevaluated).getRoles());
+    }
+    
+    @Test
+    void rejectsMalformedRules() {
+        assertThrows(IllegalArgumentException.class, () -> mapping("rm-bad", "memberOf="));
+        assertThrows(IllegalArgumentException.class, () -> mapping("rm-bad", "=cn=admins"));
+        assertThrows(IllegalArgumentException.class, () -> mapping("rm-bad", "memberOf=cn=a | "));
+        assertThrows(IllegalArgumentException.class, () -> RoleMapping.mask("a,b"));
+    }
+    
+    private static RoleMapping mapping(String... rules) {
+        Map<String, String> overrides = new HashMap<>();
+        for (int i = 0; i < rules.length; i += 2) {
+            overrides.put(RoleMapping.RULE_PREFIX + rules[i], rules[i + 1]);
+        }
+        ConfigSnapshot config = SAMLConfig.getSnapshot().withOverrides("test", overrides);
+        return new RoleMapping(config);
+    }
+    
+    private static List<String> roles(RoleMapping mapping, String attribute, String... values) {
+        return mapping.evaluate(user(attribute, values)).getRoles();
+    }
+    
+    private static SAMLUserInfo user(String attribute, String... values) {
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        attributes.put(attribute, Arrays.asList(values));
+        return new SAMLUserInfo("jdoe", attributes, "_s1");
+    }
+    
+    private static RoleSet roundTrip(RoleSet roles) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(roles);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (RoleSet) in.readObject();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.sample.saml.service;
+
+import com.onelogin.saml2.exception.ValidationError;
+import org.joda.time.DateTimeUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * SAML Response Inspector Tests
+ * 
+ * A response addressed to our ACS URL, issued by the configured IdP within
+ * the allowed age passes with its assertion ID and expiry; one with another
+ * Destination or Issuer, a stale or future IssueInstant, too many bytes or
+ * too deep a nesting, or a DOCTYPE is refused, read whole or as a stream.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+class SAMLResponseInspectorTest {
+    
+    private static final String ACS = "https://sp.example.com/saml/acs";
+    private static final String IDP = "https://idp.example.com";
+    private static final long NOW = Instant.parse("2024-05-01T12:00:00Z").toEpochMilli();
+    private static final String ISSUED = "2024-05-01T11:59:30Z";
+    
+    private final SAMLResponseInspector inspector = new SAMLResponseInspector(ACS, IDP, 300_000, 180_000, 16384, 16);
+    
+    @BeforeEach
+    void fixClock() {
+        // The string and stream variants read the toolkit's clock
+        DateTimeUtils.setCurrentMillisFixed(NOW);
+    }
+    
+    @AfterEach
+    void resetClock() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+    
+    @Test
+    void acceptsResponseForUsAndExtractsAssertion() throws Exception {
+        SAMLResponseInspector.Summary summary = inspect(response(ACS, ISSUED, IDP, IDP));
+        
+        assertEquals("_a1", summary.getAssertionId());
+        assertEquals(Instant.parse("2024-05-01T12:05:00Z").toEpochMilli(), summary.getNotOnOrAfter());
+        assertFalse(summary.isEncrypted());
+        
+        // Streamed, the base64 text is kept whole for the toolkit
+        String value = Base64.getMimeEncoder().encodeToString(response(ACS, ISSUED, IDP, IDP).getBytes(StandardCharsets.UTF_8));
+        StringBuilder encoded = new StringBuilder();
+        assertEquals("_a1", inspector.inspect(new ByteArrayInputStream(value.getBytes(StandardCharsets.US_ASCII)),
+                encoded, value.length()).getAssertionId());
+        assertEquals(value, encoded.toString());
+        // Without a Destination the toolkit has nothing to check either
+        inspect(response(null, ISSUED, IDP, IDP));
+    }
+    
+    @Test
+    void refusesWrongDestination() {
+        assertError(ValidationError.WRONG_DESTINATION, response("https://other.example.com/acs", ISSUED, IDP, IDP));
+        assertError(ValidationError.WRONG_DESTINATION, response(ACS + "/", ISSUED, IDP, IDP));
+        assertError(ValidationError.EMPTY_DESTINATION, response("", ISSUED, IDP, IDP));
+    }
+    
+    @Test
+    void refusesStaleOrFutureIssueInstant() throws Exception {
+        // Maximum age plus clock skew
+        inspect(response(ACS, "2024-05-01T11:52:00Z", IDP, IDP));
+        assertError(ValidationError.RESPONSE_EXPIRED, response(ACS, "2024-05-01T11:51:59Z", IDP, IDP));
+        inspect(response(ACS, "2024-05-01T12:03:00Z", IDP, IDP));
+        assertError(ValidationError.ASSERTION_TOO_EARLY, response(ACS, "2024-05-01T12:03:01Z", IDP, IDP));
+        // Read as UTC without a zone, like the toolkit
+        assertError(ValidationError.RESPONSE_EXPIRED, response(ACS, "2024-05-01T11:00:00", IDP, IDP));
+        assertError(ValidationError.INVALID_ISSUE_INSTANT_FORMAT, response(ACS, "yesterday", IDP, IDP));
+        assertError(ValidationError.INVALID_XML_FORMAT, response(ACS, null, IDP, IDP));
+    }
+    
+    @Test
+    void refusesMismatchedIssuer() throws Exception {
+        assertError(ValidationError.WRONG_ISSUER, response(ACS, ISSUED, "https://evil.example.com", IDP));
+        assertError(ValidationError.WRONG_ISSUER, response(ACS, ISSUED, IDP, "https://evil.example.com"));
+        // Surrounding whitespace is not part of the entity ID
+        inspect(response(ACS, ISSUED, " " + IDP + "\n", IDP));
+    }
+    
+    @Test
+    void refusesOversizedOrDeeplyNestedResponse() {
+        String padding = "<Extensions xmlns=\"urn:oasis:names:tc:SAML:2.0:protocol\">" + repeat('x', 65536) + "</Extensions>";
+        byte[] large = response(ACS, ISSUED, IDP, IDP).replace("</samlp:Response>", padding + "</samlp:Response>")
+                .getBytes(StandardCharsets.UTF_8);
+        ValidationError error = assertThrows(ValidationError.class, () -> inspector.inspect(large, NOW));
+        assertTrue(error.getMessage().contains("exceeds"));
+        assertTrue(assertThrows(ValidationError.class, () -> inspector.inspect(Base64.getEncoder().encodeToString(large)))
+                .getMessage().contains("exceeds"));
+        // Streamed, the limit holds before the value has been read in full
+        byte[] value = Base64.getEncoder().encode(large);
+        StringBuilder encoded = new StringBuilder();
+        ValidationError streamed = assertThrows(ValidationError.class,
+                () -> inspector.inspect(new ByteArrayInputStream(value), encoded, value.length));
+        assertTrue(streamed.getMessage().contains("exceeds"));
+        assertTrue(encoded.length() < value.length / 2, encoded.length() + " of " + value.length + " read");
+        
+        StringBuilder nested = new StringBuilder();
+        for (int i = 0; i < 16; i++) {
+            nested.append("<x>");
+        }
+        for (int i = 0; i < 16; i++) {
+            nested.append("</x>");
+        }
+        String deep = response(ACS, ISSUED, IDP, IDP).replace("</samlp:Response>", nested + "</samlp:Response>");
+        assertTrue(assertThrows(ValidationError.class, () -> inspect(deep)).getMessage().contains("deeper"));
+    }
+    
+    @Test
+    void refusesDoctype() {
+        String entity = "<!DOCTYPE samlp:Response [<!ENTITY idp \"" + IDP + "\">]>";
+        assertThrows(IllegalArgumentException.class,
+                () -> inspect(entity + response(ACS, ISSUED, "&idp;", IDP)));
+        String external = "<!DOCTYPE samlp:Response [<!ENTITY idp SYSTEM \"file:///etc/hostname\">]>";
+        assertThrows(IllegalArgumentException.class,
+                () -> inspect(external + response(ACS, ISSUED, "&idp;", IDP)));
+    }
+    
+    @Test
+    void refusesOtherRootAndMalformedInput() {
+        assertError(ValidationError.INVALID_XML_FORMAT,
+                "<samlp:LogoutRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\"/>");
+        assertThrows(IllegalArgumentException.class, () -> inspect("<samlp:Response"));
+        assertThrows(IllegalArgumentException.class, () -> inspector.inspect("not base64!"));
+    }
+    
+    private SAMLResponseInspector.Summary inspect(String xml) throws ValidationError {
+        return inspector.inspect(xml.getBytes(StandardCharsets.UTF_8), NOW);
+    }
+    
+    private void assertError(int code, String xml) {
+        ValidationError error = assertThrows(ValidationError.class, () -> inspect(xml));
+        assertEquals(code, error.getErrorCode(), error.getMessage());
+    }
+    
+    private static String response(String destination, String issueInstant, String issuer, String assertionIssuer) {
+        return "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+                + " xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"_r1\" Version=\"2.0\""
+                + (destination != null ? " Destination=\"" + destination + "\"" : "")
+                + (issueInstant != null ? " IssueInstant=\"" + issueInstant + "\"" : "") + ">"
+                + "<saml:Issuer>" + issuer + "</saml:Issuer>"
+                + "<saml:Assertion ID=\"_a1\" Version=\"2.0\" IssueInstant=\"" + ISSUED + "\">"
+                + "<saml:Issuer>" + assertionIssuer + "</saml:Issuer>"
+                + "<saml:Subject><saml:NameID>jdoe</saml:NameID><saml:SubjectConfirmation>"
+                + "<saml:SubjectConfirmationData NotOnOrAfter=\"2024-05-01T12:05:00Z\" Recipient=\"" + ACS + "\"/>"
+                + "</saml:SubjectConfirmation></saml:Subject>"
+                + "</saml:Assertion></samlp:Response>";
+    }
+    
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,48 @@
+package com.sample.saml.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * SP Metadata Tests
+ * 
+ * The Accept-Encoding header is read as a list of codings with q values:
+ * gzip is sent when listed, directly or through *, with a q above 0.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+class SPMetadataTest {
+    
+    @Test
+    void acceptsGzipWithPositiveQuality() {
+        assertTrue(SPMetadata.acceptsGzip("gzip"));
+        assertTrue(SPMetadata.acceptsGzip("gzip, deflate, br"));
+        assertTrue(SPMetadata.acceptsGzip("deflate,GZIP"));
+        assertTrue(SPMetadata.acceptsGzip("gzip;q=0.5"));
+        assertTrue(SPMetadata.acceptsGzip("br;q=1.0, gzip;q=0.8, *;q=0.1"));
+        assertTrue(SPMetadata.acceptsGzip("x-gzip"));
+        assertTrue(SPMetadata.acceptsGzip("*"));
+        assertTrue(SPMetadata.acceptsGzip("identity, *;q=0.3"));
+    }
+    
+    @Test
+    void refusesGzipWithZeroQualityOrWhenUnlisted() {
+        assertFalse(SPMetadata.acceptsGzip(null));
+        assertFalse(SPMetadata.acceptsGzip(""));
+        assertFalse(SPMetadata.acceptsGzip("identity"));
+        assertFalse(SPMetadata.acceptsGzip("deflate, br"));
+        assertFalse(SPMetadata.acceptsGzip("gzip;q=0"));
+        assertFalse(SPMetadata.acceptsGzip("gzip; q=0"));
+        assertFalse(SPMetadata.acceptsGzip("gzip;q=0.0"));
+        assertFalse(SPMetadata.acceptsGzip("gzip ; Q=0.000, deflate"));
+        // An explicit entry overrides *
+        assertFalse(SPMetadata.acceptsGzip("*, gzip;q=0"));
+        assertFalse(SPMetadata.acceptsGzip("*;q=0"));
+        assertFalse(SPMetadata.acceptsGzip("gzip;q=invalid"));
+        // Not a coding of its own
+        assertFalse(SPMetadata.acceptsGzip("gzipped"));
+    }
+}
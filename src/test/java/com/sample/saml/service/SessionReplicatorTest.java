@@ -0,0 +1,328 @@
+package com.sample.saml.service;
+
+import com.sample.saml.metrics.SAMLMetrics;
+import com.sample.saml.model.SAMLUserInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Session Replicator Tests
+ * 
+ * Batches are handed to the receiving node by the test, in the order it
+ * chooses: a batch that does not verify under a cluster key is dropped, a
+ * lost batch does not stop later ones from applying, a late batch brings
+ * only its removals and logouts, a restore establishes the session outside
+ * the replicator's lock, and a removal or logout that failed to send goes
+ * out with the next batch.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+class SessionReplicatorTest {
+    
+    private static final String IDP = "https://idp.example.com";
+    private static final String KEY_A = secret(1);
+    private static final String KEY_B = secret(2);
+    
+    private static final LongAdder GAPS = SAMLMetrics.counter("replication", "gap", "none");
+    private static final LongAdder LATE = SAMLMetrics.counter("replication", "late", "none");
+    
+    private final List<SessionReplicator> started = new ArrayList<>();
+    
+    @AfterEach
+    void close() {
+        started.forEach(SessionReplicator::close);
+    }
+    
+    @Test
+    void restoresReplicatedSession() throws IOException {
+        CapturingTransport sent = new CapturingTransport();
+        SessionReplicator sender = start("a", sent, "1:" + KEY_A);
+        SessionReplicator receiver = start("b", new CapturingTransport(), "1:" + KEY_A);
+        HttpSession session = login("S1", "jdoe", "_idx1");
+        session.setAttribute("saml.relayState", "/welcome.jsp");
+        sender.save(session);
+        sender.flush();
+        
+        receiver.receive(sent.batches.get(0));
+        assertEquals(1, receiver.size());
+        List<SessionStore.Record> records = new ArrayList<>();
+        HttpSession restored = receiver.restore("S1", record -> {
+            records.add(record);
+            return session("S1-new");
+        });
+        assertNotNull(restored);
+        assertEquals(IDP, records.get(0).getIdpEntityId());
+        assertEquals("jdoe", records.get(0).getUserInfo().getNameId());
+        assertEquals("_idx1", records.get(0).getUserInfo().getSessionIndex());
+        assertEquals("/welcome.jsp", records.get(0).getRelayState());
+        assertEquals(0, receiver.size());
+        
+        // The sender's own batches come back to it through the transport and are ignored
+        sender.receive(sent.batches.get(0));
+        assertEquals(0, sender.size());
+    }
+    
+    @Test
+    void dropsForgedAndUnknownKeyBatches() throws IOException {
+        CapturingTransport sent = new CapturingTransport();
+        SessionReplicator sender = start("a", sent, "1:" + KEY_A);
+        sender.save(login("S1", "jdoe", "_idx1"));
+        sender.flush();
+        byte[] batch = sent.batches.get(0);
+        
+        // A byte of the body, then one of the tag
+        for (int index : new int[] {20, batch.length - 1}) {
+            byte[] forged = batch.clone();
+            forged[index] ^= 1;
+            SessionReplicator receiver = start("b" + index, new CapturingTransport(), "1:" + KEY_A);
+            receiver.receive(forged);
+            assertEquals(0, receiver.size(), "byte " + index);
+        }
+        SessionReplicator otherSecret = start("d", new CapturingTransport(), "1:" + KEY_B);
+        otherSecret.receive(batch);
+        assertEquals(0, otherSecret.size());
+        SessionReplicator otherId = start("e", new CapturingTransport(), "2:" + KEY_A);
+        otherId.receive(batch);
+        assertEquals(0, otherId.size());
+        SessionReplicator truncated = start("f", new CapturingTransport(), "1:" + KEY_A);
+        truncated.receive(Arrays.copyOf(batch, 10));
+        assertEquals(0, truncated.size());
+        
+        // A node that rotated its keys still accepts the old one
+        SessionReplicator rotated = start("g", new CapturingTransport(), "2:" + KEY_B + ",1:" + KEY_A);
+        rotated.receive(batch);
+        assertEquals(1, rotated.size());
+    }
+    
+    @Test
+    void appliesBatchesAfterLostOne() throws IOException {
+        CapturingTransport sent = new CapturingTransport();
+        SessionReplicator sender = start("a", sent, "1:" + KEY_A);
+        SessionReplicator receiver = start("b", new CapturingTransport(), "1:" + KEY_A);
+        for (int i = 1; i <= 3; i++) {
+            sender.save(login("S" + i, "user" + i, "_idx" + i));
+            sender.flush();
+        }
+        
+        long gaps = GAPS.sum();
+        receiver.receive(sent.batches.get(0));
+        receiver.receive(sent.batches.get(2));
+        assertEquals(gaps + 1, GAPS.sum());
+        assertEquals(2, receiver.size());
+        assertNotNull(receiver.restore("S3", record -> session("new")));
+        assertNull(receiver.restore("S2", record -> session("new")));
+    }
+    
+    @Test
+    void lateBatchBringsOnlyItsRemovalsAndLogouts() throws IOException {
+        CapturingTransport sent = new CapturingTransport();
+        SessionReplicator sender = start("a", sent, "1:" + KEY_A);
+        SessionReplicator receiver = start("b", new CapturingTransport(), "1:" + KEY_A);
+        HttpSession removed = login("S1", "jdoe", "_idx1");
+        sender.save(login("S0", "bob", "_b1"));
+        sender.flush();
+        sender.save(removed);
+        sender.end(IDP, "bob", Collections.emptyList());
+        sender.flush();
+        sender.remove(removed);
+        sender.flush();
+        
+        long late = LATE.sum();
+        receiver.receive(sent.batches.get(0));
+        receiver.receive(sent.batches.get(2));
+        receiver.receive(sent.batches.get(1));
+        assertEquals(late + 1, LATE.sum());
+        // The login in the late batch was removed by the batch before it
+        assertNull(receiver.restore("S1", record -> session("new")));
+        assertNull(receiver.restore("S0", record -> session("new")));
+    }
+    
+    @Test
+    void lateBatchStillRemovesLoggedOutSession() throws IOException {
+        CapturingTransport sent = new CapturingTransport();
+        SessionReplicator sender = start("a", sent, "1:" + KEY_A);
+        SessionReplicator receiver = start("b", new CapturingTransport(), "1:" + KEY_A);
+        HttpSession loggedOut = login("S1", "jdoe", "_idx1");
+        sender.save(loggedOut);
+        sender.flush();
+        sender.remove(loggedOut);
+        sender.flush();
+        sender.save(login("S2", "jroe", "_idx2"));
+        sender.flush();
+        
+        // The removal logout.jsp queued arrives after the next batch
+        receiver.receive(sent.batches.get(0));
+        receiver.receive(sent.batches.get(2));
+        receiver.receive(sent.batches.get(1));
+        assertEquals(1, receiver.size());
+        assertNull(receiver.restore("S1", record -> session("new")));
+        assertNotNull(receiver.restore("S2", record -> session("new")));
+    }
+    
+    @Test
+    void establishesRestoredSessionsInParallel() throws Exception {
+        CapturingTransport sent = new CapturingTransport();
+        SessionReplicator sender = start("a", sent, "1:" + KEY_A);
+        SessionReplicator receiver = start("b", new CapturingTransport(), "1:" + KEY_A);
+        sender.save(login("S1", "jdoe", "_idx1"));
+        sender.save(login("S2", "jroe", "_idx2"));
+        sender.flush();
+        receiver.receive(sent.batches.get(0));
+        
+        // S1 is being established while S2 is restored, and a parallel request for S1 waits for it
+        CountDownLatch establishing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        HttpSession first = session("S1-new");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<HttpSession> slow = executor.submit(() -> receiver.restore("S1", record -> {
+                establishing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return first;
+            }));
+            assertTrue(establishing.await(10, TimeUnit.SECONDS));
+            Future<HttpSession> parallel = executor.submit(() -> receiver.restore("S1", record -> session("twice")));
+            assertNotNull(receiver.restore("S2", record -> session("S2-new")));
+            assertFalse(parallel.isDone());
+            
+            release.countDown();
+            assertSame(first, slow.get(10, TimeUnit.SECONDS));
+            assertSame(first, parallel.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        assertEquals(0, receiver.size());
+    }
+    
+    @Test
+    void sendsRemovalAndLogoutAgainAfterFailedPublish() throws IOException {
+        CapturingTransport sent = new CapturingTransport();
+        SessionReplicator sender = start("a", sent, "1:" + KEY_A);
+        SessionReplicator receiver = start("b", new CapturingTransport(), "1:" + KEY_A);
+        HttpSession removed = login("S1", "jdoe", "_idx1");
+        sender.save(removed);
+        sender.save(login("S2", "bob", "_b1"));
+        sender.flush();
+        receiver.receive(sent.batches.get(0));
+        assertEquals(2, receiver.size());
+        
+        sender.remove(removed);
+        sender.end(IDP, "bob", Collections.singletonList("_b1"));
+        sent.failures = 1;
+        sender.flush();
+        assertEquals(1, sent.batches.size());
+        sender.flush();
+        assertEquals(2, sent.batches.size());
+        
+        receiver.receive(sent.batches.get(1));
+        assertEquals(1, receiver.size());
+        assertNull(receiver.restore("S1", record -> session("new")));
+        assertNull(receiver.restore("S2", record -> session("new")));
+    }
+    
+    @Test
+    void rejectsTransportWithoutKeys() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new SessionReplicator("a", new CapturingTransport(), new SessionRegistry(),
+                        new SessionStore(null, 60, 1800, null), 60_000, 65536, 1800, ""));
+    }
+    
+    /**
+     * Starts a node that flushes only when the test calls flush
+     */
+    private SessionReplicator start(String nodeId, CapturingTransport transport, String keys) throws IOException {
+        SessionReplicator replicator = new SessionReplicator(nodeId, transport, new SessionRegistry(),
+                new SessionStore(null, 60, 1800, null), 3_600_000, 1 << 20, 1800, keys);
+        replicator.start();
+        started.add(replicator);
+        return replicator;
+    }
+    
+    private static HttpSession login(String sessionId, String nameId, String sessionIndex) {
+        HttpSession session = session(sessionId);
+        session.setAttribute("saml.idpEntityId", IDP);
+        session.setAttribute("saml.userInfo", new SAMLUserInfo(nameId,
+                Collections.singletonMap("mail", Collections.singletonList(nameId + "@example.com")), sessionIndex));
+        return session;
+    }
+    
+    private static HttpSession session(String id) {
+        Map<String, Object> attributes = new HashMap<>();
+        return (HttpSession) Proxy.newProxyInstance(HttpSession.class.getClassLoader(),
+                new Class<?>[] {HttpSession.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId": return id;
+                        case "getMaxInactiveInterval": return 1800;
+                        case "getAttribute": return attributes.get((String) args[0]);
+                        case "setAttribute": attributes.put((String) args[0], args[1]); return null;
+                        default: return null;
+                    }
+                });
+    }
+    
+    private static String secret(int seed) {
+        byte[] bytes = new byte[32];
+        Arrays.fill(bytes, (byte) seed);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+    
+    /**
+     * Keeps the published batches for the test to deliver; fails the given number of publishes first
+     */
+    private static final class CapturingTransport implements ReplicationTransport {
+    
+        private final List<byte[]> batches = new ArrayList<>();
+        private int failures;
+        
+        @Override
+        public void start(String nodeId, Consumer<byte[]> receiver) {
+            // Batches are delivered by the test
+        }
+        
+        @Override
+        public synchronized void publish(byte[] batch) throws IOException {
+            if (failures > 0) {
+                failures--;
+                throw new IOException("Transport down");
+            }
+            batches.add(batch);
+        }
+        
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+    }
+}
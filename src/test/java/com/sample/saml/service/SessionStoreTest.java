@@ -0,0 +1,250 @@
+package com.sample.saml.service;
+
+import com.sample.saml.model.SAMLUserInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.servlet.http.HttpSession;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Session Store Tests
+ * 
+ * A saved session is restored after the store is reopened, unless it was
+ * removed at logout or ended by a LogoutRequest; the file holds neither the
+ * session IDs nor anything readable by other users, compaction keeps the
+ * records appended while it runs, and a torn last record is dropped.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+class SessionStoreTest {
+    
+    private static final String IDP = "https://idp.example.com";
+    private static final String KEY = Base64.getEncoder().encodeToString(new byte[32]);
+    
+    @TempDir
+    Path directory;
+    
+    private final List<SessionStore> opened = new ArrayList<>();
+    
+    @AfterEach
+    void close() {
+        opened.forEach(SessionStore::close);
+    }
+    
+    @Test
+    void restoresSavedSessionAfterReopen() {
+        SessionStore store = open();
+        HttpSession saved = login("S1", "jdoe", "_idx1");
+        saved.setAttribute("saml.relayState", "/welcome.jsp");
+        store.save(saved);
+        assertNotNull(saved.getAttribute(SessionStore.STORED_UNTIL));
+        store.close();
+        
+        SessionStore reopened = open();
+        assertEquals(1, reopened.size());
+        List<SessionStore.Record> records = new ArrayList<>();
+        HttpSession restored = reopened.restore("S1", record -> {
+            records.add(record);
+            return session("S1-new");
+        });
+        assertNotNull(restored);
+        SessionStore.Record record = records.get(0);
+        assertEquals(IDP, record.getIdpEntityId());
+        assertEquals("/welcome.jsp", record.getRelayState());
+        assertEquals("jdoe", record.getUserInfo().getNameId());
+        assertEquals("_idx1", record.getUserInfo().getSessionIndex());
+        assertEquals(Arrays.asList("jdoe@example.com"), record.getUserInfo().getAttributeValues("mail"));
+        
+        // A parallel request with the old ID gets the same session; the record itself is gone
+        assertSame(restored, reopened.restore("S1", record2 -> session("S1-other")));
+        assertEquals(1, records.size());
+        assertNull(reopened.restore("unknown", record2 -> session("never")));
+    }
+    
+    @Test
+    void keepsStoreAgainWhenEstablishingFails() {
+        SessionStore store = open();
+        store.save(login("S1", "jdoe", "_idx1"));
+        store.close();
+        
+        SessionStore reopened = open();
+        assertNull(reopened.restore("S1", record -> null));
+        reopened.close();
+        
+        assertNotNull(open().restore("S1", record -> session("S1-new")));
+    }
+    
+    @Test
+    void fileHoldsNoSessionIdAndIsOwnerOnly() throws Exception {
+        SessionStore store = open();
+        String sessionId = "4F2A9C0DE11B7730A5C3E2F08D16B94C";
+        store.save(login(sessionId, "jdoe", "_idx1"));
+        store.close();
+        
+        byte[] bytes = Files.readAllBytes(file());
+        assertFalse(contains(bytes, sessionId.getBytes(StandardCharsets.UTF_8)));
+        assertTrue(contains(bytes, "jdoe".getBytes(StandardCharsets.UTF_8)));
+        if (Files.getFileStore(file()).supportsFileAttributeView("posix")) {
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file())));
+        }
+    }
+    
+    @Test
+    void refusesRemovedAndEndedSessions() throws Exception {
+        SessionStore store = open();
+        HttpSession removed = login("S1", "alice", "_a1");
+        store.save(removed);
+        store.save(login("S2", "bob", "_b1"));
+        store.save(login("S3", "bob", "_b2"));
+        store.save(login("S4", "carol", "_c1"));
+        store.save(login("S5", "carol", "_c2"));
+        store.remove(removed);
+        store.end(IDP, "bob", Collections.singletonList("_b1"));
+        store.end(IDP, "carol", Collections.emptyList());
+        // Another IdP's LogoutRequest does not end this IdP's sessions
+        store.end("https://other.example.com", "bob", Collections.emptyList());
+        Thread.sleep(2);
+        // Logged in again after the LogoutRequest
+        store.save(login("S6", "carol", "_c3"));
+        store.close();
+        
+        SessionStore reopened = open();
+        assertNull(reopened.restore("S1", record -> session("new")));
+        assertNull(reopened.restore("S2", record -> session("new")));
+        assertNotNull(reopened.restore("S3", record -> session("new")));
+        assertNull(reopened.restore("S4", record -> session("new")));
+        assertNull(reopened.restore("S5", record -> session("new")));
+        assertNotNull(reopened.restore("S6", record -> session("new")));
+    }
+    
+    @Test
+    void compactionKeepsRecordsAppendedWhileItRuns() throws Exception {
+        SessionStore store = open();
+        for (int i = 0; i < 2000; i++) {
+            HttpSession session = login("old-" + i, "user" + i, "_o" + i);
+            store.save(session);
+            if (i % 2 == 0) {
+                store.remove(session);
+            }
+        }
+        
+        AtomicBoolean compacting = new AtomicBoolean(true);
+        int[] appended = {0};
+        Thread saver = new Thread(() -> {
+            while (compacting.get() || appended[0] < 100) {
+                store.save(login("new-" + appended[0], "new" + appended[0], "_n" + appended[0]));
+                appended[0]++;
+            }
+        });
+        saver.start();
+        for (int round = 0; round < 5; round++) {
+            store.compact();
+        }
+        compacting.set(false);
+        saver.join();
+        assertEquals(1000 + appended[0], store.size());
+        store.close();
+        
+        SessionStore reopened = open();
+        assertEquals(1000 + appended[0], reopened.size());
+        for (int i = 0; i < appended[0]; i++) {
+            assertNotNull(reopened.restore("new-" + i, record -> session("restored")), "new-" + i);
+        }
+        for (int i = 0; i < 2000; i++) {
+            HttpSession restored = reopened.restore("old-" + i, record -> session("restored"));
+            assertEquals(i % 2 != 0, restored != null, "old-" + i);
+        }
+    }
+    
+    @Test
+    void dropsTornLastRecord() throws Exception {
+        SessionStore store = open();
+        store.save(login("S1", "jdoe", "_idx1"));
+        store.save(login("S2", "jroe", "_idx2"));
+        long end = store.getUsedBytes();
+        store.close();
+        try (FileChannel channel = FileChannel.open(file(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0x7f}), end - 1);
+        }
+        
+        SessionStore recovered = open();
+        assertEquals(1, recovered.size());
+        assertNull(recovered.restore("S2", record -> session("new")));
+        // Appends continue where the torn record started
+        recovered.save(login("S3", "jdoe", "_idx3"));
+        recovered.close();
+        
+        SessionStore reopened = open();
+        assertEquals(2, reopened.size());
+        assertNotNull(reopened.restore("S1", record -> session("new")));
+        assertNotNull(reopened.restore("S3", record -> session("new")));
+    }
+    
+    private SessionStore open() {
+        SessionStore store = new SessionStore(file(), 3600, 1800, KEY);
+        opened.add(store);
+        return store;
+    }
+    
+    private Path file() {
+        return directory.resolve("sessions.db");
+    }
+    
+    private static HttpSession login(String sessionId, String nameId, String sessionIndex) {
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        attributes.put("mail", Collections.singletonList(nameId + "@example.com"));
+        HttpSession session = session(sessionId);
+        session.setAttribute("saml.idpEntityId", IDP);
+        session.setAttribute("saml.userInfo", new SAMLUserInfo(nameId, attributes, sessionIndex));
+        return session;
+    }
+    
+    private static HttpSession session(String id) {
+        Map<String, Object> attributes = new HashMap<>();
+        return (HttpSession) Proxy.newProxyInstance(HttpSession.class.getClassLoader(),
+                new Class<?>[] {HttpSession.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId": return id;
+                        case "getMaxInactiveInterval": return 1800;
+                        case "getAttribute": return attributes.get((String) args[0]);
+                        case "setAttribute": attributes.put((String) args[0], args[1]); return null;
+                        default: return null;
+                    }
+                });
+    }
+    
+    private static boolean contains(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            if (Arrays.equals(bytes, i, i + part.length, part, 0, part.length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
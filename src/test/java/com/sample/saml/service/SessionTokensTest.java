@@ -0,0 +1,179 @@
+package com.sample.saml.service;
+
+import com.sample.saml.model.SAMLUserInfo;
+import com.sample.saml.util.ConfigSnapshot;
+import com.sample.saml.util.SAMLConfig;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Session Tokens Tests
+ * 
+ * A token carries the user and roles it was issued for, in both the signed
+ * and the encrypted mode; a token that was altered, truncated, has expired
+ * or was issued with a key this node does not hold is refused.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+class SessionTokensTest {
+    
+    private static final String KEY_A = secret(1);
+    private static final String KEY_B = secret(2);
+    
+    static {
+        // Role names get their numbers when a rule or route first uses them
+        RoleMapping.mask("admin", "auditor");
+    }
+    
+    @Test
+    void roundTripsSignedToken() {
+        roundTrip(false);
+    }
+    
+    @Test
+    void roundTripsEncryptedToken() {
+        roundTrip(true);
+    }
+    
+    @Test
+    void fallsBackWhenTokenExceedsCookieLimit() {
+        SessionTokens tokens = tokens("1:" + KEY_A, true);
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        attributes.put("mail", Arrays.asList(repeat('x', SessionTokens.MAX_TOKEN_LENGTH)));
+        
+        assertNull(tokens.issue(new SAMLUserInfo("jdoe", attributes, "_s1"), roles("admin")));
+    }
+    
+    @Test
+    void refusesTamperedToken() {
+        for (boolean encrypt : new boolean[] {false, true}) {
+            SessionTokens tokens = tokens("1:" + KEY_A, encrypt);
+            byte[] token = Base64.getUrlDecoder().decode(tokens.issue(user(), roles("admin")));
+            
+            // Flags in the header, a payload byte, the last byte of the tag
+            for (int index : new int[] {2, 20, token.length - 1}) {
+                byte[] tampered = token.clone();
+                tampered[index] ^= 1;
+                assertNull(tokens.decode(encode(tampered)), "byte " + index + ", encrypt " + encrypt);
+            }
+            assertNull(tokens.decode(encode(Arrays.copyOf(token, token.length - 1))));
+            assertNull(tokens.decode(encode(Arrays.copyOf(token, 10))));
+            assertNull(tokens.decode("not base64!"));
+            assertNull(tokens.decode(""));
+        }
+    }
+    
+    @Test
+    void refusesExpiredToken() {
+        SessionTokens tokens = tokens("1:" + KEY_A, true);
+        long now = System.currentTimeMillis() / 1000;
+        
+        assertNull(tokens.decode(tokens.issue(user(), roles("admin").getRoles(), now - 3600, now - 1)));
+        assertNotNull(tokens.decode(tokens.issue(user(), roles("admin").getRoles(), now - 3600, now + 60)));
+    }
+    
+    @Test
+    void refusesTokenOfUnknownKey() {
+        String token = tokens("1:" + KEY_A, true).issue(user(), roles("admin"));
+        
+        assertNull(tokens("2:" + KEY_A, true).decode(token));
+        assertNull(tokens("1:" + KEY_B, true).decode(token));
+    }
+    
+    @Test
+    void acceptsTokenOfOlderKeyAndReissuesIt() {
+        String token = tokens("1:" + KEY_A, true).issue(user(), roles("admin"));
+        SessionTokens rotated = tokens("2:" + KEY_B + ",1:" + KEY_A, true);
+        
+        SessionTokens.Token decoded = rotated.decode(token);
+        assertNotNull(decoded);
+        assertTrue(rotated.isRefreshDue(decoded));
+        
+        SessionTokens.Token refreshed = rotated.decode(rotated.refresh(decoded));
+        assertNotNull(refreshed);
+        assertFalse(rotated.isRefreshDue(refreshed));
+        assertNull(tokens("1:" + KEY_A, true).decode(rotated.refresh(decoded)));
+    }
+    
+    @Test
+    void rejectsInvalidKeyConfiguration() {
+        assertThrows(IllegalArgumentException.class, () -> tokens("", true));
+        assertThrows(IllegalArgumentException.class,
+                () -> tokens("1:" + Base64.getEncoder().encodeToString(new byte[16]), true));
+        assertThrows(IllegalArgumentException.class, () -> tokens("1:" + KEY_A + ",1:" + KEY_B, true));
+        assertThrows(IllegalArgumentException.class, () -> tokens("256:" + KEY_A, true));
+    }
+    
+    private static void roundTrip(boolean encrypt) {
+        SessionTokens tokens = tokens("1:" + KEY_A, encrypt);
+        String value = tokens.issue(user(), roles("admin", "auditor"));
+        assertNotNull(value);
+        
+        SessionTokens.Token token = tokens.decode(value);
+        assertNotNull(token);
+        SAMLUserInfo userInfo = token.getUserInfo();
+        assertEquals("jdoe@example.com", userInfo.getNameId());
+        assertEquals("_session-1", userInfo.getSessionIndex());
+        // Only the configured attributes are carried
+        assertEquals(new HashSet<>(Arrays.asList("mail", "groups")), userInfo.getAttributes().keySet());
+        assertEquals(Arrays.asList("staff", "ops"), userInfo.getAttributeValues("groups"));
+        assertEquals(Arrays.asList("admin", "auditor"), token.getRoles().getRoles());
+        assertTrue(token.getRoles().has("admin"));
+        assertEquals(token.getIssuedAt() + 30 * 60, token.getExpiresAt());
+        assertFalse(tokens.isRefreshDue(token));
+    }
+    
+    private static SessionTokens tokens(String keys, boolean encrypt) {
+        Map<String, String> overrides = new HashMap<>();
+        overrides.put("app.session.cookie.enabled", "true");
+        overrides.put("app.session.cookie.keys", keys);
+        overrides.put("app.session.cookie.encrypt", String.valueOf(encrypt));
+        overrides.put("app.session.cookie.attributes", "mail,groups");
+        overrides.put("app.session.timeout", "30");
+        ConfigSnapshot config = SAMLConfig.getSnapshot().withOverrides("test", overrides);
+        return new SessionTokens(config);
+    }
+    
+    private static SAMLUserInfo user() {
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        attributes.put("mail", Arrays.asList("jdoe@example.com"));
+        attributes.put("displayName", Arrays.asList("Jane Doe"));
+        attributes.put("groups", Arrays.asList("staff", "ops"));
+        return new SAMLUserInfo("jdoe@example.com", attributes, "_session-1");
+    }
+    
+    private static RoleSet roles(String... names) {
+        return RoleSet.of(names);
+    }
+    
+    private static String secret(int seed) {
+        byte[] bytes = new byte[32];
+        Arrays.fill(bytes, (byte) seed);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+    
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+    
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
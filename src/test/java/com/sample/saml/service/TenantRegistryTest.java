@@ -0,0 +1,159 @@
+package com.sample.saml.service;
+
+import com.sample.saml.metrics.SAMLMetrics;
+import com.sample.saml.util.ConfigSnapshot;
+import com.sample.saml.util.SAMLConfig;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tenant Registry Tests
+ * 
+ * A request is resolved to a tenant by host, then by the path segment after
+ * the endpoint, then by the tenant query parameter; requests racing for a
+ * tenant that is not built yet share one build, and beyond the cache size
+ * the least recently used tenant is dropped and built again on next use.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+class TenantRegistryTest {
+    
+    private static final LongAdder BUILT = SAMLMetrics.counter("tenant", "built", "none");
+    
+    @Test
+    void resolvesByHostThenPathThenQuery() {
+        TenantRegistry registry = registry(10, "acme", "Sso.Acme.Example", null, "globex", null, "/globex/",
+                "initech", null, null);
+        
+        assertEquals(3, registry.getTenantCount());
+        assertEquals("acme", resolve(registry, "sso.acme.example", "/globex", null));
+        assertEquals("acme", resolve(registry, "SSO.ACME.EXAMPLE", null, null));
+        assertEquals("globex", resolve(registry, "sp.example.com", "/globex", null));
+        assertEquals("globex", resolve(registry, "sp.example.com", "/globex/extra", "tenant=initech"));
+        assertEquals("initech", resolve(registry, "sp.example.com", "/other", "a=1&tenant=initech"));
+        assertEquals("initech", resolve(registry, "sp.example.com", null, "tenant=initech&b=2"));
+        assertNull(resolve(registry, "sp.example.com", "/", "tenants=initech"));
+        assertNull(resolve(registry, "sp.example.com", "/globe", "tenant="));
+        assertNull(resolve(registry, null, null, null));
+        
+        assertEquals("acme", registry.findByEntityId("https://idp.acme.example").getId());
+        assertEquals("globex", registry.getTenant("globex").getPath());
+        assertEquals("sso.acme.example", registry.getTenant("acme").getHost());
+    }
+    
+    @Test
+    void rejectsConflictingOrIncompleteTenants() {
+        assertThrows(IllegalArgumentException.class, () -> registry(10, "a", "h.example", null, "b", "H.example", null));
+        assertThrows(IllegalArgumentException.class, () -> registry(10, "a", null, "p", "b", null, "/p"));
+        assertThrows(IllegalArgumentException.class, () -> registry(10, "a", null, "p/q"));
+        Properties noIdp = new Properties();
+        noIdp.setProperty("a.host", "h.example");
+        assertThrows(IllegalArgumentException.class, () -> new TenantRegistry(SAMLConfig.getSnapshot(), noIdp));
+    }
+    
+    @Test
+    void buildsColdTenantOnceForConcurrentRequests() throws Exception {
+        TenantRegistry registry = registry(10, "acme", null, "acme");
+        TenantRegistry.Tenant tenant = registry.getTenant("acme");
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<SAMLService>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return registry.getService(tenant);
+                }));
+            }
+            long built = BUILT.sum();
+            start.countDown();
+            
+            SAMLService first = results.get(0).get(30, TimeUnit.SECONDS);
+            for (Future<SAMLService> result : results) {
+                assertSame(first, result.get(30, TimeUnit.SECONDS));
+            }
+            assertEquals(built + 1, BUILT.sum());
+            assertEquals(1, registry.getCachedCount());
+            // Built on the tenant's own settings
+            assertEquals("https://idp.acme.example", first.getConfig().getProperty("idp.entityId"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    void evictsLeastRecentlyUsedTenant() throws Exception {
+        TenantRegistry registry = registry(3, "t1", null, null, "t2", null, null, "t3", null, null, "t4", null, null);
+        List<SAMLService> services = new ArrayList<>();
+        for (String id : new String[] {"t1", "t2", "t3"}) {
+            services.add(registry.getService(registry.getTenant(id)));
+            Thread.sleep(5);
+        }
+        // t1 becomes the most recently used, leaving t2 the oldest
+        assertSame(services.get(0), registry.getService(registry.getTenant("t1")));
+        Thread.sleep(5);
+        
+        registry.getService(registry.getTenant("t4"));
+        assertEquals(3, registry.getCachedCount());
+        assertSame(services.get(0), registry.getService(registry.getTenant("t1")));
+        assertSame(services.get(2), registry.getService(registry.getTenant("t3")));
+        long built = BUILT.sum();
+        assertNotSame(services.get(1), registry.getService(registry.getTenant("t2")));
+        assertEquals(built + 1, BUILT.sum());
+    }
+    
+    /**
+     * Builds a registry from (id, host, path) triples
+     */
+    private static TenantRegistry registry(int maxCached, String... tenants) {
+        Properties properties = new Properties();
+        for (int i = 0; i < tenants.length; i += 3) {
+            String id = tenants[i];
+            properties.setProperty(id + ".idp.entityId", "https://idp." + id + ".example");
+            properties.setProperty(id + ".idp.singleSignOnService.url", "https://idp." + id + ".example/sso");
+            if (tenants[i + 1] != null) {
+                properties.setProperty(id + ".host", tenants[i + 1]);
+            }
+            if (tenants[i + 2] != null) {
+                properties.setProperty(id + ".path", tenants[i + 2]);
+            }
+        }
+        ConfigSnapshot config = SAMLConfig.getSnapshot().withOverrides("test",
+                Collections.singletonMap("saml.tenants.maxCached", String.valueOf(maxCached)));
+        return new TenantRegistry(config, properties);
+    }
+    
+    private static String resolve(TenantRegistry registry, String host, String pathInfo, String query) {
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getServerName": return host;
+                        case "getPathInfo": return pathInfo;
+                        case "getQueryString": return query;
+                        default: return null;
+                    }
+                });
+        TenantRegistry.Tenant tenant = registry.resolve(request);
+        return tenant != null ? tenant.getId() : null;
+    }
+}
@@ -0,0 +1,155 @@
+package com.sample.saml.servlet;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Form Body Reader Tests
+ * 
+ * Fields are read in order with {@code +} and {@code %XX} decoded, also when
+ * an escape is split across reads of the body; repeated fields are all
+ * returned, unread values are skipped, names and values are decoded in the
+ * request charset, and over-long or truncated input is refused.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+class FormBodyReaderTest {
+    
+    @Test
+    void decodesPlusAndPercentEscapes() throws IOException {
+        FormBodyReader form = reader("SAMLResponse=PHNhbWxwOlJlc3BvbnNl%2B%2F%3D%3D&Relay+State=%2Fa%20b%3Fc%3Dd%26e+f",
+                StandardCharsets.UTF_8);
+        
+        assertEquals("SAMLResponse", form.nextField());
+        assertEquals("PHNhbWxwOlJlc3BvbnNl+/==", new String(readAll(form.value()), StandardCharsets.US_ASCII));
+        assertEquals("Relay State", form.nextField());
+        assertEquals("/a b?c=d&e f", form.valueAsString(100));
+        assertNull(form.nextField());
+    }
+    
+    @Test
+    void decodesEscapesSplitAcrossReads() throws IOException {
+        String body = "SAMLResponse=ab%2Bcd%2F%3D&RelayState=%2Fwelcome.jsp";
+        // Every read returns at most one byte, so each escape spans three reads
+        FormBodyReader form = new FormBodyReader(trickle(body.getBytes(StandardCharsets.US_ASCII)), StandardCharsets.UTF_8);
+        
+        assertEquals("SAMLResponse", form.nextField());
+        assertArrayEquals("ab+cd/=".getBytes(StandardCharsets.US_ASCII), readAll(form.value()));
+        assertEquals("RelayState", form.nextField());
+        assertEquals("/welcome.jsp", form.valueAsString(100));
+        assertNull(form.nextField());
+    }
+    
+    @Test
+    void returnsDuplicateFieldsAndSkipsUnreadValues() throws IOException {
+        FormBodyReader form = reader("RelayState=%2Ffirst&&SAMLResponse=skipped%2B&RelayState=/second&flag&a=b=c",
+                StandardCharsets.UTF_8);
+        List<String> fields = new ArrayList<>();
+        List<String> relayStates = new ArrayList<>();
+        for (String field = form.nextField(); field != null; field = form.nextField()) {
+            fields.add(field);
+            if ("RelayState".equals(field)) {
+                relayStates.add(form.valueAsString(100));
+            } else if ("a".equals(field)) {
+                // '=' inside a value is literal
+                assertEquals("b=c", form.valueAsString(100));
+            }
+        }
+        
+        assertEquals(Arrays.asList("RelayState", "SAMLResponse", "RelayState", "flag", "a"), fields);
+        assertEquals(Arrays.asList("/first", "/second"), relayStates);
+    }
+    
+    @Test
+    void refusesOverlongValuesAndNames() throws IOException {
+        FormBodyReader form = reader("RelayState=" + repeat('x', 101) + "&SAMLResponse=abc", StandardCharsets.UTF_8);
+        assertEquals("RelayState", form.nextField());
+        assertThrows(IOException.class, () -> form.valueAsString(100));
+        
+        FormBodyReader exact = reader("RelayState=" + repeat('x', 100), StandardCharsets.UTF_8);
+        exact.nextField();
+        assertEquals(100, exact.valueAsString(100).length());
+        
+        assertThrows(IOException.class, () -> reader(repeat('n', 257) + "=v", StandardCharsets.UTF_8).nextField());
+    }
+    
+    @Test
+    void handlesTruncatedInput() throws IOException {
+        // A body cut off in a value still ends the value
+        FormBodyReader cut = reader("RelayState=/welc", StandardCharsets.UTF_8);
+        assertEquals("RelayState", cut.nextField());
+        assertEquals("/welc", cut.valueAsString(100));
+        assertNull(cut.nextField());
+        
+        // but not in an escape
+        for (String body : new String[] {"RelayState=%2", "RelayState=%", "Relay%2"}) {
+            FormBodyReader form = reader(body, StandardCharsets.UTF_8);
+            assertThrows(IOException.class, () -> {
+                form.nextField();
+                form.valueAsString(100);
+            }, body);
+        }
+        FormBodyReader invalid = reader("RelayState=%zz", StandardCharsets.UTF_8);
+        invalid.nextField();
+        assertThrows(IOException.class, () -> invalid.valueAsString(100));
+    }
+    
+    @Test
+    void decodesInRequestCharset() throws IOException {
+        FormBodyReader utf8 = reader("RelayState=%2Fcaf%C3%A9", StandardCharsets.UTF_8);
+        utf8.nextField();
+        assertEquals("/café", utf8.valueAsString(100));
+        
+        FormBodyReader latin1 = reader("caf%E9=%2Fna%EFve", StandardCharsets.ISO_8859_1);
+        assertEquals("café", latin1.nextField());
+        assertEquals("/naïve", latin1.valueAsString(100));
+        
+        FormBodyReader windows = reader("RelayState=%80", Charset.forName("windows-1252"));
+        windows.nextField();
+        assertEquals("€", windows.valueAsString(100));
+    }
+    
+    private static FormBodyReader reader(String body, Charset charset) {
+        return new FormBodyReader(new ByteArrayInputStream(body.getBytes(StandardCharsets.US_ASCII)), charset);
+    }
+    
+    private static InputStream trickle(byte[] bytes) {
+        return new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] target, int offset, int length) {
+                return super.read(target, offset, Math.min(length, 1));
+            }
+        };
+    }
+    
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3];
+        int read;
+        while ((read = in.read(buffer, 0, buffer.length)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+    
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,95 @@
+package com.sample.saml.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Wire Format Tests
+ * 
+ * Strings, nullable strings, counts and attribute maps read back as they
+ * were written, also past the 64 KB that writeUTF allows; negative or
+ * oversized lengths and counts and truncated input are refused.
+ * 
+ * @author SAML SSO Sample App
+ * @version 1.0.0
+ */
+class WireFormatTest {
+    
+    @Test
+    void roundTripsStringsCountsAndAttributes() throws IOException {
+        char[] large = new char[70_000];
+        Arrays.fill(large, 'é');
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        attributes.put("mail", Arrays.asList("jdoe@example.com"));
+        attributes.put("groups", Arrays.asList("b", "a", ""));
+        attributes.put("none", Collections.emptyList());
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        WireFormat.writeString(out, "Jörg – 東京");
+        WireFormat.writeNullable(out, null);
+        WireFormat.writeNullable(out, "");
+        WireFormat.writeString(out, new String(large));
+        WireFormat.writeCount(out, 70_000);
+        WireFormat.writeAttributes(out, attributes);
+        
+        DataInputStream in = input(bytes.toByteArray());
+        assertEquals("Jörg – 東京", WireFormat.readString(in));
+        assertNull(WireFormat.readNullable(in));
+        assertEquals("", WireFormat.readNullable(in));
+        assertEquals(new String(large), WireFormat.readString(in));
+        assertEquals(70_000, WireFormat.readCount(in));
+        Map<String, List<String>> read = WireFormat.readAttributes(in);
+        assertEquals(attributes, read);
+        assertEquals(Arrays.asList("mail", "groups", "none"), Arrays.asList(read.keySet().toArray()));
+        assertEquals(-1, in.read());
+    }
+    
+    @Test
+    void refusesInvalidLengthsAndCounts() throws IOException {
+        assertThrows(StreamCorruptedException.class, () -> WireFormat.readNullable(input(ints(-2))));
+        assertThrows(StreamCorruptedException.class, () -> WireFormat.readNullable(input(ints(WireFormat.MAX_LENGTH + 1))));
+        assertThrows(StreamCorruptedException.class, () -> WireFormat.readString(input(ints(-1))));
+        assertThrows(StreamCorruptedException.class, () -> WireFormat.readCount(input(ints(-1))));
+        assertThrows(StreamCorruptedException.class, () -> WireFormat.readCount(input(ints(Integer.MAX_VALUE))));
+        assertThrows(IOException.class,
+                () -> WireFormat.writeCount(new DataOutputStream(new ByteArrayOutputStream()), WireFormat.MAX_LENGTH + 1));
+        // A count the stream cannot back ends in EOF, not in a huge allocation
+        ByteArrayOutputStream claimed = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(claimed);
+        WireFormat.writeCount(out, 1);
+        WireFormat.writeString(out, "mail");
+        WireFormat.writeCount(out, 1_000_000);
+        assertThrows(EOFException.class, () -> WireFormat.readAttributes(input(claimed.toByteArray())));
+        assertThrows(EOFException.class, () -> WireFormat.readString(input(ints(10))));
+    }
+    
+    private static DataInputStream input(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+    
+    private static byte[] ints(int... values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+        return bytes.toByteArray();
+    }
+}